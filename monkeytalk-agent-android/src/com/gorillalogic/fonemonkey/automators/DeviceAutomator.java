@@ -30,6 +30,7 @@ import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Rect;
 import android.os.BatteryManager;
 import android.os.Build;
@@ -116,36 +117,8 @@ public class DeviceAutomator extends AutomatorBase {
 				printMemoryInfo();
 				System.gc();
 				try {
-					final Activity activity = AutomationManager.getTopActivity();
-					if (activity != null) {
-
-						// get the root view from the activity
-						View v = activity.getWindow().getDecorView()
-								.findViewById(android.R.id.content).getRootView();
-
-						boolean enabled = v.isDrawingCacheEnabled();
-						Bitmap bitmap;
-						try {
-
-							v.setDrawingCacheEnabled(true);
-							// Android 3.2 mdpi and 4.0.3 1280x800 mdpi nullpointer
-							Bitmap dc = v.getDrawingCache();
-							if (dc == null) {
-								// throw new
-								// IllegalStateException("No screenshot available (unable to access drawing cache).");
-								bitmap = Bitmap.createBitmap(v.getWidth(), v.getHeight(),
-										Bitmap.Config.ARGB_8888);
-								Canvas canvas = new Canvas(bitmap);
-								v.draw(canvas);
-							} else {
-								bitmap = Bitmap.createBitmap(dc);
-							}
-						} catch (Exception e) {
-							Log.log(e);
-							throw new IllegalStateException("No screenshot available.");
-						} finally {
-							v.setDrawingCacheEnabled(enabled);
-						}
+					Bitmap bitmap = getBitmap();
+					if (bitmap != null) {
 						try {
 							// write the bitmap to bytes
 							ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -188,6 +161,99 @@ public class DeviceAutomator extends AutomatorBase {
 		return super.play(action, args);
 	}
 
+	/**
+	 * Draw the root view of the top activity into a new bitmap.
+	 * 
+	 * @return the bitmap, or null if there is no activity
+	 */
+	private Bitmap getBitmap() {
+		final Activity activity = AutomationManager.getTopActivity();
+		if (activity == null) {
+			return null;
+		}
+
+		// get the root view from the activity
+		View v = activity.getWindow().getDecorView().findViewById(android.R.id.content)
+				.getRootView();
+
+		boolean enabled = v.isDrawingCacheEnabled();
+		Bitmap bitmap;
+		try {
+
+			v.setDrawingCacheEnabled(true);
+			// Android 3.2 mdpi and 4.0.3 1280x800 mdpi nullpointer
+			Bitmap dc = v.getDrawingCache();
+			if (dc == null) {
+				// throw new
+				// IllegalStateException("No screenshot available (unable to access drawing cache).");
+				bitmap = Bitmap.createBitmap(v.getWidth(), v.getHeight(), Bitmap.Config.ARGB_8888);
+				Canvas canvas = new Canvas(bitmap);
+				v.draw(canvas);
+			} else {
+				bitmap = Bitmap.createBitmap(dc);
+			}
+		} catch (Exception e) {
+			Log.log(e);
+			throw new IllegalStateException("No screenshot available.");
+		} finally {
+			v.setDrawingCacheEnabled(enabled);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Get the screen as raw PNG bytes, ready to go out as a binary multipart part with no base64
+	 * step. Unlike the {@code Screenshot} action, there are no retries.
+	 * 
+	 * @return the PNG bytes, or null if there is no activity or the screen can't be compressed
+	 */
+	public byte[] getScreenshot() throws IOException {
+		Bitmap bitmap = getBitmap();
+		if (bitmap == null) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		boolean success = bitmap.compress(Bitmap.CompressFormat.PNG, 0, out);
+		out.close();
+		bitmap.recycle();
+		return (success ? out.toByteArray() : null);
+	}
+
+	/**
+	 * Get a cheap fingerprint of the screen: a 64-bit average hash, as 16 hex digits. The screen
+	 * is scaled down to 8x8 gray pixels, and each bit is set if its pixel is brighter than the
+	 * mean, so similar screens have fingerprints that differ in only a few bits.
+	 * 
+	 * @return the fingerprint, or null if there is no activity
+	 */
+	public String getFingerprint() {
+		Bitmap bitmap = getBitmap();
+		if (bitmap == null) {
+			return null;
+		}
+		Bitmap small = Bitmap.createScaledBitmap(bitmap, 8, 8, true);
+		if (small != bitmap) {
+			bitmap.recycle();
+		}
+
+		int[] gray = new int[64];
+		long sum = 0;
+		for (int i = 0; i < gray.length; i++) {
+			int c = small.getPixel(i % 8, i / 8);
+			gray[i] = (Color.red(c) * 299 + Color.green(c) * 587 + Color.blue(c) * 114) / 1000;
+			sum += gray[i];
+		}
+		small.recycle();
+
+		long hash = 0;
+		for (int i = 0; i < gray.length; i++) {
+			if (gray[i] * gray.length > sum) {
+				hash |= 1L << (gray.length - 1 - i);
+			}
+		}
+		return String.format("%016x", hash);
+	}
+
 	public static String back() {
 		final Activity activity = AutomationManager.getTopActivity();
 		if (activity != null) {
@@ -249,6 +315,13 @@ public class DeviceAutomator extends AutomatorBase {
 				: "portrait");
 	}
 
+	/**
+	 * @return the memory, cpu, disk space, and battery, as a comma-separated list
+	 */
+	public String getAllInfo() {
+		return getMemory(false) + "," + getCPU() + "," + getDiskSpace() + "," + getBattery();
+	}
+
 	@Override
 	protected String getProperty(String prop) {
 		if ("os".equals(prop)) {
@@ -270,7 +343,7 @@ public class DeviceAutomator extends AutomatorBase {
 		} else if ("diskspace".equals(prop)) {
 			return getDiskSpace();
 		} else if ("allinfo".equals(prop)) {
-			return getMemory(false) + "," + getCPU() + "," + getDiskSpace() + "," + getBattery();
+			return getAllInfo();
 		} else if ("totalDiskSpace".equals(prop)) {
 			return getTotalDiskSpace();
 		} else if ("totalMemory".equals(prop)) {
@@ -40,6 +40,7 @@ import com.gorillalogic.fonemonkey.exceptions.FoneMonkeyScriptFailure;
 import com.gorillalogic.monkeytalk.BuildStamp;
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.automators.AutomatorConstants;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
 import com.gorillalogic.monkeytalk.server.JsonServer;
 import com.gorillalogic.monkeytalk.server.ServerConfig;
 
@@ -65,6 +66,7 @@ public class PlaybackServer extends JsonServer {
 		String result = "OK";
 		String message = "";
 		String warning = "";
+		JSONArray after = null;
 
 		if ("PING".equals(mtcommand)) {
 			if (json.has("record")) {
@@ -158,6 +160,7 @@ public class PlaybackServer extends JsonServer {
 				message = (cmd.isScreenshotOnError() ? screenshotOnError(ex.getMessage()) : ex
 						.getMessage());
 			}
+			after = json.optJSONArray(CommandSender.AFTER);
 			// } else if ("RECORD".equals(mtcommand)) {
 			// // IDE polling for recorded commands (from behind firewall)
 			// List<Command> list = Recorder.pollQueue();
@@ -193,6 +196,7 @@ public class PlaybackServer extends JsonServer {
 		}
 
 		JSONObject resp = new JSONObject();
+		byte[] afterImage = null;
 		try {
 			resp.put("result", result);
 
@@ -208,11 +212,16 @@ public class PlaybackServer extends JsonServer {
 						(message.startsWith("{") ? new JSONObject(message) : message
 								.startsWith("[") ? new JSONArray(message) : message));
 			}
+			if (after != null) {
+				afterImage = after(after, resp);
+			}
 		} catch (JSONException ex) {
 			resp = new JSONObject();
 		}
 
-		return new Response(HttpStatus.OK, resp);
+		Response r = new Response(HttpStatus.OK, resp);
+		r.setAfterImage(afterImage);
+		return r;
 	}
 
 	private String play(Command cmd) throws FoneMonkeyErrorException, FoneMonkeyFailureException {
@@ -404,6 +413,38 @@ public class PlaybackServer extends JsonServer {
 		return cmd.getComponentType() + "(" + cmd.getMonkeyId() + ")";
 	}
 
+	/**
+	 * Capture whatever the PLAY asked for right after playing the command (see
+	 * {@link CommandSender#AFTER}) and attach it to the response. Anything that can't be captured
+	 * is just left out, and the runner falls back to asking for it separately.
+	 * 
+	 * @return the raw after screenshot, which the server sends as binary (or base64 encoded under
+	 *         the {@code afterImage} key, if the runner can't take binary), or null if none
+	 */
+	private byte[] after(JSONArray after, JSONObject resp) {
+		DeviceAutomator device = (DeviceAutomator) AutomationManager.findAutomatorByType("Device");
+		if (device == null) {
+			return null;
+		}
+
+		byte[] afterImage = null;
+		for (int i = 0; i < after.length(); i++) {
+			String what = after.optString(i);
+			try {
+				if (CommandSender.AFTER_IMAGE.equals(what)) {
+					afterImage = device.getScreenshot();
+				} else if (CommandSender.AFTER_METRICS.equals(what)) {
+					resp.putOpt("metrics", device.getAllInfo());
+				} else if (CommandSender.AFTER_FINGERPRINT.equals(what)) {
+					resp.putOpt("fingerprint", device.getFingerprint());
+				}
+			} catch (Exception ex) {
+				Log.log(ex);
+			}
+		}
+		return afterImage;
+	}
+
 	private String screenshotOnError(String msg) {
 		if (msg == null) {
 			msg = "no message";
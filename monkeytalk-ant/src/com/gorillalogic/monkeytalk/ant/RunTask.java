@@ -53,6 +53,7 @@ import com.gorillalogic.monkeytalk.processor.PlaybackResult;
 import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
 import com.gorillalogic.monkeytalk.processor.Runner;
 import com.gorillalogic.monkeytalk.processor.Scope;
+import com.gorillalogic.monkeytalk.processor.Shard;
 import com.gorillalogic.monkeytalk.processor.SuiteListener;
 import com.gorillalogic.monkeytalk.processor.report.Report;
 import com.gorillalogic.monkeytalk.sender.Response;
@@ -79,7 +80,14 @@ public class RunTask extends Task {
 	private int startup;
 	private boolean screenshots = false;
 	private boolean screenshotOnError = true;
+	private int screenshotthreshold = -1;
+	private int keyframes;
+	private boolean keepalive = false;
 	private String globals;
+	private String shard;
+	private File shardreports;
+	private File history;
+	private int failfast;
 	private static final String TEMP_FILE = ".tmp" + CommandWorld.SCRIPT_EXT;
 
 	private final PlaybackListener scriptListener = new PlaybackListener() {
@@ -234,9 +242,19 @@ public class RunTask extends Task {
 		runner.setGlobalScreenshotOnError(screenshotOnError);
 		runner.setTakeAfterScreenshot(screenshots);
 		runner.setTakeAfterMetrics(screenshots);
+		runner.setScreenshotThreshold(screenshotthreshold);
+		runner.setKeyframeInterval(keyframes);
+		runner.setKeepAlive(keepalive);
 		PlaybackResult result = null;
 
 		try {
+			if (shard != null) {
+				runner.setShard(Shard.parse(shard));
+				runner.setShardReports(shardreports);
+			}
+			runner.setHistoryFile(history);
+			runner.setFailFast(failfast);
+
 			if (script != null && suite != null) {
 				throw new BuildException(
 						"You cannot specify both script and suite in the run task.");
@@ -363,10 +381,38 @@ public class RunTask extends Task {
 		this.startup = startup;
 	}
 
+	public void setScreenshotthreshold(int screenshotthreshold) {
+		this.screenshotthreshold = screenshotthreshold;
+	}
+
+	public void setKeyframes(int keyframes) {
+		this.keyframes = keyframes;
+	}
+
+	public void setKeepalive(boolean keepalive) {
+		this.keepalive = keepalive;
+	}
+
 	public void setGlobals(String globals) {
 		this.globals = globals;
 	}
 
+	public void setShard(String shard) {
+		this.shard = shard;
+	}
+
+	public void setShardreports(File shardreports) {
+		this.shardreports = shardreports;
+	}
+
+	public void setHistory(File history) {
+		this.history = history;
+	}
+
+	public void setFailfast(int failfast) {
+		this.failfast = failfast;
+	}
+
 	public void setCallbackurl(String callbackurl) {
 		this.callbackurl = callbackurl;
 	}
@@ -21,7 +21,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -76,6 +75,7 @@ public class Command implements Cloneable {
 	private boolean comment;
 	private int defaultTimeout = -1;
 	private int defaultThinktime = -1;
+	private Templates templates;
 
 	/**
 	 * Instantiate a null MonkeyTalk Command object.
@@ -117,6 +117,44 @@ public class Command implements Cloneable {
 		setProperties(componentType, monkeyId, action, args, modifiers);
 	}
 
+	/**
+	 * Instantiate an exact copy of the given command, without re-parsing or re-escaping any of its
+	 * parts.
+	 * 
+	 * @param other
+	 *            the command to copy
+	 */
+	Command(Command other) {
+		command = other.command;
+		componentType = other.componentType;
+		monkeyId = other.monkeyId;
+		action = other.action;
+		args = new ArrayList<String>(other.args);
+		modifiers = new HashMap<String, String>(other.modifiers);
+		comment = other.comment;
+		defaultTimeout = other.defaultTimeout;
+		defaultThinktime = other.defaultThinktime;
+		templates = other.templates;
+	}
+
+	/**
+	 * Instantiate a command directly from all of its already parsed parts, without re-parsing or
+	 * re-escaping any of them (ex: when reading a {@link ProjectBundle}).
+	 */
+	Command(String command, String componentType, String monkeyId, String action,
+			List<String> args, Map<String, String> modifiers, boolean comment, int defaultTimeout,
+			int defaultThinktime) {
+		this.command = command;
+		this.componentType = componentType;
+		this.monkeyId = monkeyId;
+		this.action = action;
+		this.args = args;
+		this.modifiers = modifiers;
+		this.comment = comment;
+		this.defaultTimeout = defaultTimeout;
+		this.defaultThinktime = defaultThinktime;
+	}
+
 	/**
 	 * 
 	 * Instantiate a MonkeyTalk Command object from JSON.
@@ -196,6 +234,7 @@ public class Command implements Cloneable {
 	 * Helper to re-build the MonkeyTalk command string from its parts.
 	 */
 	private void setCommand() {
+		templates = null;
 		setCommand(componentType, monkeyId, action, getArgsAsString(), getModifiersAsString());
 	}
 
@@ -676,6 +715,7 @@ public class Command implements Cloneable {
 		modifiers = new HashMap<String, String>();
 		comment = false;
 		command = null;
+		templates = null;
 	}
 
 	private void setProperties(String componentType, String monkeyId, String action,
@@ -785,21 +825,22 @@ public class Command implements Cloneable {
 	 */
 	public Command substitute(String componentType, String monkeyId, String action,
 			List<String> args, Map<String, String> variables) {
+		Templates t = compileTemplates();
 
-		String newComponentType = substituteString(this.componentType, componentType, monkeyId,
+		String newComponentType = substituteString(t.componentType, componentType, monkeyId,
 				action, args, variables);
-		String newMonkeyId = substituteString(this.monkeyId, componentType, monkeyId, action, args,
+		String newMonkeyId = substituteString(t.monkeyId, componentType, monkeyId, action, args,
 				variables);
-		String newAction = substituteString(this.action, componentType, monkeyId, action, args,
+		String newAction = substituteString(t.action, componentType, monkeyId, action, args,
 				variables);
 
 		List<String> newArgs = new ArrayList<String>();
-		for (String arg : this.args) {
+		for (SubstitutionTemplate arg : t.args) {
 			newArgs.add(substituteString(arg, componentType, monkeyId, action, args, variables));
 		}
 
 		Map<String, String> newModifiers = new HashMap<String, String>();
-		for (Map.Entry<String, String> mod : modifiers.entrySet()) {
+		for (Map.Entry<String, SubstitutionTemplate> mod : t.modifiers.entrySet()) {
 			// do NOT escape modifiers
 			newModifiers.put(
 					mod.getKey(),
@@ -811,11 +852,11 @@ public class Command implements Cloneable {
 	}
 
 	/**
-	 * Helper to replace the given string with all built-in vars, built-in args, and named
+	 * Helper to replace the given template with all built-in vars, built-in args, and named
 	 * variables.
 	 * 
-	 * @param s
-	 *            the target string
+	 * @param template
+	 *            the target template, or null
 	 * @param componentType
 	 *            the value to be substituted for <code>%{componentType}</code>
 	 * @param monkeyId
@@ -829,37 +870,57 @@ public class Command implements Cloneable {
 	 *            the map of name-value pairs to be substituted for <code>${varname...}</code>
 	 * @return the fully-substituted string
 	 */
-	private String substituteString(String s, String componentType, String monkeyId, String action,
-			List<String> args, Map<String, String> variables) {
-		if (s == null) {
+	private String substituteString(SubstitutionTemplate template, String componentType,
+			String monkeyId, String action, List<String> args, Map<String, String> variables) {
+		if (template == null) {
 			return null;
 		}
+		return template.substitute(componentType, monkeyId, action, args, variables);
+	}
 
-		if (componentType != null) {
-			s = s.replaceAll("\\%\\{componentType\\}", Matcher.quoteReplacement(componentType));
-		}
-		if (monkeyId != null) {
-			s = s.replaceAll("\\%\\{monkeyId\\}", Matcher.quoteReplacement(monkeyId));
-		}
-		if (action != null) {
-			s = s.replaceAll("\\%\\{action\\}", Matcher.quoteReplacement(action));
+	/**
+	 * Compile the substitution templates for all the parts of the command, unless they are
+	 * already compiled. The templates are thrown away whenever the command is modified, and are
+	 * shared by copies of the command.
+	 * 
+	 * @return the templates
+	 */
+	Templates compileTemplates() {
+		Templates t = templates;
+		if (t == null) {
+			t = new Templates(this);
+			templates = t;
 		}
+		return t;
+	}
 
-		if (args != null) {
-			for (int i = 0; i < args.size(); i++) {
-				String target = "\\%\\{" + (i + 1) + "\\}";
-				s = s.replaceAll(target, Matcher.quoteReplacement(args.get(i)));
+	/**
+	 * The precompiled substitution templates for all the parts of a command.
+	 */
+	static class Templates {
+		private final SubstitutionTemplate componentType;
+		private final SubstitutionTemplate monkeyId;
+		private final SubstitutionTemplate action;
+		private final List<SubstitutionTemplate> args;
+		private final Map<String, SubstitutionTemplate> modifiers;
+
+		private Templates(Command cmd) {
+			componentType = compile(cmd.componentType);
+			monkeyId = compile(cmd.monkeyId);
+			action = compile(cmd.action);
+			args = new ArrayList<SubstitutionTemplate>(cmd.args.size());
+			for (String arg : cmd.args) {
+				args.add(compile(arg));
 			}
-		}
-
-		if (variables != null) {
-			for (Map.Entry<String, String> var : variables.entrySet()) {
-				String target = "\\$\\{" + var.getKey() + "\\}";
-				s = s.replaceAll(target, Matcher.quoteReplacement(var.getValue()));
+			modifiers = new HashMap<String, SubstitutionTemplate>();
+			for (Map.Entry<String, String> mod : cmd.modifiers.entrySet()) {
+				modifiers.put(mod.getKey(), compile(mod.getValue()));
 			}
 		}
 
-		return s;
+		private static SubstitutionTemplate compile(String s) {
+			return (s == null ? null : SubstitutionTemplate.compile(s));
+		}
 	}
 
 	/**
@@ -1062,10 +1123,29 @@ public class Command implements Cloneable {
 		if (comment) {
 			return new Command(command);
 		} else {
-			return new Command(componentType, monkeyId, action, args, modifiers);
+			Command copy = new Command(componentType, monkeyId, action, args, modifiers);
+			if (copy.hasSameParts(this)) {
+				// share the templates, so they are only compiled once for all the clones
+				copy.templates = compileTemplates();
+			}
+			return copy;
 		}
 	}
 
+	/**
+	 * Helper to check if the given command has exactly the same parts as this command.
+	 */
+	private boolean hasSameParts(Command other) {
+		return equal(componentType, other.componentType) && equal(monkeyId, other.monkeyId)
+				&& equal(action, other.action) && args.equals(other.args)
+				&& modifiers.equals(other.modifiers);
+	}
+
+	/** Helper for null-safe string equality */
+	private static boolean equal(String s1, String s2) {
+		return (s1 == null ? s2 == null : s1.equals(s2));
+	}
+
 	@Override
 	public int hashCode() {
 		int result = 17;
@@ -17,7 +17,6 @@ package com.gorillalogic.monkeytalk;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,13 +24,16 @@ import java.util.Map;
 import com.gorillalogic.monkeytalk.api.meta.Action;
 import com.gorillalogic.monkeytalk.api.meta.Arg;
 import com.gorillalogic.monkeytalk.finder.Finder;
+import com.gorillalogic.monkeytalk.parser.CSVData;
 import com.gorillalogic.monkeytalk.parser.CSVParser;
 import com.gorillalogic.monkeytalk.parser.MonkeyTalkParser;
-import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.FileIndex;
 
 /**
  * Scan the project folder to provide file system information and meta information to the processors
- * ({@link ScriptProcessor}, {@link SuiteProcessor}, etc.).
+ * ({@link ScriptProcessor}, {@link SuiteProcessor}, etc.). A world can also be backed by a
+ * precompiled {@link ProjectBundle}, in which case everything comes from the bundle, and the
+ * project folder is never scanned nor any file parsed.
  */
 public class CommandWorld {
 	/**
@@ -57,6 +59,9 @@ public class CommandWorld {
 	private static final String CUSTOM_PATTERN = "[^\\.]+\\.[^\\.]+\\" + SCRIPT_EXT;
 
 	private File rootDir;
+	private FileIndex index;
+	private ProjectBundle bundle;
+	private boolean scriptCache = true;
 
 	/**
 	 * Instantiate an empty world.
@@ -77,9 +82,34 @@ public class CommandWorld {
 			this.rootDir = null;
 		} else {
 			this.rootDir = rootDir.getAbsoluteFile();
+			this.index = new FileIndex(this.rootDir);
 		}
 	}
 
+	/**
+	 * Get a command world backed by the given precompiled project bundle. The root directory is
+	 * the folder containing the bundle.
+	 * 
+	 * @param bundle
+	 *            the project bundle
+	 * @return the command world
+	 */
+	public static CommandWorld fromBundle(ProjectBundle bundle) {
+		CommandWorld world = new CommandWorld();
+		world.bundle = bundle;
+		world.rootDir = bundle.getFile().getAbsoluteFile().getParentFile();
+		return world;
+	}
+
+	/**
+	 * Get the precompiled project bundle backing this world.
+	 * 
+	 * @return the bundle, or null if the world is backed by the project folder
+	 */
+	public ProjectBundle getBundle() {
+		return bundle;
+	}
+
 	/**
 	 * Get the root directory (aka the <i>project</i> directory where all your scripts are).
 	 * 
@@ -89,6 +119,37 @@ public class CommandWorld {
 		return rootDir;
 	}
 
+	/**
+	 * Refresh the world, so any changes to the project folder (added, removed, or renamed files)
+	 * are seen right away. Changes are normally picked up automatically, so this is only needed
+	 * for filesystems that don't update a folder's last modified time.
+	 */
+	public void refresh() {
+		if (index != null) {
+			index.refresh();
+		}
+	}
+
+	/**
+	 * True if parsed scripts and suites are cached (see {@link ScriptCache}), otherwise false.
+	 * 
+	 * @return true if caching
+	 */
+	public boolean isScriptCache() {
+		return scriptCache;
+	}
+
+	/**
+	 * Turn on (the default) or off caching of parsed scripts and suites. Turn it off if you edit
+	 * scripts in the middle of a run, and need every change picked up right away.
+	 * 
+	 * @param scriptCache
+	 *            true to cache
+	 */
+	public void setScriptCache(boolean scriptCache) {
+		this.scriptCache = scriptCache;
+	}
+
 	/**
 	 * Does the given script have a Javascript override? Returns true if yes {@code script.mt} is
 	 * overridden by {@code script.js}, otherwise false.
@@ -109,7 +170,7 @@ public class CommandWorld {
 	 */
 	public List<Command> getScript(String filename) {
 		File f = findFileWithExt(filename, SCRIPT_EXT);
-		return (f != null ? MonkeyTalkParser.parseFile(f) : null);
+		return parse(f);
 	}
 
 	/**
@@ -121,7 +182,18 @@ public class CommandWorld {
 	 */
 	public List<Command> getSuite(String filename) {
 		File f = findFileWithExt(filename, SUITE_EXT);
-		return (f != null ? MonkeyTalkParser.parseFile(f) : null);
+		return parse(f);
+	}
+
+	/**
+	 * Find the given suite file.
+	 *
+	 * @param filename
+	 *            the suite filename
+	 * @return the suite file, or null if not found
+	 */
+	public File getSuiteFile(String filename) {
+		return findFileWithExt(filename, SUITE_EXT);
 	}
 
 	/**
@@ -133,9 +205,37 @@ public class CommandWorld {
 	 */
 	public List<Map<String, String>> getData(String filename) {
 		File f = findFileWithExt(filename, DATA_EXT);
+		if (f != null && bundle != null) {
+			CSVData data = bundle.getData(f.getName());
+			if (data == null) {
+				return null;
+			}
+			List<Map<String, String>> list = new ArrayList<Map<String, String>>(data.size());
+			for (Map<String, String> row : data) {
+				list.add(row);
+			}
+			return list;
+		}
 		return (f != null ? CSVParser.parseFile(f) : null);
 	}
 
+	/**
+	 * Get the CSV data from the given datafile, for streaming. Unlike {@link #getData(String)},
+	 * rows are only read and parsed as they are iterated over, so this is the way to go for big
+	 * datafiles.
+	 * 
+	 * @param filename
+	 *            the datafile filename
+	 * @return the CSV data, or null if the datafile doesn't exist or has no header row
+	 */
+	public CSVData streamData(String filename) {
+		File f = findFileWithExt(filename, DATA_EXT);
+		if (f != null && bundle != null) {
+			return bundle.getData(f.getName());
+		}
+		return (f != null ? CSVParser.streamFile(f) : null);
+	}
+
 	/**
 	 * Get the list of script files in the project (both the scripts and the custom commands).
 	 * 
@@ -255,8 +355,10 @@ public class CommandWorld {
 	 * @return true if found, otherwise false
 	 */
 	public boolean fileExists(String filename) {
-		if (filename != null) {
-			return (FileUtils.findFile(filename, rootDir) != null);
+		if (filename != null && bundle != null) {
+			return (find(filename) != null);
+		} else if (filename != null && index != null) {
+			return (index.find(filename) != null);
 		}
 		return false;
 	}
@@ -271,15 +373,48 @@ public class CommandWorld {
 	 * @return the file, or null if not found
 	 */
 	private File findFileWithExt(String filename, String ext) {
-		if (filename != null) {
+		if (filename != null && index != null) {
 			if (!filename.toLowerCase().endsWith(ext.toLowerCase())) {
 				filename += ext;
 			}
-			return FileUtils.findFile(filename, rootDir);
+			return index.find(filename);
+		} else if (filename != null && bundle != null) {
+			if (!filename.toLowerCase().endsWith(ext.toLowerCase())) {
+				filename += ext;
+			}
+			return find(filename);
 		}
 		return null;
 	}
 
+	/**
+	 * Helper to find the given top-level file in the bundle.
+	 * 
+	 * @param filename
+	 *            the filename
+	 * @return the file (which doesn't exist on disk), or null if not found
+	 */
+	private File find(String filename) {
+		String name = bundle.find(filename);
+		return (name != null && name.indexOf('/') == -1 ? new File(rootDir, name) : null);
+	}
+
+	/**
+	 * Helper to parse the given script or suite file, using the {@link ScriptCache} if caching.
+	 * 
+	 * @param f
+	 *            the file
+	 * @return the commands, or null if the file doesn't exist
+	 */
+	private List<Command> parse(File f) {
+		if (f == null) {
+			return null;
+		} else if (bundle != null) {
+			return bundle.getCommands(f.getName());
+		}
+		return (scriptCache ? ScriptCache.getDefault().get(f) : MonkeyTalkParser.parseFile(f));
+	}
+
 	/**
 	 * Find the list of files with the given extension. Could return an empty list, but never
 	 * {@code null}. NOTE: match is <b>case-insensitive</b> on extension.
@@ -290,14 +425,13 @@ public class CommandWorld {
 	 */
 	private List<File> findFilesWithExt(String ext) {
 		List<File> list = new ArrayList<File>();
-		if (rootDir != null) {
+		if (index != null || bundle != null) {
 			ext = ext.toLowerCase();
-			for (File f : rootDir.listFiles()) {
+			for (File f : listFiles()) {
 				if (f.getName().toLowerCase().endsWith(ext)) {
 					list.add(f);
 				}
 			}
-			Collections.sort(list);
 		}
 		return list;
 	}
@@ -312,13 +446,31 @@ public class CommandWorld {
 	 */
 	private List<File> findFilesWithRegex(String pattern) {
 		List<File> list = new ArrayList<File>();
-		if (rootDir != null) {
-			for (File f : rootDir.listFiles()) {
+		if (index != null || bundle != null) {
+			for (File f : listFiles()) {
 				if (f.getName().toLowerCase().matches(pattern)) {
 					list.add(f);
 				}
 			}
-			Collections.sort(list);
+		}
+		return list;
+	}
+
+	/**
+	 * Helper to list all the top-level files in the project, either from the folder or from the
+	 * bundle.
+	 * 
+	 * @return the list of files
+	 */
+	private List<File> listFiles() {
+		if (bundle == null) {
+			return index.list();
+		}
+		List<File> list = new ArrayList<File>();
+		for (String name : bundle.getFilenames()) {
+			if (name.indexOf('/') == -1) {
+				list.add(new File(rootDir, name));
+			}
 		}
 		return list;
 	}
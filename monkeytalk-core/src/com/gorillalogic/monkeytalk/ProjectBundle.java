@@ -0,0 +1,573 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gorillalogic.monkeytalk.parser.CSVData;
+import com.gorillalogic.monkeytalk.parser.CSVParser;
+import com.gorillalogic.monkeytalk.parser.MonkeyTalkParser;
+
+/**
+ * A whole MonkeyTalk project precompiled into a single binary file, so a run can start without
+ * scanning the project folder or parsing any text. The bundle holds the parsed commands of every
+ * script and suite, the rows of every datafile already split into values, the source of every
+ * Javascript file (including the ones in sub-folders, like {@code libs}), and the globals
+ * properties, plus a content hash of the whole project.
+ * <p>
+ * The bundle is memory mapped when opened, and only the index of files is read up front. Each
+ * file is decoded on first use, and datafile rows are only decoded as they are iterated over. Use
+ * a bundle by giving it to {@link CommandWorld#fromBundle(ProjectBundle)}.
+ * <p>
+ * Format (all ints are big-endian, all strings are an int byte length, or {@code -1} for null,
+ * followed by UTF-8 bytes): the magic {@code MTBUNDLE}, the format version, the content hash, the
+ * project name, the number of files, then for each file its name, kind, offset and length, and
+ * finally the file contents.
+ */
+public class ProjectBundle {
+	/**
+	 * The bundle file extension.
+	 */
+	public static final String EXT = ".mtb";
+
+	/**
+	 * The current bundle format version.
+	 */
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'M', 'T', 'B', 'U', 'N', 'D', 'L', 'E' };
+	private static final String UTF8 = "UTF-8";
+
+	private static final byte COMMANDS = 1;
+	private static final byte DATA = 2;
+	private static final byte TEXT = 3;
+
+	private final File file;
+	private final ByteBuffer content;
+	private final String hash;
+	private final String projectName;
+	private final int start;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Map<String, List<Command>> commands = new HashMap<String, List<Command>>();
+
+	private ProjectBundle(File file) throws IOException {
+		this.file = file;
+		this.content = map(file);
+
+		ByteBuffer buf = content.duplicate();
+		byte[] magic = new byte[MAGIC.length];
+		if (buf.remaining() < MAGIC.length + 4) {
+			throw new IOException("not a MonkeyTalk bundle: " + file.getPath());
+		}
+		buf.get(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i]) {
+				throw new IOException("not a MonkeyTalk bundle: " + file.getPath());
+			}
+		}
+		int version = buf.getInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported bundle version " + version + " (expected "
+					+ VERSION + "), re-compile the bundle: " + file.getPath());
+		}
+
+		hash = readString(buf);
+		projectName = readString(buf);
+		int count = buf.getInt();
+		List<Entry> list = new ArrayList<Entry>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(new Entry(readString(buf), buf.get(), buf.getInt(), buf.getInt()));
+		}
+		start = buf.position();
+		for (Entry entry : list) {
+			entry.offset += start;
+			if (entry.offset < start || entry.length < 0
+					|| (long) entry.offset + entry.length > content.limit()) {
+				throw new IOException("corrupt bundle, " + entry.name + " is out of bounds: "
+						+ file.getPath());
+			}
+			entries.put(entry.name.toLowerCase(), entry);
+		}
+	}
+
+	/**
+	 * Open the given bundle.
+	 *
+	 * @param file
+	 *            the bundle file
+	 * @return the bundle
+	 * @throws IOException
+	 *             if the file can't be read, or isn't a bundle of the current version
+	 */
+	public static ProjectBundle open(File file) throws IOException {
+		return new ProjectBundle(file);
+	}
+
+	/**
+	 * Compile the given project folder into a bundle, and open it.
+	 *
+	 * @param projectDir
+	 *            the project folder
+	 * @param file
+	 *            the bundle file to write
+	 * @return the bundle
+	 * @throws IOException
+	 *             if the project can't be read, or the bundle can't be written
+	 */
+	public static ProjectBundle compile(File projectDir, File file) throws IOException {
+		if (projectDir == null || !projectDir.isDirectory()) {
+			throw new IOException("project folder not found: " + projectDir);
+		}
+
+		List<String> names = new ArrayList<String>();
+		collect(projectDir, "", names);
+		Collections.sort(names);
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream idx = new DataOutputStream(index);
+
+		for (String name : names) {
+			File f = new File(projectDir, name);
+			byte[] bytes = readBytes(f);
+			digest.update(name.getBytes(UTF8));
+			digest.update((byte) 0);
+			digest.update(bytes);
+
+			int offset = out.size();
+			byte kind = kindOf(name);
+			if (kind == COMMANDS) {
+				writeCommands(out, MonkeyTalkParser.parseFile(f));
+			} else if (kind == DATA) {
+				writeData(out, CSVParser.streamFile(f));
+			} else {
+				writeString(out, new String(bytes, UTF8));
+			}
+
+			writeString(idx, name);
+			idx.writeByte(kind);
+			idx.writeInt(offset);
+			idx.writeInt(out.size() - offset);
+		}
+		out.flush();
+		idx.flush();
+
+		StringBuilder hash = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hash.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		}
+
+		OutputStream os = new FileOutputStream(file);
+		try {
+			DataOutputStream header = new DataOutputStream(os);
+			header.write(MAGIC);
+			header.writeInt(VERSION);
+			writeString(header, hash.toString());
+			writeString(header, projectDir.getAbsoluteFile().getName());
+			header.writeInt(names.size());
+			index.writeTo(header);
+			payload.writeTo(header);
+			header.flush();
+		} finally {
+			os.close();
+		}
+
+		return open(file);
+	}
+
+	/**
+	 * Get the bundle file.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the content hash (SHA-1, as hex) of all the files in the project when the bundle was
+	 * compiled.
+	 *
+	 * @return the hash
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Get the name of the project folder the bundle was compiled from.
+	 *
+	 * @return the project name
+	 */
+	public String getProjectName() {
+		return projectName;
+	}
+
+	/**
+	 * Get the names of all the files in the bundle, sorted. Files in sub-folders are relative to
+	 * the project folder, with {@code /} as the separator.
+	 *
+	 * @return the filenames
+	 */
+	public List<String> getFilenames() {
+		List<String> list = new ArrayList<String>(entries.size());
+		for (Entry entry : entries.values()) {
+			list.add(entry.name);
+		}
+		return list;
+	}
+
+	/**
+	 * Find the given file in the bundle. NOTE: this is <b>case-insensitive</b>.
+	 *
+	 * @param filename
+	 *            the filename
+	 * @return the filename as it is in the bundle, or null if not found
+	 */
+	public String find(String filename) {
+		Entry entry = entry(filename);
+		return (entry != null ? entry.name : null);
+	}
+
+	/**
+	 * Get the parsed commands of the given script or suite.
+	 *
+	 * @param filename
+	 *            the script or suite filename
+	 * @return a copy of the commands, or null if not found
+	 */
+	public List<Command> getCommands(String filename) {
+		Entry entry = entry(filename);
+		if (entry == null || entry.kind != COMMANDS) {
+			return null;
+		}
+
+		List<Command> master;
+		synchronized (commands) {
+			master = commands.get(entry.name);
+			if (master == null) {
+				master = readCommands(at(entry, entry.offset));
+				for (Command cmd : master) {
+					cmd.compileTemplates();
+				}
+				commands.put(entry.name, master);
+			}
+		}
+
+		List<Command> list = new ArrayList<Command>(master.size());
+		for (Command cmd : master) {
+			list.add(new Command(cmd));
+		}
+		return list;
+	}
+
+	/**
+	 * Get the data from the given datafile. The rows are decoded as they are iterated over.
+	 *
+	 * @param filename
+	 *            the datafile filename
+	 * @return the data, or null if not found or the datafile has no header row
+	 */
+	public CSVData getData(String filename) {
+		final Entry entry = entry(filename);
+		if (entry == null || entry.kind != DATA) {
+			return null;
+		}
+
+		ByteBuffer buf = at(entry, entry.offset);
+		int count = buf.getInt();
+		if (count < 1) {
+			return null;
+		}
+		String[] headers = new String[count];
+		for (int i = 0; i < count; i++) {
+			headers[i] = readString(buf);
+		}
+		final int rows = buf.getInt();
+		final int table = buf.position();
+
+		return new CSVData(new File(file.getParentFile(), entry.name), headers,
+				new AbstractList<String[]>() {
+					@Override
+					public String[] get(int i) {
+						if (i < 0 || i >= rows) {
+							throw new IndexOutOfBoundsException("row " + i);
+						}
+						ByteBuffer row = at(entry, start + content.getInt(table + i * 4));
+						String[] values = new String[row.getInt()];
+						for (int j = 0; j < values.length; j++) {
+							values[j] = readString(row);
+						}
+						return values;
+					}
+
+					@Override
+					public int size() {
+						return rows;
+					}
+				});
+	}
+
+	/**
+	 * Get the contents of the given text file (ex: a Javascript file).
+	 *
+	 * @param filename
+	 *            the filename
+	 * @return the contents, or null if not found
+	 */
+	public String getText(String filename) {
+		Entry entry = entry(filename);
+		if (entry == null || entry.kind != TEXT) {
+			return null;
+		}
+		return readString(at(entry, entry.offset));
+	}
+
+	@Override
+	public String toString() {
+		return "ProjectBundle[" + projectName + ":" + entries.size() + " files:" + hash + "]";
+	}
+
+	/**
+	 * Helper to lookup the entry for the given filename.
+	 */
+	private Entry entry(String filename) {
+		return (filename == null ? null : entries.get(filename.replace('\\', '/').toLowerCase()));
+	}
+
+	/**
+	 * Helper to get a new view of the given entry, positioned at the given offset. Reading past the
+	 * end of the entry fails, instead of silently reading the next entry.
+	 */
+	private ByteBuffer at(Entry entry, int offset) {
+		ByteBuffer buf = content.duplicate();
+		buf.limit(entry.offset + entry.length);
+		buf.position(offset);
+		return buf;
+	}
+
+	/**
+	 * Helper to find all the bundled files in the given folder: scripts, suites, datafiles,
+	 * Javascript, and properties at the top level, plus Javascript in sub-folders.
+	 */
+	private static void collect(File dir, String prefix, List<String> names) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith(".")) {
+				continue;
+			} else if (f.isDirectory()) {
+				collect(f, prefix + name + "/", names);
+			} else if (prefix.length() == 0 ? kindOf(name) != 0 : kindOf(name) == TEXT
+					&& name.toLowerCase().endsWith(CommandWorld.JS_EXT)) {
+				names.add(prefix + name);
+			}
+		}
+	}
+
+	/**
+	 * Helper to get the kind of the given file from its extension, or zero if it isn't bundled.
+	 */
+	private static byte kindOf(String name) {
+		String lower = name.toLowerCase();
+		if (lower.endsWith(CommandWorld.SCRIPT_EXT) || lower.endsWith(CommandWorld.SUITE_EXT)) {
+			return COMMANDS;
+		} else if (lower.endsWith(CommandWorld.DATA_EXT)) {
+			return DATA;
+		} else if (lower.endsWith(CommandWorld.JS_EXT) || lower.endsWith(".properties")) {
+			return TEXT;
+		}
+		return 0;
+	}
+
+	private static void writeCommands(DataOutputStream out, List<Command> list)
+			throws IOException {
+		out.writeInt(list.size());
+		for (Command cmd : list) {
+			out.writeBoolean(cmd.isComment());
+			writeString(out, cmd.getRawCommand());
+			writeString(out, cmd.getComponentType());
+			writeString(out, cmd.getMonkeyId());
+			writeString(out, cmd.getAction());
+			out.writeInt(cmd.getArgs().size());
+			for (String arg : cmd.getArgs()) {
+				writeString(out, arg);
+			}
+			out.writeInt(cmd.getModifiers().size());
+			for (Map.Entry<String, String> mod : cmd.getModifiers().entrySet()) {
+				writeString(out, mod.getKey());
+				writeString(out, mod.getValue());
+			}
+			out.writeInt(cmd.getDefaultTimeout());
+			out.writeInt(cmd.getDefaultThinktime());
+		}
+	}
+
+	private static List<Command> readCommands(ByteBuffer buf) {
+		int count = buf.getInt();
+		List<Command> list = new ArrayList<Command>(count);
+		for (int i = 0; i < count; i++) {
+			boolean comment = (buf.get() != 0);
+			String command = readString(buf);
+			String componentType = readString(buf);
+			String monkeyId = readString(buf);
+			String action = readString(buf);
+			int n = buf.getInt();
+			List<String> args = new ArrayList<String>(n);
+			for (int j = 0; j < n; j++) {
+				args.add(readString(buf));
+			}
+			n = buf.getInt();
+			Map<String, String> modifiers = new HashMap<String, String>();
+			for (int j = 0; j < n; j++) {
+				modifiers.put(readString(buf), readString(buf));
+			}
+			list.add(new Command(command, componentType, monkeyId, action, args, modifiers,
+					comment, buf.getInt(), buf.getInt()));
+		}
+		return list;
+	}
+
+	private static void writeData(DataOutputStream out, CSVData data) throws IOException {
+		if (data == null) {
+			out.writeInt(0);
+			return;
+		}
+
+		String[] headers = data.getHeaders();
+		out.writeInt(headers.length);
+		for (String header : headers) {
+			writeString(out, header);
+		}
+
+		ByteArrayOutputStream rows = new ByteArrayOutputStream();
+		DataOutputStream r = new DataOutputStream(rows);
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (Map<String, String> row : data) {
+			offsets.add(r.size());
+			r.writeInt(headers.length);
+			for (String header : headers) {
+				writeString(r, row.get(header));
+			}
+		}
+		r.flush();
+
+		// row offsets are from the start of the payload, so the table comes first
+		out.writeInt(offsets.size());
+		int base = out.size() + offsets.size() * 4;
+		for (int offset : offsets) {
+			out.writeInt(base + offset);
+		}
+		rows.writeTo(out);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int len = buf.getInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[len];
+		buf.get(bytes);
+		try {
+			return new String(bytes, UTF8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static byte[] readBytes(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) f.length());
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ByteBuffer map(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A file in the bundle: its name, kind, and where its contents are.
+	 */
+	private static class Entry {
+		private final String name;
+		private final byte kind;
+		private final int length;
+		private int offset;
+
+		public Entry(String name, byte kind, int offset, int length) {
+			this.name = name;
+			this.kind = kind;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gorillalogic.monkeytalk.parser.MonkeyTalkParser;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+
+/**
+ * Bounded cache of parsed MonkeyTalk scripts and suites, so a script that is run over and over
+ * (ex: a custom command called inside a data-driven loop) isn't re-read and re-parsed every time.
+ * <p>
+ * Entries are keyed by the file's canonical path, and are only used while the file's last
+ * modified time and size are unchanged. A file modified within the last couple of seconds is
+ * never cached, to cover coarse filesystem mtime resolution. The cached commands are never handed
+ * out: every lookup returns a fresh copy, because the processors modify the commands they play.
+ */
+public class ScriptCache {
+	/**
+	 * Default maximum number of cached files.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private static final ScriptCache DEFAULT = new ScriptCache(DEFAULT_MAX_SIZE);
+
+	private final Map<String, CachedScript> entries;
+	private int hits;
+	private int misses;
+
+	/**
+	 * Instantiate a cache holding at most the given number of files. When full, the least
+	 * recently used file is evicted.
+	 *
+	 * @param maxSize
+	 *            the maximum number of cached files
+	 */
+	public ScriptCache(final int maxSize) {
+		entries = new LinkedHashMap<String, CachedScript>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedScript> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the default cache, shared by every {@link CommandWorld}.
+	 *
+	 * @return the default cache
+	 */
+	public static ScriptCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get the MonkeyTalk commands parsed from the given file, either from the cache or by parsing
+	 * the file (see {@link MonkeyTalkParser#parseFile(File)}).
+	 *
+	 * @param f
+	 *            the script or suite file
+	 * @return a copy of the parsed commands, or null if the file doesn't exist
+	 */
+	public List<Command> get(File f) {
+		if (f == null) {
+			return null;
+		}
+
+		String key = getKey(f);
+		long modified = f.lastModified();
+		long length = f.length();
+
+		synchronized (this) {
+			CachedScript entry = entries.get(key);
+			if (entry != null && entry.modified == modified && entry.length == length) {
+				hits++;
+				return copy(entry.commands);
+			}
+			misses++;
+		}
+
+		List<Command> commands = MonkeyTalkParser.parseFile(f);
+		if (commands != null && modified != 0
+				&& System.currentTimeMillis() - modified > FileUtils.MTIME_RESOLUTION) {
+			synchronized (this) {
+				entries.put(key, new CachedScript(modified, length, copy(commands)));
+			}
+		}
+		return commands;
+	}
+
+	/**
+	 * Remove every file from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of cached files.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache.
+	 *
+	 * @return the hit count
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups that required parsing the file.
+	 *
+	 * @return the miss count
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Helper to get the cache key for the given file, aka its canonical path.
+	 */
+	private static String getKey(File f) {
+		try {
+			return f.getCanonicalPath();
+		} catch (IOException ex) {
+			return f.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Helper to deep copy the given list of commands.
+	 */
+	private static List<Command> copy(List<Command> commands) {
+		List<Command> list = new ArrayList<Command>(commands.size());
+		for (Command cmd : commands) {
+			list.add(new Command(cmd));
+		}
+		return list;
+	}
+
+	/**
+	 * A cached file: its parsed commands, plus its last modified time and size when parsed.
+	 */
+	private static class CachedScript {
+		private final long modified;
+		private final long length;
+		private final List<Command> commands;
+
+		public CachedScript(long modified, long length, List<Command> commands) {
+			this.modified = modified;
+			this.length = length;
+			this.commands = commands;
+
+			// compile the substitution templates once, so every copy shares them
+			for (Command cmd : commands) {
+				cmd.compileTemplates();
+			}
+		}
+	}
+}
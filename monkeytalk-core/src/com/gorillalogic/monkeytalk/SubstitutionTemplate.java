@@ -0,0 +1,283 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * A string precompiled into literal text and substitution placeholders, so it can be substituted
+ * in a single pass without any regex (see
+ * {@link Command#substitute(String, String, String, List, Map)}). The placeholders are the
+ * built-in variables <code>%{componentType}</code>, <code>%{monkeyId}</code>,
+ * <code>%{action}</code>, the args <code>%{1}</code>, <code>%{2}</code>, etc., and the named
+ * variables <code>${varname}</code>. A placeholder with no value is left as is.
+ * <p>
+ * The old replace-everything-in-turn substitution would re-substitute a value that itself
+ * contains a placeholder (ex: an arg of <code>${foo}</code>). Those (rare) cases, plus any
+ * string with stray curly brackets, fall back to the old substitution, so the result is always
+ * the same.
+ */
+class SubstitutionTemplate {
+	private static final int LITERAL = 0;
+	private static final int COMPONENT_TYPE = 1;
+	private static final int MONKEY_ID = 2;
+	private static final int ACTION = 3;
+	private static final int ARG = 4;
+	private static final int VARIABLE = 5;
+
+	private final String source;
+	private final int[] kinds;
+	private final String[] texts;
+	private final int[] argIndexes;
+	private final boolean constant;
+	private final boolean fallback;
+
+	private SubstitutionTemplate(String source, List<Integer> kinds, List<String> texts,
+			List<Integer> argIndexes, boolean fallback) {
+		this.source = source;
+		this.kinds = new int[kinds.size()];
+		this.texts = texts.toArray(new String[texts.size()]);
+		this.argIndexes = new int[argIndexes.size()];
+		boolean constant = true;
+		for (int i = 0; i < this.kinds.length; i++) {
+			this.kinds[i] = kinds.get(i);
+			this.argIndexes[i] = argIndexes.get(i);
+			if (this.kinds[i] != LITERAL) {
+				constant = false;
+			}
+		}
+		this.constant = constant;
+		this.fallback = fallback && !constant;
+	}
+
+	/**
+	 * Compile the given string into a template.
+	 *
+	 * @param s
+	 *            the string
+	 * @return the template
+	 */
+	public static SubstitutionTemplate compile(String s) {
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<String> texts = new ArrayList<String>();
+		List<Integer> argIndexes = new ArrayList<Integer>();
+		boolean stray = false;
+
+		int len = s.length();
+		int start = 0;
+		int i = 0;
+		while (i < len) {
+			char c = s.charAt(i);
+			int end = ((c == '%' || c == '$') && i + 1 < len && s.charAt(i + 1) == '{' ? s
+					.indexOf('}', i + 2) : -1);
+			String name = (end != -1 ? s.substring(i + 2, end) : null);
+			if (name == null || name.indexOf('{') != -1) {
+				if (c == '{' || c == '}') {
+					stray = true;
+				}
+				i++;
+				continue;
+			}
+
+			int kind = LITERAL;
+			int argIndex = 0;
+			if (c == '$') {
+				kind = VARIABLE;
+			} else if (name.equals("componentType")) {
+				kind = COMPONENT_TYPE;
+			} else if (name.equals("monkeyId")) {
+				kind = MONKEY_ID;
+			} else if (name.equals("action")) {
+				kind = ACTION;
+			} else {
+				argIndex = parseArgIndex(name);
+				if (argIndex > 0) {
+					kind = ARG;
+				}
+			}
+
+			if (kind == LITERAL) {
+				// not a placeholder, aka just text
+				i = end + 1;
+				continue;
+			}
+
+			if (i > start) {
+				kinds.add(LITERAL);
+				texts.add(s.substring(start, i));
+				argIndexes.add(0);
+			}
+			kinds.add(kind);
+			texts.add(kind == VARIABLE ? name : s.substring(i, end + 1));
+			argIndexes.add(argIndex);
+			i = end + 1;
+			start = i;
+		}
+		if (start < len) {
+			kinds.add(LITERAL);
+			texts.add(s.substring(start));
+			argIndexes.add(0);
+		}
+
+		return new SubstitutionTemplate(s, kinds, texts, argIndexes, stray);
+	}
+
+	/**
+	 * Get the original string.
+	 *
+	 * @return the source
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * True if the string has no placeholders, so substituting always returns it unchanged.
+	 *
+	 * @return true if constant
+	 */
+	public boolean isConstant() {
+		return constant;
+	}
+
+	/**
+	 * Substitute the given values into the template.
+	 *
+	 * @param componentType
+	 *            the value to be substituted for <code>%{componentType}</code>
+	 * @param monkeyId
+	 *            the value to be substituted for <code>%{monkeyId}</code>
+	 * @param action
+	 *            the value to be substituted for <code>%{action}</code>
+	 * @param args
+	 *            the list of values to be substituted for <code>%{1}</code>, <code>%{2}</code>,
+	 *            etc.
+	 * @param variables
+	 *            the map of name-value pairs to be substituted for <code>${varname...}</code>
+	 * @return the fully-substituted string
+	 */
+	public String substitute(String componentType, String monkeyId, String action,
+			List<String> args, Map<String, String> variables) {
+		if (constant) {
+			return source;
+		}
+		if (fallback) {
+			return substituteAll(source, componentType, monkeyId, action, args, variables);
+		}
+
+		StringBuilder sb = new StringBuilder(source.length() + 16);
+		for (int i = 0; i < kinds.length; i++) {
+			String val = null;
+			switch (kinds[i]) {
+			case COMPONENT_TYPE:
+				val = componentType;
+				break;
+			case MONKEY_ID:
+				val = monkeyId;
+				break;
+			case ACTION:
+				val = action;
+				break;
+			case ARG:
+				if (args != null && argIndexes[i] <= args.size()) {
+					val = args.get(argIndexes[i] - 1);
+				}
+				break;
+			case VARIABLE:
+				if (variables != null) {
+					val = variables.get(texts[i]);
+				}
+				break;
+			default:
+				sb.append(texts[i]);
+				continue;
+			}
+
+			if (val == null) {
+				// no value, so leave the placeholder as is
+				sb.append(kinds[i] == VARIABLE ? "${" + texts[i] + "}" : texts[i]);
+			} else if (val.indexOf('{') != -1 && (val.contains("%{") || val.contains("${"))) {
+				// value could be substituted again, so do it the old way
+				return substituteAll(source, componentType, monkeyId, action, args, variables);
+			} else {
+				sb.append(val);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "SubstitutionTemplate[" + source + "]";
+	}
+
+	/**
+	 * Helper to parse an arg placeholder (ex: <code>%{12}</code>) into its index, or zero if it
+	 * isn't a positive number written the usual way (aka no sign, no leading zeros).
+	 */
+	private static int parseArgIndex(String name) {
+		int len = name.length();
+		if (len == 0 || len > 9 || name.charAt(0) == '0') {
+			return 0;
+		}
+		int n = 0;
+		for (int i = 0; i < len; i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * Helper to replace the given string with all built-in vars, built-in args, and named
+	 * variables, one after the other, so later replacements also apply to the values substituted
+	 * by earlier ones.
+	 */
+	private static String substituteAll(String s, String componentType, String monkeyId,
+			String action, List<String> args, Map<String, String> variables) {
+		if (componentType != null) {
+			s = s.replaceAll("\\%\\{componentType\\}", Matcher.quoteReplacement(componentType));
+		}
+		if (monkeyId != null) {
+			s = s.replaceAll("\\%\\{monkeyId\\}", Matcher.quoteReplacement(monkeyId));
+		}
+		if (action != null) {
+			s = s.replaceAll("\\%\\{action\\}", Matcher.quoteReplacement(action));
+		}
+
+		if (args != null) {
+			for (int i = 0; i < args.size(); i++) {
+				String target = "\\%\\{" + (i + 1) + "\\}";
+				s = s.replaceAll(target, Matcher.quoteReplacement(args.get(i)));
+			}
+		}
+
+		if (variables != null) {
+			for (Map.Entry<String, String> var : variables.entrySet()) {
+				String target = "\\$\\{" + var.getKey() + "\\}";
+				s = s.replaceAll(target, Matcher.quoteReplacement(var.getValue()));
+			}
+		}
+
+		return s;
+	}
+}
@@ -0,0 +1,229 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.agents;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Explicit lifecycle for an agent, so the (potentially expensive) {@link IAgent#start()} is only
+ * run when it is actually needed, and not before every script. For example, starting the
+ * {@link AndroidEmulatorAgent} runs {@code adb forward} in a new process.
+ * <p>
+ * The agent is {@link State#STOPPED} until {@link #ensureStarted()} starts it, which is a no-op
+ * once the agent is started. Optional background health checks ping the agent with
+ * {@link IAgent#isReady()} and mark it {@link State#HEALTHY} or {@link State#DEGRADED}. A degraded
+ * agent is reconnected (aka started again) by the next health check or the next call to
+ * {@link #ensureStarted()}.
+ */
+public class AgentLifecycle {
+
+	/**
+	 * Agent property with the interval (in ms) between background health checks, {@code 0} to
+	 * disable them.
+	 */
+	public static final String HEALTH_CHECK_INTERVAL_PROP = "healthCheckInterval";
+
+	/**
+	 * Default interval (in ms) between background health checks.
+	 */
+	public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 30000;
+
+	private static final ScheduledExecutorService HEALTH_CHECKS;
+
+	static {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MonkeyTalk agent health check");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		HEALTH_CHECKS = executor;
+	}
+
+	/**
+	 * The agent lifecycle states.
+	 */
+	public enum State {
+		/** the agent is not started */
+		STOPPED,
+		/** the agent is started, but hasn't been health checked yet */
+		STARTED,
+		/** the agent is started, and answered its last health check */
+		HEALTHY,
+		/** the agent is started, but failed its last health check */
+		DEGRADED;
+	}
+
+	private final IAgent agent;
+	private State state = State.STOPPED;
+	private int starts;
+	private ScheduledFuture<?> healthCheck;
+
+	/**
+	 * Instantiate a lifecycle for the given agent.
+	 *
+	 * @param agent
+	 *            the agent
+	 */
+	public AgentLifecycle(IAgent agent) {
+		this.agent = agent;
+	}
+
+	/**
+	 * Get the agent.
+	 *
+	 * @return the agent
+	 */
+	public IAgent getAgent() {
+		return agent;
+	}
+
+	/**
+	 * Get the current lifecycle state.
+	 *
+	 * @return the state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Get the number of times the agent has actually been started (including reconnects).
+	 *
+	 * @return the start count
+	 */
+	public synchronized int getStartCount() {
+		return starts;
+	}
+
+	/**
+	 * Start the agent if it is stopped, or reconnect it if it is degraded, otherwise do nothing.
+	 * Cheap enough to call before every script.
+	 *
+	 * @throws RuntimeException
+	 *             if the agent fails to start
+	 */
+	public synchronized void ensureStarted() {
+		if (state == State.STOPPED || state == State.DEGRADED) {
+			agent.start();
+			starts++;
+			state = State.STARTED;
+		}
+	}
+
+	/**
+	 * Stop any health checks and stop the agent, if it is started.
+	 */
+	public synchronized void stop() {
+		stopHealthChecks();
+		if (state != State.STOPPED) {
+			state = State.STOPPED;
+			agent.stop();
+		}
+	}
+
+	/**
+	 * Start the background health checks, using the {@link #HEALTH_CHECK_INTERVAL_PROP} agent
+	 * property as the interval, or {@link #DEFAULT_HEALTH_CHECK_INTERVAL} if it isn't set. Does
+	 * nothing if health checks are already running.
+	 */
+	public void startHealthChecks() {
+		long interval = DEFAULT_HEALTH_CHECK_INTERVAL;
+		String prop = agent.getProperty(HEALTH_CHECK_INTERVAL_PROP);
+		if (prop != null) {
+			try {
+				interval = Long.parseLong(prop.trim());
+			} catch (NumberFormatException ex) {
+				// use default
+			}
+		}
+		startHealthChecks(interval);
+	}
+
+	/**
+	 * Start the background health checks with the given interval. Does nothing if health checks
+	 * are already running, or if the interval is less than one.
+	 *
+	 * @param interval
+	 *            the interval (in ms) between health checks
+	 */
+	public synchronized void startHealthChecks(long interval) {
+		if (healthCheck != null || interval < 1) {
+			return;
+		}
+		healthCheck = HEALTH_CHECKS.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkHealth();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background health checks, if any.
+	 */
+	public synchronized void stopHealthChecks() {
+		if (healthCheck != null) {
+			healthCheck.cancel(false);
+			healthCheck = null;
+		}
+	}
+
+	/**
+	 * Check the agent's health right now, and reconnect it if it is degraded. Health checks are
+	 * skipped while the agent is stopped.
+	 *
+	 * @return the new state
+	 */
+	public State checkHealth() {
+		synchronized (this) {
+			if (state == State.STOPPED) {
+				return state;
+			}
+		}
+
+		// ping without holding the lock, so a slow agent doesn't block the scripts
+		boolean ready = agent.isReady();
+
+		synchronized (this) {
+			if (state == State.STOPPED) {
+				return state;
+			}
+			state = (ready ? State.HEALTHY : State.DEGRADED);
+			if (!ready) {
+				try {
+					ensureStarted();
+				} catch (RuntimeException ex) {
+					// still degraded, so try again on the next check
+				}
+			}
+			return state;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AgentLifecycle[" + agent.getName() + ":" + getState() + "]";
+	}
+}
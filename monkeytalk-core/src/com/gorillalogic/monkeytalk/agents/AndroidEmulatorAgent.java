@@ -82,6 +82,7 @@ public class AndroidEmulatorAgent extends AndroidAgent {
 
 	@Override
 	public void stop() {
+		super.stop();
 		if (adbHelper.isAdbRunning()) {
 			adbHelper.stopAdb(getAdb());
 		}
@@ -88,7 +88,9 @@ public interface IAgent {
 	public void setPort(int port);
 
 	/**
-	 * Do any necessary initialization prior to starting playback of a script.
+	 * Do any necessary initialization prior to starting playback of a script. This may be
+	 * expensive (ex: forking adb), so callers on the playback path should go through
+	 * {@link #getLifecycle()} instead, which only starts the agent when needed.
 	 */
 	public void start();
 
@@ -97,6 +99,13 @@ public interface IAgent {
 	 */
 	public void stop();
 
+	/**
+	 * Get the lifecycle of this agent, which tracks whether the agent is started and healthy.
+	 * 
+	 * @return the lifecycle
+	 */
+	public AgentLifecycle getLifecycle();
+
 	/**
 	 * Validate the agent and its properties
 	 * 
@@ -15,8 +15,12 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package com.gorillalogic.monkeytalk.agents;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.json.JSONObject;
 
@@ -28,10 +32,45 @@ import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
 import com.gorillalogic.monkeytalk.server.ServerConfig;
 
 public class MTAgent implements IAgent {
+	/**
+	 * Agent property to enable ({@code true}, the default) or disable ({@code false}) compressed
+	 * traffic to and from this agent.
+	 */
+	public static final String COMPRESSION_PROP = "compression";
+
+	/**
+	 * Agent property to send commands over pooled keep-alive connections ({@code true}) instead
+	 * of a new connection per command ({@code false}, the default). See
+	 * {@link com.gorillalogic.monkeytalk.sender.PooledCommandSender}.
+	 */
+	public static final String KEEP_ALIVE_PROP = "keepAlive";
+
+	/**
+	 * Agent property with the port of the host-side {@link ReadyListener}, to listen for the
+	 * agent's READY notification while waiting for it to come up. The agents in this tree don't
+	 * send READY yet, so without an external notifier only the probes run.
+	 */
+	public static final String READY_PORT_PROP = "readyPort";
+
+	/**
+	 * Agent property with the id the agent sends in its READY notification (defaults to
+	 * {@code host:port}).
+	 */
+	public static final String READY_ID_PROP = "readyId";
+
+	private static final long READY_BACKOFF_MIN = 50;
+	private static final long READY_BACKOFF_MAX = 2000;
+	private static final int READY_PROBE_TIMEOUT = 500;
+	private static final Random JITTER = new Random();
+
 	private Map<String, String> props;
 	private CommandSender commandSender;
 	private String host;
 	private int port;
+	private final Object readyLock = new Object();
+	private boolean readyNotified;
+	private volatile long timeToReady = -1;
+	private final AgentLifecycle lifecycle = new AgentLifecycle(this);
 
 	public MTAgent() {
 		this(ServerConfig.DEFAULT_PLAYBACK_HOST, -1);
@@ -62,11 +101,18 @@ public class MTAgent implements IAgent {
 		if (commandSender == null) {
 			commandSender = createCommandSender(getHost(), getPort());
 		}
+		if (commandSender != null) {
+			commandSender.setCompression(!"false".equalsIgnoreCase(getProperty(COMPRESSION_PROP)));
+		}
 
 		return commandSender;
 	}
 
 	protected CommandSender createCommandSender(String host, int port) {
+		if ("true".equalsIgnoreCase(getProperty(KEEP_ALIVE_PROP))) {
+			return CommandSenderFactory.createCommandSender(CommandSenderFactory.POOLED, host,
+					port, null);
+		}
 		return CommandSenderFactory.createCommandSender(host, port);
 	}
 
@@ -76,6 +122,10 @@ public class MTAgent implements IAgent {
 			props = new HashMap<String, String>();
 		}
 		props.put(key, val);
+		if (KEEP_ALIVE_PROP.equals(key)) {
+			// switch transports on the next command
+			closeCommandSender();
+		}
 	}
 
 	@Override
@@ -113,10 +163,28 @@ public class MTAgent implements IAgent {
 
 	@Override
 	public void stop() {
+		closeCommandSender();
+	}
+
+	@Override
+	public AgentLifecycle getLifecycle() {
+		return lifecycle;
 	}
 
 	@Override
 	public void close() {
+		closeCommandSender();
+	}
+
+	/**
+	 * Helper to close the command sender, if any, so it lets go of its connections to the agent.
+	 * The next command gets a new sender.
+	 */
+	protected void closeCommandSender() {
+		if (commandSender != null) {
+			commandSender.close();
+			commandSender = null;
+		}
 	}
 
 	@Override
@@ -136,7 +204,7 @@ public class MTAgent implements IAgent {
 	public boolean isReady() {
 		boolean ready = false;
 		try {
-			start();
+			getLifecycle().ensureStarted();
 			Response response = getCommandSender().ping(false);
 			if (response != null) {
 				ready = ResponseStatus.OK.equals(response.getStatus());
@@ -150,7 +218,7 @@ public class MTAgent implements IAgent {
 	public String getAgentVersion() {
 		String version = "";
 		try {
-			start();
+			getLifecycle().ensureStarted();
 			Response response = getCommandSender().ping(false);
 			if (response != null) {
 				JSONObject body=response.getBodyAsJSON();
@@ -168,28 +236,168 @@ public class MTAgent implements IAgent {
 		return version;
 	}
 
+	/**
+	 * Wait until the agent is ready, or the timeout expires. The agent is started via its
+	 * {@link AgentLifecycle}, so any port forwarding is set up just once and not before every
+	 * probe. The agent is then probed with a cheap TCP connect, followed by a ping only once
+	 * something is listening. Between probes we back off exponentially with jitter, so a farm of
+	 * agents booting at once doesn't become a storm of connection attempts. If a
+	 * {@link #READY_PORT_PROP} is set, a READY notification pushed by the agent to the host-side
+	 * {@link ReadyListener} cuts the wait short.
+	 * 
+	 * @see #getTimeToReady()
+	 */
 	@Override
 	public boolean waitUntilReady(long timeout) {
 		if (timeout < 1) {
 			return true;
 		}
-		long start = System.currentTimeMillis();
-		long pause = timeout / 100;
-		if (pause < 50) {
-			pause = 50;
-		} else if (pause > 1000) {
-			pause = 1000;
+		long begin = System.currentTimeMillis();
+		synchronized (readyLock) {
+			readyNotified = false;
 		}
-		while (System.currentTimeMillis() - start < timeout) {
-			if (isReady()) {
-				return true;
+
+		ReadyListener listener = getReadyListener();
+		try {
+			boolean started = false;
+			long backoff = READY_BACKOFF_MIN;
+			while (true) {
+				if (!started) {
+					try {
+						getLifecycle().ensureStarted();
+						started = true;
+					} catch (RuntimeException ex) {
+						// not up yet (ex: the emulator is still booting), so try again later
+					}
+				}
+				if (started && probe() && ping()) {
+					timeToReady = System.currentTimeMillis() - begin;
+					return true;
+				}
+
+				long remaining = timeout - (System.currentTimeMillis() - begin);
+				if (remaining <= 0) {
+					return false;
+				}
+				if (!awaitReady(Math.min(jitter(backoff), remaining))) {
+					backoff = Math.min(backoff * 2, READY_BACKOFF_MAX);
+				}
+			}
+		} catch (InterruptedException ex) {
+			return false;
+		} finally {
+			if (listener != null) {
+				listener.unregister(this);
 			}
+		}
+	}
+
+	/**
+	 * Get the time (in ms) the last successful {@link #waitUntilReady(long)} took for the agent to
+	 * become ready.
+	 * 
+	 * @return the time to ready (in ms), or {@code -1} if the agent has never been ready
+	 */
+	public long getTimeToReady() {
+		return timeToReady;
+	}
+
+	/**
+	 * Get the id this agent is expected to send in its READY notification, either the
+	 * {@link #READY_ID_PROP} property or {@code host:port}.
+	 * 
+	 * @return the ready id
+	 */
+	public String getReadyId() {
+		String id = getProperty(READY_ID_PROP);
+		return (id != null ? id : getHost() + ":" + getPort());
+	}
+
+	/**
+	 * Notify this agent that the remote agent says it is ready, which wakes up anybody in
+	 * {@link #waitUntilReady(long)}.
+	 */
+	public void notifyReady() {
+		synchronized (readyLock) {
+			readyNotified = true;
+			readyLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Cheap TCP-level probe to check if anything is listening on the agent's host and port.
+	 * 
+	 * @return true if something is listening, otherwise false
+	 */
+	protected boolean probe() {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(getHost(), getPort()), READY_PROBE_TIMEOUT);
+			return true;
+		} catch (IOException ex) {
+			return false;
+		} finally {
 			try {
-				Thread.sleep(pause);
-			} catch (InterruptedException ex) {
-				break;
+				socket.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Helper to ping the agent, without starting it.
+	 */
+	private boolean ping() {
+		try {
+			Response response = getCommandSender().ping(false);
+			return response != null && ResponseStatus.OK.equals(response.getStatus());
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Helper to wait up to the given time for a READY notification.
+	 * 
+	 * @return true if notified, otherwise false
+	 */
+	private boolean awaitReady(long wait) throws InterruptedException {
+		synchronized (readyLock) {
+			if (!readyNotified) {
+				readyLock.wait(wait);
 			}
+			boolean notified = readyNotified;
+			readyNotified = false;
+			return notified;
+		}
+	}
+
+	/**
+	 * Helper to start the {@link ReadyListener}, if the {@link #READY_PORT_PROP} property is set,
+	 * and register to be notified.
+	 */
+	private ReadyListener getReadyListener() {
+		String readyPort = getProperty(READY_PORT_PROP);
+		if (readyPort == null) {
+			return null;
+		}
+		try {
+			return ReadyListener.register(Integer.parseInt(readyPort), this);
+		} catch (NumberFormatException ex) {
+			return null;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Helper to add jitter to the given backoff, so agents booting together don't all probe in
+	 * lockstep.
+	 */
+	private static long jitter(long backoff) {
+		synchronized (JITTER) {
+			return backoff / 2 + (long) (JITTER.nextDouble() * backoff);
 		}
-		return false;
 	}
 }
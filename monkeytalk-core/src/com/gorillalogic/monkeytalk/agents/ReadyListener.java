@@ -0,0 +1,115 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.agents;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+
+/**
+ * Host-side listener for {@link CommandSender#READY} notifications pushed by agents as soon as
+ * they are up, which wakes up any {@link MTAgent#waitUntilReady(long)} waiting on that agent.
+ * Agents are matched by the {@code id} in the notification (see {@link MTAgent#getReadyId()}). A
+ * notification without an {@code id} wakes up every waiting agent. One listener is shared by every
+ * agent waiting on the same port, and it is stopped when the last one is done waiting.
+ * <p>
+ * NOTE: none of the agents in this tree send READY yet (they would need to be told the host and
+ * port to notify), so for now {@link MTAgent#waitUntilReady(long)} always ends up relying on its
+ * probes. Anything that can reach the host (ex: a launch script, or a custom agent) can send it
+ * via {@link CommandSender#ready(String)}.
+ */
+public class ReadyListener extends JsonServer {
+	private static final Map<Integer, ReadyListener> LISTENERS =
+			new HashMap<Integer, ReadyListener>();
+
+	/** agents waiting on this listener, guarded by the class lock */
+	private final List<MTAgent> waiting = new ArrayList<MTAgent>();
+
+	private ReadyListener(int port) throws IOException {
+		super(port, 2);
+	}
+
+	/**
+	 * Register the given agent as waiting for its READY notification on the given port, starting
+	 * the shared listener if needed. The lookup and the registration are atomic with
+	 * {@link #unregister(MTAgent)}, so the listener can't be stopped in between.
+	 *
+	 * @param port
+	 *            the listener port
+	 * @param agent
+	 *            the agent
+	 * @return the listener
+	 * @throws IOException
+	 *             if the listener can't be started
+	 */
+	public static synchronized ReadyListener register(int port, MTAgent agent)
+			throws IOException {
+		ReadyListener listener = LISTENERS.get(port);
+		if (listener == null) {
+			listener = new ReadyListener(port);
+			LISTENERS.put(port, listener);
+		}
+		listener.waiting.add(agent);
+		return listener;
+	}
+
+	/**
+	 * Unregister the given agent. When nobody is waiting anymore, the listener is stopped.
+	 *
+	 * @param agent
+	 *            the agent
+	 */
+	public void unregister(MTAgent agent) {
+		synchronized (ReadyListener.class) {
+			waiting.remove(agent);
+			if (waiting.isEmpty() && LISTENERS.get(getPort()) == this) {
+				LISTENERS.remove(getPort());
+				stop();
+			}
+		}
+	}
+
+	@Override
+	public Response serve(String uri, String method, Map<String, String> headers,
+			JSONObject json) {
+		if (json == null || !CommandSender.READY.equals(json.optString("mtcommand"))) {
+			return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"expected "
+					+ CommandSender.READY + "\"}");
+		}
+
+		String id = json.optString("id", null);
+		List<MTAgent> agents;
+		synchronized (ReadyListener.class) {
+			agents = new ArrayList<MTAgent>(waiting);
+		}
+		int notified = 0;
+		for (MTAgent agent : agents) {
+			if (id == null || id.equals(agent.getReadyId())) {
+				agent.notifyReady();
+				notified++;
+			}
+		}
+		return new Response(HttpStatus.OK, "{result:\"OK\",message:\"notified " + notified
+				+ "\"}");
+	}
+}
@@ -0,0 +1,416 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.parser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A CSV datafile that is read lazily, one row at a time, as it is iterated over, so even a huge
+ * datafile never has to be fully loaded into memory. Every row is a {@link Map} from header to
+ * value, backed by the headers shared by all rows plus the row's own values.
+ * <p>
+ * Small files are read into memory once. Big files (see {@link #MAP_THRESHOLD}) are memory mapped
+ * instead, so their contents stay out of the heap. Either way, no file handle is held open while
+ * iterating, so it is fine to stop iterating at any time. Each call to {@link #iterator()} starts
+ * over from the first row. Rows that are already split into values (ex: from a project bundle)
+ * can also be wrapped directly, with no parsing at all.
+ *
+ * @see CSVParser#streamFile(File)
+ */
+public class CSVData implements Iterable<Map<String, String>> {
+	/**
+	 * Files bigger than this (in bytes) are memory mapped instead of read into memory.
+	 */
+	public static final long MAP_THRESHOLD = 1024 * 1024;
+
+	private static final String UTF8 = "UTF-8";
+
+	private final File file;
+	private final boolean ignoreBlanks;
+	private final ByteBuffer content;
+	private final List<String[]> rows;
+	private final String[] headers;
+	private final Map<String, Integer> index;
+	private final List<String> keys;
+	private final int dataStart;
+
+	/**
+	 * Open the given CSV file, and read its header row.
+	 *
+	 * @param f
+	 *            the CSV file
+	 * @param ignoreBlanks
+	 *            if true, skip blank lines
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public CSVData(File f, boolean ignoreBlanks) throws IOException {
+		this.file = f;
+		this.ignoreBlanks = ignoreBlanks;
+		this.content = read(f);
+		this.rows = null;
+
+		LineReader reader = new LineReader(content.duplicate());
+		String headerLine = reader.readLine();
+		List<String> list = CSVParser.parse(headerLine != null ? headerLine.trim() : null);
+		headers = list.toArray(new String[list.size()]);
+		dataStart = reader.getPosition();
+
+		index = new HashMap<String, Integer>();
+		keys = new ArrayList<String>();
+		indexHeaders();
+	}
+
+	/**
+	 * Instantiate CSV data from rows that are already split into values (ex: the rows stored in a
+	 * project bundle). The rows are not copied, so a lazy list means lazy rows.
+	 *
+	 * @param f
+	 *            the CSV file the rows came from
+	 * @param headers
+	 *            the headers
+	 * @param rows
+	 *            the data rows, each one a list of values
+	 */
+	public CSVData(File f, String[] headers, List<String[]> rows) {
+		this.file = f;
+		this.ignoreBlanks = true;
+		this.content = null;
+		this.rows = rows;
+		this.headers = headers.clone();
+		this.dataStart = 0;
+
+		index = new HashMap<String, Integer>();
+		keys = new ArrayList<String>();
+		indexHeaders();
+	}
+
+	/**
+	 * Helper to index the headers.
+	 */
+	private void indexHeaders() {
+		// with duplicate headers, the last column wins, but the first position is kept
+		for (int i = 0; i < headers.length; i++) {
+			if (index.put(headers[i], i) == null) {
+				keys.add(headers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Get the datafile.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the headers, from the first row of the datafile.
+	 *
+	 * @return the headers
+	 */
+	public String[] getHeaders() {
+		return headers.clone();
+	}
+
+	/**
+	 * True if the datafile has no data rows (after the header row), otherwise false. Only reads
+	 * up to the first data row.
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return !iterator().hasNext();
+	}
+
+	/**
+	 * Count the data rows in the datafile. This reads the whole file, but without parsing any of
+	 * the rows.
+	 *
+	 * @return the number of data rows
+	 */
+	public int size() {
+		if (rows != null) {
+			return rows.size();
+		}
+
+		LineReader reader = new LineReader(content.duplicate());
+		reader.setPosition(dataStart);
+		int count = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!ignoreBlanks || line.trim().length() > 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public Iterator<Map<String, String>> iterator() {
+		if (rows != null) {
+			final Iterator<String[]> it = rows.iterator();
+			return new Iterator<Map<String, String>>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public Map<String, String> next() {
+					return new Row(it.next());
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		final LineReader reader = new LineReader(content.duplicate());
+		reader.setPosition(dataStart);
+
+		return new Iterator<Map<String, String>>() {
+			private String next = advance();
+
+			private String advance() {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!ignoreBlanks || line.length() > 0) {
+						return line;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map<String, String> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				List<String> tokens = CSVParser.parse(next);
+				next = advance();
+				return new Row(tokens.toArray(new String[tokens.size()]));
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "CSVData[" + file + "]";
+	}
+
+	/**
+	 * Helper to read the given file, either into memory or memory mapped if it is big.
+	 */
+	private static ByteBuffer read(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > MAP_THRESHOLD) {
+				// the mapping stays valid after the channel is closed
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			while (buf.hasRemaining() && channel.read(buf) != -1) {
+				// keep reading
+			}
+			buf.flip();
+			return buf;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Row of data, backed by the shared headers and the row's values. The row is copied into a
+	 * regular map the first time it is modified.
+	 */
+	private class Row extends AbstractMap<String, String> {
+		private final String[] values;
+		private Map<String, String> copy;
+
+		public Row(String[] values) {
+			this.values = values;
+		}
+
+		@Override
+		public String get(Object key) {
+			if (copy != null) {
+				return copy.get(key);
+			}
+			Integer i = index.get(key);
+			return (i != null && i < values.length ? values[i] : null);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (copy != null ? copy.containsKey(key) : index.containsKey(key));
+		}
+
+		@Override
+		public int size() {
+			return (copy != null ? copy.size() : keys.size());
+		}
+
+		@Override
+		public String put(String key, String value) {
+			return modifiable().put(key, value);
+		}
+
+		@Override
+		public String remove(Object key) {
+			return modifiable().remove(key);
+		}
+
+		@Override
+		public void clear() {
+			modifiable().clear();
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			if (copy != null) {
+				return copy.entrySet();
+			}
+			return new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					final Iterator<String> it = keys.iterator();
+					return new Iterator<Map.Entry<String, String>>() {
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, String> next() {
+							String key = it.next();
+							return new AbstractMap.SimpleImmutableEntry<String, String>(key,
+									get(key));
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return keys.size();
+				}
+			};
+		}
+
+		/**
+		 * Helper to copy the row into a regular map, so it can be modified.
+		 */
+		private Map<String, String> modifiable() {
+			if (copy == null) {
+				Map<String, String> map = new LinkedHashMap<String, String>();
+				for (String key : keys) {
+					map.put(key, get(key));
+				}
+				copy = map;
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * Minimal UTF-8 line reader over a byte buffer. Lines end with {@code \n}, {@code \r}, or
+	 * {@code \r\n}, which never occur inside a multi-byte UTF-8 character.
+	 */
+	private static class LineReader {
+		private final ByteBuffer buf;
+		private byte[] scratch = new byte[256];
+
+		public LineReader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public int getPosition() {
+			return buf.position();
+		}
+
+		public void setPosition(int position) {
+			buf.position(position);
+		}
+
+		public String readLine() {
+			if (!buf.hasRemaining()) {
+				return null;
+			}
+
+			int len = 0;
+			while (buf.hasRemaining()) {
+				byte b = buf.get();
+				if (b == '\n') {
+					break;
+				} else if (b == '\r') {
+					if (buf.hasRemaining() && buf.get(buf.position()) == '\n') {
+						buf.get();
+					}
+					break;
+				}
+				if (len == scratch.length) {
+					byte[] bigger = new byte[len * 2];
+					System.arraycopy(scratch, 0, bigger, 0, len);
+					scratch = bigger;
+				}
+				scratch[len++] = b;
+			}
+
+			try {
+				return new String(scratch, 0, len, UTF8);
+			} catch (UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
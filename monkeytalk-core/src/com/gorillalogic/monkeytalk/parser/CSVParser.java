@@ -16,14 +16,10 @@
 package com.gorillalogic.monkeytalk.parser;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.gorillalogic.monkeytalk.Command;
 
@@ -31,17 +27,17 @@ import com.gorillalogic.monkeytalk.Command;
  * Static helper class to support converting CSV data into a hash.
  */
 public class CSVParser {
-	private static final String CRAZY = "\u21D0\u21D1\u21D2\u21D3\u21D5\u21D4\u21DD\u21DC";
-
-	private static final Pattern regex = Pattern
-			.compile("([^\\s,\"]+)|\"([^\"]*)\"|\\s*,\\s*");
-
 	private CSVParser() {
 	}
 
 	/**
 	 * Parse a CSV string into a list of tokens, correctly handling quoted
 	 * strings and escaped quotes.
+	 * <p>
+	 * A token is either a quoted string (returned without its quotes) or a run
+	 * of characters up to the next whitespace, comma, or quote. Escaped quotes
+	 * ({@code \"}) are just regular characters, and an unterminated quote is
+	 * dropped.
 	 * 
 	 * @param csv
 	 *            the CSV string to be parsed
@@ -57,28 +53,55 @@ public class CSVParser {
 		// trim off any extra space
 		csv = csv.trim();
 
-		// this is a hack: replace all escaped quotes with crazy unicode
-		csv = csv.replaceAll("\\\\\"", CRAZY);
-
-		Matcher regexMatcher = regex.matcher(csv);
-		while (regexMatcher.find()) {
-			String token = regexMatcher.group().trim();
-			if (regexMatcher.group(1) != null || regexMatcher.group(2) != null) {
-
-				if (token.startsWith("\"") && token.endsWith("\"")) {
-					token = token.substring(1, token.length() - 1);
+		int len = csv.length();
+		int i = 0;
+		while (i < len) {
+			char c = csv.charAt(i);
+			if (c == ',' || isWhitespace(c)) {
+				i++;
+			} else if (isQuote(csv, i)) {
+				// quoted string
+				int end = i + 1;
+				while (end < len && !isQuote(csv, end)) {
+					end++;
 				}
-
-				// revert the hack, and put escaped quotes back into the token
-				token = token.replaceAll(CRAZY, "\\\\\"");
-
-				tokens.add(token);
+				if (end < len) {
+					tokens.add(csv.substring(i + 1, end));
+					i = end + 1;
+				} else {
+					// unterminated, so drop the quote
+					i++;
+				}
+			} else {
+				// run of chars up to whitespace, comma, or quote
+				int end = i;
+				while (end < len && csv.charAt(end) != ',' && !isWhitespace(csv.charAt(end))
+						&& !isQuote(csv, end)) {
+					end++;
+				}
+				tokens.add(csv.substring(i, end));
+				i = end;
 			}
 		}
 
 		return tokens;
 	}
 
+	/**
+	 * Helper to check for an unescaped quote (aka not preceded by a backslash)
+	 * at the given index.
+	 */
+	private static boolean isQuote(String s, int i) {
+		return s.charAt(i) == '"' && (i == 0 || s.charAt(i - 1) != '\\');
+	}
+
+	/**
+	 * Helper to check for whitespace, same as regex {@code \s}.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+	}
+
 	/**
 	 * Parse a CSV file, ignoring any blank lines, just a list of MonkeyTalk
 	 * {@link Command} objects.
@@ -104,55 +127,53 @@ public class CSVParser {
 	 */
 	public static List<Map<String, String>> parseFile(File f,
 			boolean ignoreBlanks) {
-
-		if (f == null) {
+		CSVData data = streamFile(f, ignoreBlanks);
+		if (data == null) {
 			return null;
 		}
 
 		List<Map<String, String>> csv = new ArrayList<Map<String, String>>();
-		Scanner scanner;
-
-		try {
-			scanner = new Scanner(f, "UTF-8");
-		} catch (FileNotFoundException ex) {
-			scanner = null;
+		for (Map<String, String> row : data) {
+			csv.add(row);
 		}
+		return csv;
+	}
 
-		if (scanner == null) {
-			return null;
-		}
+	/**
+	 * Open a CSV file, ignoring any blank lines, for streaming. The rows are
+	 * only read and parsed as they are iterated over.
+	 * 
+	 * @see CSVData
+	 * 
+	 * @param f
+	 *            the CSV file
+	 * @return the data, or null if the file doesn't exist or has no header row
+	 */
+	public static CSVData streamFile(File f) {
+		return streamFile(f, true);
+	}
 
-		if (!scanner.hasNextLine()) {
-			// no header row
+	/**
+	 * Open a CSV file for streaming.
+	 * 
+	 * @see CSVData
+	 * 
+	 * @param f
+	 *            the CSV file
+	 * @param ignoreBlanks
+	 *            if true, skip blank lines
+	 * @return the data, or null if the file doesn't exist or has no header row
+	 */
+	public static CSVData streamFile(File f, boolean ignoreBlanks) {
+		if (f == null) {
 			return null;
 		}
 
-		String headerLine = scanner.nextLine().trim();
-		List<String> headers = parse(headerLine);
-
-		if (headers.size() == 0) {
-			// no headers
+		try {
+			CSVData data = new CSVData(f, ignoreBlanks);
+			return (data.getHeaders().length > 0 ? data : null);
+		} catch (IOException ex) {
 			return null;
 		}
-
-		while (scanner.hasNextLine()) {
-			String line = scanner.nextLine().trim();
-
-			if (ignoreBlanks && line.length() == 0) {
-				continue;
-			}
-
-			List<String> tokens = parse(line);
-
-			Map<String, String> map = new LinkedHashMap<String, String>();
-
-			for (int i = 0; i < headers.size(); i++) {
-				String header = headers.get(i);
-				map.put(header, (i < tokens.size() ? tokens.get(i) : null));
-			}
-			csv.add(map);
-		}
-
-		return csv;
 	}
-}
\ No newline at end of file
+}
@@ -21,8 +21,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.utils.FileUtils;
@@ -34,17 +32,17 @@ import com.gorillalogic.monkeytalk.utils.FileUtils;
  * @see Command
  */
 public class MonkeyTalkParser {
-	private static final String CRAZY = "\u21D0\u21D1\u21D2\u21D3\u21D5\u21D4\u21DD\u21DC";
-
-	private static final Pattern TOKEN = Pattern
-			.compile("[^\\s\"=]+=\"[^\"]*\"|[^\\s\"]+|\"[^\"]*\"");
-
 	private MonkeyTalkParser() {
 	}
 
 	/**
 	 * Parse a MonkeyTalk command string into a list of tokens, correctly handling quoted strings
 	 * and escaped quotes.
+	 * <p>
+	 * A token is either a {@code key="value"} modifier, a quoted string, or a run of characters
+	 * up to the next whitespace or quote. Escaped quotes ({@code \"}) are just regular
+	 * characters, and an unterminated quote is dropped. Tokens are returned exactly as written,
+	 * with their quotes and escapes.
 	 * 
 	 * @param command
 	 *            the MonkeyTalk command string
@@ -63,22 +61,78 @@ public class MonkeyTalkParser {
 		if (command.startsWith(Command.COMMENT_PREFIX)) {
 			// command is a comment, so just return a single token
 			tokens.add(command);
-		} else {
-			// this is a hack: replace all escaped quotes with crazy unicode
-			command = command.replaceAll("\\\\\"", CRAZY);
+			return tokens;
+		}
 
-			Matcher tokenMatcher = TOKEN.matcher(command);
-			while (tokenMatcher.find()) {
-				String token = tokenMatcher.group();
+		int len = command.length();
+		int i = 0;
+		while (i < len) {
+			char c = command.charAt(i);
+			int end;
+			if (isWhitespace(c)) {
+				i++;
+				continue;
+			} else if (isQuote(command, i)) {
+				// quoted string
+				end = findQuote(command, i + 1);
+				if (end == -1) {
+					// unterminated, so drop the quote
+					i++;
+					continue;
+				}
+				end++;
+			} else {
+				// run of chars up to whitespace or quote...
+				end = i;
+				int equals = -1;
+				while (end < len && !isWhitespace(command.charAt(end)) && !isQuote(command, end)) {
+					if (equals == -1 && command.charAt(end) == '=') {
+						equals = end;
+					}
+					end++;
+				}
+
+				// ...unless it's key="value", where the first equals is followed by a quote
+				if (equals > i && equals + 1 < len && isQuote(command, equals + 1)) {
+					int close = findQuote(command, equals + 2);
+					if (close != -1) {
+						end = close + 1;
+					}
+				}
+			}
+			tokens.add(command.substring(i, end));
+			i = end;
+		}
 
-				// revert the hack, and put escaped quotes back into the token
-				token = token.replaceAll(CRAZY, "\\\\\"");
+		return tokens;
+	}
 
-				tokens.add(token);
+	/**
+	 * Helper to find the next unescaped quote, starting at the given index.
+	 * 
+	 * @return the index of the quote, or -1 if not found
+	 */
+	private static int findQuote(String s, int from) {
+		for (int i = from; i < s.length(); i++) {
+			if (isQuote(s, i)) {
+				return i;
 			}
 		}
+		return -1;
+	}
 
-		return tokens;
+	/**
+	 * Helper to check for an unescaped quote (aka not preceded by a backslash) at the given index.
+	 */
+	private static boolean isQuote(String s, int i) {
+		return s.charAt(i) == '"' && (i == 0 || s.charAt(i - 1) != '\\');
+	}
+
+	/**
+	 * Helper to check for whitespace, same as regex {@code \s}.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
 	}
 
 	/**
@@ -17,12 +17,21 @@ package com.gorillalogic.monkeytalk.sender;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -54,6 +63,47 @@ public class CommandSender extends Sender {
 	 */
 	public static final String DUMPTREE = "DUMPTREE";
 
+	/**
+	 * MonkeyTalk wire protocol PLAYBATCH command -- an ordered list of PLAY commands sent in a single
+	 * round trip.
+	 */
+	public static final String PLAYBATCH = "PLAYBATCH";
+
+	/**
+	 * MonkeyTalk wire protocol READY command -- sent by an agent to a host-side
+	 * {@link com.gorillalogic.monkeytalk.agents.ReadyListener} to say it is up and ready for
+	 * playback, so the host doesn't have to keep polling it.
+	 */
+	public static final String READY = "READY";
+
+	/**
+	 * MonkeyTalk wire protocol PLAY field -- asks the agent to attach what it captures right after
+	 * playing the command to the PLAY response, see {@link #AFTER_IMAGE}, {@link #AFTER_METRICS},
+	 * and {@link #AFTER_FINGERPRINT}. Older agents ignore it.
+	 */
+	public static final String AFTER = "after";
+
+	/**
+	 * Value of the {@link #AFTER} field to ask for the after screenshot, returned as the binary
+	 * {@link Sender#PART_AFTER_IMAGE} part, or under the {@code afterImage} key (base64 encoded)
+	 * by agents that don't send binary screenshots.
+	 */
+	public static final String AFTER_IMAGE = "image";
+
+	/**
+	 * Value of the {@link #AFTER} field to ask for the device metrics, returned under the
+	 * {@code metrics} key (same as {@code Device * Get dummy allinfo}).
+	 */
+	public static final String AFTER_METRICS = "metrics";
+
+	/**
+	 * Value of the {@link #AFTER} field to ask for a cheap fingerprint of the screen, returned
+	 * under the {@code fingerprint} key as a hex string (typically a 64-bit perceptual hash).
+	 * Similar screens have fingerprints that differ in only a few bits, so the fingerprint tells
+	 * whether the after screenshot is worth fetching.
+	 */
+	public static final String AFTER_FINGERPRINT = "fingerprint";
+
 	/**
 	 * MonkeyTalk wire protocol version.
 	 */
@@ -75,7 +125,16 @@ public class CommandSender extends Sender {
 	private static final Set<String> IGNORE_COMPONENTS_FOR_PLAY = new HashSet<String>(
 			Arrays.asList("doc", "vars", "script", "test", "setup", "teardown"));
 
+	/**
+	 * How long (in ms) an idle async playback thread lives before it is reclaimed.
+	 */
+	private static final long ASYNC_IDLE_TIMEOUT = 30000;
+
 	private URL url;
+	private final Object asyncLock = new Object();
+	private ThreadPoolExecutor asyncExecutor;
+	private Thread asyncThread;
+	private int asyncPending;
 
 	/**
 	 * PACKAGE ACCESS ONLY --- use CommandSenderFactory
@@ -159,6 +218,175 @@ public class CommandSender extends Sender {
 		}
 	}
 
+	/**
+	 * Send the given MonkeyTalk command as a PLAY to the given url, and ask the agent to attach
+	 * what it captures right after playing the command to the response (see {@link #AFTER}), to
+	 * save the extra round trips to get it. Older agents just play the command, so the caller must
+	 * check {@link Response#getAfterImage()}, {@link Response#getMetrics()}, and
+	 * {@link Response#getFingerprint()}.
+	 * 
+	 * @see CommandSender#play(Command)
+	 * 
+	 * @param command
+	 *            the MonkeyTalk command
+	 * @param after
+	 *            what to attach: any of {@link #AFTER_IMAGE}, {@link #AFTER_METRICS}, or
+	 *            {@link #AFTER_FINGERPRINT}
+	 * @return the response
+	 */
+	public Response play(Command command, String... after) {
+		if (!isSendable(command) || after == null || after.length == 0) {
+			return play(command);
+		}
+
+		JSONObject json = command.getCommandAsJSON();
+		try {
+			JSONArray arr = new JSONArray();
+			for (String a : after) {
+				arr.put(a);
+			}
+			json.put(AFTER, arr);
+		} catch (JSONException ex) {
+			return play(command);
+		}
+		return sendCommand(PLAY, json);
+	}
+
+	/**
+	 * Return true if the given MonkeyTalk command is actually sent over the wire by
+	 * {@link CommandSender#play(Command)}, otherwise false (aka it is blank, a comment, or an ignored
+	 * component).
+	 * 
+	 * @param command
+	 *            the MonkeyTalk command
+	 * @return true if playing the command sends it to the agent
+	 */
+	public boolean isSendable(Command command) {
+		return command != null && command.getCommand() != null && !command.isComment()
+				&& !IGNORE_COMPONENTS_FOR_PLAY.contains(command.getComponentType().toLowerCase());
+	}
+
+	/**
+	 * Send the given list of MonkeyTalk commands as a single PLAYBATCH to the given url. The agent
+	 * plays the commands in order, stopping at the first {@code ERROR} or {@code FAILURE} unless
+	 * the command's {@code %abort} modifier says otherwise, and returns one response per played
+	 * command. All commands must be sendable (see {@link CommandSender#isSendable(Command)}).
+	 * 
+	 * @param commands
+	 *            the MonkeyTalk commands
+	 * @return the per-command responses, in order, which may be shorter than the list of commands
+	 *         if the agent stopped early, or {@code null} if the batch could not be played (aka the
+	 *         agent does not support PLAYBATCH or the send failed)
+	 */
+	public List<Response> playBatch(List<Command> commands) {
+		JSONObject json = new JSONObject();
+		try {
+			JSONArray arr = new JSONArray();
+			for (Command command : commands) {
+				JSONObject cmd = command.getCommandAsJSON();
+				stamp(PLAY, cmd);
+				arr.put(cmd);
+			}
+			json.put("commands", arr);
+		} catch (JSONException ex) {
+			return null;
+		}
+
+		Response resp = sendCommand(PLAYBATCH, json);
+		JSONObject body = resp.getBodyAsJSON();
+		JSONArray responses = (body != null ? body.optJSONArray("responses") : null);
+		if (responses == null) {
+			return null;
+		}
+
+		List<Response> list = new ArrayList<Response>();
+		for (int i = 0; i < responses.length(); i++) {
+			JSONObject r = responses.optJSONObject(i);
+			list.add(r != null ? new Response(resp.getCode(), r) : new Response(resp.getCode(),
+					String.valueOf(responses.opt(i))));
+		}
+		return list;
+	}
+
+	/**
+	 * Asynchronously send the given MonkeyTalk command as a PLAY to the given url, and immediately
+	 * return a {@link Future} for its response. This lets the caller overlap other work (or talk
+	 * to other agents) while the command is in flight. All async commands sent by this sender are
+	 * played one at a time in submission order, and any other command sent by this sender waits
+	 * until the async commands before it are done, so the agent always plays commands in the order
+	 * they were sent. The command must not be modified until the future is done.
+	 * 
+	 * @see CommandSender#play(Command)
+	 * 
+	 * @param command
+	 *            the MonkeyTalk command
+	 * @return the future response
+	 */
+	public Future<Response> playAsync(final Command command) {
+		// submit under the lock, so a concurrent close() can't shut the executor down in between
+		synchronized (asyncLock) {
+			Future<Response> future = getAsyncExecutor().submit(new Callable<Response>() {
+				@Override
+				public Response call() {
+					synchronized (asyncLock) {
+						asyncThread = Thread.currentThread();
+					}
+					try {
+						return play(command);
+					} finally {
+						synchronized (asyncLock) {
+							asyncThread = null;
+							asyncPending--;
+							asyncLock.notifyAll();
+						}
+					}
+				}
+			});
+			asyncPending++;
+			return future;
+		}
+	}
+
+	/**
+	 * Get the async playback executor, creating it if needed. The sender gets a single daemon
+	 * thread that is reclaimed after {@link #ASYNC_IDLE_TIMEOUT} of inactivity, and shut down by
+	 * {@link #close()}. Must hold the async lock.
+	 */
+	private ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			final String name = "MonkeyTalk async sender "
+					+ (url != null ? url.getHost() + ":" + url.getPort() : "");
+			asyncExecutor = new ThreadPoolExecutor(1, 1, ASYNC_IDLE_TIMEOUT,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Helper to wait until all async commands sent before now are done, unless we are one of them.
+	 */
+	private void awaitAsync() {
+		synchronized (asyncLock) {
+			while (asyncPending > 0 && Thread.currentThread() != asyncThread) {
+				try {
+					asyncLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Build the MonkeyTalk command from its parts ({@code componentType}, {@code monkeyId},
 	 * {@code action}, etc.), and play it.
@@ -237,6 +465,26 @@ public class CommandSender extends Sender {
 		return sendCommand(PING, json);
 	}
 
+	/**
+	 * Send a READY notification to the given url, which is typically a host-side
+	 * {@link com.gorillalogic.monkeytalk.agents.ReadyListener}. Agents call this once they are up
+	 * and ready for playback.
+	 * 
+	 * @param id
+	 *            the agent id the host is waiting on (or {@code null} if the host is only waiting
+	 *            on a single agent)
+	 * @return the response
+	 */
+	public Response ready(String id) {
+		JSONObject json = new JSONObject();
+		try {
+			json.putOpt("id", id);
+		} catch (JSONException e) {
+			return new Response(0, "failed to build outbound JSON message for READY");
+		}
+		return sendCommand(READY, json);
+	}
+
 	/**
 	 * Send the given MonkeyTalk command as a JSON message via HTTP POST to the given url. Append to
 	 * the given JSON object the {@code mtversion}, {@code mtcommand}, and {@code timestamp}.
@@ -250,10 +498,9 @@ public class CommandSender extends Sender {
 	 * @return the response
 	 */
 	private Response sendCommand(String mtcommand, JSONObject json) {
+		awaitAsync();
 		try {
-			json.put("mtversion", VERSION);
-			json.put("mtcommand", mtcommand);
-			json.put("timestamp", System.currentTimeMillis());
+			stamp(mtcommand, json);
 		} catch (JSONException ex) {
 			return new Response(0, "failed to build outbound JSON message");
 		}
@@ -263,6 +510,44 @@ public class CommandSender extends Sender {
 		return sendJSON(targetURL, json);
 	}
 	
+	/**
+	 * Helper to append the {@code mtversion}, {@code mtcommand}, and {@code timestamp} to the given
+	 * JSON object.
+	 */
+	private void stamp(String mtcommand, JSONObject json) throws JSONException {
+		json.put("mtversion", VERSION);
+		json.put("mtcommand", mtcommand);
+		json.put("timestamp", System.currentTimeMillis());
+	}
+
+	/**
+	 * Release any resources held by this sender, like idle connections to the agent and the async
+	 * playback thread. Waits until any queued async commands are done, so they never lose their
+	 * connection halfway. The sender can still be used afterwards, it just has to set them up
+	 * again.
+	 */
+	public void close() {
+		ExecutorService executor;
+		synchronized (asyncLock) {
+			executor = asyncExecutor;
+			asyncExecutor = null;
+			if (executor != null) {
+				executor.shutdown();
+			}
+			if (Thread.currentThread() == asyncThread) {
+				// called from an async command, which can't wait for itself
+				executor = null;
+			}
+		}
+		if (executor != null) {
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	protected URL getURLforCommand(String mtcommand, JSONObject json) {
 		return url;
 	}
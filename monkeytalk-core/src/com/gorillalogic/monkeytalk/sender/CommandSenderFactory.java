@@ -6,9 +6,15 @@ import java.util.Map;
 public class CommandSenderFactory {
 	private static Map<String,Class> classMap = new Hashtable<String,Class>();
 	private static final String DEFAULT_KEY = "default";
+
+	/**
+	 * Key for the {@link PooledCommandSender}, which re-uses keep-alive connections to the agent.
+	 */
+	public static final String POOLED = "pooled";
 	
 	static {
 		registerDefaultClass(CommandSender.class);
+		registerClass(POOLED, PooledCommandSender.class);
 	}
 	
 	public static void registerClass(String key, Class klass) {
@@ -0,0 +1,653 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.sender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of persistent HTTP/1.1 keep-alive connections, keyed by agent (aka host and port). Idle
+ * connections are kept around for re-use by the next command sent to the same agent, so playback
+ * doesn't pay a full TCP setup and teardown on every command.
+ *
+ * <p>
+ * A connection is only returned to the pool if the agent agreed to keep it alive, at most
+ * {@code maxPerAgent} idle connections are kept per agent, idle connections are evicted after
+ * {@code idleTimeout} ms, and every pooled connection is checked for staleness (aka closed by the
+ * agent) before it is re-used.
+ * </p>
+ * <p>
+ * While the pool holds idle connections, a background eviction closes the expired ones every
+ * {@code idleTimeout} ms, so an agent that is no longer talked to doesn't keep its sockets open
+ * forever. Call {@link #close(String, int)} when done with an agent.
+ * </p>
+ */
+public class ConnectionPool {
+	/**
+	 * Default max number of idle connections kept per agent.
+	 */
+	public static final int DEFAULT_MAX_PER_AGENT = 2;
+
+	/**
+	 * Default idle time (in ms) after which a pooled connection is evicted.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	private static final int STALE_CHECK_TIMEOUT = 1;
+	private static final String CRLF = "\r\n";
+
+	private static final ScheduledExecutorService EVICTIONS;
+
+	static {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MonkeyTalk connection pool eviction");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		EVICTIONS = executor;
+	}
+
+	private static final ConnectionPool DEFAULT_POOL = new ConnectionPool();
+
+	private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+	private final Map<String, Integer> maxPerAgentOverrides = new HashMap<String, Integer>();
+	private int maxPerAgent;
+	private long idleTimeout;
+	private int created;
+	private int reused;
+	private ScheduledFuture<?> eviction;
+
+	/**
+	 * Instantiate a new pool with the default pool size and idle timeout.
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MAX_PER_AGENT, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Instantiate a new pool with the given pool size and idle timeout.
+	 *
+	 * @param maxPerAgent
+	 *            the max number of idle connections kept per agent
+	 * @param idleTimeout
+	 *            the idle time (in ms) after which a pooled connection is evicted
+	 */
+	public ConnectionPool(int maxPerAgent, long idleTimeout) {
+		this.maxPerAgent = maxPerAgent;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Get the shared, JVM-wide pool.
+	 *
+	 * @return the default pool
+	 */
+	public static ConnectionPool getDefault() {
+		return DEFAULT_POOL;
+	}
+
+	/**
+	 * Set the default max number of idle connections kept per agent.
+	 *
+	 * @param maxPerAgent
+	 *            the pool size
+	 */
+	public synchronized void setMaxPerAgent(int maxPerAgent) {
+		this.maxPerAgent = maxPerAgent;
+	}
+
+	/**
+	 * Set the max number of idle connections kept for the given agent, overriding the default.
+	 *
+	 * @param host
+	 *            the agent host
+	 * @param port
+	 *            the agent port
+	 * @param maxPerAgent
+	 *            the pool size for this agent
+	 */
+	public synchronized void setMaxPerAgent(String host, int port, int maxPerAgent) {
+		maxPerAgentOverrides.put(getKey(host, port), maxPerAgent);
+	}
+
+	/**
+	 * Set the idle time (in ms) after which a pooled connection is evicted.
+	 *
+	 * @param idleTimeout
+	 *            the idle timeout
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		cancelEviction();
+		if (!idle.isEmpty()) {
+			scheduleEviction();
+		}
+	}
+
+	/**
+	 * Lease a connection to the given agent, re-using an idle pooled connection if one is
+	 * available, otherwise opening a new connection. The caller must hand the connection back via
+	 * {@link #release(Connection, boolean)} when done.
+	 *
+	 * @param host
+	 *            the agent host
+	 * @param port
+	 *            the agent port
+	 * @param connectTimeout
+	 *            the connect timeout (in ms) used if a new connection is opened
+	 * @return the connection
+	 * @throws IOException
+	 *             if a new connection cannot be opened
+	 */
+	public Connection lease(String host, int port, int connectTimeout) throws IOException {
+		String key = getKey(host, port);
+		Connection conn;
+		while ((conn = pop(key)) != null) {
+			// stale check is done outside the lock, since it blocks for a moment
+			if (conn.isStale()) {
+				conn.close();
+			} else {
+				synchronized (this) {
+					reused++;
+				}
+				conn.reused = true;
+				return conn;
+			}
+		}
+
+		conn = new Connection(key, host, port, connectTimeout);
+		synchronized (this) {
+			created++;
+		}
+		return conn;
+	}
+
+	/**
+	 * Return the given connection to the pool. If the connection is not reusable, or the pool for
+	 * the agent is already full, the connection is closed instead.
+	 *
+	 * @param conn
+	 *            the connection
+	 * @param reusable
+	 *            true if the connection can be kept alive, otherwise false
+	 */
+	public void release(Connection conn, boolean reusable) {
+		if (conn == null) {
+			return;
+		}
+		if (reusable && !conn.socket.isClosed()) {
+			synchronized (this) {
+				LinkedList<Connection> conns = idle.get(conn.key);
+				if (conns == null) {
+					conns = new LinkedList<Connection>();
+					idle.put(conn.key, conns);
+				}
+				if (conns.size() < getMaxPerAgent(conn.key)) {
+					conn.lastUsed = System.currentTimeMillis();
+					conns.addFirst(conn);
+					scheduleEviction();
+					return;
+				}
+			}
+		}
+		conn.close();
+	}
+
+	/**
+	 * Close and evict all pooled connections that have been idle longer than the idle timeout.
+	 * Called periodically in the background while the pool holds idle connections.
+	 */
+	public void evictIdle() {
+		LinkedList<Connection> expired = new LinkedList<Connection>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<LinkedList<Connection>> it = idle.values().iterator(); it.hasNext();) {
+				LinkedList<Connection> conns = it.next();
+				for (Iterator<Connection> i = conns.iterator(); i.hasNext();) {
+					Connection conn = i.next();
+					if (now - conn.lastUsed > idleTimeout) {
+						i.remove();
+						expired.add(conn);
+					}
+				}
+				if (conns.isEmpty()) {
+					it.remove();
+				}
+			}
+			if (idle.isEmpty()) {
+				cancelEviction();
+			}
+		}
+		for (Connection conn : expired) {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Close and evict all pooled connections to the given agent.
+	 *
+	 * @param host
+	 *            the agent host
+	 * @param port
+	 *            the agent port
+	 */
+	public void close(String host, int port) {
+		LinkedList<Connection> conns;
+		synchronized (this) {
+			conns = idle.remove(getKey(host, port));
+			if (idle.isEmpty()) {
+				cancelEviction();
+			}
+		}
+		if (conns != null) {
+			for (Connection conn : conns) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Close and evict all pooled connections.
+	 */
+	public void closeAll() {
+		LinkedList<Connection> all = new LinkedList<Connection>();
+		synchronized (this) {
+			for (LinkedList<Connection> conns : idle.values()) {
+				all.addAll(conns);
+			}
+			idle.clear();
+			cancelEviction();
+		}
+		for (Connection conn : all) {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Get the number of idle connections currently pooled for the given agent.
+	 *
+	 * @param host
+	 *            the agent host
+	 * @param port
+	 *            the agent port
+	 * @return the number of idle connections
+	 */
+	public synchronized int getIdleCount(String host, int port) {
+		LinkedList<Connection> conns = idle.get(getKey(host, port));
+		return (conns == null ? 0 : conns.size());
+	}
+
+	/**
+	 * Get the number of connections opened by this pool.
+	 *
+	 * @return the number of connections created
+	 */
+	public synchronized int getCreatedCount() {
+		return created;
+	}
+
+	/**
+	 * Get the number of times a pooled connection was re-used.
+	 *
+	 * @return the number of connections re-used
+	 */
+	public synchronized int getReusedCount() {
+		return reused;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ConnectionPool: maxPerAgent=" + maxPerAgent + " idleTimeout=" + idleTimeout
+				+ " created=" + created + " reused=" + reused;
+	}
+
+	private synchronized Connection pop(String key) {
+		LinkedList<Connection> conns = idle.get(key);
+		long now = System.currentTimeMillis();
+		while (conns != null && !conns.isEmpty()) {
+			Connection conn = conns.removeFirst();
+			if (now - conn.lastUsed <= idleTimeout) {
+				return conn;
+			}
+			conn.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Helper to start the background eviction, if it isn't running. Must hold the lock.
+	 */
+	private void scheduleEviction() {
+		if (eviction == null && idleTimeout > 0) {
+			eviction = EVICTIONS.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Helper to stop the background eviction, if it is running. Must hold the lock.
+	 */
+	private void cancelEviction() {
+		if (eviction != null) {
+			eviction.cancel(false);
+			eviction = null;
+		}
+	}
+
+	private int getMaxPerAgent(String key) {
+		Integer max = maxPerAgentOverrides.get(key);
+		return (max != null ? max : maxPerAgent);
+	}
+
+	private static String getKey(String host, int port) {
+		return (host == null ? "" : host.toLowerCase()) + ":" + port;
+	}
+
+	/**
+	 * A single keep-alive HTTP connection to an agent.
+	 */
+	public static class Connection {
+		private final String key;
+		private final String host;
+		private final int port;
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private long lastUsed;
+		private boolean reused;
+
+		private Connection(String key, String host, int port, int connectTimeout)
+				throws IOException {
+			this.key = key;
+			this.host = host;
+			this.port = port;
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Send an HTTP POST with the given body over this connection, and read the response.
+		 *
+		 * @param path
+		 *            the target path
+		 * @param headers
+		 *            the HTTP request headers (ex: {@code Content-Type})
+		 * @param body
+		 *            the POST body
+		 * @param readTimeout
+		 *            the read timeout (in ms)
+		 * @return the HTTP response
+		 * @throws IOException
+		 *             if the request fails
+		 */
+		public HttpResult post(String path, Map<String, String> headers, byte[] body,
+				int readTimeout) throws IOException {
+			socket.setSoTimeout(readTimeout);
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("POST ").append(path).append(" HTTP/1.1").append(CRLF);
+			sb.append("Host: ").append(host).append(':').append(port).append(CRLF);
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				sb.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+			}
+			sb.append("Content-Length: ").append(body.length).append(CRLF);
+			sb.append("Connection: keep-alive").append(CRLF);
+			sb.append(CRLF);
+			out.write(sb.toString().getBytes("ISO-8859-1"));
+			out.write(body);
+			out.flush();
+
+			String statusLine = readLine();
+			if (statusLine == null) {
+				throw new EOFException("connection closed by agent");
+			}
+			String[] parts = statusLine.split("\\s+");
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("bad HTTP status line: " + statusLine);
+			}
+			int code;
+			try {
+				code = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException ex) {
+				throw new IOException("bad HTTP status line: " + statusLine);
+			}
+
+			Map<String, String> respHeaders = new HashMap<String, String>();
+			String line;
+			while ((line = readLine()) != null && line.length() > 0) {
+				int i = line.indexOf(':');
+				if (i > 0) {
+					respHeaders.put(line.substring(0, i).trim().toLowerCase(), line.substring(i + 1)
+							.trim());
+				}
+			}
+
+			String connection = respHeaders.get("connection");
+			boolean keepAlive;
+			if ("HTTP/1.0".equals(parts[0])) {
+				keepAlive = "keep-alive".equalsIgnoreCase(connection);
+			} else {
+				keepAlive = !"close".equalsIgnoreCase(connection);
+			}
+
+			byte[] content;
+			if ("chunked".equalsIgnoreCase(respHeaders.get("transfer-encoding"))) {
+				content = readChunked();
+			} else if (respHeaders.containsKey("content-length")) {
+				content = readFully(Integer.parseInt(respHeaders.get("content-length")));
+			} else {
+				// no length, so the agent is going to close the connection
+				content = readToEnd();
+				keepAlive = false;
+			}
+
+			return new HttpResult(code, respHeaders, content, keepAlive);
+		}
+
+		/**
+		 * Check if the agent has closed this connection while it was sitting idle in the pool.
+		 *
+		 * @return true if stale, otherwise false
+		 */
+		public boolean isStale() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+				return true;
+			}
+			try {
+				int timeout = socket.getSoTimeout();
+				try {
+					socket.setSoTimeout(STALE_CHECK_TIMEOUT);
+					// either EOF or unexpected data sitting on an idle connection, so don't trust it
+					in.read();
+					return true;
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			} catch (SocketTimeoutException ex) {
+				// nothing to read, so the connection is still alive
+				return false;
+			} catch (IOException ex) {
+				return true;
+			}
+		}
+
+		/**
+		 * True if this connection was taken from the pool, false if it was freshly opened.
+		 *
+		 * @return true if re-used, otherwise false
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		/**
+		 * Close the connection. If an error occurs, just die silently.
+		 */
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				// do nothing
+			}
+		}
+
+		private String readLine() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					break;
+				}
+				if (b != '\r') {
+					buf.write(b);
+				}
+			}
+			if (b == -1 && buf.size() == 0) {
+				return null;
+			}
+			return buf.toString("ISO-8859-1");
+		}
+
+		private byte[] readFully(int len) throws IOException {
+			byte[] buf = new byte[len];
+			int off = 0;
+			while (off < len) {
+				int n = in.read(buf, off, len - off);
+				if (n == -1) {
+					throw new EOFException("expected " + len + " bytes, but only got " + off);
+				}
+				off += n;
+			}
+			return buf;
+		}
+
+		private byte[] readChunked() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			while (true) {
+				String line = readLine();
+				if (line == null) {
+					throw new EOFException("unexpected end of chunked body");
+				}
+				int semi = line.indexOf(';');
+				int size = Integer.parseInt((semi != -1 ? line.substring(0, semi) : line).trim(),
+						16);
+				if (size == 0) {
+					// skip trailers
+					while ((line = readLine()) != null && line.length() > 0) {
+					}
+					return buf.toByteArray();
+				}
+				buf.write(readFully(size));
+				readLine();
+			}
+		}
+
+		private byte[] readToEnd() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = in.read(b)) != -1) {
+				buf.write(b, 0, n);
+			}
+			return buf.toByteArray();
+		}
+	}
+
+	/**
+	 * The raw HTTP response read off a pooled {@link Connection}.
+	 */
+	public static class HttpResult {
+		private final int code;
+		private final Map<String, String> headers;
+		private final byte[] content;
+		private final boolean keepAlive;
+
+		private HttpResult(int code, Map<String, String> headers, byte[] content,
+				boolean keepAlive) {
+			this.code = code;
+			this.headers = headers;
+			this.content = content;
+			this.keepAlive = keepAlive;
+		}
+
+		/**
+		 * Get the HTTP status code.
+		 *
+		 * @return the status code
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		/**
+		 * Get the HTTP response headers, with lowercase keys.
+		 *
+		 * @return the headers
+		 */
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * Get the raw response body.
+		 *
+		 * @return the body
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * True if the agent agreed to keep the connection alive.
+		 *
+		 * @return true if keep-alive, otherwise false
+		 */
+		public boolean isKeepAlive() {
+			return keepAlive;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.sender;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.gorillalogic.monkeytalk.sender.ConnectionPool.Connection;
+import com.gorillalogic.monkeytalk.sender.ConnectionPool.HttpResult;
+import com.gorillalogic.monkeytalk.utils.CompressionUtils;
+
+/**
+ * A {@link CommandSender} that sends all commands over persistent keep-alive connections taken
+ * from a {@link ConnectionPool}, instead of opening a fresh connection per command. Select it via
+ * {@link CommandSenderFactory#POOLED}, or make it the default with
+ * {@link CommandSenderFactory#registerDefaultClass(Class)}. Agents use it when their
+ * {@link com.gorillalogic.monkeytalk.agents.MTAgent#KEEP_ALIVE_PROP} property is {@code true}.
+ * <p>
+ * If the agent drops a re-used connection before answering, the command is only sent again if it
+ * is safe to play twice (see {@link #isIdempotent(String)}), otherwise the error is returned.
+ */
+public class PooledCommandSender extends CommandSender {
+	private ConnectionPool pool;
+
+	public PooledCommandSender() { // for factory ONLY do not call elsewhere
+		this.pool = ConnectionPool.getDefault();
+	}
+
+	/**
+	 * Get the connection pool used by this sender. Defaults to the shared
+	 * {@link ConnectionPool#getDefault()} pool.
+	 *
+	 * @return the connection pool
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Set the connection pool used by this sender.
+	 *
+	 * @param pool
+	 *            the connection pool
+	 */
+	public void setConnectionPool(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public Response send(URL url, String message, String contentType) {
+		if (message == null) {
+			message = "";
+		}
+
+		int readTimeout = getReadTimeout(message);
+		int port = (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+		String path = (url.getFile().length() > 0 ? url.getFile() : "/");
+
+		try {
+			byte[] body = message.getBytes("UTF-8");
+			String encoding = getRequestEncoding(url, body.length);
+			if (encoding != null) {
+				body = CompressionUtils.compress(body, encoding);
+			}
+			Map<String, String> headers = getRequestHeaders(contentType, encoding);
+
+			Connection conn = pool.lease(url.getHost(), port, getConnectTimeout());
+			HttpResult result;
+			try {
+				result = conn.post(path, headers, body, readTimeout);
+			} catch (EOFException ex) {
+				conn.close();
+				if (!conn.isReused() || !isIdempotent(message)) {
+					throw ex;
+				}
+				// agent dropped a pooled connection between the stale check and the send, so
+				// retry exactly once (it is harmless if the agent saw the first one)
+				conn = pool.lease(url.getHost(), port, getConnectTimeout());
+				result = post(conn, path, headers, body, readTimeout);
+			} catch (IOException ex) {
+				conn.close();
+				throw ex;
+			}
+			pool.release(conn, result.isKeepAlive());
+
+			setAgentEncoding(url, result.getHeaders().get("accept-encoding"));
+			InputStream in = CompressionUtils.decompress(
+					new ByteArrayInputStream(result.getContent()),
+					result.getHeaders().get("content-encoding"));
+
+			String type = result.getHeaders().get("content-type");
+			if (type != null && type.toLowerCase().startsWith(MIME_MULTIPART_MIXED)) {
+				return readMultipart(result.getCode(), in, type);
+			}
+			String resp = readFromStream(in);
+			return new Response(result.getCode(), resp);
+		} catch (SocketTimeoutException ex) {
+			return getTimeoutResponse(url, ex);
+		} catch (Exception ex) {
+			return getErrorResponse(url, ex);
+		}
+	}
+
+	/**
+	 * Close this sender's idle pooled connections to the agent.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		URL url = getUrl();
+		if (url != null) {
+			pool.close(url.getHost(), (url.getPort() != -1 ? url.getPort() : url.getDefaultPort()));
+		}
+	}
+
+	/**
+	 * True if the given message is safe to send twice, because playing it again doesn't change
+	 * the app: a PING, a DUMPTREE, or a screenshot. Any other PLAY (ex: a tap, or entering text)
+	 * might have been played by the agent before it dropped the connection.
+	 *
+	 * @param message
+	 *            the JSON message
+	 * @return true if idempotent, otherwise false
+	 */
+	public boolean isIdempotent(String message) {
+		try {
+			JSONObject json = new JSONObject(message);
+			String mtcommand = json.optString("mtcommand");
+			if (PING.equals(mtcommand) || DUMPTREE.equals(mtcommand)) {
+				return true;
+			}
+			return PLAY.equals(mtcommand)
+					&& "device".equalsIgnoreCase(json.optString("componentType"))
+					&& "screenshot".equalsIgnoreCase(json.optString("action"));
+		} catch (JSONException ex) {
+			return false;
+		}
+	}
+
+	private HttpResult post(Connection conn, String path, Map<String, String> headers,
+			byte[] body, int readTimeout) throws IOException {
+		try {
+			return conn.post(path, headers, body, readTimeout);
+		} catch (IOException ex) {
+			conn.close();
+			throw ex;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PooledCommandSender: url=" + getUrl();
+	}
+}
@@ -15,8 +15,13 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package com.gorillalogic.monkeytalk.sender;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -36,12 +41,24 @@ public class Response {
 	private String warning;
 	private String image;
 	private File imageFile = null;
+	private boolean binaryImage = false;
+	private JSONObject json;
+	private boolean lazyBody = false;
+	private Map<String, String> cutImages;
+	private String afterImage;
+	private File afterImageFile;
+	private String metrics;
+	private String fingerprint;
+	private Map<String, JSONObject> cutImageHolders;
+
+	private static final String[] CUT_KEYS = { "screenshot", "afterImage" };
+	private static final int CUT_THRESHOLD = 4096;
 
 	/**
 	 * Instantiate a {@code 200 OK} response with an empty body.
 	 */
 	public Response() {
-		this(HttpStatus.OK.getCode(), null);
+		this(HttpStatus.OK.getCode(), (String) null);
 	}
 
 	/**
@@ -76,81 +93,244 @@ public class Response {
 	public Response(int code, String body) {
 		this.code = code;
 		this.body = body;
+		if (body != null) {
+			json = parse(body);
+		}
+		init(code, body);
+	}
+
+	/**
+	 * Instantiate a response with the given HTTP status code and an already parsed JSON body (for
+	 * example, one command's response from inside a batch response). The body string is only
+	 * serialized if somebody asks for it.
+	 * 
+	 * @param code
+	 *            the HTTP status code
+	 * @param json
+	 *            the JSON body
+	 */
+	Response(int code, JSONObject json) {
+		this.code = code;
+		this.json = json;
+		this.lazyBody = (json != null);
+		init(code, null);
+	}
 
+	/**
+	 * Helper to pull the status, message, warning, and image out of the parsed JSON body.
+	 */
+	private void init(int code, String body) {
 		status = ResponseStatus.ERROR;
 
 		if (code != HttpStatus.OK.getCode()) {
-			JSONObject json = getBodyAsJSON();
 			if (json != null && json.has("message")) {
-				try {
-					JSONObject msg = json.getJSONObject("message");
+				JSONObject msg = json.optJSONObject("message");
+				if (msg != null) {
 					message = msg.optString("message", null);
 					warning = msg.optString("warning", null);
-					image = msg.optString(msg.has("screenshot") ? "screenshot" : "image", null);
-				} catch (JSONException ex) {
+					image = imageFrom(msg);
+				} else {
 					message = json.optString("message", null);
 				}
 			} else {
 				message = body;
 			}
 		} else {
-			if (body == null) {
+			if (body == null && json == null) {
 				status = ResponseStatus.OK;
+			} else if (json != null) {
+				String result = json.optString("result");
+				if (result != null) {
+					if (result.equalsIgnoreCase("ok")) {
+						status = ResponseStatus.OK;
+					} else if (result.equalsIgnoreCase("failure")) {
+						status = ResponseStatus.FAILURE;
+					}
+				}
+
+				JSONObject msg = json.optJSONObject("message");
+				if (msg != null) {
+					message = msg.optString("message", null);
+					warning = msg.optString("warning", null);
+					image = imageFrom(msg);
+					afterFrom(msg);
+				} else {
+					message = json.optString("message", null);
+					warning = json.optString("warning", null);
+					image = imageFrom(json);
+				}
+				afterFrom(json);
 			} else {
-				JSONObject json = getBodyAsJSON();
-				if (json != null) {
-					String result = json.optString("result");
-					if (result != null) {
-						if (result.equalsIgnoreCase("ok")) {
-							status = ResponseStatus.OK;
-						} else if (result.equalsIgnoreCase("failure")) {
-							status = ResponseStatus.FAILURE;
+				message = body;
+			}
+		}
+	}
+
+	/**
+	 * Helper to get the base64 screenshot from the given JSON object, which is under the
+	 * {@code screenshot} key (or the older {@code image} key). If the screenshot was cut out of the
+	 * body before parsing, return the cut out screenshot instead.
+	 */
+	private String imageFrom(JSONObject obj) {
+		String cut = cutFrom(obj, "screenshot");
+		if (cut != null) {
+			return cut;
+		}
+		return obj.optString(obj.has("screenshot") ? "screenshot" : "image", null);
+	}
+
+	/**
+	 * Helper to get the image under the given key, if it was cut out of the given JSON object
+	 * before parsing, otherwise null.
+	 */
+	private String cutFrom(JSONObject obj, String key) {
+		if (cutImages != null && cutImageHolders.get(key) == obj) {
+			return cutImages.get(key);
+		}
+		return null;
+	}
+
+	/**
+	 * Helper to get the after screenshot, device metrics, and fingerprint the agent attached to a
+	 * PLAY response (see {@link CommandSender#AFTER}) from the given JSON object.
+	 */
+	private void afterFrom(JSONObject obj) {
+		if (afterImage == null) {
+			afterImage = cutFrom(obj, "afterImage");
+		}
+		if (afterImage == null) {
+			afterImage = obj.optString("afterImage", null);
+		}
+		if (metrics == null) {
+			metrics = obj.optString("metrics", null);
+		}
+		if (fingerprint == null) {
+			fingerprint = obj.optString("fingerprint", null);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Helper to parse the given JSON body exactly once. Big bodies are typically big because of a
+	 * base64 screenshot, which the JSON parser would otherwise copy char by char. So, if there is
+	 * a single {@code screenshot} value (or a single {@code afterImage} value, see
+	 * {@link CommandSender#AFTER_IMAGE}) in the body, it is cut out as a plain substring before
+	 * parsing, and only put back into the parsed JSON if somebody asks for it via
+	 * {@link #getBodyAsJSON()}.
+	 * </p>
+	 * 
+	 * @param body
+	 *            the JSON body
+	 * @return the parsed JSON, or {@code null} if the body isn't valid JSON
+	 */
+	private JSONObject parse(String body) {
+		if (body.length() >= CUT_THRESHOLD) {
+			String cutBody = body;
+			Map<String, String> images = new HashMap<String, String>();
+			for (String k : CUT_KEYS) {
+				String quoted = "\"" + k + "\"";
+				int key = cutBody.indexOf(quoted);
+				if (key == -1 || cutBody.indexOf(quoted, key + 1) != -1) {
+					continue;
+				}
+				int start = cutBody.indexOf('"', key + quoted.length());
+				int end = (start != -1 ? cutBody.indexOf('"', start + 1) : -1);
+				if (end == -1
+						|| !cutBody.substring(key + quoted.length(), start).trim().equals(":")) {
+					continue;
+				}
+				String img = cutBody.substring(start + 1, end);
+				if (img.indexOf('\\') != -1) {
+					// some JSON writers escape the slash, and some base64 encoders wrap lines,
+					// but nothing else is legal in base64
+					img = img.replace("\\/", "/").replace("\\n", "");
+				}
+				if (img.indexOf('\\') == -1) {
+					images.put(k, img);
+					cutBody = cutBody.substring(0, start + 1) + cutBody.substring(end);
+				}
+			}
+
+			if (!images.isEmpty()) {
+				try {
+					JSONObject parsed = new JSONObject(cutBody);
+					JSONObject msg = parsed.optJSONObject("message");
+					Map<String, JSONObject> holders = new HashMap<String, JSONObject>();
+					for (String k : images.keySet()) {
+						JSONObject holder = (msg != null && msg.has(k) ? msg : parsed);
+						if ("".equals(holder.opt(k))) {
+							holders.put(k, holder);
 						}
 					}
-
-					try {
-						JSONObject msg = json.getJSONObject("message");
-						message = msg.optString("message", null);
-						warning = msg.optString("warning", null);
-						image = msg.optString(msg.has("screenshot") ? "screenshot" : "image", null);
-					} catch (JSONException ex) {
-						message = json.optString("message", null);
-						warning = json.optString("warning", null);
-						image = json.optString(json.has("screenshot") ? "screenshot" : "image",
-								null);
-						
+					if (holders.size() == images.size()) {
+						cutImages = images;
+						cutImageHolders = holders;
+						return parsed;
 					}
-				} else {
-					message = body;
+				} catch (JSONException ex) {
+					// fall through to the normal parse
 				}
 			}
 		}
+
+		try {
+			return new JSONObject(body);
+		} catch (JSONException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Instantiate a response with the given HTTP status code and JSON body, where the screenshot
+	 * (if any) was sent by the agent as raw binary and has already been written to the given file,
+	 * instead of being base64 encoded inside the JSON body.
+	 * 
+	 * @param code
+	 *            the HTTP status code
+	 * @param body
+	 *            the JSON body
+	 * @param imageFile
+	 *            the screenshot file (or {@code null} if none)
+	 */
+	public Response(int code, String body, File imageFile) {
+		this(code, body, imageFile, null);
+	}
+
+	/**
+	 * Instantiate a response with the given HTTP status code and JSON body, where the screenshot
+	 * and the after screenshot (if any) were sent by the agent as raw binary and have already been
+	 * written to the given files, instead of being base64 encoded inside the JSON body.
+	 * 
+	 * @param code
+	 *            the HTTP status code
+	 * @param body
+	 *            the JSON body
+	 * @param imageFile
+	 *            the screenshot file (or {@code null} if none)
+	 * @param afterImageFile
+	 *            the after screenshot file (or {@code null} if none)
+	 */
+	public Response(int code, String body, File imageFile, File afterImageFile) {
+		this(code, body);
+		if (imageFile != null) {
+			this.imageFile = imageFile;
+			this.image = null;
+			this.binaryImage = true;
+		}
+		if (afterImageFile != null) {
+			this.afterImageFile = afterImageFile;
+			this.afterImage = null;
+		}
 	}
-	
+
 	public Response(ResponseStatus status, String message, String warning, String image) {
 		this.status = status;
 		this.message = message;
 		this.warning = warning;
 		this.image = image;
+		this.lazyBody = true;
 
 		code = HttpStatus.OK.getCode();
-
-		JSONObject msg = new JSONObject();
-		try {
-			msg.put("result", status.toString());
-			if (warning == null && image == null) {
-				msg.putOpt("message", message);
-			} else {
-				JSONObject msgObj = new JSONObject();
-				msgObj.putOpt("message", message);
-				msgObj.putOpt("warning", warning);
-				msgObj.putOpt("screenshot", image);
-				msg.put("message", msgObj);
-			}
-			body = msg.toString();
-		} catch (JSONException ex) {
-			body = null;
-		}
 	}
 
 	/**
@@ -168,24 +348,62 @@ public class Response {
 	 * @return the JSON body
 	 */
 	public String getBody() {
+		if (lazyBody) {
+			lazyBody = false;
+			body = (json != null ? getBodyAsJSON().toString() : buildBody());
+		}
 		return body;
 	}
 
 	/**
-	 * Get the JSON body as a {@code JSONObject} object.
+	 * Helper to build the JSON body from the status, message, warning, and image.
+	 */
+	private String buildBody() {
+		JSONObject msg = new JSONObject();
+		try {
+			msg.put("result", status.toString());
+			if (warning == null && image == null) {
+				msg.putOpt("message", message);
+			} else {
+				JSONObject msgObj = new JSONObject();
+				msgObj.putOpt("message", message);
+				msgObj.putOpt("warning", warning);
+				msgObj.putOpt("screenshot", image);
+				msg.put("message", msgObj);
+			}
+			return msg.toString();
+		} catch (JSONException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the JSON body as a {@code JSONObject} object. The body is only ever parsed once, so the
+	 * same object is returned every time, and callers must not modify it.
 	 * 
 	 * @return the JSON body
 	 */
 	public JSONObject getBodyAsJSON() {
-		if (body == null) {
-			return null;
+		if (json == null && lazyBody) {
+			try {
+				json = new JSONObject(getBody());
+			} catch (JSONException ex) {
+				return null;
+			}
 		}
-
-		try {
-			return new JSONObject(body);
-		} catch (JSONException ex) {
-			return null;
+		if (cutImages != null) {
+			// put back the screenshots we cut out before parsing
+			for (Map.Entry<String, String> cut : cutImages.entrySet()) {
+				try {
+					cutImageHolders.get(cut.getKey()).put(cut.getKey(), cut.getValue());
+				} catch (JSONException ex) {
+					// ignore
+				}
+			}
+			cutImages = null;
+			cutImageHolders = null;
 		}
+		return json;
 	}
 
 	/**
@@ -219,13 +437,112 @@ public class Response {
 
 	/**
 	 * Get the response image, typically everything under the {@code image} key in the JSON body.
+	 * If the image was sent as binary, it is base64 encoded on demand.
 	 * 
 	 * @return the response message
 	 */
 	public String getImage() {
+		if (image == null && binaryImage) {
+			try {
+				image = Base64.encodeFromFile(imageFile.getAbsolutePath());
+			} catch (IOException ex) {
+				throw new RuntimeException("Error getting image: " + ex.getMessage());
+			}
+		}
 		return image;
 	}
 
+	/**
+	 * Get the response image as a stream of raw PNG bytes, without any base64 step if the agent
+	 * sent the image as binary.
+	 * 
+	 * @return the image stream, or {@code null} if there is no image
+	 */
+	public InputStream getImageStream() {
+		if (imageFile == null && image == null) {
+			return null;
+		}
+		try {
+			if (imageFile != null) {
+				return new FileInputStream(imageFile);
+			}
+			return new ByteArrayInputStream(Base64.decode(image));
+		} catch (IOException ex) {
+			throw new RuntimeException("Error getting image: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * True if the agent sent the image as raw binary (rather than base64 encoded inside the JSON
+	 * body), otherwise false.
+	 * 
+	 * @return true if the image was sent as binary
+	 */
+	public boolean isBinaryImage() {
+		return binaryImage;
+	}
+
+	/**
+	 * Get the after screenshot (base64 encoded) the agent attached to a PLAY response, see
+	 * {@link CommandSender#play(com.gorillalogic.monkeytalk.Command, String...)}. If the after
+	 * screenshot was sent as binary, it is base64 encoded on demand.
+	 * 
+	 * @return the after screenshot, or {@code null} if none
+	 */
+	public String getAfterImage() {
+		if (afterImage == null && afterImageFile != null) {
+			try {
+				afterImage = Base64.encodeFromFile(afterImageFile.getAbsolutePath());
+			} catch (IOException ex) {
+				throw new RuntimeException("Error getting after image: " + ex.getMessage());
+			}
+		}
+		return afterImage;
+	}
+
+	/**
+	 * Get the after screenshot file, if the agent sent the after screenshot as raw binary (rather
+	 * than base64 encoded inside the JSON body).
+	 * 
+	 * @return the after screenshot file, or {@code null} if none or not sent as binary
+	 */
+	public File getAfterImageFile() {
+		return afterImageFile;
+	}
+
+	/**
+	 * Get the device metrics the agent attached to a PLAY response, as a comma-separated list of
+	 * memory, cpu, disk space, and battery.
+	 * 
+	 * @return the metrics, or {@code null} if none
+	 */
+	public String getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Get the fingerprint of the screen the agent attached to a PLAY response, as a hex string.
+	 * 
+	 * @return the fingerprint, or {@code null} if none
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Copy the after screenshot, device metrics, and fingerprint from the given response,
+	 * typically when a response is rewritten.
+	 * 
+	 * @param resp
+	 *            the response to copy from
+	 */
+	public void setAfter(Response resp) {
+		afterImage = resp.afterImage;
+		afterImageFile = resp.afterImageFile;
+		metrics = resp.metrics;
+		fingerprint = resp.fingerprint;
+	}
+
 	public File getImageFile() {
 		if (imageFile != null) {
 			return imageFile;
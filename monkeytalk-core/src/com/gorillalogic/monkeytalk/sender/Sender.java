@@ -15,28 +15,115 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package com.gorillalogic.monkeytalk.sender;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.gorillalogic.monkeytalk.utils.CompressionUtils;
+
 /**
  * Helper class to send HTTP messages via a HTTP POST.
  */
 public class Sender {
 	public static final String MIME_JSON = "application/json";
 
+	/**
+	 * Agents that support binary screenshots reply with a {@code multipart/mixed} response: the
+	 * JSON body as the first part, followed by each raw PNG screenshot as its own named part.
+	 */
+	public static final String MIME_MULTIPART_MIXED = "multipart/mixed";
+
+	/**
+	 * Name of the multipart part with the screenshot, see {@link #MIME_MULTIPART_MIXED}. A part
+	 * without a name is the screenshot too.
+	 */
+	public static final String PART_SCREENSHOT = "screenshot";
+
+	/**
+	 * Name of the multipart part with the after screenshot, see {@link CommandSender#AFTER_IMAGE}.
+	 */
+	public static final String PART_AFTER_IMAGE = "afterImage";
+
+	/**
+	 * HTTP accept header sent with every request, so agents know we can take binary screenshots.
+	 * Old agents just ignore it, and reply with the screenshot base64 encoded inside the JSON.
+	 */
+	private static final String ACCEPT = MIME_JSON + ", " + MIME_MULTIPART_MIXED;
+
+	private static final Pattern PART_NAME = Pattern.compile("name=\"?([^\";]+)");
+
 	private static final int TIMEOUT_CONNECT = 10000;
 	private static final int TIMEOUT_READ = 30000;
 
+	/**
+	 * The content encoding each agent has told us it accepts (via the {@code Accept-Encoding}
+	 * header on its responses), keyed by {@code host:port}. We only ever compress a request after
+	 * the agent says it can handle it.
+	 */
+	private static final Map<String, String> AGENT_ENCODINGS = new ConcurrentHashMap<String, String>();
+
+	private boolean compression = true;
+	private int compressionThreshold = CompressionUtils.DEFAULT_THRESHOLD;
+
+	/**
+	 * True if compression is enabled (the default), otherwise false. If enabled, we ask the agent
+	 * to compress large responses, and compress large requests to any agent that accepts them.
+	 * 
+	 * @return true if compression is enabled
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Enable or disable compression for this sender (and thus for its agent).
+	 * 
+	 * @param compression
+	 *            true to enable compression, false to send everything raw
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Get the size (in bytes) below which requests are sent raw, even if compression is enabled.
+	 * 
+	 * @return the compression threshold
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Set the size (in bytes) below which requests are sent raw, even if compression is enabled.
+	 * 
+	 * @param compressionThreshold
+	 *            the compression threshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
 	/**
 	 * Send a JSON message to the given url.
 	 * 
@@ -81,52 +168,49 @@ public class Sender {
 			message = "";
 		}
 
-		int readTimeout = TIMEOUT_READ;
+		int readTimeout = getReadTimeout(message);
 
 		try {
-			JSONObject json = new JSONObject(message);
-			JSONObject modifiers = json.getJSONObject("modifiers");
-			String timeout = modifiers.optString("timeout");
-			String thinktime = modifiers.optString("thinktime");
-			if (timeout != null && timeout.length() > 0) {
-				readTimeout += Integer.parseInt(timeout);
-			}
-			if (thinktime != null && thinktime.length() > 0) {
-				readTimeout += Integer.parseInt(thinktime);
+			byte[] body = message.getBytes("UTF-8");
+			String encoding = getRequestEncoding(url, body.length);
+			if (encoding != null) {
+				body = CompressionUtils.compress(body, encoding);
 			}
-		} catch (JSONException ex) {
-			readTimeout = TIMEOUT_READ;
-		}
 
-		try {
 			conn = (HttpURLConnection) url.openConnection();
-			conn.setConnectTimeout(TIMEOUT_CONNECT);
+			conn.setConnectTimeout(getConnectTimeout());
 			conn.setReadTimeout(readTimeout);
 			conn.setRequestMethod("POST");
-			conn.setRequestProperty("Content-Type", contentType);
+			for (Map.Entry<String, String> header : getRequestHeaders(contentType, encoding)
+					.entrySet()) {
+				conn.setRequestProperty(header.getKey(), header.getValue());
+			}
 			conn.setDoOutput(true);
 
-			OutputStreamWriter out = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
-			out.write(message);
+			OutputStream out = conn.getOutputStream();
+			out.write(body);
 			out.close();
 
 			String resp = null;
 			try {
-				resp = readFromStream(conn.getInputStream());
+				InputStream in = conn.getInputStream();
+				setAgentEncoding(url, conn.getHeaderField("Accept-Encoding"));
+				in = CompressionUtils.decompress(in, conn.getContentEncoding());
+
+				String type = conn.getContentType();
+				if (type != null && type.toLowerCase().startsWith(MIME_MULTIPART_MIXED)) {
+					return readMultipart(conn.getResponseCode(), in, type);
+				}
+				resp = readFromStream(in);
 			} catch (IOException ex) {
-				resp = readFromStream(conn.getErrorStream());
+				resp = readFromStream(CompressionUtils.decompress(conn.getErrorStream(),
+						conn.getContentEncoding()));
 			}
 			return new Response(conn.getResponseCode(), resp);
 		} catch (SocketTimeoutException ex) {
-			return new Response(0, "{result: \"ERROR\", message: \"Timeout connecting to " + url
-					+ ": " + ex.getMessage().replaceAll("\"", "'") + "\"}");
+			return getTimeoutResponse(url, ex);
 		} catch (Exception ex) {
-			return new Response(0,
-					"{result: \"ERROR\", message: \"Unable to send command to "
-							+ url
-							+ ": "
-							+ (ex.getMessage() != null ? ex.getMessage().replaceAll("\"", "'")
-									+ "\"}" : ""));
+			return getErrorResponse(url, ex);
 		} finally {
 			if (conn != null) {
 				conn.disconnect();
@@ -134,7 +218,298 @@ public class Sender {
 		}
 	}
 
-	private String readFromStream(InputStream in) throws UnsupportedEncodingException, IOException {
+	/**
+	 * Get the HTTP request headers to send with every request.
+	 * 
+	 * @param contentType
+	 *            the HTTP content type
+	 * @param contentEncoding
+	 *            the encoding the request body is compressed with (or {@code null} if raw)
+	 * @return the HTTP request headers
+	 */
+	protected Map<String, String> getRequestHeaders(String contentType, String contentEncoding) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Content-Type", contentType);
+		headers.put("Accept", ACCEPT);
+		if (compression) {
+			headers.put("Accept-Encoding", CompressionUtils.ACCEPT_ENCODING);
+		}
+		if (contentEncoding != null) {
+			headers.put("Content-Encoding", contentEncoding);
+		}
+		return headers;
+	}
+
+	/**
+	 * Get the encoding to compress a request body of the given size with. Only large requests are
+	 * compressed, and only if the agent has already told us it accepts compressed requests.
+	 * 
+	 * @param url
+	 *            the target url
+	 * @param length
+	 *            the raw request body size (in bytes)
+	 * @return the encoding, or {@code null} to send the request raw
+	 */
+	protected String getRequestEncoding(URL url, int length) {
+		if (!compression || length < compressionThreshold) {
+			return null;
+		}
+		return AGENT_ENCODINGS.get(getAgentKey(url));
+	}
+
+	/**
+	 * Remember the encoding the agent at the given url accepts, taken from the
+	 * {@code Accept-Encoding} header on its response. Old agents don't send the header, so they
+	 * never get a compressed request.
+	 * 
+	 * @param url
+	 *            the target url
+	 * @param acceptEncoding
+	 *            the {@code Accept-Encoding} response header value
+	 */
+	protected void setAgentEncoding(URL url, String acceptEncoding) {
+		String encoding = CompressionUtils.negotiate(acceptEncoding);
+		if (encoding != null) {
+			AGENT_ENCODINGS.put(getAgentKey(url), encoding);
+		} else {
+			AGENT_ENCODINGS.remove(getAgentKey(url));
+		}
+	}
+
+	private static String getAgentKey(URL url) {
+		return url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+	}
+
+	/**
+	 * Compute the read timeout for the given message, which is the default read timeout plus any
+	 * {@code timeout} and {@code thinktime} modifiers found in the JSON message (or in every
+	 * command of a batch message).
+	 * 
+	 * @param message
+	 *            the message body
+	 * @return the read timeout (in ms)
+	 */
+	protected int getReadTimeout(String message) {
+		int readTimeout = TIMEOUT_READ;
+
+		try {
+			JSONObject json = new JSONObject(message);
+			JSONArray commands = json.optJSONArray("commands");
+			if (commands != null) {
+				// batch, so wait for every command in the batch
+				for (int i = 0; i < commands.length(); i++) {
+					readTimeout += getTimings(commands.getJSONObject(i));
+				}
+			} else {
+				readTimeout += getTimings(json);
+			}
+		} catch (JSONException ex) {
+			readTimeout = TIMEOUT_READ;
+		}
+		return readTimeout;
+	}
+
+	/**
+	 * Helper to sum the {@code timeout} and {@code thinktime} modifiers of the given JSON command.
+	 */
+	private int getTimings(JSONObject json) throws JSONException {
+		int timings = 0;
+		JSONObject modifiers = json.getJSONObject("modifiers");
+		String timeout = modifiers.optString("timeout");
+		String thinktime = modifiers.optString("thinktime");
+		if (timeout != null && timeout.length() > 0) {
+			timings += Integer.parseInt(timeout);
+		}
+		if (thinktime != null && thinktime.length() > 0) {
+			timings += Integer.parseInt(thinktime);
+		}
+		return timings;
+	}
+
+	/**
+	 * Get the connect timeout (in ms).
+	 * 
+	 * @return the connect timeout
+	 */
+	protected int getConnectTimeout() {
+		return TIMEOUT_CONNECT;
+	}
+
+	/**
+	 * Helper to build the error response returned when the send times out.
+	 * 
+	 * @param url
+	 *            the target url
+	 * @param ex
+	 *            the timeout exception
+	 * @return the response
+	 */
+	protected Response getTimeoutResponse(URL url, Exception ex) {
+		return new Response(0, "{result: \"ERROR\", message: \"Timeout connecting to " + url
+				+ ": " + ex.getMessage().replaceAll("\"", "'") + "\"}");
+	}
+
+	/**
+	 * Helper to build the error response returned when the send fails.
+	 * 
+	 * @param url
+	 *            the target url
+	 * @param ex
+	 *            the exception
+	 * @return the response
+	 */
+	protected Response getErrorResponse(URL url, Exception ex) {
+		return new Response(0,
+				"{result: \"ERROR\", message: \"Unable to send command to "
+						+ url
+						+ ": "
+						+ (ex.getMessage() != null ? ex.getMessage().replaceAll("\"", "'")
+								+ "\"}" : ""));
+	}
+
+	/**
+	 * Helper to read a binary screenshot response from the given stream. The response is
+	 * {@code multipart/mixed}, where each part has {@code Content-Type} and {@code Content-Length}
+	 * headers. The {@code application/json} part is the usual JSON body, and each {@code image/png}
+	 * part is a raw screenshot, which is streamed straight to a temp file (no base64 step). The
+	 * part named {@link #PART_AFTER_IMAGE} is the after screenshot, and any other image part is the
+	 * screenshot.
+	 * 
+	 * @param code
+	 *            the HTTP status code
+	 * @param in
+	 *            the input stream
+	 * @param contentType
+	 *            the response content type (with the multipart boundary)
+	 * @return the response
+	 */
+	protected Response readMultipart(int code, InputStream in, String contentType)
+			throws IOException {
+		int idx = contentType.indexOf("boundary=");
+		if (idx == -1) {
+			throw new IOException("multipart response is missing its boundary");
+		}
+		String boundary = "--" + contentType.substring(idx + 9).replaceAll("\"", "").trim();
+		in = new BufferedInputStream(in);
+
+		String body = null;
+		File imageFile = null;
+		File afterImageFile = null;
+		try {
+			String line;
+			while ((line = readLine(in)) != null) {
+				if (line.equals(boundary + "--")) {
+					break;
+				} else if (!line.equals(boundary)) {
+					continue;
+				}
+
+				// part headers
+				String type = "";
+				String name = PART_SCREENSHOT;
+				int len = -1;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int i = line.indexOf(':');
+					if (i > 0) {
+						String key = line.substring(0, i).trim();
+						if ("content-type".equalsIgnoreCase(key)) {
+							type = line.substring(i + 1).trim().toLowerCase();
+						} else if ("content-length".equalsIgnoreCase(key)) {
+							len = Integer.parseInt(line.substring(i + 1).trim());
+						} else if ("content-disposition".equalsIgnoreCase(key)) {
+							Matcher m = PART_NAME.matcher(line.substring(i + 1));
+							if (m.find()) {
+								name = m.group(1);
+							}
+						}
+					}
+				}
+				if (len < 0) {
+					throw new IOException("multipart part is missing its Content-Length");
+				}
+
+				if (type.startsWith("image/")) {
+					File f = File.createTempFile("screenshot_", ".png");
+					if (PART_AFTER_IMAGE.equals(name)) {
+						afterImageFile = f;
+					} else {
+						imageFile = f;
+					}
+					OutputStream out = new FileOutputStream(f);
+					try {
+						copy(in, out, len);
+					} finally {
+						out.close();
+					}
+				} else {
+					ByteArrayOutputStream out = new ByteArrayOutputStream(len);
+					copy(in, out, len);
+					body = out.toString("UTF-8");
+				}
+			}
+		} catch (IOException ex) {
+			// no response, so nobody else will ever clean up the screenshots
+			deleteQuietly(imageFile, afterImageFile);
+			throw ex;
+		} catch (RuntimeException ex) {
+			deleteQuietly(imageFile, afterImageFile);
+			throw ex;
+		} finally {
+			in.close();
+		}
+		return new Response(code, body, imageFile, afterImageFile);
+	}
+
+	/**
+	 * Helper to delete the given temp files, ignoring any that are {@code null}.
+	 */
+	private void deleteQuietly(File... files) {
+		for (File f : files) {
+			if (f != null) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Helper to copy exactly {@code len} bytes from the given input stream to the given output
+	 * stream.
+	 */
+	private void copy(InputStream in, OutputStream out, int len) throws IOException {
+		byte[] buf = new byte[8192];
+		while (len > 0) {
+			int n = in.read(buf, 0, Math.min(buf.length, len));
+			if (n == -1) {
+				throw new EOFException("multipart part truncated");
+			}
+			out.write(buf, 0, n);
+			len -= n;
+		}
+	}
+
+	/**
+	 * Helper to read a single CRLF (or LF) terminated line from the given stream, without the line
+	 * terminator.
+	 */
+	private String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+		return (b == -1 && line.size() == 0 ? null : line.toString("UTF-8"));
+	}
+
+	/**
+	 * Helper to read the given stream as UTF-8 text, line by line, dropping the trailing newline.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the text, or {@code null} if the stream is null
+	 */
+	protected String readFromStream(InputStream in) throws UnsupportedEncodingException, IOException {
 		if (in == null) {
 			return null;
 		}
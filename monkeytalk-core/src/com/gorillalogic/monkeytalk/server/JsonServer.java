@@ -15,24 +15,40 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package com.gorillalogic.monkeytalk.server;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.gorillalogic.monkeytalk.BuildStamp;
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.Sender;
 import com.gorillalogic.monkeytalk.utils.Base64;
+import com.gorillalogic.monkeytalk.utils.CompressionUtils;
 
 /**
  * <p>
@@ -58,9 +74,26 @@ public class JsonServer {
 	private static final String MIME_JSON = "application/json";
 	private static final String MIME_MULTIPART = "multipart/form-data";
 	private static final String MIME_HTML = "text/html";
+	private static final String MIME_MULTIPART_MIXED = "multipart/mixed";
+	private static final String MIME_PNG = "image/png";
+
+	/**
+	 * Default max number of connections served at once.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+	private static final int KEEP_ALIVE_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int IDLE_POLL = 250;
+	private static final int MAX_HEADER_SIZE = 65536;
 
 	private ServerSocket serverSocket;
 	private Thread serverThread;
+	private ThreadPoolExecutor workers;
+	private volatile boolean stopped = false;
+	private final Set<Socket> idleSockets = new HashSet<Socket>();
+	private volatile boolean compression = true;
+	private volatile int compressionThreshold = CompressionUtils.DEFAULT_THRESHOLD;
 
 	private static final SimpleDateFormat sdf;
 	static {
@@ -68,6 +101,16 @@ public class JsonServer {
 		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
 	}
 
+	/**
+	 * Helper to format the given date as an HTTP date, {@link SimpleDateFormat} isn't thread safe
+	 * so all formatting is synchronized.
+	 */
+	private static String formatDate(Date date) {
+		synchronized (sdf) {
+			return sdf.format(date);
+		}
+	}
+
 	/**
 	 * Instantiate a new JSON server with the given port on a background daemon thread. The server
 	 * immediately comes up listening for messages on the given port.
@@ -78,13 +121,44 @@ public class JsonServer {
 	 *             if an I/O error occurs while opening the socket
 	 */
 	public JsonServer(int port) throws IOException {
+		this(port, DEFAULT_MAX_CONCURRENCY);
+	}
+
+	/**
+	 * Instantiate a new JSON server with the given port on a background daemon thread, that serves
+	 * at most {@code maxConcurrency} connections at once from a pool of worker threads. Any extra
+	 * connections wait their turn. The server immediately comes up listening for messages on the
+	 * given port.
+	 * 
+	 * @param port
+	 *            the server port
+	 * @param maxConcurrency
+	 *            the max number of connections served at once
+	 * @throws IOException
+	 *             if an I/O error occurs while opening the socket
+	 */
+	public JsonServer(int port, int maxConcurrency) throws IOException {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1, found: "
+					+ maxConcurrency);
+		}
 		serverSocket = new ServerSocket(port);
+		workers = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, KEEP_ALIVE_TIMEOUT,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "JsonServer worker");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		workers.allowCoreThreadTimeOut(true);
 		serverThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
 					while (true) {
-						new HttpSession(serverSocket.accept());
+						workers.execute(new HttpSession(serverSocket.accept()));
 					}
 				} catch (IOException ex) {
 					// do nothing
@@ -101,8 +175,19 @@ public class JsonServer {
 	 */
 	public void stop() {
 		try {
+			stopped = true;
 			serverSocket.close();
 			serverThread.join();
+			workers.shutdown();
+
+			// hang up on any idle keep-alive connections, so clients reconnect to whatever
+			// server comes up next
+			synchronized (idleSockets) {
+				for (Socket socket : idleSockets) {
+					socket.close();
+				}
+				idleSockets.clear();
+			}
 		} catch (InterruptedException ex) {
 			throw new RuntimeException("ERROR: interrupted while stopping - ex=" + ex.getMessage());
 		} catch (IOException ex) {
@@ -148,9 +233,102 @@ public class JsonServer {
 			json = new JSONObject();
 		}
 
+		if (CommandSender.PLAYBATCH.equals(json.optString("mtcommand"))) {
+			return serveBatch(uri, method, headers, json);
+		}
+
 		return serve(uri, method, headers, json);
 	}
 
+	/**
+	 * <p>
+	 * Serve a {@link CommandSender#PLAYBATCH} request by unpacking its {@code commands} and serving
+	 * each of them, in order, via {@link JsonServer#serve(String, String, Map, JSONObject)}, so any
+	 * server that can play a single command can also play a batch. Stops at the first command that
+	 * returns an {@code ERROR} or {@code FAILURE}, unless that command's {@code %abort} modifier
+	 * says to keep going (exactly as the script processor does).
+	 * </p>
+	 * 
+	 * <p>
+	 * The response is <code>{result:&lt;last result>, message:"played X of Y commands",
+	 * responses:[...]}</code>, where {@code responses} holds the JSON body of each command that was
+	 * actually played.
+	 * </p>
+	 * 
+	 * @param uri
+	 *            the URI
+	 * @param method
+	 *            the HTTP method (GET, POST, etc.)
+	 * @param headers
+	 *            the HTTP headers
+	 * @param json
+	 *            the batch POST body as a JSON object
+	 * @return the response
+	 */
+	protected Response serveBatch(String uri, String method, Map<String, String> headers,
+			JSONObject json) {
+		JSONArray commands = json.optJSONArray("commands");
+		if (commands == null) {
+			return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"batch has no commands\"}");
+		}
+
+		JSONArray responses = new JSONArray();
+		String result = "OK";
+		try {
+			for (int i = 0; i < commands.length(); i++) {
+				JSONObject command = commands.getJSONObject(i);
+				Response r = serve(uri, method, headers, command);
+
+				JSONObject body;
+				try {
+					body = new JSONObject(r != null && r.getBody() != null ? r.getBody() : "{}");
+				} catch (JSONException ex) {
+					body = new JSONObject();
+				}
+				if (!body.has("result")) {
+					body.put("result", r != null && r.getStatus() == HttpStatus.OK ? "OK" : "ERROR");
+				}
+				responses.put(body);
+
+				result = body.getString("result");
+				if (!shouldContinueBatch(command, result)) {
+					break;
+				}
+			}
+
+			JSONObject resp = new JSONObject();
+			resp.put("result", result);
+			resp.put("message", "played " + responses.length() + " of " + commands.length()
+					+ " commands");
+			resp.put("responses", responses);
+			return new Response(HttpStatus.OK, resp);
+		} catch (JSONException ex) {
+			return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"bad batch - "
+					+ ex.getMessage().replaceAll("\"", "'") + "\"}");
+		}
+	}
+
+	/**
+	 * Helper to determine if batch playback should continue after the given command returned the
+	 * given result, honoring the command's {@code %abort=error|fail|never} modifier.
+	 */
+	private boolean shouldContinueBatch(JSONObject command, String result) {
+		if ("OK".equals(result)) {
+			return true;
+		}
+
+		JSONObject modifiers = command.optJSONObject("modifiers");
+		String abort = (modifiers != null ? modifiers.optString(Command.ABORT_MODIFIER, "") : "");
+		if (abort.contains("never")) {
+			return true;
+		} else if ("ERROR".equals(result)) {
+			return abort.contains("error") && !abort.contains("fail");
+		} else if ("FAILURE".equals(result)) {
+			return abort.contains("fail");
+		}
+		return false;
+	}
+
 	/**
 	 * <p>
 	 * By default, just echo the incoming request as the response. Returns a {@link Response} object
@@ -261,6 +439,47 @@ public class JsonServer {
 		return serverThread.isAlive();
 	}
 
+	/**
+	 * True if compression is enabled (the default), otherwise false. If enabled, any response
+	 * larger than the compression threshold is compressed for clients that send a matching
+	 * {@code Accept-Encoding} header, and every response advertises that compressed requests are
+	 * accepted.
+	 * 
+	 * @return true if compression is enabled
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Enable or disable response compression.
+	 * 
+	 * @param compression
+	 *            true to enable compression, false to send every response raw
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Get the size (in bytes) below which responses are sent raw, even if compression is enabled.
+	 * 
+	 * @return the compression threshold
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Set the size (in bytes) below which responses are sent raw, even if compression is enabled.
+	 * 
+	 * @param compressionThreshold
+	 *            the compression threshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
 	/**
 	 * Return the port of the JSON server or {@code -1} if the server is not bound and listening
 	 * yet.
@@ -278,194 +497,378 @@ public class JsonServer {
 	}
 
 	/**
-	 * Handles one HTTP session -- parse the request and return the response.
+	 * Helper to pull the base64 encoded screenshot (under the {@code screenshot} or {@code image}
+	 * key) and the base64 encoded after screenshot (under the {@code afterImage} key) out of the
+	 * given JSON response body, checking inside the {@code message} object first. Each image is
+	 * removed from the JSON, and returned as raw bytes.
+	 * 
+	 * @param json
+	 *            the JSON response body
+	 * @param images
+	 *            the raw images, by part name (either {@link Sender#PART_SCREENSHOT} or
+	 *            {@link Sender#PART_AFTER_IMAGE})
+	 */
+	private void extractScreenshots(JSONObject json, Map<String, byte[]> images) {
+		JSONObject msg = json.optJSONObject("message");
+		for (JSONObject obj : new JSONObject[] { msg, json }) {
+			if (obj == null) {
+				continue;
+			}
+			if (!images.containsKey(Sender.PART_SCREENSHOT)) {
+				String key = (obj.has("screenshot") ? "screenshot" : "image");
+				extractScreenshot(obj, key, Sender.PART_SCREENSHOT, images);
+			}
+			if (!images.containsKey(Sender.PART_AFTER_IMAGE)) {
+				extractScreenshot(obj, "afterImage", Sender.PART_AFTER_IMAGE, images);
+			}
+		}
+	}
+
+	/**
+	 * Helper to pull the base64 encoded image under the given key out of the given JSON object.
+	 * The image is only removed from the JSON if it decodes.
+	 */
+	private void extractScreenshot(JSONObject obj, String key, String part,
+			Map<String, byte[]> images) {
+		String image = obj.optString(key, null);
+		if (image != null && image.length() > 0) {
+			try {
+				images.put(part, Base64.decode(image));
+				obj.remove(key);
+			} catch (IOException ex) {
+				// leave it in the JSON
+			}
+		}
+	}
+
+	/**
+	 * Handles one HTTP connection -- parse each request and return its response. If the client
+	 * asks for it (aka HTTP/1.1 or {@code Connection: keep-alive}), the connection is kept open for
+	 * more requests until it goes idle, the server is stopped, or other connections are waiting
+	 * for a worker.
 	 */
 	private class HttpSession implements Runnable {
 
 		private Socket socket;
+		private OutputStream os;
+		private String responseEncoding;
 
 		public HttpSession(Socket socket) {
 			this.socket = socket;
-			Thread t = new Thread(this);
-			t.setDaemon(true);
-			t.start();
 		}
 
 		public void run() {
 			try {
-				InputStream is = socket.getInputStream();
-
-				// no stream, so we are done
-				if (is == null) {
-					return;
+				InputStream is = new BufferedInputStream(socket.getInputStream());
+				os = socket.getOutputStream();
+				while (awaitRequest(is)) {
+					socket.setSoTimeout(READ_TIMEOUT);
+					if (!serveRequest(is)) {
+						break;
+					}
 				}
+			} catch (IOException ex) {
+				sendError("exception - " + ex.getMessage());
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+					// do nothing
+				}
+			}
+		}
 
-				// read the first 8192 bytes, which should get the whole header
-				byte[] buf = new byte[8192];
-				int len = is.read(buf, 0, buf.length);
-
-				// nothing to read, so we are done
-				if (len == -1) {
-					is.close();
-					return;
-				}
-
-				int headerStart = search(buf, new byte[] { 13, 10 });
-				int headerEnd = search(buf, new byte[] { 13, 10, 13, 10 });
-
-				if (headerStart == -1 || headerEnd == -1) {
-					sendError("failed to read headers");
-					is.close();
-					return;
-				}
-
-				// first line contains HTTP method and target URI
-				String urlLine = getStringFromBytes(buf, headerStart);
-				String[] parts = urlLine.split("\\s+");
-				String method = parts[0];
-				String uri = parts[1];
-
-				if (uri.indexOf("?") != -1) {
-					uri = uri.substring(0, uri.indexOf("?"));
-				}
-
-				// then comes all the headers
-				Map<String, String> headers = getHeaders(buf, headerStart + 2, headerEnd);
-
-				boolean isMultipart = false;
-				String boundary = null;
-
-				if ("GET".equals(method)) {
-					Response r = serve(uri, method, headers, (String) null);
-					send(r.getStatus(), MIME_HTML, r.getBody(), r.getHeaders());
-					is.close();
-					return;
-				} else if ("POST".equals(method)) {
-					if (!headers.containsKey("content-type")) {
-						sendError("Content-Type header is missing");
-						is.close();
-						return;
-					} else if (headers.get("content-type").toLowerCase().startsWith(MIME_JSON)) {
-						// we are vanilla JSON
-						isMultipart = false;
-					} else if (headers.get("content-type").toLowerCase().startsWith(MIME_MULTIPART)) {
-						// we are Multipart
-						isMultipart = true;
-						int boundaryIdx = headers.get("content-type").indexOf("boundary=");
-						if (boundaryIdx > 0) {
-							boundary = headers.get("content-type").substring(boundaryIdx + 9);
+		/**
+		 * Wait for the next request to arrive on the connection. Gives up if the connection is
+		 * closed by the client, stays idle for too long, the server is stopped, or other
+		 * connections are queued waiting for a worker.
+		 * 
+		 * @param is
+		 *            the input stream
+		 * @return true if a request is ready to be read, otherwise false
+		 */
+		private boolean awaitRequest(InputStream is) throws IOException {
+			long deadline = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT;
+			synchronized (idleSockets) {
+				if (stopped) {
+					return false;
+				}
+				idleSockets.add(socket);
+			}
+			try {
+				socket.setSoTimeout(IDLE_POLL);
+				while (true) {
+					try {
+						is.mark(1);
+						if (is.read() == -1) {
+							return false;
+						}
+						is.reset();
+						return !stopped;
+					} catch (SocketTimeoutException ex) {
+						if (stopped || System.currentTimeMillis() > deadline
+								|| !workers.getQueue().isEmpty()) {
+							return false;
 						}
-					} else {
-						sendError("post data must be " + MIME_JSON + " or " + MIME_MULTIPART);
-						is.close();
-						return;
 					}
 				}
-
-				if (!headers.containsKey("content-length")) {
-					sendError("Content-Length header is missing");
-					is.close();
-					return;
+			} finally {
+				synchronized (idleSockets) {
+					idleSockets.remove(socket);
 				}
+			}
+		}
+
+		/**
+		 * Read a single request from the given stream, serve it, and send the response.
+		 * 
+		 * @param is
+		 *            the input stream
+		 * @return true if the connection should be kept open for another request, otherwise false
+		 */
+		private boolean serveRequest(InputStream is) throws IOException {
+			// first line contains HTTP method, target URI, and HTTP version
+			int[] headerSize = new int[] { 0 };
+			String urlLine = readLine(is, headerSize);
+			while (urlLine != null && urlLine.length() == 0) {
+				urlLine = readLine(is, headerSize);
+			}
+			if (urlLine == null) {
+				return false;
+			}
 
-				int L = Integer.parseInt(headers.get("content-length"));
+			responseEncoding = null;
+			String[] parts = urlLine.split("\\s+");
+			if (parts.length < 2) {
+				sendError("failed to read headers");
+				return false;
+			}
+			String method = parts[0];
+			String uri = parts[1];
+			String version = (parts.length > 2 ? parts[2] : "HTTP/1.0");
 
-				byte[] body = new byte[L];
-				int bodylen = len - headerEnd - 4;
+			if (uri.indexOf("?") != -1) {
+				uri = uri.substring(0, uri.indexOf("?"));
+			}
 
-				// read in what we've got so far
-				for (int i = 0; i < bodylen; ++i) {
-					body[i] = buf[i + headerEnd + 4];
+			// then comes all the headers
+			Map<String, String> headers = new HashMap<String, String>();
+			String line;
+			while ((line = readLine(is, headerSize)) != null && line.length() > 0) {
+				int i = line.indexOf(':');
+				if (i > 0) {
+					headers.put(line.substring(0, i).trim().toLowerCase(), line.substring(i + 1)
+							.trim());
 				}
+			}
+			if (line == null) {
+				sendError("failed to read headers");
+				return false;
+			}
 
-				// we didn't get the entire body with first read, so read some more
-				while (bodylen < L) {
-					int sz = L - bodylen;
-					int l = is.read(buf, 0, (sz > 1024 ? 1024 : sz));
-					if (l != -1) {
-						// append to body
-						for (int i = 0; i < l; i++) {
-							body[bodylen + i] = buf[i];
-						}
-						bodylen += l;
+			if (compression) {
+				responseEncoding = CompressionUtils.negotiate(headers.get("accept-encoding"));
+			}
+
+			String connection = headers.get("connection");
+			boolean keepAlive = ("HTTP/1.1".equalsIgnoreCase(version) ? !"close"
+					.equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection));
+
+			boolean isMultipart = false;
+			String boundary = null;
+
+			if ("GET".equals(method)) {
+				Response r = serve(uri, method, headers, (String) null);
+				return send(r.getStatus(), MIME_HTML, r.getBody(), r.getHeaders(), keepAlive);
+			} else if ("POST".equals(method)) {
+				if (!headers.containsKey("content-type")) {
+					sendError("Content-Type header is missing");
+					return false;
+				} else if (headers.get("content-type").toLowerCase().startsWith(MIME_JSON)) {
+					// we are vanilla JSON
+					isMultipart = false;
+				} else if (headers.get("content-type").toLowerCase().startsWith(MIME_MULTIPART)) {
+					// we are Multipart
+					isMultipart = true;
+					int boundaryIdx = headers.get("content-type").indexOf("boundary=");
+					if (boundaryIdx > 0) {
+						boundary = headers.get("content-type").substring(boundaryIdx + 9);
 					}
+				} else {
+					sendError("post data must be " + MIME_JSON + " or " + MIME_MULTIPART);
+					return false;
 				}
+			}
+
+			byte[] body;
+			if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+				body = readChunked(is);
+			} else if (!headers.containsKey("content-length")) {
+				sendError("Content-Length header is missing");
+				return false;
+			} else {
+				body = new byte[Integer.parseInt(headers.get("content-length"))];
+				readFully(is, body);
+			}
 
-				Response r;
+			String contentEncoding = headers.get("content-encoding");
+			if (contentEncoding != null) {
+				if (!CompressionUtils.isSupported(contentEncoding)
+						&& !"identity".equalsIgnoreCase(contentEncoding)) {
+					sendError("unsupported Content-Encoding: " + contentEncoding);
+					return false;
+				}
+				body = CompressionUtils.decompress(body, contentEncoding);
+			}
 
-				// now we got the whole body, but if multipart we need to serve() the image
-				if (isMultipart) {
-					byte[] sep = ("--" + boundary).getBytes("UTF-8");
+			Response r;
 
-					int start1 = search(body, sep);
-					int end1 = search(body, new byte[] { 13, 10, 13, 10 }, start1);
+			// now we got the whole body, but if multipart we need to serve() the image
+			if (isMultipart) {
+				byte[] sep = ("--" + boundary).getBytes("UTF-8");
 
-					int start2 = search(body, sep, end1);
-					int end2 = search(body, new byte[] { 13, 10, 13, 10 }, start2);
+				int start1 = search(body, sep);
+				int end1 = search(body, new byte[] { 13, 10, 13, 10 }, start1);
 
-					int last = search(body, sep, end2);
+				int start2 = search(body, sep, end1);
+				int end2 = search(body, new byte[] { 13, 10, 13, 10 }, start2);
 
-					Map<String, String> headers1 = getHeaders(body, start1 + sep.length + 2, end1);
-					Map<String, String> headers2 = getHeaders(body, start2 + sep.length + 2, end2);
+				int last = search(body, sep, end2);
 
-					if (headers1 == null) {
-						sendError("failed to read " + MIME_MULTIPART + " headers1");
-						is.close();
-						return;
-					}
-					if (headers2 == null) {
-						sendError("failed to read " + MIME_MULTIPART + " headers2");
-						is.close();
-						return;
-					}
+				Map<String, String> headers1 = getHeaders(body, start1 + sep.length + 2, end1);
+				Map<String, String> headers2 = getHeaders(body, start2 + sep.length + 2, end2);
 
-					String bodyStr = null;
-					byte[] image = null;
-					if (headers1.containsKey("content-disposition")) {
-						if (headers1.get("content-disposition").toLowerCase()
-								.contains("name=\"message\"")) {
-							bodyStr = getStringFromBytes(body, start2 - end1 - 4, end1 + 4);
-							image = new byte[last - end2 - 6];
-							for (int i = 0; i < image.length; i++) {
-								image[i] = body[end2 + 4 + i];
-							}
-						} else {
-							bodyStr = getStringFromBytes(body, last - end2 - 4, end2 + 4);
-							image = new byte[start2 - end1 - 6];
-							for (int i = 0; i < image.length; i++) {
-								image[i] = body[end1 + 4 + i];
-							}
-						}
+				if (headers1 == null) {
+					sendError("failed to read " + MIME_MULTIPART + " headers1");
+					return false;
+				}
+				if (headers2 == null) {
+					sendError("failed to read " + MIME_MULTIPART + " headers2");
+					return false;
+				}
+
+				String bodyStr = null;
+				byte[] image = null;
+				if (headers1.containsKey("content-disposition")) {
+					if (headers1.get("content-disposition").toLowerCase()
+							.contains("name=\"message\"")) {
+						bodyStr = getStringFromBytes(body, start2 - end1 - 4, end1 + 4);
+						image = new byte[last - end2 - 6];
+						System.arraycopy(body, end2 + 4, image, 0, image.length);
+					} else {
+						bodyStr = getStringFromBytes(body, last - end2 - 4, end2 + 4);
+						image = new byte[start2 - end1 - 6];
+						System.arraycopy(body, end1 + 4, image, 0, image.length);
 					}
+				}
+
+				if (bodyStr != null) {
+					bodyStr = bodyStr.trim();
+				}
+
+				// now serve the image
+				r = serve(uri, method, headers, bodyStr, headers1, image);
+			} else {
+				// now serve the JSON
+				r = serve(uri, method, headers, new String(body, "UTF-8").trim());
+			}
 
-					if (bodyStr != null) {
-						bodyStr = bodyStr.trim();
+			if (r == null) {
+				sendError("serve() returned null");
+				return false;
+			}
+
+			// client can take the screenshots as binary, so send each one as its own part
+			String accept = headers.get("accept");
+			if (accept != null && accept.toLowerCase().contains(MIME_MULTIPART_MIXED)) {
+				String json = r.body;
+				Map<String, byte[]> images = new LinkedHashMap<String, byte[]>();
+				if (r.image != null) {
+					images.put(Sender.PART_SCREENSHOT, r.image);
+				}
+				if (r.afterImage != null) {
+					images.put(Sender.PART_AFTER_IMAGE, r.afterImage);
+				}
+				if (images.isEmpty() && json != null) {
+					try {
+						JSONObject obj = new JSONObject(json);
+						extractScreenshots(obj, images);
+						json = obj.toString();
+					} catch (JSONException ex) {
+						// not JSON, so no images in it
 					}
+				}
+				if (!images.isEmpty()) {
+					return sendMultipart(r.getStatus(), json, images, r.getHeaders(), keepAlive);
+				}
+			}
+			return send(r.getStatus(), MIME_JSON, r.getBody(), r.getHeaders(), keepAlive);
+		}
 
-					// now serve the image
-					r = serve(uri, method, headers, bodyStr, headers1, image);
-				} else {
-					// now serve the JSON
-					r = serve(uri, method, headers, new String(body, "UTF-8").trim());
+		/**
+		 * Helper to read a single CRLF (or LF) terminated header line as a UTF-8 string, without
+		 * the line terminator. Fails if the headers grow beyond {@link #MAX_HEADER_SIZE}.
+		 * 
+		 * @param is
+		 *            the input stream
+		 * @param size
+		 *            the running total of header bytes read so far (updated in place)
+		 * @return the line, or {@code null} if the stream ended first
+		 */
+		private String readLine(InputStream is, int[] size) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = is.read()) != -1 && b != '\n') {
+				if (++size[0] > MAX_HEADER_SIZE) {
+					throw new IOException("headers too large");
 				}
+				if (b != '\r') {
+					line.write(b);
+				}
+			}
+			return (b == -1 ? null : line.toString("UTF-8"));
+		}
 
-				if (r == null) {
-					sendError("serve() returned null");
-					is.close();
-					return;
-				} else {
-					send(r.getStatus(), MIME_JSON, r.getBody(), r.getHeaders());
+		/**
+		 * Helper to read exactly enough bytes to fill the given buffer.
+		 */
+		private void readFully(InputStream is, byte[] buf) throws IOException {
+			int off = 0;
+			while (off < buf.length) {
+				int len = is.read(buf, off, buf.length - off);
+				if (len == -1) {
+					throw new EOFException("body truncated after " + off + " of " + buf.length
+							+ " bytes");
 				}
+				off += len;
+			}
+		}
 
-				is.close();
-			} catch (IOException ex) {
-				sendError("exception - " + ex.getMessage());
-			} finally {
-				try {
-					socket.close();
-				} catch (IOException ex) {
-					// do nothing
+		/**
+		 * Helper to read a {@code Transfer-Encoding: chunked} body.
+		 */
+		private byte[] readChunked(InputStream is) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			int[] size = new int[] { 0 };
+			while (true) {
+				String line = readLine(is, size);
+				if (line == null) {
+					throw new EOFException("chunked body truncated");
+				}
+				int semi = line.indexOf(';');
+				int len = Integer.parseInt((semi != -1 ? line.substring(0, semi) : line).trim(),
+						16);
+				if (len == 0) {
+					// skip trailers
+					while ((line = readLine(is, size)) != null && line.length() > 0) {
+					}
+					return body.toByteArray();
 				}
+				byte[] chunk = new byte[len];
+				readFully(is, chunk);
+				body.write(chunk);
+				readLine(is, size);
+				size[0] = 0;
 			}
 		}
 
@@ -489,19 +892,19 @@ public class JsonServer {
 		}
 
 		/**
-		 * Helper to send an error JSON response.
+		 * Helper to send an error JSON response, after which the connection is closed.
 		 * 
 		 * @param err
 		 */
 		private void sendError(String err) {
 			send(HttpStatus.INTERNAL_ERROR, MIME_JSON,
-					"{result:\"ERROR\",message:\"" + err + "\"}", null);
+					"{result:\"ERROR\",message:\"" + err + "\"}", null, false);
 		}
 
 		/**
 		 * Helper to send a full response: HTTP status, MIME type, body, and HTTP response headers.
-		 * Always return response headers {@code Content-Type} and {@code Date} even if the
-		 * {@code headers} is {@code null}.
+		 * Always return response headers {@code Content-Type}, {@code Content-Length},
+		 * {@code Connection}, and {@code Date} even if the {@code headers} is {@code null}.
 		 * 
 		 * @param status
 		 *            the HTTP status
@@ -511,50 +914,134 @@ public class JsonServer {
 		 *            the body
 		 * @param headers
 		 *            the HTTP headers
+		 * @param keepAlive
+		 *            true if the client asked to keep the connection open
+		 * @return true if the connection stays open for another request, otherwise false
+		 */
+		private boolean send(HttpStatus status, String mime, String body,
+				Map<String, String> headers, boolean keepAlive) {
+			try {
+				return send(status, mime, (body != null ? body.getBytes("UTF-8") : new byte[0]),
+						headers, keepAlive);
+			} catch (UnsupportedEncodingException ex) {
+				return false;
+			}
+		}
+
+		/**
+		 * Helper to send a {@code multipart/mixed} response, where the first part is the JSON body
+		 * and each following part is a raw PNG screenshot, named by its
+		 * {@code Content-Disposition}. Every part carries a {@code Content-Length}, so the client
+		 * can stream the screenshots straight to disk.
+		 * 
+		 * @param status
+		 *            the HTTP status
+		 * @param body
+		 *            the JSON body
+		 * @param images
+		 *            the raw image bytes, by part name
+		 * @param headers
+		 *            the HTTP headers
+		 * @param keepAlive
+		 *            true if the client asked to keep the connection open
+		 * @return true if the connection stays open for another request, otherwise false
+		 */
+		private boolean sendMultipart(HttpStatus status, String body, Map<String, byte[]> images,
+				Map<String, String> headers, boolean keepAlive) {
+			String boundary = "mtboundary" + Long.toHexString(System.nanoTime());
+			try {
+				byte[] json = (body != null ? body.getBytes("UTF-8") : new byte[0]);
+				int size = json.length + 256;
+				for (byte[] image : images.values()) {
+					size += image.length + 256;
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+				out.write(("--" + boundary + "\r\nContent-Type: " + MIME_JSON
+						+ "\r\nContent-Length: " + json.length + "\r\n\r\n").getBytes("UTF-8"));
+				out.write(json);
+				for (Map.Entry<String, byte[]> image : images.entrySet()) {
+					out.write(("\r\n--" + boundary + "\r\nContent-Type: " + MIME_PNG
+							+ "\r\nContent-Disposition: inline; name=\"" + image.getKey()
+							+ "\"\r\nContent-Length: " + image.getValue().length + "\r\n\r\n")
+							.getBytes("UTF-8"));
+					out.write(image.getValue());
+				}
+				out.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+				return send(status, MIME_MULTIPART_MIXED + "; boundary=" + boundary,
+						out.toByteArray(), headers, keepAlive);
+			} catch (IOException ex) {
+				return false;
+			}
+		}
+
+		/**
+		 * Helper to send a full response: HTTP status, MIME type, raw content, and HTTP response
+		 * headers.
+		 * 
+		 * @see HttpSession#send(HttpStatus, String, String, Map, boolean)
 		 */
-		private void send(HttpStatus status, String mime, String body, Map<String, String> headers) {
+		private boolean send(HttpStatus status, String mime, byte[] content,
+				Map<String, String> headers, boolean keepAlive) {
+			if (os == null) {
+				return false;
+			}
+
+			// don't hog a worker while other connections are waiting for one
+			keepAlive = keepAlive && !stopped && workers.getQueue().isEmpty();
+
 			try {
-				PrintWriter pw = new PrintWriter(socket.getOutputStream());
-				pw.print("HTTP/1.0 " + status + " \r\n");
-				pw.print("Content-Type: " + mime + "\r\n");
-				//pw.print("Access-Control-Allow-Origin: *\r\n");
+				// compress big responses, but not screenshots (a PNG is already compressed)
+				String contentEncoding = null;
+				if (responseEncoding != null && content.length >= compressionThreshold
+						&& !mime.startsWith(MIME_MULTIPART_MIXED)) {
+					contentEncoding = responseEncoding;
+					content = CompressionUtils.compress(content, contentEncoding);
+				}
+
+				StringBuilder sb = new StringBuilder();
+				sb.append("HTTP/1.1 ").append(status).append(" \r\n");
+				sb.append("Content-Type: ").append(mime).append("\r\n");
+				//sb.append("Access-Control-Allow-Origin: *\r\n");
 
 				if (headers == null || headers.get("Date") == null) {
-					pw.print("Date: " + sdf.format(new Date()) + "\r\n");
+					sb.append("Date: ").append(formatDate(new Date())).append("\r\n");
 				}
 
 				if (headers != null) {
 					for (Map.Entry<String, String> header : headers.entrySet()) {
-						pw.print(header.getKey() + ": " + header.getValue() + "\r\n");
+						sb.append(header.getKey()).append(": ").append(header.getValue())
+								.append("\r\n");
 					}
 				}
 
-				pw.print("\r\n");
-				if (body != null) {
-					pw.print(body);
+				if (compression) {
+					sb.append("Accept-Encoding: ").append(CompressionUtils.ACCEPT_ENCODING)
+							.append("\r\n");
+				}
+				if (contentEncoding != null) {
+					sb.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
 				}
-				pw.close();
+				sb.append("Content-Length: ").append(content.length).append("\r\n");
+				sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close")
+						.append("\r\n");
+				sb.append("\r\n");
+
+				// write it all at once
+				ByteArrayOutputStream out = new ByteArrayOutputStream(sb.length() + content.length);
+				out.write(sb.toString().getBytes("UTF-8"));
+				out.write(content);
+				os.write(out.toByteArray());
+				os.flush();
+				return keepAlive;
 			} catch (IOException ex) {
 				try {
 					socket.close();
 				} catch (IOException ex2) {
 				}
+				return false;
 			}
 		}
 
-		/**
-		 * Helper to convert a byte array into a UTF-8 string.
-		 * 
-		 * @param bytes
-		 *            the byte array
-		 * @param len
-		 *            the number of bytes to convert
-		 * @return the UTF-8 string
-		 */
-		private String getStringFromBytes(byte[] bytes, int len) {
-			return getStringFromBytes(bytes, len, 0);
-		}
-
 		/**
 		 * Helper to convert a byte array into a UTF-8 string.
 		 * 
@@ -641,6 +1128,7 @@ public class JsonServer {
 		private String body;
 		private Map<String, String> headers;
 		private byte[] image;
+		private byte[] afterImage;
 
 		/**
 		 * Instantiate a new {@code 200 OK} response, with no JSON body and no HTTP headers.
@@ -735,13 +1223,18 @@ public class JsonServer {
 		 * @return the JSON body
 		 */
 		public String getBody() {
-			if (image == null) {
+			if (image == null && afterImage == null) {
 				return body;
 			}
 			
 			try {
 				JSONObject json = new JSONObject(body);
-				json.put("screenshot", Base64.encodeBytes(image));
+				if (image != null) {
+					json.put("screenshot", Base64.encodeBytes(image));
+				}
+				if (afterImage != null) {
+					json.put("afterImage", Base64.encodeBytes(afterImage));
+				}
 				return json.toString();
 			} catch (JSONException e) {
 				return body;
@@ -766,6 +1259,27 @@ public class JsonServer {
 			return image;
 		}
 
+		/**
+		 * Get the raw after screenshot bytes, see {@link CommandSender#AFTER_IMAGE}.
+		 * 
+		 * @return the after screenshot
+		 */
+		public byte[] getAfterImage() {
+			return afterImage;
+		}
+
+		/**
+		 * Set the raw after screenshot bytes, see {@link CommandSender#AFTER_IMAGE}. The after
+		 * screenshot is sent as binary if the client can take it, otherwise it is base64 encoded
+		 * under the {@code afterImage} key.
+		 * 
+		 * @param afterImage
+		 *            the after screenshot
+		 */
+		public void setAfterImage(byte[] afterImage) {
+			this.afterImage = afterImage;
+		}
+
 		@Override
 		public String toString() {
 			StringBuilder sb = new StringBuilder("Response:\n");
@@ -0,0 +1,146 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers for the HTTP {@code Content-Encoding} used between the host and the agents.
+ */
+public class CompressionUtils {
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * The {@code Accept-Encoding} header value for every encoding we support.
+	 */
+	public static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+	/**
+	 * Default size (in bytes) below which content is sent raw, because it isn't worth compressing.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private CompressionUtils() {
+	}
+
+	/**
+	 * Pick the best supported encoding from the given {@code Accept-Encoding} header, preferring
+	 * gzip.
+	 *
+	 * @param acceptEncoding
+	 *            the {@code Accept-Encoding} header value
+	 * @return the encoding, or {@code null} if none is supported
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		String accept = acceptEncoding.toLowerCase();
+		if (accept.contains(GZIP)) {
+			return GZIP;
+		} else if (accept.contains(DEFLATE)) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * True if the given encoding is one we can compress or decompress, otherwise false.
+	 *
+	 * @param encoding
+	 *            the {@code Content-Encoding} header value
+	 * @return true if supported
+	 */
+	public static boolean isSupported(String encoding) {
+		return GZIP.equalsIgnoreCase(encoding) || DEFLATE.equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * Compress the given content with the given encoding.
+	 *
+	 * @param content
+	 *            the raw content
+	 * @param encoding
+	 *            the encoding (either {@code gzip} or {@code deflate})
+	 * @return the compressed content
+	 */
+	public static byte[] compress(byte[] content, String encoding) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4 + 64);
+		OutputStream out = (GZIP.equalsIgnoreCase(encoding) ? new GZIPOutputStream(bytes)
+				: new DeflaterOutputStream(bytes));
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Wrap the given stream so it is decompressed as it is read. If the encoding is {@code null}
+	 * or {@code identity}, the stream is returned as is.
+	 *
+	 * @param in
+	 *            the compressed stream
+	 * @param encoding
+	 *            the {@code Content-Encoding} header value
+	 * @return the decompressed stream
+	 */
+	public static InputStream decompress(InputStream in, String encoding) throws IOException {
+		if (in == null || encoding == null) {
+			return in;
+		} else if (GZIP.equalsIgnoreCase(encoding.trim())) {
+			return new GZIPInputStream(in);
+		} else if (DEFLATE.equalsIgnoreCase(encoding.trim())) {
+			return new InflaterInputStream(in);
+		} else if ("identity".equalsIgnoreCase(encoding.trim())) {
+			return in;
+		}
+		throw new IOException("unsupported Content-Encoding: " + encoding);
+	}
+
+	/**
+	 * Decompress the given content.
+	 *
+	 * @see #decompress(InputStream, String)
+	 */
+	public static byte[] decompress(byte[] content, String encoding) throws IOException {
+		if (encoding == null) {
+			return content;
+		}
+		InputStream in = decompress(new ByteArrayInputStream(content), encoding);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length * 4);
+		try {
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				out.write(buf, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
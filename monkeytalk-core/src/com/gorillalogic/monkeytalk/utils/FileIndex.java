@@ -0,0 +1,143 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Case-insensitive in-memory index of the files in a directory, so looking up a file by name
+ * doesn't list the whole directory every time (see {@link FileUtils#findFile(String, File)}).
+ * <p>
+ * The index is kept current by checking the directory's last modified time, which changes
+ * whenever a file is added, removed, or renamed. That is a single {@code stat} instead of a full
+ * directory listing, and works everywhere (including Android, and network drives without file
+ * watch support). Because many filesystems only have a one or two second mtime resolution, the
+ * index is rebuilt on every lookup while the directory was modified within that window. Call
+ * {@link #refresh()} to force a rebuild.
+ */
+public class FileIndex {
+	private final File dir;
+	private Map<String, File> files;
+	private List<File> sorted;
+	private long dirModified;
+	private boolean trusted;
+	private int builds;
+
+	/**
+	 * Instantiate a file index for the given directory. The index is built lazily, on the first
+	 * lookup.
+	 *
+	 * @param dir
+	 *            the directory
+	 */
+	public FileIndex(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the indexed directory.
+	 *
+	 * @return the directory
+	 */
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Find the file with the given filename in the directory. NOTE: this is
+	 * <b>case-insensitive</b>.
+	 *
+	 * @param filename
+	 *            the filename
+	 * @return the file, or null if not found
+	 */
+	public synchronized File find(String filename) {
+		if (filename == null) {
+			return null;
+		}
+		validate();
+		return files.get(filename.toLowerCase());
+	}
+
+	/**
+	 * Get all the files in the directory, sorted.
+	 *
+	 * @return the list of files (could be empty, but never null)
+	 */
+	public synchronized List<File> list() {
+		validate();
+		return sorted;
+	}
+
+	/**
+	 * Throw away the index, so it is rebuilt on the next lookup.
+	 */
+	public synchronized void refresh() {
+		files = null;
+		sorted = null;
+	}
+
+	/**
+	 * Get the number of times the index has been built (mostly for testing).
+	 *
+	 * @return the build count
+	 */
+	public synchronized int getBuildCount() {
+		return builds;
+	}
+
+	/**
+	 * Helper to rebuild the index if the directory has changed since it was built.
+	 */
+	private void validate() {
+		if (files != null && trusted && dir.lastModified() == dirModified) {
+			return;
+		}
+		build();
+	}
+
+	/**
+	 * Helper to list the directory and build the index.
+	 */
+	private void build() {
+		long now = System.currentTimeMillis();
+		dirModified = (dir != null ? dir.lastModified() : 0);
+		trusted = (now - dirModified > FileUtils.MTIME_RESOLUTION);
+
+		File[] listing = (dir != null && dir.isDirectory() ? dir.listFiles() : null);
+		Map<String, File> map = new HashMap<String, File>();
+		List<File> list = new ArrayList<File>();
+		if (listing != null) {
+			list.addAll(Arrays.asList(listing));
+			Collections.sort(list);
+			for (File f : listing) {
+				String key = f.getName().toLowerCase();
+				if (!map.containsKey(key)) {
+					map.put(key, f);
+				}
+			}
+		}
+		files = map;
+		sorted = Collections.unmodifiableList(list);
+		builds++;
+	}
+}
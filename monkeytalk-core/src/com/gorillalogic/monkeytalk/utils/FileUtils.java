@@ -43,6 +43,13 @@ public class FileUtils {
 	private static final String TEMP_DIR_PREFIX = "report";
 	private static final int BUFFER_SIZE = 4096;
 
+	/**
+	 * Window (in ms) after a file modification during which anything derived from the file can't
+	 * be trusted, because coarse filesystem mtimes (ex: 2 seconds on FAT) can hide a second
+	 * modification inside the same tick.
+	 */
+	public static final long MTIME_RESOLUTION = 2000;
+
 	/**
 	 * Read the given input stream with UTF-8 encoding into a string and return it.
 	 * 
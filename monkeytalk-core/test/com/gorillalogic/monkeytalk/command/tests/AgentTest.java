@@ -18,12 +18,22 @@ package com.gorillalogic.monkeytalk.command.tests;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.io.IOException;
+import java.util.Map;
+
+import org.json.JSONObject;
 import org.junit.Test;
 
+import com.gorillalogic.monkeytalk.agents.AgentLifecycle;
+import com.gorillalogic.monkeytalk.agents.AgentLifecycle.State;
 import com.gorillalogic.monkeytalk.agents.AndroidAgent;
 import com.gorillalogic.monkeytalk.agents.IAgent;
 import com.gorillalogic.monkeytalk.agents.IOSAgent;
 import com.gorillalogic.monkeytalk.agents.MTAgent;
+import com.gorillalogic.monkeytalk.agents.ReadyListener;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.server.JsonServer;
 import com.gorillalogic.monkeytalk.server.ServerConfig;
 
 public class AgentTest {
@@ -66,4 +76,218 @@ public class AgentTest {
 		assertThat(agent.getHost(), is("host"));
 		assertThat(agent.getPort(), is(1234));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testWaitUntilReady() throws Exception {
+		final int port = 18032;
+		MTAgent agent = new MTAgent("localhost", port);
+
+		// agent comes up after a while
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(500);
+					servers[0] = new AppServer(port);
+				} catch (Exception ex) {
+					// ignore
+				}
+			}
+		});
+		t.start();
+
+		try {
+			assertThat(agent.waitUntilReady(10000), is(true));
+			assertThat(agent.getTimeToReady() >= 500, is(true));
+			// backoff means only a handful of pings, not one every few ms
+			assertThat(servers[0].pings <= 2, is(true));
+		} finally {
+			t.join();
+			servers[0].stop();
+		}
+	}
+
+	@Test
+	public void testWaitUntilReadyTimeout() {
+		MTAgent agent = new MTAgent("localhost", 18033);
+		long start = System.currentTimeMillis();
+		assertThat(agent.waitUntilReady(500), is(false));
+		assertThat(System.currentTimeMillis() - start < 2000, is(true));
+		assertThat(agent.getTimeToReady(), is(-1L));
+	}
+
+	@Test
+	public void testReadyNotification() throws Exception {
+		final int port = 18034;
+		final int readyPort = 18035;
+		final AppServer server = new AppServer(port);
+		server.ready = false;
+		MTAgent agent = new MTAgent("localhost", port);
+		agent.setProperty(MTAgent.READY_PORT_PROP, Integer.toString(readyPort));
+		assertThat(agent.getReadyId(), is("localhost:" + port));
+
+		// app is listening, but not ready until it pushes a READY to the host
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(2500);
+					server.ready = true;
+					CommandSender sender = CommandSenderFactory.createCommandSender("localhost",
+							readyPort);
+					sender.ready("localhost:" + port);
+				} catch (Exception ex) {
+					// ignore
+				}
+			}
+		});
+		t.start();
+
+		try {
+			assertThat(agent.waitUntilReady(10000), is(true));
+			assertThat(agent.getTimeToReady() >= 2500, is(true));
+			assertThat(agent.getTimeToReady() < 2900, is(true));
+			assertThat(server.pings < 15, is(true));
+		} finally {
+			t.join();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testReadyListenerIsShared() throws Exception {
+		MTAgent agent1 = new MTAgent("localhost", 18036);
+		MTAgent agent2 = new MTAgent("localhost", 18037);
+
+		ReadyListener listener = ReadyListener.register(18051, agent1);
+		assertThat(ReadyListener.register(18051, agent2) == listener, is(true));
+		assertThat(listener.isRunning(), is(true));
+
+		listener.unregister(agent1);
+		assertThat(listener.isRunning(), is(true));
+		listener.unregister(agent2);
+		assertThat(listener.isRunning(), is(false));
+
+		// the last one out stopped it, so the next one in starts a new one
+		ReadyListener next = ReadyListener.register(18051, agent1);
+		assertThat(next == listener, is(false));
+		assertThat(next.isRunning(), is(true));
+		next.unregister(agent1);
+		assertThat(next.isRunning(), is(false));
+	}
+
+	@Test
+	public void testLifecycleStartIsIdempotent() {
+		CountingAgent agent = new CountingAgent(18036);
+		AgentLifecycle lifecycle = agent.getLifecycle();
+		assertThat(lifecycle.getState(), is(State.STOPPED));
+
+		for (int i = 0; i < 1000; i++) {
+			lifecycle.ensureStarted();
+		}
+		assertThat(lifecycle.getState(), is(State.STARTED));
+		assertThat(agent.starts, is(1));
+
+		lifecycle.stop();
+		assertThat(lifecycle.getState(), is(State.STOPPED));
+		assertThat(agent.stops, is(1));
+		lifecycle.stop();
+		assertThat(agent.stops, is(1));
+
+		lifecycle.ensureStarted();
+		assertThat(agent.starts, is(2));
+	}
+
+	@Test
+	public void testLifecycleHealthCheck() throws Exception {
+		int port = 18036;
+		CountingAgent agent = new CountingAgent(port);
+		AgentLifecycle lifecycle = agent.getLifecycle();
+
+		// nothing to check while stopped
+		assertThat(lifecycle.checkHealth(), is(State.STOPPED));
+
+		lifecycle.ensureStarted();
+		AppServer server = new AppServer(port);
+		try {
+			assertThat(lifecycle.checkHealth(), is(State.HEALTHY));
+			assertThat(agent.isReady(), is(true));
+			assertThat(agent.starts, is(1));
+
+			// agent goes away, so it is degraded and gets reconnected
+			server.ready = false;
+			assertThat(lifecycle.checkHealth(), is(State.STARTED));
+			assertThat(agent.starts, is(2));
+
+			server.ready = true;
+			assertThat(lifecycle.checkHealth(), is(State.HEALTHY));
+			assertThat(agent.starts, is(2));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testLifecycleBackgroundHealthCheck() throws Exception {
+		CountingAgent agent = new CountingAgent(18037);
+		AgentLifecycle lifecycle = agent.getLifecycle();
+		lifecycle.ensureStarted();
+
+		agent.setProperty(AgentLifecycle.HEALTH_CHECK_INTERVAL_PROP, "50");
+		lifecycle.startHealthChecks();
+		try {
+			// nothing is listening, so the health check keeps reconnecting
+			Thread.sleep(500);
+			assertThat(agent.starts > 1, is(true));
+		} finally {
+			lifecycle.stopHealthChecks();
+		}
+
+		int starts = agent.starts;
+		Thread.sleep(200);
+		assertThat(agent.starts <= starts + 1, is(true));
+	}
+
+	/**
+	 * Extend {@link MTAgent} to count starts and stops.
+	 */
+	private static class CountingAgent extends MTAgent {
+		private volatile int starts = 0;
+		private volatile int stops = 0;
+
+		public CountingAgent(int port) {
+			super("localhost", port);
+		}
+
+		@Override
+		public void start() {
+			super.start();
+			starts++;
+		}
+
+		@Override
+		public void stop() {
+			stops++;
+		}
+	}
+
+	private final AppServer[] servers = new AppServer[1];
+
+	/**
+	 * Extend {@link JsonServer} to act like an app with an agent, that counts pings and only
+	 * answers them with OK once ready.
+	 */
+	private static class AppServer extends JsonServer {
+		private volatile boolean ready = true;
+		private volatile int pings = 0;
+
+		public AppServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			pings++;
+			return new Response(HttpStatus.OK, "{result:\"" + (ready ? "OK" : "ERROR") + "\"}");
+		}
+	}
+}
@@ -22,7 +22,8 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({ SimpleTest.class, SetterTest.class, CommandTest.class, ComparisonTest.class,
 		QuotesTest.class, JsonOutputTest.class, JsonInputTest.class, JsonRoundTripTest.class,
-		SubstitutionTest.class, CommandValidationTest.class, ModifiersTest.class,
-		TimingsTest.class, AgentTest.class, EscapingTest.class })
+		SubstitutionTest.class, SubstitutionConformanceTest.class, CommandValidationTest.class,
+		ModifiersTest.class, TimingsTest.class, AgentTest.class, EscapingTest.class,
+		ScriptCacheTest.class })
 public class AllTests {
 }
\ No newline at end of file
@@ -0,0 +1,198 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.command.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.ScriptCache;
+import com.gorillalogic.monkeytalk.parser.MonkeyTalkParser;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class ScriptCacheTest extends TestHelper {
+	private static final String SCRIPT = "Vars * Define first=Bo last=\"Smith\"\n"
+			+ "Input name EnterText ${first} %timeout=2000\n" + "# comment\n"
+			+ "Button \"Say \\\"Hi\\\"\" Tap %thinktime=500\n";
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testCacheHit() throws IOException {
+		File f = settledScript("foo.mt", SCRIPT);
+		ScriptCache cache = new ScriptCache(10);
+
+		List<Command> first = cache.get(f);
+		List<Command> second = cache.get(f);
+		assertThat(cache.getMisses(), is(1));
+		assertThat(cache.getHits(), is(1));
+		assertThat(cache.size(), is(1));
+
+		List<Command> parsed = MonkeyTalkParser.parseFile(f);
+		assertThat(first.size(), is(parsed.size()));
+		for (int i = 0; i < parsed.size(); i++) {
+			assertThat(second.get(i).getCommand(), is(parsed.get(i).getCommand()));
+			assertThat(second.get(i).isComment(), is(parsed.get(i).isComment()));
+			assertThat(second.get(i).getArgs(), is(parsed.get(i).getArgs()));
+			assertThat(second.get(i).getModifiers(), is(parsed.get(i).getModifiers()));
+		}
+	}
+
+	@Test
+	public void testCopiesAreIndependent() throws IOException {
+		File f = settledScript("foo.mt", SCRIPT);
+		ScriptCache cache = new ScriptCache(10);
+		cache.get(f);
+
+		List<Command> first = cache.get(f);
+		Command cmd = first.get(1);
+		cmd.setDefaultTimeout(9999);
+		cmd.setArgsAndModifiers("Joe %timeout=1");
+		first.clear();
+
+		List<Command> second = cache.get(f);
+		assertThat(second.size(), is(4));
+		assertThat(second.get(1), not(sameInstance(cmd)));
+		assertThat(second.get(1).getArgsAsString(), is("${first}"));
+		assertThat(second.get(1).getTimeout(), is(2000));
+		assertThat(second.get(1).getDefaultTimeout(), is(MonkeyTalkParser.parseFile(f).get(1)
+				.getDefaultTimeout()));
+	}
+
+	@Test
+	public void testModifiedFileIsReparsed() throws IOException {
+		File f = settledScript("foo.mt", SCRIPT);
+		ScriptCache cache = new ScriptCache(10);
+		assertThat(cache.get(f).size(), is(4));
+
+		FileUtils.writeFile(f, "Button OK Tap");
+		f.setLastModified(System.currentTimeMillis() - 30000);
+		List<Command> commands = cache.get(f);
+		assertThat(commands.size(), is(1));
+		assertThat(commands.get(0).getCommand(), is("Button OK Tap"));
+		assertThat(cache.getMisses(), is(2));
+	}
+
+	@Test
+	public void testRecentlyModifiedFileIsNotCached() throws IOException {
+		File f = tempScript("foo.mt", SCRIPT, tempDir());
+		ScriptCache cache = new ScriptCache(10);
+		cache.get(f);
+		cache.get(f);
+		assertThat(cache.getHits(), is(0));
+		assertThat(cache.size(), is(0));
+	}
+
+	@Test
+	public void testBounded() throws IOException {
+		File dir = tempDir();
+		ScriptCache cache = new ScriptCache(2);
+		File a = settledScript("a.mt", SCRIPT, dir);
+		File b = settledScript("b.mt", SCRIPT, dir);
+		File c = settledScript("c.mt", SCRIPT, dir);
+
+		cache.get(a);
+		cache.get(b);
+		cache.get(a);
+		cache.get(c);
+		assertThat(cache.size(), is(2));
+
+		// b was least recently used, so it was evicted
+		cache.get(a);
+		cache.get(b);
+		assertThat(cache.getHits(), is(2));
+		assertThat(cache.getMisses(), is(4));
+	}
+
+	@Test
+	public void testMissingFile() {
+		ScriptCache cache = new ScriptCache(10);
+		assertThat(cache.get(null), nullValue());
+		assertThat(cache.get(new File("missing.mt")), nullValue());
+		assertThat(cache.size(), is(0));
+	}
+
+	@Test
+	public void testWorldOptOut() throws IOException {
+		File f = settledScript("foo.mt", SCRIPT);
+		CommandWorld world = new CommandWorld(f.getParentFile());
+		assertThat(world.isScriptCache(), is(true));
+		world.getScript("foo");
+
+		int hits = ScriptCache.getDefault().getHits();
+		world.getScript("foo");
+		assertThat(ScriptCache.getDefault().getHits(), is(hits + 1));
+
+		world.setScriptCache(false);
+		world.getScript("foo");
+		assertThat(ScriptCache.getDefault().getHits(), is(hits + 1));
+	}
+
+	@Test
+	public void testBenchmark() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append("Input name").append(i).append(" EnterText \"some ${text}\" %timeout=100\n");
+		}
+		File f = settledScript("bench.mt", sb.toString());
+		ScriptCache cache = new ScriptCache(10);
+		int iterations = 500;
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < iterations; i++) {
+			MonkeyTalkParser.parseFile(f);
+		}
+		long parse = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < iterations; i++) {
+			cache.get(f);
+		}
+		long cached = System.currentTimeMillis() - start;
+
+		System.out.println("ScriptCache benchmark: 50-line script x" + iterations + " (ms) parse="
+				+ parse + " cached=" + cached);
+		assertThat(cache.getHits(), is(iterations - 1));
+	}
+
+	private File settledScript(String filename, String contents) throws IOException {
+		return settledScript(filename, contents, tempDir());
+	}
+
+	/**
+	 * Helper to create a script that was last modified a while ago, so it is cacheable.
+	 */
+	private File settledScript(String filename, String contents, File dir) throws IOException {
+		File f = tempScript(filename, contents, dir);
+		f.setLastModified(System.currentTimeMillis() - 60000);
+		return f;
+	}
+}
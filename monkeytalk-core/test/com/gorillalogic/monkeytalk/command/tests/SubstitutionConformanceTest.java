@@ -0,0 +1,264 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.command.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+
+/**
+ * Check the template-based {@link Command#substitute(String, String, String, List, Map)} against
+ * the original substitution, which ran a separate regex replace for every built-in var, arg, and
+ * named variable.
+ */
+public class SubstitutionConformanceTest {
+	private static final String[] PIECES = { "%{componentType}", "%{monkeyId}", "%{action}",
+			"%{1}", "%{2}", "%{3}", "%{4}", "%{01}", "%{0}", "%{x}", "${foo}", "${bar}", "${a.b}",
+			"${}", "%{", "${", "{", "}", "%", "$", "a", "B", " ", "\\", "$1" };
+
+	private static final String[] VALUES = { "FOO", "b r", "$1,234.56", "\\", "", "${bar}",
+			"%{1}", "${foo}", "%{componentType}", "{x}" };
+
+	private static final String[] COMMANDS = { "Button OK Click",
+			"%{componentType} %{monkeyId} %{action} %{1} %{2}",
+			"Input name EnterText ${first}${last} %timeout=${timeout}",
+			"Button OK Click %{1}%{1}%{5} ${missing} %{01} %{0}",
+			"Button ${foo}%{2} Tap \"${foo} and ${bar}\" %thinktime=%{1}",
+			"Button OK Click ${foo${bar}} %{%{1}} {${foo}}", "* * Verify ${} ${foo}}{" };
+
+	@Test
+	public void testCommands() {
+		List<String> args = Arrays.asList("A", "B C", "$3");
+		for (String s : COMMANDS) {
+			Command cmd = new Command(s);
+			assertConforms(cmd, "Btn", "id", "Tap", args, vars("foo", "FOO", "bar", "B R",
+					"first", "Joe", "last", "Bob", "timeout", "1000"));
+			assertConforms(cmd, null, null, null, null, null);
+			assertConforms(cmd, "Btn", null, "Tap", new ArrayList<String>(),
+					new HashMap<String, String>());
+		}
+	}
+
+	@Test
+	public void testCascadingValues() {
+		Command cmd = new Command("Button OK Click %{1} ${foo} %{componentType}");
+
+		// an arg that is a variable is substituted again, just like before
+		Command newCmd = cmd.substitute("${foo}", null, null, Arrays.asList("${bar}"),
+				vars("foo", "%{1}", "bar", "BAR"));
+		assertThat(newCmd.getCommand(), is("Button OK Click BAR %{1} %{1}"));
+		assertConforms(cmd, "${foo}", null, null, Arrays.asList("${bar}"),
+				vars("foo", "%{1}", "bar", "BAR"));
+	}
+
+	@Test
+	public void testModifiedCommand() {
+		Command cmd = new Command("Button OK Click ${foo}");
+		Map<String, String> vars = vars("foo", "FOO", "bar", "BAR");
+		assertThat(cmd.substitute(null, null, null, null, vars).getCommand(),
+				is("Button OK Click FOO"));
+
+		// modifying the command throws away the compiled templates
+		cmd.setArgsAndModifiers("${bar} %timeout=${foo}");
+		assertThat(cmd.substitute(null, null, null, null, vars).getCommand(),
+				is("Button OK Click BAR %timeout=FOO"));
+		cmd.setMonkeyId("${bar}");
+		assertThat(cmd.substitute(null, null, null, null, vars).getCommand(),
+				is("Button BAR Click BAR %timeout=FOO"));
+	}
+
+	@Test
+	public void testClone() {
+		Command cmd = new Command("Button ${foo} Click %{1}");
+		Map<String, String> vars = vars("foo", "FOO");
+		List<String> args = Arrays.asList("ARG");
+
+		for (int i = 0; i < 3; i++) {
+			assertThat(cmd.clone().substitute(null, null, null, args, vars).getCommand(),
+					is("Button FOO Click ARG"));
+		}
+		assertThat(cmd.getCommand(), is("Button ${foo} Click %{1}"));
+	}
+
+	@Test
+	public void testRandom() {
+		Random rand = new Random(42);
+		for (int i = 0; i < 5000; i++) {
+			List<String> cmdArgs = new ArrayList<String>();
+			for (int j = rand.nextInt(4); j > 0; j--) {
+				cmdArgs.add(randomString(rand));
+			}
+			Map<String, String> mods = new HashMap<String, String>();
+			if (rand.nextBoolean()) {
+				mods.put("timeout", randomString(rand));
+			}
+			Command cmd = new Command("Button", randomString(rand), "Click", cmdArgs, mods);
+
+			List<String> args = new ArrayList<String>();
+			for (int j = rand.nextInt(4); j > 0; j--) {
+				args.add(randomValue(rand));
+			}
+			Map<String, String> vars = new LinkedHashMap<String, String>();
+			if (rand.nextBoolean()) {
+				vars.put("foo", randomValue(rand));
+			}
+			if (rand.nextBoolean()) {
+				vars.put("bar", randomValue(rand));
+			}
+			if (rand.nextBoolean()) {
+				vars.put("a.b", randomValue(rand));
+			}
+
+			assertConforms(cmd, randomValue(rand), randomValue(rand), null, args, vars);
+		}
+	}
+
+	@Test
+	public void testBenchmark() {
+		Map<String, String> vars = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 50; i++) {
+			vars.put("var" + i, "value" + i);
+		}
+		List<String> args = Arrays.asList("A", "B", "C");
+		List<Command> commands = new ArrayList<Command>();
+		for (int i = 0; i < 100; i++) {
+			commands.add(new Command("Input name" + i + " EnterText ${var" + (i % 50)
+					+ "} %{1} \"literal text\" %timeout=${var1}"));
+		}
+
+		// warm up
+		for (Command cmd : commands) {
+			legacySubstitute(cmd, "Input", "name", "EnterText", args, vars);
+			cmd.substitute("Input", "name", "EnterText", args, vars);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			for (Command cmd : commands) {
+				legacySubstitute(cmd, "Input", "name", "EnterText", args, vars);
+			}
+		}
+		long legacy = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			for (Command cmd : commands) {
+				cmd.substitute("Input", "name", "EnterText", args, vars);
+			}
+		}
+		long templates = System.nanoTime() - start;
+
+		System.out.println("substitution benchmark: regex " + (legacy / 1000000) + "ms, templates "
+				+ (templates / 1000000) + "ms");
+		assertThat(templates < legacy, is(true));
+	}
+
+	private void assertConforms(Command cmd, String componentType, String monkeyId,
+			String action, List<String> args, Map<String, String> vars) {
+		Command expected = legacySubstitute(cmd, componentType, monkeyId, action, args, vars);
+		Command actual = cmd.substitute(componentType, monkeyId, action, args, vars);
+		String msg = cmd.getCommand() + " / " + args + " / " + vars;
+		assertThat(msg, actual.getComponentType(), is(expected.getComponentType()));
+		assertThat(msg, actual.getMonkeyId(), is(expected.getMonkeyId()));
+		assertThat(msg, actual.getAction(), is(expected.getAction()));
+		assertThat(msg, actual.getArgs(), is(expected.getArgs()));
+		assertThat(msg, actual.getModifiers(), is(expected.getModifiers()));
+		assertThat(msg, actual.getCommand(), is(expected.getCommand()));
+	}
+
+	private String randomString(Random rand) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = rand.nextInt(6); i > 0; i--) {
+			sb.append(PIECES[rand.nextInt(PIECES.length)]);
+		}
+		return sb.toString();
+	}
+
+	private String randomValue(Random rand) {
+		return VALUES[rand.nextInt(VALUES.length)];
+	}
+
+	private Map<String, String> vars(String... namesAndValues) {
+		Map<String, String> vars = new LinkedHashMap<String, String>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			vars.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return vars;
+	}
+
+	/**
+	 * The original substitution, straight regex replaces one after the other.
+	 */
+	private Command legacySubstitute(Command cmd, String componentType, String monkeyId,
+			String action, List<String> args, Map<String, String> variables) {
+		List<String> newArgs = new ArrayList<String>();
+		for (String arg : cmd.getArgs()) {
+			newArgs.add(legacySubstituteString(arg, componentType, monkeyId, action, args,
+					variables));
+		}
+		Map<String, String> newModifiers = new HashMap<String, String>();
+		for (Map.Entry<String, String> mod : cmd.getModifiers().entrySet()) {
+			newModifiers.put(mod.getKey(), legacySubstituteString(mod.getValue(), componentType,
+					monkeyId, action, args, variables));
+		}
+		return new Command(legacySubstituteString(cmd.getComponentType(), componentType,
+				monkeyId, action, args, variables), legacySubstituteString(cmd.getMonkeyId(),
+				componentType, monkeyId, action, args, variables), legacySubstituteString(
+				cmd.getAction(), componentType, monkeyId, action, args, variables), newArgs,
+				newModifiers);
+	}
+
+	private String legacySubstituteString(String s, String componentType, String monkeyId,
+			String action, List<String> args, Map<String, String> variables) {
+		if (s == null) {
+			return null;
+		}
+		if (componentType != null) {
+			s = s.replaceAll("\\%\\{componentType\\}", Matcher.quoteReplacement(componentType));
+		}
+		if (monkeyId != null) {
+			s = s.replaceAll("\\%\\{monkeyId\\}", Matcher.quoteReplacement(monkeyId));
+		}
+		if (action != null) {
+			s = s.replaceAll("\\%\\{action\\}", Matcher.quoteReplacement(action));
+		}
+		if (args != null) {
+			for (int i = 0; i < args.size(); i++) {
+				String target = "\\%\\{" + (i + 1) + "\\}";
+				s = s.replaceAll(target, Matcher.quoteReplacement(args.get(i)));
+			}
+		}
+		if (variables != null) {
+			for (Map.Entry<String, String> var : variables.entrySet()) {
+				String target = "\\$\\{" + var.getKey() + "\\}";
+				s = s.replaceAll(target, Matcher.quoteReplacement(var.getValue()));
+			}
+		}
+		return s;
+	}
+}
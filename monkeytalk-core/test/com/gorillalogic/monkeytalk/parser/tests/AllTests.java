@@ -21,6 +21,6 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ ParserTest.class, FileParserTest.class, CSVParserTest.class,
-		CSVFileParserTest.class })
+		CSVFileParserTest.class, CSVDataTest.class, TokenizerConformanceTest.class })
 public class AllTests {
 }
\ No newline at end of file
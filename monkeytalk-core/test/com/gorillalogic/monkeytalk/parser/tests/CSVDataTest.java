@@ -0,0 +1,217 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.parser.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.parser.CSVData;
+import com.gorillalogic.monkeytalk.parser.CSVParser;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class CSVDataTest extends TestHelper {
+	private static final String ALPHABET = "ab ,\"\\\t";
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		File f = tempScript("data.csv", "first,last,zip\r\nBo,Bixby,12345\n\n"
+				+ "\"Charlie Chaplin\",\"Mc \\\"Q\\\"\"\rDale", tempDir());
+		CSVData data = CSVParser.streamFile(f);
+
+		assertThat(data, notNullValue());
+		assertThat(data.getHeaders().length, is(3));
+		assertThat(data.isEmpty(), is(false));
+		assertThat(data.size(), is(3));
+
+		Iterator<Map<String, String>> it = data.iterator();
+		Map<String, String> row = it.next();
+		assertThat(row.toString(), is("{first=Bo, last=Bixby, zip=12345}"));
+		row = it.next();
+		assertThat(row.get("first"), is("Charlie Chaplin"));
+		assertThat(row.get("last"), is("Mc \\\"Q\\\""));
+		assertThat(row.get("zip"), nullValue());
+		assertThat(row.containsKey("zip"), is(true));
+		row = it.next();
+		assertThat(row.toString(), is("{first=Dale, last=null, zip=null}"));
+		assertThat(it.hasNext(), is(false));
+
+		// iterating again starts over
+		assertThat(data.iterator().next().get("first"), is("Bo"));
+	}
+
+	@Test
+	public void testMatchesParseFile() throws IOException {
+		File f = tempScript("data.csv", "a,b,a\n1,2,3,4\n\n  x  ,  \" y \"  \n\"unterminated\n",
+				tempDir());
+		List<Map<String, String>> list = CSVParser.parseFile(f);
+		List<Map<String, String>> expected = new ArrayList<Map<String, String>>();
+		expected.add(map("a", "3", "b", "2"));
+		expected.add(map("a", null, "b", " y "));
+		expected.add(map("a", null, "b", null));
+		assertThat(list, is(expected));
+		assertThat(list.get(0).toString(), is("{a=3, b=2}"));
+
+		List<Map<String, String>> withBlanks = CSVParser.parseFile(f, false);
+		assertThat(withBlanks.size(), is(4));
+		assertThat(CSVParser.streamFile(f, false).size(), is(4));
+	}
+
+	@Test
+	public void testRowIsModifiable() throws IOException {
+		File f = tempScript("data.csv", "first,last\nBo,Bixby\n", tempDir());
+		CSVData data = CSVParser.streamFile(f);
+
+		Map<String, String> row = data.iterator().next();
+		row.put("first", "Joe");
+		row.put("middle", "J");
+		assertThat(row.toString(), is("{first=Joe, last=Bixby, middle=J}"));
+		assertThat(data.iterator().next().get("first"), is("Bo"));
+	}
+
+	@Test
+	public void testMissingAndEmpty() throws IOException {
+		File dir = tempDir();
+		assertThat(CSVParser.streamFile(null), nullValue());
+		assertThat(CSVParser.streamFile(new File(dir, "missing.csv")), nullValue());
+		assertThat(CSVParser.streamFile(tempScript("empty.csv", "", dir)), nullValue());
+		assertThat(CSVParser.streamFile(tempScript("blank.csv", "\n", dir)), nullValue());
+
+		CSVData data = CSVParser.streamFile(tempScript("header.csv", "first,last", dir));
+		assertThat(data.isEmpty(), is(true));
+		assertThat(data.size(), is(0));
+	}
+
+	@Test
+	public void testTokenizerMatchesRegex() {
+		Random rand = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = rand.nextInt(20);
+			for (int j = 0; j < len; j++) {
+				sb.append(ALPHABET.charAt(rand.nextInt(ALPHABET.length())));
+			}
+			String in = sb.toString();
+			assertThat(in, CSVParser.parse(in), is(RegexTokenizer.parse(in)));
+		}
+	}
+
+	@Test
+	public void testBigFile() throws IOException {
+		File f = new File(tempDir(), "big.csv");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		int rows = 100000;
+		try {
+			out.write("id,first,last,email,city\n");
+			for (int i = 0; i < rows; i++) {
+				out.write(i + ",First" + i + ",\"Last " + i + "\",user" + i
+						+ "@example.com,Boulder\n");
+			}
+		} finally {
+			out.close();
+		}
+		assertThat(f.length() > CSVData.MAP_THRESHOLD, is(true));
+
+		long start = System.currentTimeMillis();
+		CSVData data = CSVParser.streamFile(f);
+		int count = 0;
+		for (Map<String, String> row : data) {
+			if (count == 99999) {
+				assertThat(row.get("last"), is("Last 99999"));
+				assertThat(row.get("city"), is("Boulder"));
+			}
+			count++;
+		}
+		long stream = System.currentTimeMillis() - start;
+		assertThat(count, is(rows));
+		assertThat(data.size(), is(rows));
+
+		// heap retained by the fully materialized data, for comparison
+		long used = usedHeap();
+		List<Map<String, String>> list = CSVParser.parseFile(f);
+		long materialized = (usedHeap() - used) / 1024;
+		assertThat(list.size(), is(rows));
+
+		System.out.println("CSVData benchmark: " + rows + " rows, " + f.length() / 1024
+				+ "KB, stream=" + stream + "ms, parseFile retains ~" + materialized + "KB heap");
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static Map<String, String> map(String... keyVals) {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < keyVals.length; i += 2) {
+			map.put(keyVals[i], keyVals[i + 1]);
+		}
+		return map;
+	}
+
+	/**
+	 * The original regex-based CSV tokenizer, kept as the reference implementation.
+	 */
+	private static class RegexTokenizer {
+		private static final String CRAZY = "\u21D0\u21D1\u21D2\u21D3\u21D5\u21D4\u21DD\u21DC";
+
+		private static final Pattern regex = Pattern.compile("([^\\s,\"]+)|\"([^\"]*)\"|\\s*,\\s*");
+
+		public static List<String> parse(String csv) {
+			List<String> tokens = new ArrayList<String>();
+			csv = csv.trim().replaceAll("\\\\\"", CRAZY);
+
+			Matcher regexMatcher = regex.matcher(csv);
+			while (regexMatcher.find()) {
+				String token = regexMatcher.group().trim();
+				if (regexMatcher.group(1) != null || regexMatcher.group(2) != null) {
+					if (token.startsWith("\"") && token.endsWith("\"")) {
+						token = token.substring(1, token.length() - 1);
+					}
+					tokens.add(token.replaceAll(CRAZY, "\\\\\""));
+				}
+			}
+			return tokens;
+		}
+	}
+}
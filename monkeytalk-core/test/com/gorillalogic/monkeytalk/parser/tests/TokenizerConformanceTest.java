@@ -0,0 +1,148 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.parser.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.parser.MonkeyTalkParser;
+
+/**
+ * Check the {@link MonkeyTalkParser#parse(String)} tokenizer against the golden tokens produced by
+ * the original regex-based tokenizer, and against that tokenizer itself on random input.
+ */
+public class TokenizerConformanceTest {
+	private static final String GOLDEN = "resources/test/tokens.golden";
+	private static final String ALPHABET = "ab %=\"\\\t#";
+
+	@Test
+	public void testGolden() throws IOException, JSONException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+				GOLDEN), "UTF-8"));
+		int count = 0;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				JSONObject json = new JSONObject(line);
+				String in = json.getString("in");
+				JSONArray tokens = json.getJSONArray("tokens");
+
+				List<String> expected = new ArrayList<String>();
+				for (int i = 0; i < tokens.length(); i++) {
+					expected.add(tokens.getString(i));
+				}
+				assertThat(in, MonkeyTalkParser.parse(in), is(expected));
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		assertThat(count > 200, is(true));
+	}
+
+	@Test
+	public void testRandom() {
+		Random rand = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = rand.nextInt(20);
+			for (int j = 0; j < len; j++) {
+				sb.append(ALPHABET.charAt(rand.nextInt(ALPHABET.length())));
+			}
+			String in = sb.toString();
+			assertThat(in, MonkeyTalkParser.parse(in), is(RegexTokenizer.parse(in)));
+		}
+	}
+
+	@Test
+	public void testBenchmark() {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			lines.add("Input name" + i + " EnterText \"some \\\"quoted\\\" text " + i
+					+ "\" ${var} %timeout=2000 %thinktime=\"500\"");
+			lines.add("Button OK" + i + " Tap");
+			lines.add("Vars * Define first=Bo last=\"Smith " + i + "\"");
+		}
+		int iterations = 20;
+
+		// warmup
+		for (String line : lines) {
+			RegexTokenizer.parse(line);
+			MonkeyTalkParser.parse(line);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (String line : lines) {
+				RegexTokenizer.parse(line);
+			}
+		}
+		long before = (System.nanoTime() - start) / 1000000;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (String line : lines) {
+				MonkeyTalkParser.parse(line);
+			}
+		}
+		long after = (System.nanoTime() - start) / 1000000;
+
+		System.out.println("Tokenizer benchmark: " + lines.size() + " lines x" + iterations
+				+ " (ms) regex=" + before + " scanner=" + after);
+		assertThat(after <= before * 2, is(true));
+	}
+
+	/**
+	 * The original regex-based tokenizer, kept as the reference implementation.
+	 */
+	private static class RegexTokenizer {
+		private static final String CRAZY = "\u21D0\u21D1\u21D2\u21D3\u21D5\u21D4\u21DD\u21DC";
+
+		private static final Pattern TOKEN = Pattern
+				.compile("[^\\s\"=]+=\"[^\"]*\"|[^\\s\"]+|\"[^\"]*\"");
+
+		public static List<String> parse(String command) {
+			List<String> tokens = new ArrayList<String>();
+			command = command.trim();
+
+			if (command.startsWith("#")) {
+				tokens.add(command);
+			} else {
+				command = command.replaceAll("\\\\\"", CRAZY);
+				Matcher tokenMatcher = TOKEN.matcher(command);
+				while (tokenMatcher.find()) {
+					tokens.add(tokenMatcher.group().replaceAll(CRAZY, "\\\\\""));
+				}
+			}
+			return tokens;
+		}
+	}
+}
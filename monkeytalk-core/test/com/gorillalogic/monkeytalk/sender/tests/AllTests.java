@@ -20,6 +20,8 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ ResponseTest.class, SenderTest.class, CommandSenderTest.class })
+@SuiteClasses({ ResponseTest.class, SenderTest.class, CommandSenderTest.class,
+		PooledCommandSenderTest.class, BatchCommandSenderTest.class,
+		AsyncCommandSenderTest.class, BinaryScreenshotTest.class })
 public class AllTests {
 }
\ No newline at end of file
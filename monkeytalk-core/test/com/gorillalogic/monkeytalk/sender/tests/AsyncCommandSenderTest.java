@@ -0,0 +1,215 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.sender.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+
+public class AsyncCommandSenderTest {
+	private static final int PORT = 18020;
+	private static final int AGENTS = 4;
+	private static final int COMMANDS = 10;
+	private static final int AGENT_DELAY = 20;
+	private static List<SlowServer> servers;
+
+	@BeforeClass
+	public static void beforeClass() {
+		servers = new ArrayList<SlowServer>();
+		try {
+			for (int i = 0; i < AGENTS; i++) {
+				servers.add(new SlowServer(PORT + i));
+			}
+		} catch (IOException ex) {
+			fail("server failed to start");
+		}
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		for (SlowServer server : servers) {
+			server.stop();
+		}
+	}
+
+	@Before
+	public void before() {
+		for (SlowServer server : servers) {
+			assertThat(server.isRunning(), is(true));
+			server.played.clear();
+		}
+	}
+
+	@Test
+	public void testPlayAsync() throws Exception {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		Future<Response> future = sender.playAsync(new Command("Button OK Click"));
+		Response resp = future.get();
+
+		assertThat(future.isDone(), is(true));
+		assertThat(resp.getCode(), is(200));
+		assertThat(resp.getStatus(), is(ResponseStatus.OK));
+		assertThat(resp.getMessage(), is("OK"));
+	}
+
+	@Test
+	public void testPlayAsyncToDeadAgent() throws Exception {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", 18019);
+		Response resp = sender.playAsync(new Command("Button OK Click")).get();
+
+		assertThat(resp.getCode(), is(0));
+		assertThat(resp.getStatus(), is(ResponseStatus.ERROR));
+		assertThat(resp.getMessage(), containsString("Unable to send command to"));
+	}
+
+	@Test
+	public void testResponsesAreOrdered() throws Exception {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+
+		List<Future<Response>> futures = new ArrayList<Future<Response>>();
+		for (int i = 0; i < COMMANDS; i++) {
+			futures.add(sender.playAsync(new Command("Button " + i + " Click")));
+		}
+
+		// a plain play waits for the async commands before it
+		assertThat(sender.play(new Command("Button SYNC Click")).getMessage(), is("SYNC"));
+		assertThat(servers.get(0).played.size(), is(COMMANDS + 1));
+		assertThat(servers.get(0).played.get(COMMANDS), is("SYNC"));
+
+		for (int i = 0; i < COMMANDS; i++) {
+			assertThat(futures.get(i).isDone(), is(true));
+			assertThat(futures.get(i).get().getMessage(), is(Integer.toString(i)));
+			assertThat(servers.get(0).played.get(i), is(Integer.toString(i)));
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		Future<Response> future = sender.playAsync(new Command("Button FOO Click"));
+
+		// queued commands still finish, and the sender can be used again
+		sender.close();
+		assertThat(future.get().getMessage(), is("FOO"));
+		assertThat(sender.playAsync(new Command("Button BAR Click")).get().getMessage(),
+				is("BAR"));
+		sender.close();
+	}
+
+	@Test
+	public void testCloseWaitsForQueuedCommands() throws Exception {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		List<Future<Response>> futures = new ArrayList<Future<Response>>();
+		for (int i = 0; i < COMMANDS; i++) {
+			futures.add(sender.playAsync(new Command("Button " + i + " Click")));
+		}
+
+		sender.close();
+		for (int i = 0; i < COMMANDS; i++) {
+			assertThat(futures.get(i).isDone(), is(true));
+			assertThat(futures.get(i).get().getMessage(), is(Integer.toString(i)));
+		}
+		assertThat(servers.get(0).played.size(), is(COMMANDS));
+	}
+
+	@Test
+	public void testThroughputWithSeveralAgents() throws Exception {
+		List<CommandSender> senders = new ArrayList<CommandSender>();
+		for (int i = 0; i < AGENTS; i++) {
+			senders.add(CommandSenderFactory.createCommandSender("localhost", PORT + i));
+		}
+
+		// before: play every command on every agent one at a time
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < COMMANDS; i++) {
+			for (CommandSender sender : senders) {
+				assertThat(sender.play(new Command("Button " + i + " Click")).getStatus(),
+						is(ResponseStatus.OK));
+			}
+		}
+		long before = System.currentTimeMillis() - start;
+
+		// after: keep all agents busy at once
+		start = System.currentTimeMillis();
+		List<Future<Response>> futures = new ArrayList<Future<Response>>();
+		for (int i = 0; i < COMMANDS; i++) {
+			for (CommandSender sender : senders) {
+				futures.add(sender.playAsync(new Command("Button " + i + " Click")));
+			}
+		}
+		for (Future<Response> future : futures) {
+			assertThat(future.get().getStatus(), is(ResponseStatus.OK));
+		}
+		long after = System.currentTimeMillis() - start;
+
+		for (SlowServer server : servers) {
+			assertThat(server.played.size(), is(COMMANDS * 2));
+			for (int i = 0; i < COMMANDS; i++) {
+				assertThat(server.played.get(COMMANDS + i), is(Integer.toString(i)));
+			}
+		}
+
+		System.out.println("AsyncCommandSender benchmark: " + AGENTS + " agents x " + COMMANDS
+				+ " commands, total (ms): before=" + before + " after=" + after);
+		assertThat(after < before, is(true));
+	}
+
+	/**
+	 * Extend {@link JsonServer} to act like a slow agent that takes a while to play each command,
+	 * and returns the {@code monkeyId} as the message.
+	 */
+	private static class SlowServer extends JsonServer {
+		private List<String> played = Collections.synchronizedList(new ArrayList<String>());
+
+		public SlowServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			String monkeyId = json.optString("monkeyId");
+			played.add(monkeyId);
+			try {
+				Thread.sleep(AGENT_DELAY);
+			} catch (InterruptedException ex) {
+				// ignore
+			}
+			return new Response(HttpStatus.OK, "{result:\"OK\",message:\"" + monkeyId + "\"}");
+		}
+	}
+}
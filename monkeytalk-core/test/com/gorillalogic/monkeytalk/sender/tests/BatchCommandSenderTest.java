@@ -0,0 +1,211 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.sender.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+
+public class BatchCommandSenderTest {
+	private static final int PORT = 18015;
+	private static final int OLD_AGENT_PORT = 18016;
+	private static BatchServer server;
+	private static OldAgentServer oldAgentServer;
+	private CommandSender commandSender;
+
+	@BeforeClass
+	public static void beforeClass() {
+		try {
+			server = new BatchServer(PORT);
+			oldAgentServer = new OldAgentServer(OLD_AGENT_PORT);
+		} catch (IOException ex) {
+			fail("server failed to start");
+		}
+		System.out.println("server running on " + server.getPort() + "...");
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		server.stop();
+		oldAgentServer.stop();
+		System.out.println("server stopped on " + server.getPort() + "...");
+	}
+
+	@Before
+	public void before() {
+		assertThat(server.isRunning(), is(true));
+		server.played.clear();
+		commandSender = CommandSenderFactory.createCommandSender("localhost", PORT);
+	}
+
+	@Test
+	public void testIsSendable() {
+		assertThat(commandSender.isSendable(new Command("Button OK Click")), is(true));
+		assertThat(commandSender.isSendable(new Command("# comment")), is(false));
+		assertThat(commandSender.isSendable(new Command("Doc * Vars")), is(false));
+		assertThat(commandSender.isSendable(null), is(false));
+	}
+
+	@Test
+	public void testPlayBatch() throws JSONException {
+		List<Response> responses = commandSender.playBatch(commands("Button OK Click",
+				"Input name EnterText \"Bo Bo\"", "Label msg Verify Hi"));
+
+		assertThat(responses, notNullValue());
+		assertThat(responses.size(), is(3));
+		for (Response resp : responses) {
+			assertThat(resp.getCode(), is(200));
+			assertThat(resp.getStatus(), is(ResponseStatus.OK));
+		}
+		assertThat(responses.get(1).getMessage(), is("name"));
+
+		assertThat(server.played.size(), is(3));
+		assertThat(server.played.get(0).getString("mtcommand"), is(CommandSender.PLAY));
+		assertThat(server.played.get(1).getJSONArray("args").getString(0), is("Bo Bo"));
+		assertThat(server.played.get(2).getString("action"), is("Verify"));
+	}
+
+	@Test
+	public void testPlayBatchStopsOnFailure() {
+		List<Response> responses = commandSender.playBatch(commands("Button OK Click",
+				"Button fred Click", "Button OK Click"));
+
+		assertThat(responses.size(), is(2));
+		assertThat(responses.get(0).getStatus(), is(ResponseStatus.OK));
+		assertThat(responses.get(1).getStatus(), is(ResponseStatus.FAILURE));
+		assertThat(responses.get(1).getMessage(), is("fail on fred"));
+		assertThat(server.played.size(), is(2));
+	}
+
+	@Test
+	public void testPlayBatchStopsOnError() {
+		List<Response> responses = commandSender.playBatch(commands("Button joe Click",
+				"Button OK Click"));
+
+		assertThat(responses.size(), is(1));
+		assertThat(responses.get(0).getStatus(), is(ResponseStatus.ERROR));
+		assertThat(server.played.size(), is(1));
+	}
+
+	@Test
+	public void testPlayBatchWithAbortModifier() {
+		List<Response> responses = commandSender.playBatch(commands(
+				"Button fred Click %abort=fail", "Button joe Click %abort=error",
+				"Button fred Click %abort=never", "Button joe Click %abort=fail",
+				"Button OK Click"));
+
+		assertThat(responses.size(), is(4));
+		assertThat(responses.get(0).getStatus(), is(ResponseStatus.FAILURE));
+		assertThat(responses.get(1).getStatus(), is(ResponseStatus.ERROR));
+		assertThat(responses.get(2).getStatus(), is(ResponseStatus.FAILURE));
+		assertThat(responses.get(3).getStatus(), is(ResponseStatus.ERROR));
+		assertThat(server.played.size(), is(4));
+	}
+
+	@Test
+	public void testPlayBatchToOldAgent() {
+		commandSender = CommandSenderFactory.createCommandSender("localhost", OLD_AGENT_PORT);
+		assertThat(commandSender.playBatch(commands("Button OK Click", "Button OK Click")),
+				nullValue());
+	}
+
+	@Test
+	public void testPlayBatchToDeadAgent() {
+		commandSender = CommandSenderFactory.createCommandSender("localhost", 18019);
+		assertThat(commandSender.playBatch(commands("Button OK Click", "Button OK Click")),
+				nullValue());
+	}
+
+	private List<Command> commands(String... commands) {
+		List<Command> list = new ArrayList<Command>();
+		for (String cmd : Arrays.asList(commands)) {
+			list.add(new Command(cmd));
+		}
+		return list;
+	}
+
+	/**
+	 * Extend {@link JsonServer} to play single commands: return the {@code monkeyId} as the
+	 * message, fail on Fred, and error on Joe.
+	 */
+	private static class BatchServer extends JsonServer {
+		private List<JSONObject> played = new ArrayList<JSONObject>();
+
+		public BatchServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			played.add(json);
+			String monkeyId = json.optString("monkeyId");
+			if ("fred".equals(monkeyId)) {
+				return new Response(HttpStatus.OK, "{result:\"FAILURE\",message:\"fail on fred\"}");
+			} else if ("joe".equals(monkeyId)) {
+				return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"error on joe\"}");
+			}
+			return new Response(HttpStatus.OK, "{result:\"OK\",message:\"" + monkeyId + "\"}");
+		}
+	}
+
+	/**
+	 * Extend {@link JsonServer} to act like an old agent that doesn't know about batches, and so
+	 * errors on any unknown {@code mtcommand}.
+	 */
+	private static class OldAgentServer extends JsonServer {
+
+		public OldAgentServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers, String body) {
+			try {
+				String mtcommand = new JSONObject(body).optString("mtcommand");
+				if (!CommandSender.PLAY.equals(mtcommand)) {
+					return new Response(HttpStatus.OK,
+							"{result:\"ERROR\",message:\"unknown mtcommand=" + mtcommand + "\"}");
+				}
+			} catch (JSONException ex) {
+				// fall through
+			}
+			return super.serve(uri, method, headers, body);
+		}
+	}
+}
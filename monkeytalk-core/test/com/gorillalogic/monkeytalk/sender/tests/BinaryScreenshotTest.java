@@ -0,0 +1,228 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.sender.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+import com.gorillalogic.monkeytalk.utils.Base64;
+
+public class BinaryScreenshotTest {
+	private static final int PORT = 18030;
+	private static final String IMAGE = "resources/test/base.png";
+	private static final String AFTER_IMAGE = "resources/test/gorilla.png";
+	private static ScreenshotServer server;
+	private static byte[] png;
+	private static byte[] afterPng;
+
+	@BeforeClass
+	public static void beforeClass() throws IOException {
+		png = readAll(new FileInputStream(IMAGE));
+		afterPng = readAll(new FileInputStream(AFTER_IMAGE));
+		try {
+			server = new ScreenshotServer(PORT);
+		} catch (IOException ex) {
+			fail("server failed to start");
+		}
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		server.stop();
+	}
+
+	@Test
+	public void testRawScreenshot() throws IOException {
+		assertBinaryScreenshot(CommandSenderFactory.createCommandSender("localhost", PORT),
+				"raw");
+	}
+
+	@Test
+	public void testRawScreenshotWithPooledSender() throws IOException {
+		assertBinaryScreenshot(CommandSenderFactory.createCommandSender(
+				CommandSenderFactory.POOLED, "localhost", PORT, null), "raw");
+	}
+
+	@Test
+	public void testBase64Screenshot() throws IOException {
+		Response resp = assertBinaryScreenshot(
+				CommandSenderFactory.createCommandSender("localhost", PORT), "base64");
+		assertThat(resp.getMessage(), is("some msg"));
+		assertThat(resp.getBody(), containsString("some msg"));
+		assertThat(resp.getBody().contains("iVBOR"), is(false));
+	}
+
+	@Test
+	public void testRawAfterScreenshot() throws IOException {
+		assertBinaryAfterScreenshot(assertBinaryScreenshot(
+				CommandSenderFactory.createCommandSender("localhost", PORT), "rawafter"));
+	}
+
+	@Test
+	public void testBase64AfterScreenshot() throws IOException {
+		Response resp = assertBinaryScreenshot(
+				CommandSenderFactory.createCommandSender("localhost", PORT), "base64after");
+		assertBinaryAfterScreenshot(resp);
+		assertThat(resp.getMessage(), is("some msg"));
+		assertThat(resp.getBody().contains("iVBOR"), is(false));
+	}
+
+	@Test
+	public void testNoScreenshot() {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		Response resp = sender.play(new Command("Button none Tap"));
+
+		assertThat(resp.getStatus(), is(ResponseStatus.OK));
+		assertThat(resp.isBinaryImage(), is(false));
+		assertThat(resp.getImage(), nullValue());
+		assertThat(resp.getImageStream(), nullValue());
+	}
+
+	@Test
+	public void testFallbackToBase64WithoutAccept() throws Exception {
+		String body = "{\"monkeyId\":\"raw\"}";
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("POST /fonemonkey HTTP/1.0\r\nContent-Type: application/json\r\n"
+					+ "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes("UTF-8"));
+			out.flush();
+
+			String resp = new String(readAll(socket.getInputStream()), "UTF-8");
+			assertThat(resp, containsString("Content-Type: application/json"));
+			JSONObject json = new JSONObject(resp.substring(resp.indexOf("\r\n\r\n") + 4));
+			assertThat(json.getString("screenshot"), is(Base64.encodeBytes(png)));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testAfterFallbackToBase64WithoutAccept() throws Exception {
+		String body = "{\"monkeyId\":\"rawafter\"}";
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("POST /fonemonkey HTTP/1.0\r\nContent-Type: application/json\r\n"
+					+ "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes("UTF-8"));
+			out.flush();
+
+			String resp = new String(readAll(socket.getInputStream()), "UTF-8");
+			assertThat(resp, containsString("Content-Type: application/json"));
+			JSONObject json = new JSONObject(resp.substring(resp.indexOf("\r\n\r\n") + 4));
+			assertThat(json.getString("screenshot"), is(Base64.encodeBytes(png)));
+			assertThat(json.getString("afterImage"), is(Base64.encodeBytes(afterPng)));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private Response assertBinaryScreenshot(CommandSender sender, String monkeyId)
+			throws IOException {
+		Response resp = sender.play(new Command("Button " + monkeyId + " Tap"));
+
+		assertThat(resp.getCode(), is(200));
+		assertThat(resp.getStatus(), is(ResponseStatus.OK));
+		assertThat(resp.isBinaryImage(), is(true));
+		assertThat(resp.getImageFile(), notNullValue());
+		assertThat(Arrays.equals(readAll(new FileInputStream(resp.getImageFile())), png),
+				is(true));
+		assertThat(Arrays.equals(readAll(resp.getImageStream()), png), is(true));
+		assertThat(resp.getImage(), is(Base64.encodeBytes(png)));
+		return resp;
+	}
+
+	private void assertBinaryAfterScreenshot(Response resp) throws IOException {
+		assertThat(resp.getAfterImageFile(), notNullValue());
+		assertThat(Arrays.equals(readAll(new FileInputStream(resp.getAfterImageFile())),
+				afterPng), is(true));
+		assertThat(resp.getAfterImage(), is(Base64.encodeBytes(afterPng)));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Extend {@link JsonServer} to act like an agent that takes a screenshot: {@code raw} returns
+	 * the raw image bytes, {@code base64} returns the image base64 encoded inside the JSON message
+	 * (like the agents do for screenshot on error), {@code rawafter} and {@code base64after} do the
+	 * same plus an after screenshot, and anything else returns no screenshot.
+	 */
+	private static class ScreenshotServer extends JsonServer {
+
+		public ScreenshotServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			String monkeyId = json.optString("monkeyId");
+			if ("raw".equals(monkeyId)) {
+				return new Response(HttpStatus.OK, "{result:\"OK\"}", null, png);
+			} else if ("rawafter".equals(monkeyId)) {
+				Response resp = new Response(HttpStatus.OK, "{result:\"OK\"}", null, png);
+				resp.setAfterImage(afterPng);
+				return resp;
+			} else if ("base64after".equals(monkeyId)) {
+				return new Response(HttpStatus.OK,
+						"{result:\"OK\",message:{message:\"some msg\",screenshot:\""
+								+ Base64.encodeBytes(png) + "\"},afterImage:\""
+								+ Base64.encodeBytes(afterPng) + "\"}");
+			} else if ("base64".equals(monkeyId)) {
+				return new Response(HttpStatus.OK,
+						"{result:\"OK\",message:{message:\"some msg\",screenshot:\""
+								+ Base64.encodeBytes(png) + "\"}}");
+			}
+			return new Response(HttpStatus.OK, "{result:\"OK\"}");
+		}
+	}
+}
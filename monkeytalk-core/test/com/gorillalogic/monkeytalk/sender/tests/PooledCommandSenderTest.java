@@ -0,0 +1,421 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.sender.tests;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.agents.MTAgent;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.sender.ConnectionPool;
+import com.gorillalogic.monkeytalk.sender.PooledCommandSender;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+
+public class PooledCommandSenderTest {
+	private static final int PORT = 18013;
+	private static final int KEEP_ALIVE_PORT = 18014;
+	private static final int BENCHMARK_ITERATIONS = 200;
+	private static JsonServer server;
+	private static KeepAliveServer keepAliveServer;
+	private ConnectionPool pool;
+
+	@BeforeClass
+	public static void beforeClass() {
+		try {
+			server = new JsonServer(PORT);
+			keepAliveServer = new KeepAliveServer(KEEP_ALIVE_PORT);
+		} catch (IOException ex) {
+			fail("server failed to start");
+		}
+		System.out.println("server running on " + server.getPort() + "...");
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		server.stop();
+		keepAliveServer.stop();
+		System.out.println("server stopped on " + server.getPort() + "...");
+	}
+
+	@Before
+	public void before() {
+		assertThat(server.isRunning(), is(true));
+		pool = new ConnectionPool();
+	}
+
+	@Test
+	public void testFactory() {
+		CommandSender sender = CommandSenderFactory.createCommandSender(
+				CommandSenderFactory.POOLED, "localhost", 1234, "/foo");
+		assertThat(sender, instanceOf(PooledCommandSender.class));
+		assertThat(sender.toString(), containsString("http://localhost:1234/foo"));
+	}
+
+	@Test
+	public void testSendPlay() throws JSONException {
+		PooledCommandSender sender = createSender(PORT);
+		Command cmd = new Command("Button OK Click");
+		Response resp = sender.play(cmd);
+
+		assertThat(resp, notNullValue());
+		assertThat(resp.getCode(), is(200));
+
+		JSONObject body = resp.getBodyAsJSON();
+		assertThat(body, notNullValue());
+		assertThat(body.getString("result"), is("OK"));
+
+		JSONObject message = body.getJSONObject("message");
+		assertThat(message.getString("uri"), is("/fonemonkey"));
+		assertThat(message.getString("method"), is("POST"));
+
+		JSONObject echo = message.getJSONObject("body");
+		assertThat(echo.getString("componentType"), is("Button"));
+		assertThat(echo.getString("monkeyId"), is("OK"));
+		assertThat(echo.getString("action"), is("Click"));
+		assertThat(echo.getString("mtcommand"), is(CommandSender.PLAY));
+	}
+
+	@Test
+	public void testSendPlayWithUnicode() throws JSONException {
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		Response resp = sender.play(new Command("Button Héìíô⇐⇑ Click"));
+
+		assertThat(resp.getCode(), is(200));
+		assertThat(resp.getStatus(), is(ResponseStatus.OK));
+		assertThat(resp.getMessage(), containsString("Héìíô⇐⇑"));
+	}
+
+	@Test
+	public void testJsonServerIsPooled() {
+		PooledCommandSender sender = createSender(PORT);
+		for (int i = 0; i < 3; i++) {
+			assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		}
+		assertThat(pool.getCreatedCount(), is(1));
+		assertThat(pool.getReusedCount(), is(2));
+		assertThat(pool.getIdleCount("localhost", PORT), is(1));
+	}
+
+	@Test
+	public void testNonKeepAliveServerIsNotPooled() {
+		keepAliveServer.keepAlive = false;
+		try {
+			PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+			for (int i = 0; i < 3; i++) {
+				assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+			}
+			assertThat(pool.getCreatedCount(), is(3));
+			assertThat(pool.getReusedCount(), is(0));
+			assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(0));
+		} finally {
+			keepAliveServer.keepAlive = true;
+		}
+	}
+
+	@Test
+	public void testKeepAliveServerIsPooled() {
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		for (int i = 0; i < 10; i++) {
+			assertThat(sender.play(new Command("Button OK Click")).getStatus(),
+					is(ResponseStatus.OK));
+		}
+		assertThat(pool.getCreatedCount(), is(1));
+		assertThat(pool.getReusedCount(), is(9));
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(1));
+		pool.closeAll();
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(0));
+	}
+
+	@Test
+	public void testStaleConnection() throws Exception {
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(1));
+
+		// agent side hangs up on the pooled connection
+		keepAliveServer.dropConnections();
+		Thread.sleep(100);
+
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(pool.getCreatedCount(), is(2));
+		assertThat(pool.getReusedCount(), is(0));
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		pool.setIdleTimeout(50);
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(1));
+
+		Thread.sleep(100);
+		pool.evictIdle();
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(0));
+	}
+
+	@Test
+	public void testBackgroundEviction() throws Exception {
+		pool.setIdleTimeout(50);
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(1));
+
+		Thread.sleep(300);
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(0));
+	}
+
+	@Test
+	public void testRetryOnlyIdempotent() throws Exception {
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+
+		// agent hangs up after reading a tap on the pooled connection, so don't tap twice
+		keepAliveServer.hangUp = true;
+		int requests = keepAliveServer.requests.get();
+		assertThat(sender.play(new Command("Button OK Tap")).getStatus(),
+				is(ResponseStatus.ERROR));
+		assertThat(keepAliveServer.requests.get() - requests, is(1));
+
+		// but a ping is just sent again
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		keepAliveServer.hangUp = true;
+		requests = keepAliveServer.requests.get();
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(keepAliveServer.requests.get() - requests, is(2));
+
+		assertThat(sender.isIdempotent(new Command("Device * Screenshot").getCommandAsJSON()
+				.put("mtcommand", CommandSender.PLAY).toString()), is(true));
+	}
+
+	@Test
+	public void testAgentKeepAlive() {
+		MTAgent agent = new MTAgent("localhost", KEEP_ALIVE_PORT);
+		assertThat(agent.getCommandSender(), not(instanceOf(PooledCommandSender.class)));
+
+		agent.setProperty(MTAgent.KEEP_ALIVE_PROP, "true");
+		assertThat(agent.getCommandSender(), instanceOf(PooledCommandSender.class));
+		assertThat(agent.getCommandSender().ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(ConnectionPool.getDefault().getIdleCount("localhost", KEEP_ALIVE_PORT), is(1));
+
+		// closing the agent closes its pooled connections
+		agent.close();
+		assertThat(ConnectionPool.getDefault().getIdleCount("localhost", KEEP_ALIVE_PORT), is(0));
+	}
+
+	@Test
+	public void testMaxPerAgent() throws Exception {
+		pool.setMaxPerAgent("localhost", KEEP_ALIVE_PORT, 0);
+		PooledCommandSender sender = createSender(KEEP_ALIVE_PORT);
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(sender.ping(false).getStatus(), is(ResponseStatus.OK));
+		assertThat(pool.getIdleCount("localhost", KEEP_ALIVE_PORT), is(0));
+		assertThat(pool.getCreatedCount(), is(2));
+	}
+
+	@Test
+	public void testSendToDeadAgent() {
+		PooledCommandSender sender = createSender(18019);
+		Response resp = sender.ping(false);
+		assertThat(resp.getCode(), is(0));
+		assertThat(resp.getStatus(), is(ResponseStatus.ERROR));
+		assertThat(resp.getMessage(), containsString("Unable to send command to"));
+	}
+
+	@Test
+	public void testLatencyBenchmark() {
+		// before: fresh connection per command, after: pooled keep-alive connection
+		long before = benchmark(CommandSenderFactory.createCommandSender("localhost",
+				KEEP_ALIVE_PORT));
+		long after = benchmark(createSender(KEEP_ALIVE_PORT));
+		assertThat(pool.getReusedCount() >= BENCHMARK_ITERATIONS, is(true));
+		long jsonServer = benchmark(createSender(PORT));
+
+		System.out.println("PooledCommandSender benchmark: " + BENCHMARK_ITERATIONS
+				+ " commands, avg latency (us): before=" + before + " after=" + after
+				+ " jsonServer=" + jsonServer);
+	}
+
+	private long benchmark(CommandSender sender) {
+		Command cmd = new Command("Button OK Click");
+		// warm up
+		for (int i = 0; i < 20; i++) {
+			sender.play(cmd);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+			assertThat(sender.play(cmd).getStatus(), is(ResponseStatus.OK));
+		}
+		return (System.nanoTime() - start) / BENCHMARK_ITERATIONS / 1000;
+	}
+
+	private PooledCommandSender createSender(int port) {
+		PooledCommandSender sender = (PooledCommandSender) CommandSenderFactory
+				.createCommandSender(CommandSenderFactory.POOLED, "localhost", port, null);
+		sender.setConnectionPool(pool);
+		return sender;
+	}
+
+	/**
+	 * Minimal HTTP/1.1 keep-alive agent stub that replies OK to every POST, echoing the body as
+	 * the message.
+	 */
+	private static class KeepAliveServer implements Runnable {
+		private final ServerSocket serverSocket;
+		private final List<Socket> sockets = new ArrayList<Socket>();
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile boolean keepAlive = true;
+		private volatile boolean hangUp;
+
+		public KeepAliveServer(int port) throws IOException {
+			serverSocket = new ServerSocket(port);
+			Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					synchronized (sockets) {
+						sockets.add(socket);
+					}
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							handle(socket);
+						}
+					});
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException ex) {
+				// do nothing
+			}
+		}
+
+		public void dropConnections() throws IOException {
+			synchronized (sockets) {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+				sockets.clear();
+			}
+		}
+
+		public void stop() {
+			try {
+				dropConnections();
+				serverSocket.close();
+			} catch (IOException ex) {
+				// do nothing
+			}
+		}
+
+		private void handle(Socket socket) {
+			try {
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				String line;
+				while ((line = readLine(in)) != null) {
+					int len = 0;
+					while ((line = readLine(in)) != null && line.length() > 0) {
+						if (line.toLowerCase().startsWith("content-length:")) {
+							len = Integer.parseInt(line.substring(15).trim());
+						}
+					}
+					byte[] body = new byte[len];
+					int off = 0;
+					while (off < len) {
+						off += in.read(body, off, len - off);
+					}
+					requests.incrementAndGet();
+					if (hangUp) {
+						// read the request, but hang up without answering
+						hangUp = false;
+						break;
+					}
+
+					JSONObject json = new JSONObject();
+					json.put("result", "OK");
+					json.put("message", new JSONObject(new String(body, "UTF-8")).optString(
+							"monkeyId", "pong"));
+					byte[] resp = json.toString().getBytes("UTF-8");
+					ByteArrayOutputStream buf = new ByteArrayOutputStream();
+					if (keepAlive) {
+						buf.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+								+ "Content-Length: " + resp.length + "\r\n\r\n").getBytes("UTF-8"));
+					} else {
+						// old-school HTTP/1.0 response, where the body ends at EOF
+						buf.write("HTTP/1.0 200 OK\r\nContent-Type: application/json\r\n\r\n"
+								.getBytes("UTF-8"));
+					}
+					buf.write(resp);
+					out.write(buf.toByteArray());
+					out.flush();
+					if (!keepAlive) {
+						break;
+					}
+				}
+			} catch (Exception ex) {
+				// do nothing
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+					// do nothing
+				}
+			}
+		}
+
+		private String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				if (b != '\r') {
+					buf.write(b);
+				}
+			}
+			return (b == -1 && buf.size() == 0 ? null : buf.toString("UTF-8"));
+		}
+	}
+}
@@ -21,6 +21,8 @@ import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 
 import com.gorillalogic.monkeytalk.sender.Response;
@@ -290,4 +292,138 @@ public class ResponseTest {
 		assertThat(r.getWarning(), is("some warn"));
 		assertThat(r.getImage(), is("some img"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testBuilderBodyIsLazy() throws JSONException {
+		Response r = new Response.Builder("some msg").failure().warning("some warn").build();
+		JSONObject json = r.getBodyAsJSON();
+		assertThat(json.getString("result"), is("FAILURE"));
+		assertThat(json.getJSONObject("message").getString("warning"), is("some warn"));
+		assertThat(r.getBody(), containsString("some warn"));
+	}
+
+	@Test
+	public void testBodyIsParsedOnce() {
+		Response r = new Response(200, "{result:\"OK\",message:\"some msg\"}");
+		assertThat(r.getBodyAsJSON() == r.getBodyAsJSON(), is(true));
+	}
+
+	@Test
+	public void testBigScreenshot() throws JSONException {
+		String img = screenshot(20000);
+		String body = "{\"result\":\"FAILURE\",\"message\":{\"message\":\"some msg\","
+				+ "\"screenshot\":\"" + img + "\"}}";
+		Response r = new Response(200, body);
+		assertThat(r.getStatus(), is(ResponseStatus.FAILURE));
+		assertThat(r.getMessage(), is("some msg"));
+		assertThat(r.getImage(), is(img));
+		assertThat(r.getBody(), is(body));
+		assertThat(r.getBodyAsJSON().getJSONObject("message").getString("screenshot"), is(img));
+	}
+
+	@Test
+	public void testBigScreenshotWithEscapedSlash() throws JSONException {
+		String img = screenshot(20000);
+		Response r = new Response(200, "{\"result\":\"OK\",\"screenshot\":\""
+				+ img.replace("/", "\\/") + "\"}");
+		assertThat(r.getStatus(), is(ResponseStatus.OK));
+		assertThat(r.getImage(), is(img));
+		assertThat(r.getBodyAsJSON().getString("screenshot"), is(img));
+	}
+
+	@Test
+	public void testBigAfterImage() throws JSONException {
+		String img = screenshot(20000);
+		String after = screenshot(10000);
+		String body = "{\"result\":\"FAILURE\",\"message\":{\"message\":\"some msg\","
+				+ "\"screenshot\":\"" + img + "\"},\"afterImage\":\"" + after + "\","
+				+ "\"metrics\":\"1,2,3,4\"}";
+		Response r = new Response(200, body);
+		assertThat(r.getStatus(), is(ResponseStatus.FAILURE));
+		assertThat(r.getImage(), is(img));
+		assertThat(r.getAfterImage(), is(after));
+		assertThat(r.getMetrics(), is("1,2,3,4"));
+		assertThat(r.getBodyAsJSON().getString("afterImage"), is(after));
+		assertThat(r.getBodyAsJSON().getJSONObject("message").getString("screenshot"), is(img));
+	}
+
+	@Test
+	public void testBigAfterImageWithLineBreaks() throws JSONException {
+		String after = screenshot(20000);
+		String wrapped = after.substring(0, 76) + "\\n" + after.substring(76);
+		Response r = new Response(200, "{\"result\":\"OK\",\"afterImage\":\"" + wrapped + "\"}");
+		assertThat(r.getStatus(), is(ResponseStatus.OK));
+		assertThat(r.getAfterImage(), is(after));
+		assertThat(r.getBodyAsJSON().getString("afterImage"), is(after));
+	}
+
+	@Test
+	public void testBigBatchWithScreenshots() throws JSONException {
+		String img = screenshot(5000);
+		String body = "{\"result\":\"OK\",\"responses\":[{\"result\":\"OK\",\"screenshot\":\""
+				+ img + "\"},{\"result\":\"OK\",\"screenshot\":\"" + img + "\"}]}";
+		Response r = new Response(200, body);
+		assertThat(r.getStatus(), is(ResponseStatus.OK));
+		assertThat(r.getImage(), nullValue());
+		assertThat(r.getBodyAsJSON().getJSONArray("responses").getJSONObject(1)
+				.getString("screenshot"), is(img));
+	}
+
+	@Test
+	public void testParseBenchmark() throws JSONException {
+		String ok = "{\"result\":\"OK\",\"message\":\"some msg\"}";
+		String failure = "{\"result\":\"FAILURE\",\"message\":{\"message\":\"Expected foo, "
+				+ "but found bar\",\"warning\":\"some warn\"}}";
+		String screenshot = "{\"result\":\"ERROR\",\"message\":{\"message\":\"some msg\","
+				+ "\"screenshot\":\"" + screenshot(200000) + "\"}}";
+
+		StringBuilder sb = new StringBuilder("Response benchmark (ms):");
+		long[] times = null;
+		for (String body : new String[] { ok, failure, screenshot }) {
+			int iterations = (body == screenshot ? 50 : 20000);
+			// warm up, then time it
+			benchmark(body, iterations / 10);
+			times = benchmark(body, iterations);
+			sb.append(" ").append(new JSONObject(body).getString("result")).append(" x")
+					.append(iterations).append(" before=").append(times[0]).append(" after=")
+					.append(times[1]);
+		}
+		System.out.println(sb);
+		assertThat(times[1] < times[0], is(true));
+	}
+
+	/**
+	 * Helper to time the old parse-every-time approach (the constructor parses the body, then each
+	 * {@code getBodyAsJSON()} parses it again), against a new {@link Response} where the body is
+	 * parsed once.
+	 */
+	private long[] benchmark(String body, int iterations) throws JSONException {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < iterations; i++) {
+			for (int j = 0; j < 3; j++) {
+				new JSONObject(body);
+			}
+		}
+		long before = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < iterations; i++) {
+			Response r = new Response(200, body);
+			r.getStatus();
+			r.getMessage();
+			r.getBodyAsJSON();
+			r.getBodyAsJSON();
+		}
+		long after = System.currentTimeMillis() - start;
+		return new long[] { before, after };
+	}
+
+	private String screenshot(int len) {
+		StringBuilder sb = new StringBuilder(len);
+		String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < len; i++) {
+			sb.append(chars.charAt((i * 31 + i / 7) % chars.length()));
+		}
+		return sb.toString();
+	}
+}
@@ -21,7 +21,11 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -110,6 +114,47 @@ public class SenderTest {
 		assertSame(resp.getBodyAsJSON(), json);
 	}
 
+	@Test
+	public void testTruncatedMultipartLeavesNoTempFiles() throws IOException {
+		String multipart = "--b\r\nContent-Type: application/json\r\nContent-Length: 2\r\n\r\n{}"
+				+ "\r\n--b\r\nContent-Type: image/png\r\nContent-Length: 3\r\n\r\nabc"
+				+ "\r\n--b\r\nContent-Type: image/png\r\nContent-Disposition: inline; "
+				+ "name=\"afterImage\"\r\nContent-Length: 100\r\n\r\ntruncated";
+		int before = countScreenshots();
+
+		try {
+			new MultipartSender().readMultipart(200,
+					new ByteArrayInputStream(multipart.getBytes("UTF-8")),
+					"multipart/mixed; boundary=b");
+			fail("should have thrown exception");
+		} catch (EOFException ex) {
+			assertThat(ex.getMessage(), containsString("truncated"));
+		}
+		assertThat(countScreenshots(), is(before));
+	}
+
+	private int countScreenshots() {
+		File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		int count = 0;
+		for (File f : files) {
+			if (f.getName().startsWith("screenshot_")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Extend {@link Sender} to read a multipart response straight from a stream.
+	 */
+	private static class MultipartSender extends Sender {
+		@Override
+		public Response readMultipart(int code, InputStream in, String contentType)
+				throws IOException {
+			return super.readMultipart(code, in, contentType);
+		}
+	}
+
 	private void assertSame(JSONObject dis, JSONObject dat)
 			throws JSONException {
 		assertThat(dis, notNullValue());
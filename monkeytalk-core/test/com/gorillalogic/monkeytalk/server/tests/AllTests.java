@@ -21,6 +21,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ ServerTest.class, EchoTest.class, CustomServerTest.class,
-		ServerResponseTest.class, GetTest.class, MultipartTest.class })
+		ServerResponseTest.class, GetTest.class, MultipartTest.class, KeepAliveTest.class,
+		CompressionTest.class })
 public class AllTests {
 }
\ No newline at end of file
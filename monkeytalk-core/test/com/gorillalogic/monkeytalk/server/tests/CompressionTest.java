@@ -0,0 +1,283 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.server.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+import com.gorillalogic.monkeytalk.utils.Base64;
+import com.gorillalogic.monkeytalk.utils.CompressionUtils;
+
+public class CompressionTest {
+	private static final int PORT = 18031;
+	private static final int BENCHMARK_ITERATIONS = 20;
+	private static AgentServer server;
+
+	@BeforeClass
+	public static void beforeClass() throws IOException {
+		try {
+			server = new AgentServer(PORT);
+		} catch (IOException ex) {
+			fail("server failed to start");
+		}
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		server.stop();
+	}
+
+	@Before
+	public void before() {
+		server.setCompression(true);
+		server.lastHeaders = null;
+		server.lastBody = null;
+	}
+
+	@Test
+	public void testCompressedResponse() throws Exception {
+		HttpResponse raw = post(CommandSender.DUMPTREE, null);
+		HttpResponse gzip = post(CommandSender.DUMPTREE, "gzip");
+		HttpResponse deflate = post(CommandSender.DUMPTREE, "deflate");
+
+		assertThat(raw.headers.get("content-encoding"), nullValue());
+		assertThat(raw.headers.get("accept-encoding"), is(CompressionUtils.ACCEPT_ENCODING));
+		assertThat(gzip.headers.get("content-encoding"), is("gzip"));
+		assertThat(deflate.headers.get("content-encoding"), is("deflate"));
+
+		assertThat(gzip.content.length < raw.content.length / 4, is(true));
+		assertThat(new String(CompressionUtils.decompress(gzip.content, "gzip"), "UTF-8"),
+				is(new String(raw.content, "UTF-8")));
+		assertThat(new String(CompressionUtils.decompress(deflate.content, "deflate"), "UTF-8"),
+				is(new String(raw.content, "UTF-8")));
+	}
+
+	@Test
+	public void testSmallResponseIsSentRaw() throws Exception {
+		HttpResponse resp = post(CommandSender.PLAY, "gzip");
+		assertThat(resp.headers.get("content-encoding"), nullValue());
+		assertThat(new JSONObject(new String(resp.content, "UTF-8")).getString("result"),
+				is("OK"));
+	}
+
+	@Test
+	public void testCompressionDisabledOnServer() throws Exception {
+		server.setCompression(false);
+		HttpResponse resp = post(CommandSender.DUMPTREE, "gzip");
+		assertThat(resp.headers.get("content-encoding"), nullValue());
+		assertThat(resp.headers.get("accept-encoding"), nullValue());
+	}
+
+	@Test
+	public void testSenderDecompresses() throws JSONException {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		assertThat(sender.dumpTree().getBodyAsJSON().getJSONObject("message")
+				.getString("ComponentType"), is("Window"));
+		assertThat(server.lastHeaders.get("accept-encoding"), is(CompressionUtils.ACCEPT_ENCODING));
+
+		sender = CommandSenderFactory.createCommandSender(CommandSenderFactory.POOLED,
+				"localhost", PORT, null);
+		assertThat(sender.dumpTree().getBodyAsJSON().getJSONObject("message")
+				.getString("ComponentType"), is("Window"));
+	}
+
+	@Test
+	public void testCompressionDisabledOnSender() {
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		sender.setCompression(false);
+		assertThat(sender.dumpTree().getStatus(), is(ResponseStatus.OK));
+		assertThat(server.lastHeaders.get("accept-encoding"), nullValue());
+	}
+
+	@Test
+	public void testCompressedRequest() throws JSONException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("abc ");
+		}
+
+		// first command teaches the sender that the agent accepts compressed requests
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		sender.play(new Command("Button OK Tap"));
+		assertThat(server.lastHeaders.get("content-encoding"), nullValue());
+
+		sender.play(new Command("Input name EnterText \"" + sb + "\""));
+		assertThat(server.lastHeaders.get("content-encoding"), is("gzip"));
+		assertThat(server.lastBody.getJSONArray("args").getString(0), is(sb.toString()));
+
+		// small commands are still sent raw
+		sender.play(new Command("Button OK Tap"));
+		assertThat(server.lastHeaders.get("content-encoding"), nullValue());
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		// bytes on the wire
+		int treeRaw = post(CommandSender.DUMPTREE, null).content.length;
+		int treeGzip = post(CommandSender.DUMPTREE, "gzip").content.length;
+		int shotRaw = post("SCREENSHOT", null).content.length;
+		int shotGzip = post("SCREENSHOT", "gzip").content.length;
+
+		// latency
+		CommandSender sender = CommandSenderFactory.createCommandSender("localhost", PORT);
+		sender.setCompression(false);
+		long treeRawTime = timeDumpTree(sender);
+		sender.setCompression(true);
+		long treeGzipTime = timeDumpTree(sender);
+
+		System.out.println("Compression benchmark: DUMPTREE bytes raw=" + treeRaw + " gzip="
+				+ treeGzip + ", PLAY with base64 screenshot bytes raw=" + shotRaw + " gzip="
+				+ shotGzip + ", DUMPTREE x" + BENCHMARK_ITERATIONS + " (ms) raw="
+				+ treeRawTime + " gzip=" + treeGzipTime);
+		assertThat(treeGzip < treeRaw, is(true));
+		assertThat(shotGzip < shotRaw, is(true));
+	}
+
+	private long timeDumpTree(CommandSender sender) {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+			assertThat(sender.dumpTree().getStatus(), is(ResponseStatus.OK));
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private HttpResponse post(String mtcommand, String acceptEncoding) throws IOException {
+		String body = "{\"mtcommand\":\"" + mtcommand + "\",\"componentType\":\"Button\","
+				+ "\"monkeyId\":\"OK\",\"action\":\"Tap\"}";
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("POST /fonemonkey HTTP/1.0\r\nContent-Type: application/json\r\n"
+					+ (acceptEncoding != null ? "Accept-Encoding: " + acceptEncoding + "\r\n" : "")
+					+ "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes("UTF-8"));
+			out.flush();
+
+			byte[] resp = readAll(socket.getInputStream());
+			int i = new String(resp, "ISO-8859-1").indexOf("\r\n\r\n");
+			HttpResponse r = new HttpResponse();
+			for (String line : new String(resp, 0, i, "ISO-8859-1").split("\r\n")) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					r.headers.put(line.substring(0, colon).trim().toLowerCase(),
+							line.substring(colon + 1).trim());
+				}
+			}
+			r.content = new byte[resp.length - i - 4];
+			System.arraycopy(resp, i + 4, r.content, 0, r.content.length);
+			return r;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static class HttpResponse {
+		private Map<String, String> headers = new HashMap<String, String>();
+		private byte[] content;
+	}
+
+	/**
+	 * Extend {@link JsonServer} to act like an agent: DUMPTREE returns a deep component tree,
+	 * SCREENSHOT returns a base64 screenshot, and everything else returns OK. The last request
+	 * headers and body are kept for inspection.
+	 */
+	private static class AgentServer extends JsonServer {
+		private final String tree;
+		private final String screenshot;
+		private Map<String, String> lastHeaders;
+		private JSONObject lastBody;
+
+		public AgentServer(int port) throws IOException {
+			super(port);
+			try {
+				tree = "{result:\"OK\",message:" + component(0, 0) + "}";
+			} catch (JSONException ex) {
+				throw new IOException(ex.getMessage());
+			}
+			screenshot = "{result:\"OK\",message:{screenshot:\""
+					+ Base64.encodeBytes(readAll(new FileInputStream("resources/test/gorilla.png")))
+					+ "\"}}";
+		}
+
+		private JSONObject component(int depth, int index) throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("ComponentType", (depth == 0 ? "Window" : "View"));
+			json.put("monkeyId", "#" + index);
+			json.put("className", "android.widget.LinearLayout");
+			json.put("visible", "true");
+			json.put("identifiers", new JSONArray().put("#" + index).put("view" + depth));
+			JSONArray children = new JSONArray();
+			if (depth < 6) {
+				for (int i = 0; i < 3; i++) {
+					children.put(component(depth + 1, index * 3 + i + 1));
+				}
+			}
+			json.put("children", children);
+			return json;
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			lastHeaders = headers;
+			lastBody = json;
+			String mtcommand = json.optString("mtcommand");
+			if (CommandSender.DUMPTREE.equals(mtcommand)) {
+				return new Response(HttpStatus.OK, tree);
+			} else if ("SCREENSHOT".equals(mtcommand)) {
+				return new Response(HttpStatus.OK, screenshot);
+			}
+			return new Response(HttpStatus.OK, "{result:\"OK\"}");
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.server.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.CommandSenderFactory;
+import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer;
+
+public class KeepAliveTest {
+	private static final int PORT = 18017;
+	private static final int MAX_CONCURRENCY = 2;
+	private static CountingServer server;
+
+	@BeforeClass
+	public static void beforeClass() {
+		try {
+			server = new CountingServer(PORT, MAX_CONCURRENCY);
+		} catch (IOException ex) {
+			fail("server failed to start");
+		}
+		System.out.println("server running on " + server.getPort() + "...");
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		server.stop();
+		System.out.println("server stopped on " + server.getPort() + "...");
+	}
+
+	@Test
+	public void testKeepAlive() throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			for (int i = 0; i < 3; i++) {
+				write(socket, post("HTTP/1.1", "", "{\"hello\":" + i + "}"));
+				HttpResponse resp = read(socket);
+				assertThat(resp.statusLine, is("HTTP/1.1 200 OK "));
+				assertThat(resp.headers.get("connection"), is("keep-alive"));
+				assertThat(resp.body, containsString("\"hello\":" + i));
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testConnectionClose() throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			write(socket, post("HTTP/1.1", "Connection: close\r\n", "{\"hello\":1}"));
+			HttpResponse resp = read(socket);
+			assertThat(resp.headers.get("connection"), is("close"));
+			assertThat(socket.getInputStream().read(), is(-1));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testHttp10ClosesByDefault() throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			write(socket, post("HTTP/1.0", "", "{\"hello\":1}"));
+			HttpResponse resp = read(socket);
+			assertThat(resp.headers.get("connection"), is("close"));
+			assertThat(resp.body, containsString("\"hello\":1"));
+			assertThat(socket.getInputStream().read(), is(-1));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLargeHeaders() throws IOException {
+		StringBuilder sb = new StringBuilder("X-Big: ");
+		for (int i = 0; i < 20000; i++) {
+			sb.append('x');
+		}
+		sb.append("\r\n");
+
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			write(socket, post("HTTP/1.1", sb.toString(), "{\"hello\":\"big\"}"));
+			HttpResponse resp = read(socket);
+			assertThat(resp.statusLine, is("HTTP/1.1 200 OK "));
+			assertThat(resp.body, containsString("\"hello\":\"big\""));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testChunkedBody() throws IOException {
+		String req = "POST /fonemonkey HTTP/1.1\r\nHost: localhost\r\n"
+				+ "Content-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "5\r\n{\"hel\r\n" + "a\r\nlo\":\"chunk\r\n" + "2\r\n\"}\r\n" + "0\r\n\r\n";
+
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			write(socket, req);
+			HttpResponse resp = read(socket);
+			assertThat(resp.statusLine, is("HTTP/1.1 200 OK "));
+			assertThat(resp.body, containsString("\"hello\":\"chunk\""));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testMaxConcurrency() throws Exception {
+		server.delay = 50;
+		server.max = 0;
+		try {
+			final List<ResponseStatus> statuses = new ArrayList<ResponseStatus>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < 8; i++) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						CommandSender sender = CommandSenderFactory.createCommandSender(
+								"localhost", PORT);
+						ResponseStatus status = sender.ping(false).getStatus();
+						synchronized (statuses) {
+							statuses.add(status);
+						}
+					}
+				});
+				t.start();
+				threads.add(t);
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			assertThat(statuses.size(), is(8));
+			for (ResponseStatus status : statuses) {
+				assertThat(status, is(ResponseStatus.OK));
+			}
+			assertThat(server.max <= MAX_CONCURRENCY, is(true));
+		} finally {
+			server.delay = 0;
+		}
+	}
+
+	private String post(String version, String extraHeaders, String body) throws IOException {
+		return "POST /fonemonkey " + version + "\r\nHost: localhost\r\n"
+				+ "Content-Type: application/json\r\n" + extraHeaders + "Content-Length: "
+				+ body.getBytes("UTF-8").length + "\r\n\r\n" + body;
+	}
+
+	private void write(Socket socket, String req) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(req.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	private HttpResponse read(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream(), 1);
+		HttpResponse resp = new HttpResponse();
+		resp.statusLine = readLine(in);
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int i = line.indexOf(':');
+			resp.headers.put(line.substring(0, i).trim().toLowerCase(), line.substring(i + 1)
+					.trim());
+		}
+		byte[] body = new byte[Integer.parseInt(resp.headers.get("content-length"))];
+		int off = 0;
+		while (off < body.length) {
+			off += in.read(body, off, body.length - off);
+		}
+		resp.body = new String(body, "UTF-8");
+		return resp;
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				buf.write(b);
+			}
+		}
+		return (b == -1 && buf.size() == 0 ? null : buf.toString("UTF-8"));
+	}
+
+	private static class HttpResponse {
+		private String statusLine;
+		private Map<String, String> headers = new HashMap<String, String>();
+		private String body;
+	}
+
+	/**
+	 * Extend {@link JsonServer} to echo, but slowly, while tracking the max number of requests
+	 * served at once.
+	 */
+	private static class CountingServer extends JsonServer {
+		private volatile int delay = 0;
+		private int current = 0;
+		private int max = 0;
+
+		public CountingServer(int port, int maxConcurrency) throws IOException {
+			super(port, maxConcurrency);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			synchronized (this) {
+				current++;
+				max = Math.max(max, current);
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ex) {
+				// ignore
+			}
+			synchronized (this) {
+				current--;
+			}
+			return super.serve(uri, method, headers, json);
+		}
+	}
+}
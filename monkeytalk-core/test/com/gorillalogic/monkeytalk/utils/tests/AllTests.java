@@ -20,6 +20,7 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ Base64Test.class, FileUtilsTest.class, ImageUtilsTest.class })
+@SuiteClasses({ Base64Test.class, FileIndexTest.class, FileUtilsTest.class,
+		ImageUtilsTest.class })
 public class AllTests {
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.utils.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.utils.FileIndex;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class FileIndexTest extends TestHelper {
+	private static final int BENCHMARK_FILES = 3000;
+	private static final int BENCHMARK_LOOKUPS = 10000;
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testFind() throws IOException {
+		File dir = tempDir();
+		File foo = tempScript("foo.mt", "Button OK Tap", dir);
+		tempScript("Bar.MT", "Button OK Tap", dir);
+		FileIndex index = new FileIndex(dir);
+
+		assertThat(index.find("foo.mt"), is(foo));
+		assertThat(index.find("FOO.mt"), is(foo));
+		assertThat(index.find("bar.mt").getName(), is("Bar.MT"));
+		assertThat(index.find("missing.mt"), nullValue());
+		assertThat(index.find(null), nullValue());
+		assertThat(index.list().size(), is(2));
+		assertThat(index.list().get(0).getName(), is("Bar.MT"));
+	}
+
+	@Test
+	public void testMissingDir() {
+		FileIndex index = new FileIndex(new File("missing"));
+		assertThat(index.find("foo.mt"), nullValue());
+		assertThat(index.list().size(), is(0));
+	}
+
+	@Test
+	public void testIndexIsReused() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button OK Tap", dir);
+		dir.setLastModified(System.currentTimeMillis() - 60000);
+		FileIndex index = new FileIndex(dir);
+
+		for (int i = 0; i < 100; i++) {
+			assertThat(index.find("foo.mt"), notNullValue());
+			assertThat(index.find("missing.mt"), nullValue());
+		}
+		assertThat(index.getBuildCount(), is(1));
+
+		index.refresh();
+		assertThat(index.find("foo.mt"), notNullValue());
+		assertThat(index.getBuildCount(), is(2));
+	}
+
+	@Test
+	public void testChangesArePickedUp() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button OK Tap", dir);
+		dir.setLastModified(System.currentTimeMillis() - 60000);
+		FileIndex index = new FileIndex(dir);
+		assertThat(index.find("bar.mt"), nullValue());
+
+		File bar = tempScript("bar.mt", "Button OK Tap", dir);
+		assertThat(index.find("bar.mt"), is(bar));
+
+		bar.delete();
+		assertThat(index.find("bar.mt"), nullValue());
+		assertThat(index.find("foo.mt"), notNullValue());
+	}
+
+	@Test
+	public void testBenchmark() throws IOException {
+		File dir = tempDir();
+		for (int i = 0; i < BENCHMARK_FILES; i++) {
+			new File(dir, "script" + i + ".mt").createNewFile();
+		}
+		dir.setLastModified(System.currentTimeMillis() - 60000);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < BENCHMARK_LOOKUPS / 100; i++) {
+			FileUtils.findFile("Button.Tap.mt", dir);
+		}
+		long listing = (System.currentTimeMillis() - start) * 100;
+
+		FileIndex index = new FileIndex(dir);
+		start = System.currentTimeMillis();
+		for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+			index.find("Button.Tap.mt");
+		}
+		long indexed = System.currentTimeMillis() - start;
+
+		System.out.println("FileIndex benchmark: " + BENCHMARK_LOOKUPS + " lookups in "
+				+ BENCHMARK_FILES + " files, listFiles=~" + listing + "ms index=" + indexed + "ms");
+		assertThat(index.getBuildCount(), is(1));
+	}
+}
@@ -25,6 +25,7 @@ import com.gorillalogic.monkeytalk.agents.IAgent;
 import com.gorillalogic.monkeytalk.java.api.Application;
 import com.gorillalogic.monkeytalk.java.error.MonkeyTalkError;
 import com.gorillalogic.monkeytalk.java.proxy.ComponentProxyHandler;
+import com.gorillalogic.monkeytalk.processor.ExecutionContext;
 import com.gorillalogic.monkeytalk.processor.PlaybackListener;
 import com.gorillalogic.monkeytalk.processor.Scope;
 import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
@@ -171,6 +172,21 @@ public class MonkeyTalkDriver {
 		}
 	}
 
+	/**
+	 * Set the execution context that holds the globals for this driver. By default, every driver
+	 * shares the globals in the default context. Give each driver its own context to drive several
+	 * apps at once from the same JVM without sharing globals.
+	 * 
+	 * @param context
+	 *            the execution context (or {@code null} for the default context)
+	 */
+	public void setContext(ExecutionContext context) {
+		if (processor != null) {
+			processor.setContext(context);
+			scope.setContext(processor.getContext());
+		}
+	}
+
 	/**
 	 * Set the startup time.
 	 * 
@@ -296,7 +312,7 @@ public class MonkeyTalkDriver {
 			}
 		}
 
-		processor.getAgent().start();
+		processor.getAgent().getLifecycle().ensureStarted();
 	}
 
 	/**
@@ -305,7 +321,7 @@ public class MonkeyTalkDriver {
 	public void stop() {
 		if (processor != null && processor.getAgent() != null) {
 			processor.abort();
-			processor.getAgent().stop();
+			processor.getAgent().getLifecycle().stop();
 			processor.getAgent().close();
 		}
 	}
@@ -31,19 +31,25 @@ public class BaseProcessor {
 	protected IAgent agent;
 	protected int thinktime = -1;
 	protected int timeout = -1;
+	protected ExecutionContext context = Globals.getDefaultContext();
 
 	private boolean screenshotOnError = true;
 	private boolean takeAfterScreenshot = false;
 	private boolean takeAfterMetrics = false;
+	private int screenshotThreshold = -1;
+	private int keyframeInterval = 0;
+	private boolean batchPlayback = false;
 
 	/**
-	 * Instantiate a processor from the given processor by picking out its command world and agent.
+	 * Instantiate a processor from the given processor by picking out its command world, agent,
+	 * and execution context.
 	 * 
 	 * @param processor
 	 *            the processor
 	 */
 	public BaseProcessor(BaseProcessor processor) {
 		this(processor.getWorld(), processor.getAgent());
+		this.context = processor.getContext();
 	}
 
 	/**
@@ -107,6 +113,42 @@ public class BaseProcessor {
 		return agent;
 	}
 
+	/**
+	 * Get the execution context that holds the globals for this processor's runs. Defaults to the
+	 * shared default context behind the static {@link Globals} methods.
+	 * 
+	 * @return the execution context
+	 */
+	public ExecutionContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Set the execution context that holds the globals for this processor's runs. Give each
+	 * processor its own context to run several of them at once without sharing globals.
+	 * 
+	 * @param context
+	 *            the execution context (or {@code null} for the default context)
+	 */
+	public void setContext(ExecutionContext context) {
+		this.context = (context != null ? context : Globals.getDefaultContext());
+	}
+
+	/**
+	 * Bind this processor's execution context to the given scope, unless the scope (or a scope
+	 * above it) already has one.
+	 * 
+	 * @param scope
+	 *            the scope
+	 * @return the scope
+	 */
+	protected Scope bindContext(Scope scope) {
+		if (scope != null && !scope.hasContext()) {
+			scope.setContext(context);
+		}
+		return scope;
+	}
+
 	/**
 	 * Get the global timeout -- the amount of time (in milliseconds) to continue to retry playing a
 	 * MonkeyTalk command before failing. Defaults to 2000ms.
@@ -191,6 +233,48 @@ public class BaseProcessor {
 		this.takeAfterScreenshot = takeAfterScreenshot;
 	}
 
+	/**
+	 * Get the after screenshot threshold, in bits of the screen fingerprint, see
+	 * {@link ScreenshotSampler}. Defaults to {@code -1}, aka off, take every after screenshot.
+	 * 
+	 * @return the threshold, or -1 if off
+	 */
+	public int getScreenshotThreshold() {
+		return screenshotThreshold;
+	}
+
+	/**
+	 * Set the after screenshot threshold. When on, after screenshots are only taken when the
+	 * screen fingerprint changes by more than the threshold, or when the command fails. Otherwise
+	 * the previous screenshot is reused.
+	 * 
+	 * @param screenshotThreshold
+	 *            the threshold in bits (0 means any change), or -1 to turn off
+	 */
+	public void setScreenshotThreshold(int screenshotThreshold) {
+		this.screenshotThreshold = screenshotThreshold;
+	}
+
+	/**
+	 * Get the after screenshot keyframe interval. Defaults to {@code 0}, aka no keyframes.
+	 * 
+	 * @return the keyframe interval
+	 */
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/**
+	 * Set the after screenshot keyframe interval. When the screenshot threshold is on, an after
+	 * screenshot is taken at least every this many commands, even if nothing changed.
+	 * 
+	 * @param keyframeInterval
+	 *            the keyframe interval, or 0 for no keyframes
+	 */
+	public void setKeyframeInterval(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
 	/**
 	 * True if take after system metrics is on, otherwise false. Defaults to {@code false}.
 	 * 
@@ -210,6 +294,27 @@ public class BaseProcessor {
 		this.takeAfterMetrics = takeAfterMetrics;
 	}
 
+	/**
+	 * True if batch playback is on, otherwise false. Defaults to {@code false}. When on, runs of
+	 * consecutive vanilla commands are sent to the agent as a single
+	 * {@link com.gorillalogic.monkeytalk.sender.CommandSender#PLAYBATCH} round trip.
+	 * 
+	 * @return true if batch playback is on
+	 */
+	public boolean isBatchPlayback() {
+		return batchPlayback;
+	}
+
+	/**
+	 * Set batch playback, true to turn on, false to turn off.
+	 * 
+	 * @param batchPlayback
+	 *            true to turn on batch playback
+	 */
+	public void setBatchPlayback(boolean batchPlayback) {
+		this.batchPlayback = batchPlayback;
+	}
+
 	/**
 	 * Helper to create a copy of the given result using the given scope and start time.
 	 * 
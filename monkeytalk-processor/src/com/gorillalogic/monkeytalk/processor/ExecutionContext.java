@@ -0,0 +1,238 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The state of a single MonkeyTalk run, currently just the global variables. Every processor has
+ * a context, and every scope finds its context by walking up the scope stack. Processors share the
+ * default context (see {@link Globals#getDefaultContext()}) unless given their own, so two runs
+ * in the same JVM only see each other's globals if they want to.
+ */
+public class ExecutionContext {
+	/**
+	 * The globals, copied on write: every change swaps in a new read-only map, so readers (ex:
+	 * every command substitution) get a consistent snapshot without copying or locking.
+	 */
+	private volatile Map<String, String> globals = Collections.emptyMap();
+
+	/**
+	 * Instantiate an empty context.
+	 */
+	public ExecutionContext() {
+	}
+
+	/**
+	 * Instantiate a new context with a copy of the globals in the given context.
+	 *
+	 * @param context
+	 *            the context to copy
+	 */
+	public ExecutionContext(ExecutionContext context) {
+		if (context != null) {
+			// the globals are read-only, so the copy can share them until either side changes
+			globals = context.getGlobals();
+		}
+	}
+
+	/**
+	 * Clear all globals.
+	 */
+	public synchronized void clear() {
+		globals = Collections.emptyMap();
+	}
+
+	/**
+	 * Set the global variable given the name and value. If name or value is {@code null}, then do
+	 * nothing. Throws exception if the variable name is illegal.
+	 *
+	 * @param name
+	 *            the variable name
+	 * @param value
+	 *            the variable value
+	 */
+	public synchronized void setGlobal(String name, String value) {
+		if (name != null && value != null) {
+			Globals.validateName(name, null);
+			Map<String, String> m = new LinkedHashMap<String, String>(globals);
+			m.put(name, value);
+			globals = Collections.unmodifiableMap(m);
+		}
+	}
+
+	/**
+	 * Set the globals from the given map of variables. Throws exception if any variable name in
+	 * given map is illegal.
+	 *
+	 * @param globals
+	 *            the variables
+	 */
+	public synchronized void setGlobals(Map<String, String> globals) {
+		if (globals != null && globals.size() > 0) {
+			Map<String, String> m = new LinkedHashMap<String, String>(this.globals);
+			for (Map.Entry<String, String> entry : globals.entrySet()) {
+				if (entry.getKey() != null && entry.getValue() != null) {
+					Globals.validateName(entry.getKey(), null);
+					m.put(entry.getKey(), entry.getValue());
+				}
+			}
+			this.globals = Collections.unmodifiableMap(m);
+		}
+	}
+
+	/**
+	 * Set the globals from the given properties file (typically the {@code globals.properties}
+	 * file). Throws exception if file is null, file is not found, file is folder, or if variable
+	 * name in file is illegal.
+	 *
+	 * @param f
+	 *            the properties file
+	 */
+	public void setGlobals(File f) throws IOException {
+		if (f == null || !f.exists() || !f.isFile()) {
+			return;
+		}
+
+		InputStream in = null;
+		try {
+			Properties props = new Properties();
+			in = new FileInputStream(f);
+			props.load(in);
+			setGlobals(props, f.getName());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the globals from the given properties (typically loaded from the
+	 * {@code globals.properties} file). Throws exception if any variable name is illegal.
+	 *
+	 * @param props
+	 *            the properties
+	 * @param filename
+	 *            the name of the file the properties came from, for error messages
+	 */
+	public synchronized void setGlobals(Properties props, String filename) {
+		Map<String, String> m = new LinkedHashMap<String, String>();
+		for (String key : props.stringPropertyNames()) {
+			Globals.validateName(key, "globals file '" + filename + "' has");
+			m.put(key, props.getProperty(key));
+		}
+		setGlobals(m);
+	}
+
+	/**
+	 * Get a read-only snapshot of the global variables. Later changes to the context are not
+	 * reflected in the returned map. This is cheap (no copy), so it is fine to call for every
+	 * command.
+	 *
+	 * @return the globals
+	 */
+	public Map<String, String> getGlobals() {
+		return globals;
+	}
+
+	/**
+	 * Get a global variable by name. Returns {@code null} if name does not exist.
+	 *
+	 * @param name
+	 *            the variable name
+	 * @return the variable value
+	 */
+	public String getGlobal(String name) {
+		return globals.get(name);
+	}
+
+	/**
+	 * True if a global variable of the given name exists, otherwise false.
+	 *
+	 * @param name
+	 *            the variable name
+	 * @return true if the global variable exists, otherwise false.
+	 */
+	public boolean hasGlobal(String name) {
+		return globals.containsKey(name);
+	}
+
+	/**
+	 * Delete a global variable by name
+	 *
+	 * @param name
+	 *            the variable name
+	 * @return the deleted variable value (or {@code null} if not found)
+	 */
+	public synchronized String deleteGlobal(String name) {
+		if (!globals.containsKey(name)) {
+			return null;
+		}
+		Map<String, String> m = new LinkedHashMap<String, String>(globals);
+		String value = m.remove(name);
+		globals = Collections.unmodifiableMap(m);
+		return value;
+	}
+
+	/**
+	 * Helper to output the entire global variables map as a String.
+	 *
+	 * @return the global variables as a string
+	 */
+	public synchronized String asString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (Map.Entry<String, String> entry : globals.entrySet()) {
+			sb.append(sb.length() > 1 ? ", " : " ").append(entry.getKey()).append(":'")
+					.append(entry.getValue()).append("'");
+		}
+		return sb.append(" }").toString();
+	}
+
+	/**
+	 * Helper to output the entire global variables map as Javascript variable declarations.
+	 *
+	 * @return the global variables as Javascript
+	 */
+	public synchronized String asJavascript() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : globals.entrySet()) {
+			String val = entry.getValue();
+			if (val.contains("'")) {
+				// escape single quotes...
+				val = val.replace("'", "\\\'");
+			}
+			sb.append("var ").append(entry.getKey()).append(" = '").append(val).append("';\n");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ExecutionContext: globals=" + asString();
+	}
+}
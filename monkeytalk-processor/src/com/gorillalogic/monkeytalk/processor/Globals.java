@@ -1,10 +1,7 @@
 package com.gorillalogic.monkeytalk.processor;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -15,7 +12,8 @@ import com.gorillalogic.monkeytalk.api.js.tools.JSHelper;
 import com.gorillalogic.monkeytalk.processor.command.Vars;
 
 /**
- * Static helper class to handle global MonkeyTalk variables.
+ * Static helper class to handle global MonkeyTalk variables. The static accessors are a thin facade
+ * over the default {@link ExecutionContext}.
  */
 public class Globals {
 	public static final String ILLEGAL_MSG = "global " + Vars.ILLEGAL_MSG;
@@ -24,20 +22,26 @@ public class Globals {
 	private static final Pattern VARIABLES_IN_STRING = Pattern
 			.compile("(\\S+=\".*?\"|\\S+='.*?'|\\S+=[^\\s]+)\\s*");
 
-	private static Map<String, String> globals;
+	private static final ExecutionContext DEFAULT = new ExecutionContext();
 
-	static {
-		globals = new LinkedHashMap<String, String>();
+	private Globals() {
 	}
 
-	private Globals() {
+	/**
+	 * Get the default execution context. The static methods on this class all read and write the
+	 * globals in the default context, and every processor uses it unless given its own.
+	 * 
+	 * @return the default context
+	 */
+	public static ExecutionContext getDefaultContext() {
+		return DEFAULT;
 	}
 
 	/**
 	 * Clear all globals.
 	 */
 	public static void clear() {
-		globals = new LinkedHashMap<String, String>();
+		DEFAULT.clear();
 	}
 
 	/**
@@ -50,10 +54,7 @@ public class Globals {
 	 *            the variable value
 	 */
 	public static void setGlobal(String name, String value) {
-		if (name != null && value != null) {
-			validateName(name, null);
-			globals.put(name, value);
-		}
+		DEFAULT.setGlobal(name, value);
 	}
 
 	/**
@@ -63,11 +64,7 @@ public class Globals {
 	 * @param globals
 	 */
 	public static void setGlobals(Map<String, String> globals) {
-		if (globals != null && globals.size() > 0) {
-			for (Map.Entry<String, String> entry : globals.entrySet()) {
-				Globals.setGlobal(entry.getKey(), entry.getValue());
-			}
-		}
+		DEFAULT.setGlobals(globals);
 	}
 
 	/**
@@ -79,30 +76,20 @@ public class Globals {
 	 *            the properties file
 	 */
 	public static void setGlobals(File f) throws IOException {
-		if (f == null || !f.exists() || !f.isFile()) {
-			return;
-		}
-
-		InputStream in = null;
-		try {
-			Properties props = new Properties();
-			in = new FileInputStream(f);
-			props.load(in);
+		DEFAULT.setGlobals(f);
+	}
 
-			for (String key : props.stringPropertyNames()) {
-				validateName(key, "globals file '" + f.getName() + "' has");
-				String val = props.getProperty(key);
-				Globals.setGlobal(key, val);
-			}
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException ex) {
-					// ignore
-				}
-			}
-		}
+	/**
+	 * Set the globals from the given properties (typically loaded from the
+	 * {@code globals.properties} file). Throws exception if any variable name is illegal.
+	 * 
+	 * @param props
+	 *            the properties
+	 * @param filename
+	 *            the name of the file the properties came from, for error messages
+	 */
+	public static void setGlobals(Properties props, String filename) {
+		DEFAULT.setGlobals(props, filename);
 	}
 
 	/**
@@ -143,7 +130,7 @@ public class Globals {
 	 * @return the globals
 	 */
 	public static Map<String, String> getGlobals() {
-		return Collections.unmodifiableMap(globals);
+		return DEFAULT.getGlobals();
 	}
 
 	/**
@@ -154,7 +141,7 @@ public class Globals {
 	 * @return the variable value
 	 */
 	public static String getGlobal(String name) {
-		return globals.get(name);
+		return DEFAULT.getGlobal(name);
 	}
 
 	/**
@@ -165,7 +152,7 @@ public class Globals {
 	 * @return true if the global variable exists, otherwise false.
 	 */
 	public static boolean hasGlobal(String name) {
-		return globals.containsKey(name);
+		return DEFAULT.hasGlobal(name);
 	}
 
 	/**
@@ -176,7 +163,7 @@ public class Globals {
 	 * @return the deleted variable value (or {@code null} if not found)
 	 */
 	public static String deleteGlobal(String name) {
-		return globals.remove(name);
+		return DEFAULT.deleteGlobal(name);
 	}
 
 	/**
@@ -208,12 +195,7 @@ public class Globals {
 	 * @return the global variables as a string
 	 */
 	public static String asString() {
-		StringBuilder sb = new StringBuilder("{");
-		for (Map.Entry<String, String> entry : globals.entrySet()) {
-			sb.append(sb.length() > 1 ? ", " : " ").append(entry.getKey()).append(":'")
-					.append(entry.getValue()).append("'");
-		}
-		return sb.append(" }").toString();
+		return DEFAULT.asString();
 	}
 
 	/**
@@ -222,15 +204,6 @@ public class Globals {
 	 * @return the global variables as a string
 	 */
 	public static String asJavascript() {
-		StringBuilder sb = new StringBuilder();
-		for (Map.Entry<String, String> entry : globals.entrySet()) {
-			String val = entry.getValue();
-			if (val.contains("'")) {
-				// escape single quotes...
-				val = val.replace("'", "\\\'");
-			}
-			sb.append("var ").append(entry.getKey()).append(" = '").append(val).append("';\n");
-		}
-		return sb.toString();
+		return DEFAULT.asJavascript();
 	}
 }
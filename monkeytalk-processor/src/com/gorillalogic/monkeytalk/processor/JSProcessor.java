@@ -17,9 +17,13 @@ package com.gorillalogic.monkeytalk.processor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
+import org.json.JSONObject;
+
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.CommandWorld;
 import com.gorillalogic.monkeytalk.processor.command.Vars;
@@ -28,9 +32,17 @@ import com.gorillalogic.monkeytalk.utils.FileUtils;
 
 /**
  * Run a Javascript script and return the result.
+ * <p>
+ * The processor keeps one Javascript engine for its whole life, with a single long-lived
+ * {@code MT.Application} (bound to {@code app}) that is only recreated if the MonkeyTalk library
+ * is reloaded. Every run just binds its scope, steps, and globals, loads the script (see
+ * {@link MonkeyTalkJS#run(String)}), and calls the script's method on the application directly,
+ * so nothing but the script itself is evaluated per run.
  */
 public class JSProcessor extends BaseProcessor {
 	private MonkeyTalkJS mtjs;
+	private Object app;
+	private Object appLib;
 
 	/**
 	 * Instantiate a script processor with the given script processor.
@@ -56,6 +68,8 @@ public class JSProcessor extends BaseProcessor {
 	 */
 	public void setMonkeyTalkJS(MonkeyTalkJS mtjs) {
 		this.mtjs = mtjs;
+		this.app = null;
+		this.appLib = null;
 	}
 
 	/**
@@ -90,6 +104,7 @@ public class JSProcessor extends BaseProcessor {
 			scope = new Scope("anonymous");
 			scope.setCurrentCommand(cmd);
 		}
+		bindContext(scope);
 
 		if (cmd == null) {
 			return errorResult("command is null", scope, startTime);
@@ -137,17 +152,17 @@ public class JSProcessor extends BaseProcessor {
 			}
 		}
 
-		StringBuilder sb = new StringBuilder();
-		sb.append("load(\"" + cmd.getMonkeyId() + "\");\n");
-		sb.append("var app = new MT.Application(\"" + getHost() + "\", " + getPort() + ", \""
-				+ world.getRootDir() + "\"" + ");\n");
-		sb.append("app." + lowerFirst(componentType) + "()." + lowerFirst(action) + "("
-				+ getArgsAsString(cmd.getArgs()) + ");");
-
-		return runJavascript(sb.toString(), scope);
+		return runJavascript(monkeyId, lowerFirst(componentType), lowerFirst(action),
+				cmd.getArgs(), scope);
 	}
 
-	private PlaybackResult runJavascript(String js, Scope scope) {
+	/**
+	 * Helper to load the given script, then call {@code app.component().action(args)}. The scope
+	 * and steps are bound for the duration of the call only, so a script called from inside
+	 * another script doesn't clobber its caller's.
+	 */
+	private PlaybackResult runJavascript(String filename, String component, String action,
+			List<String> args, Scope scope) {
 		if (mtjs == null) {
 			return new PlaybackResult(PlaybackStatus.ERROR, "bad js engine");
 		}
@@ -156,13 +171,18 @@ public class JSProcessor extends BaseProcessor {
 		PlaybackResult result = new PlaybackResult(PlaybackStatus.OK);
 		result.setStartTime(System.currentTimeMillis());
 
+		ScriptEngine engine = mtjs.getEngine();
+		Object callerScope = engine.get("ScopeObj");
+		Object callerSteps = engine.get("StepsObj");
 		try {
-			mtjs.getEngine().put("ScopeObj", scope);
-			mtjs.getEngine().put("StepsObj", steps);
-			if (Globals.getGlobals().size() > 0) {
-				mtjs.getEngine().eval(Globals.asJavascript());
+			engine.put("ScopeObj", scope);
+			engine.put("StepsObj", steps);
+			for (Map.Entry<String, String> global : scope.getContext().getGlobals().entrySet()) {
+				engine.put(global.getKey(), global.getValue());
 			}
-			mtjs.getEngine().eval(js);
+			mtjs.run(filename);
+			Object obj = mtjs.invokeMethod(getApplication(), component);
+			mtjs.invokeMethod(obj, action, args.toArray());
 		} catch (ScriptException ex) {
 			// see if last step was a non-OK MT Command Execution
 			PlaybackResult lastResult = null;
@@ -175,6 +195,11 @@ public class JSProcessor extends BaseProcessor {
 				result.setStatus(PlaybackStatus.ERROR);
 				result.setMessage(ex.getMessage());
 			}
+		} finally {
+			if (callerScope != null) {
+				engine.put("ScopeObj", callerScope);
+				engine.put("StepsObj", callerSteps);
+			}
 		}
 
 		result.setStopTime(System.currentTimeMillis());
@@ -183,6 +208,22 @@ public class JSProcessor extends BaseProcessor {
 		return result;
 	}
 
+	/**
+	 * Helper to get the long-lived {@code MT.Application}, creating it the first time, and again
+	 * whenever the MonkeyTalk library (aka {@code MT}) is reloaded.
+	 */
+	private Object getApplication() throws ScriptException {
+		ScriptEngine engine = mtjs.getEngine();
+		Object lib = engine.get("MT");
+		if (app == null || lib == null || !lib.equals(appLib)) {
+			app = engine.eval("new MT.Application(" + JSONObject.quote(getHost()) + ", "
+					+ getPort() + ", " + JSONObject.quote(world.getRootDir().toString()) + ");");
+			appLib = lib;
+			engine.put("app", app);
+		}
+		return app;
+	}
+
 	/** Helper to lowercase the first letter of the given string. */
 	private String lowerFirst(String s) {
 		if (s.length() < 2) {
@@ -191,24 +232,6 @@ public class JSProcessor extends BaseProcessor {
 		return s.substring(0, 1).toLowerCase() + s.substring(1);
 	}
 
-	/**
-	 * Helper to convert the list of MonkeyTalk command args into a single comma-separated String.
-	 * 
-	 * @param args
-	 *            the MonkeyTalk args
-	 * @return args as a single comma-separated String
-	 */
-	private String getArgsAsString(List<String> args) {
-		StringBuilder sb = new StringBuilder();
-		for (String arg : args) {
-			if (sb.length() > 0) {
-				sb.append(", ");
-			}
-			sb.append('"').append(arg).append('"');
-		}
-		return sb.toString();
-	}
-
 	private PlaybackResult errorResult(String message, Scope scope, long startTime) {
 		if (startTime == 0) {
 			startTime = System.currentTimeMillis();
@@ -0,0 +1,585 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.parser.CSVData;
+import com.gorillalogic.monkeytalk.processor.report.Report;
+import com.gorillalogic.monkeytalk.processor.report.Test;
+import com.gorillalogic.monkeytalk.sender.Response;
+
+/**
+ * Run a suite in parallel across a pool of agents (aka a rack of devices or emulators). Every
+ * test in the suite (and in all its nested suites), and every row of a data-driven test, is
+ * independent, so each one is scheduled onto the next free agent. A test's {@code Setup} and
+ * {@code Teardown} always run on the same agent as the test itself.
+ * <p>
+ * The results are merged into a single {@link Report}, with the tests in the same order as the
+ * suite (not the order they happened to finish), so the JUnit XML report is the same as a
+ * sequential run. Listener callbacks come from the agent threads, but never at the same time.
+ * <p>
+ * An agent that errors and then no longer responds to a ping is considered bad: it is taken out
+ * of the pool, and the test it was running is retried on another agent. Agents that don't respond
+ * when the run starts are never used. If every agent goes bad, the remaining tests are errors.
+ * <p>
+ * Every test starts with its own copy of the suite's globals, so unlike a sequential run, globals
+ * defined by one test are not seen by any other test.
+ */
+public class ParallelSuiteProcessor extends SuiteProcessor {
+	private static final String NO_AGENTS = "no agents left to run test";
+	private static final long POLL = 100;
+
+	private final List<IAgent> agents;
+	private final List<IAgent> badAgents = Collections.synchronizedList(new ArrayList<IAgent>());
+	private final List<ScriptProcessor> processors = Collections
+			.synchronizedList(new ArrayList<ScriptProcessor>());
+	private final Object listenerLock = new Object();
+	private volatile boolean aborted = false;
+
+	/**
+	 * Instantiate a parallel suite processor with the given project root folder and agents.
+	 *
+	 * @param rootDir
+	 *            the project root directory
+	 * @param agents
+	 *            the agents to run the tests on
+	 */
+	public ParallelSuiteProcessor(File rootDir, List<IAgent> agents) {
+		this(new CommandWorld(rootDir), agents, null);
+	}
+
+	/**
+	 * Instantiate a parallel suite processor with the given command world, agents, and
+	 * ScriptProcessor. Every agent gets its own script processor, with the same settings (and
+	 * playback listener) as the given one.
+	 *
+	 * @param world
+	 *            the command world for the project
+	 * @param agents
+	 *            the agents to run the tests on
+	 * @param processor
+	 *            the {@code ScriptProcessor} whose settings are used for every agent. If null, a
+	 *            newly created ScriptProcessor will be used.
+	 */
+	public ParallelSuiteProcessor(CommandWorld world, List<IAgent> agents,
+			ScriptProcessor processor) {
+		super(world, agents.get(0), processor);
+		this.agents = new ArrayList<IAgent>(agents);
+	}
+
+	/**
+	 * Get the agents in the pool.
+	 *
+	 * @return the agents
+	 */
+	public List<IAgent> getAgents() {
+		return Collections.unmodifiableList(agents);
+	}
+
+	/**
+	 * Get the agents taken out of the pool during the last run, because they stopped responding.
+	 *
+	 * @return the bad agents
+	 */
+	public List<IAgent> getBadAgents() {
+		synchronized (badAgents) {
+			return new ArrayList<IAgent>(badAgents);
+		}
+	}
+
+	@Override
+	protected PlaybackResult runSuite(String filename, Report report, PlaybackResult result) {
+		long startTime = System.currentTimeMillis();
+		aborted = false;
+		badAgents.clear();
+
+		if (filename == null) {
+			return errorResult("suite filename is null", startTime);
+		}
+
+		// first, walk the suite in order to find the tests to run...
+		SuiteGraph graph = getSuiteGraph(filename);
+		List<Job> jobs = new ArrayList<Job>();
+		List<Plan> plans = new ArrayList<Plan>();
+		Plan root = plan(graph, graph.getRoot(), 0, null, report, jobs, plans);
+		if (root.result != null) {
+			return root.result;
+		}
+
+		// ...then run them across all the agents...
+		run(jobs);
+
+		// ...and finally, wrap up each suite (nested suites first)
+		for (Job job : jobs) {
+			job.step.setResult(job.result);
+		}
+		for (int i = plans.size() - 1; i >= 0; i--) {
+			Plan plan = plans.get(i);
+			if (plan.result == null) {
+				// nothing selected (ex: an empty shard) is just an empty OK suite
+				PlaybackResult last = (plan.steps.isEmpty() ? null : plan.steps.get(
+						plan.steps.size() - 1).getResult());
+				synchronized (listenerLock) {
+					getSuiteListener().onSuiteComplete(last, plan.report);
+				}
+				PlaybackResult suiteResult = new PlaybackResult(PlaybackStatus.OK);
+				if (plan.abort != null) {
+					suiteResult = copyResult(plan.abort, plan.scope, plan.startTime);
+				}
+				suiteResult.setStartTime(plan.startTime);
+				suiteResult.setStopTime(System.currentTimeMillis());
+				suiteResult.setScope(plan.scope);
+				suiteResult.setSteps(plan.steps);
+				plan.result = suiteResult;
+			}
+			if (plan.parent != null) {
+				plan.parent.setResult(plan.result);
+			}
+		}
+		return root.result;
+	}
+
+	/**
+	 * Helper to plan the given suite (and all its nested suites), just like
+	 * {@link SuiteProcessor#runSuite(String, Report, PlaybackResult)} but with every test added to
+	 * the list of jobs instead of being run. Only the tests selected for this run are planned,
+	 * starting from the given position in the flattened suite.
+	 */
+	private Plan plan(SuiteGraph graph, SuiteGraph.Node suite, int position, Plan up,
+			Report report, List<Job> jobs, List<Plan> plans) {
+		Plan plan = new Plan(suite, up, report);
+		String filename = suite.getFilename();
+		List<Command> commands = suite.getCommands();
+
+		if (commands == null) {
+			if (filename.toLowerCase().endsWith(CommandWorld.SCRIPT_EXT)) {
+				plan.result = errorResult("running script '" + filename
+						+ "' as a suite is not allowed", plan.scope, plan.startTime);
+			} else {
+				plan.result = errorResult("suite '" + filename + "' not found", plan.scope,
+						plan.startTime);
+			}
+			return plan;
+		}
+
+		plans.add(plan);
+		if (commands.size() == 0) {
+			getSuiteListener().onSuiteStart(0);
+			plan.result = errorResult("suite '" + filename + "' is empty", plan.scope,
+					plan.startTime);
+			getSuiteListener().onSuiteComplete(plan.result, report);
+			return plan;
+		}
+
+		List<Command> setup = suite.getSetup();
+		List<Command> teardown = suite.getTeardown();
+		int total = countSelected(position, suite.getTotal());
+		getSuiteListener().onSuiteStart(total);
+
+		int stepNumber = 1;
+		Scope scope = plan.scope;
+		scope.setCurrentIndex(0);
+		for (int i = 0; i < commands.size(); i++) {
+			Command cmd = commands.get(i);
+			int base = position;
+			position += suite.getCount(i);
+			if (!isSelected(base, suite.getCount(i))) {
+				// not in our shard
+				continue;
+			}
+			Command full = scope.substituteCommand(cmd);
+			scope.setCurrentCommand(full);
+
+			Step step = new Step(full, scope, scope.getCurrentIndex());
+			plan.steps.add(step);
+
+			boolean ignored = "test".equalsIgnoreCase(full.getComponentType())
+					&& full.isIgnored();
+			CSVData data = null;
+			if (!ignored && "test.runwith".equalsIgnoreCase(full.getCommandName())
+					&& full.getArgs().size() > 0) {
+				data = world.streamData(full.getArgs().get(0));
+			}
+
+			PlaybackResult result;
+			if (!ignored && "test.run".equalsIgnoreCase(full.getCommandName())) {
+				jobs.add(new Job(full, null, base, stepNumber, total, setup, teardown,
+						scope(scope), report, report.addTest(full, null), step));
+				result = null;
+			} else if (data != null && !data.isEmpty()) {
+				String datafile = full.getArgs().get(0);
+				result = new PlaybackResult(PlaybackStatus.OK);
+				result.setScope(scope);
+				List<Step> steps = new ArrayList<Step>();
+				result.setSteps(steps);
+				int dataIndex = 1;
+				for (Map<String, String> datum : data) {
+					if (!isSelected(base + dataIndex - 1, 1)) {
+						// not in our shard
+						dataIndex++;
+						continue;
+					}
+					Command stepCommand = new Command(full.getCommand().replaceAll(datafile,
+							datafile + "\\[\\@" + dataIndex + "\\]"));
+					Step rowStep = new Step(stepCommand, scope, dataIndex);
+					steps.add(rowStep);
+					jobs.add(new Job(full, datum, base + dataIndex - 1, dataIndex, total, setup,
+							teardown, scope(scope), report, report.addTest(full, datum), rowStep));
+					dataIndex++;
+				}
+				step.setResult(result);
+			} else if (!"suite".equalsIgnoreCase(full.getComponentType())
+					|| !"run".equalsIgnoreCase(full.getAction())
+					|| full.getModifiers().containsKey(Command.IGNORE_MODIFIER)) {
+				// everything else (ignored tests, errors, etc.) is handled right here
+				result = runSuiteCommand(full, scope, report, stepNumber, total, setup, teardown);
+				step.setResult(result);
+			} else {
+				SuiteGraph.Node nested = graph.getSuite(full.getMonkeyId());
+				if (nested == null) {
+					result = errorResult("suite filename is null", plan.scope);
+				} else if (plan.runs(nested)) {
+					result = errorResult("suite '" + full.getMonkeyId() + "' is recursive",
+							plan.scope);
+				} else {
+					Report nestedReport = new Report(full.getMonkeyId());
+					Plan nestedPlan = plan(graph, nested, base, plan, nestedReport, jobs,
+							plans);
+					nestedPlan.parent = step;
+					report.getMainSuite().addSuite(nestedReport.getMainSuite());
+					result = (nestedPlan.result != null ? nestedPlan.result : nestedPlan.abort);
+				}
+				step.setResult(result);
+			}
+			stepNumber++;
+
+			if (result != null && shouldAbort(result)) {
+				plan.abort = result;
+				break;
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Helper to run all the given jobs, with one thread per agent, and wait for them to finish.
+	 * The jobs are queued in rank order, so with a test history the likely failures go first.
+	 */
+	private void run(List<Job> jobs) {
+		List<Job> ordered = new ArrayList<Job>(jobs);
+		Collections.sort(ordered, new Comparator<Job>() {
+			@Override
+			public int compare(Job a, Job b) {
+				int ra = getRank(a.pos);
+				int rb = getRank(b.pos);
+				return (ra < rb ? -1 : (ra == rb ? 0 : 1));
+			}
+		});
+		BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>(ordered);
+		AtomicInteger remaining = new AtomicInteger(jobs.size());
+
+		processors.clear();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (IAgent agent : agents) {
+			ScriptProcessor processor = newScriptProcessor(agent);
+			processors.add(processor);
+			Thread t = new Thread(new Worker(agent, processor, queue, remaining),
+					"MonkeyTalk " + agent.getName() + " " + agent.getHost() + ":"
+							+ agent.getPort());
+			threads.add(t);
+			t.start();
+		}
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException ex) {
+				abort();
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// anything left over was never run, either aborted, failed fast, or every agent went bad
+		Job job;
+		while ((job = queue.poll()) != null) {
+			if (aborted) {
+				complete(job, errorResult(ABORT_BY_REQUEST, job.scope));
+			} else if (isFailedFast()) {
+				complete(job, skippedResult(job.scope));
+			} else {
+				complete(job, errorResult(NO_AGENTS + " - bad agents: " + getBadAgents(),
+						job.scope));
+			}
+		}
+	}
+
+	/**
+	 * Helper to get a new script processor for the given agent, with the same settings as the main
+	 * script processor.
+	 */
+	private ScriptProcessor newScriptProcessor(IAgent agent) {
+		ScriptProcessor main = getScriptProcessor();
+		ScriptProcessor processor = new ScriptProcessor(world, agent);
+		processor.setPlaybackListener(new SynchronizedPlaybackListener(main
+				.getPlaybackListener()));
+		processor.setGlobalTimeout(main.getGlobalTimeout());
+		processor.setGlobalThinktime(main.getGlobalThinktime());
+		processor.setGlobalScreenshotOnError(main.isGlobalScreenshotOnError());
+		processor.setTakeAfterScreenshot(main.isTakeAfterScreenshot());
+		processor.setTakeAfterMetrics(main.isTakeAfterMetrics());
+		processor.setScreenshotThreshold(main.getScreenshotThreshold());
+		processor.setKeyframeInterval(main.getKeyframeInterval());
+		processor.setBatchPlayback(main.isBatchPlayback());
+		processor.setContext(getContext());
+		processor.setScreenshotStore(main.getScreenshotStore());
+		return processor;
+	}
+
+	/**
+	 * Helper to copy the given scope for a job, so every test has its own.
+	 */
+	private Scope scope(Scope scope) {
+		Scope copy = scope.clone();
+		copy.setCurrentCommand(scope.getCurrentCommand());
+		copy.setCurrentIndex(scope.getCurrentIndex());
+		return copy;
+	}
+
+	/**
+	 * Helper to record the final result of the given job.
+	 */
+	private void complete(Job job, PlaybackResult result) {
+		job.result = result;
+		job.test.stopTimer();
+		job.test.setResult(job.cmd, result);
+		synchronized (listenerLock) {
+			onTestComplete(result, job.report);
+		}
+	}
+
+	@Override
+	public void abort() {
+		aborted = true;
+		super.abort();
+		synchronized (processors) {
+			for (ScriptProcessor processor : processors) {
+				processor.abort();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ParallelSuiteProcessor: agents=" + agents.size() + "\n" + super.toString();
+	}
+
+	/**
+	 * Runs jobs off the queue on a single agent, until there are none left, the run is aborted,
+	 * or the agent goes bad.
+	 */
+	private class Worker implements Runnable {
+		private final IAgent agent;
+		private final ScriptProcessor processor;
+		private final BlockingQueue<Job> queue;
+		private final AtomicInteger remaining;
+
+		public Worker(IAgent agent, ScriptProcessor processor, BlockingQueue<Job> queue,
+				AtomicInteger remaining) {
+			this.agent = agent;
+			this.processor = processor;
+			this.queue = queue;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public void run() {
+			if (!agent.isReady()) {
+				badAgents.add(agent);
+				return;
+			}
+
+			while (!aborted && !isFailedFast() && remaining.get() > 0) {
+				Job job;
+				try {
+					job = queue.poll(POLL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				if (job == null) {
+					continue;
+				}
+
+				job.attempts++;
+				if (job.attempts == 1) {
+					// a retried test is still just one test, so only start it once
+					job.test.startTimer();
+					synchronized (listenerLock) {
+						getSuiteListener().onTestStart(job.test.getName(), job.num, job.total);
+					}
+				}
+
+				// every test gets its own copy of the globals, so tests running side by side
+				// never see each other's changes
+				job.scope.setContext(new ExecutionContext(getContext()));
+				PlaybackResult result = runTest(processor, job.cmd, job.num, job.setup,
+						job.teardown, job.scope, job.datum);
+
+				if (result.getStatus() == PlaybackStatus.ERROR && !aborted && !agent.isReady()) {
+					// bad agent, so retry the test elsewhere (if we can) and quit
+					badAgents.add(agent);
+					if (job.attempts < agents.size()) {
+						queue.add(job);
+					} else {
+						complete(job, result);
+						remaining.decrementAndGet();
+					}
+					return;
+				}
+
+				complete(job, result);
+				remaining.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A single test (or a single row of a data-driven test) to be run on any agent.
+	 */
+	private static class Job {
+		private final Command cmd;
+		private final Map<String, String> datum;
+		private final int pos;
+		private final int num;
+		private final int total;
+		private final List<Command> setup;
+		private final List<Command> teardown;
+		private final Scope scope;
+		private final Report report;
+		private final Test test;
+		private final Step step;
+		private int attempts;
+		private volatile PlaybackResult result;
+
+		public Job(Command cmd, Map<String, String> datum, int pos, int num, int total,
+				List<Command> setup, List<Command> teardown, Scope scope, Report report, Test test,
+				Step step) {
+			this.cmd = cmd;
+			this.datum = datum;
+			this.pos = pos;
+			this.num = num;
+			this.total = total;
+			this.setup = setup;
+			this.teardown = teardown;
+			this.scope = scope;
+			this.report = report;
+			this.test = test;
+			this.step = step;
+		}
+	}
+
+	/**
+	 * A planned suite, waiting on its tests to finish before it is wrapped up.
+	 */
+	private class Plan {
+		private final SuiteGraph.Node node;
+		private final Plan up;
+		private final Scope scope;
+		private final Report report;
+		private final long startTime = System.currentTimeMillis();
+		private final List<Step> steps = new ArrayList<Step>();
+		private Step parent;
+		private PlaybackResult abort;
+		private PlaybackResult result;
+
+		public Plan(SuiteGraph.Node node, Plan up, Report report) {
+			this.node = node;
+			this.up = up;
+			this.scope = bindContext(new Scope(node.getFilename()));
+			this.report = report;
+		}
+
+		/**
+		 * True if the given suite is this suite, or one of the suites running it.
+		 */
+		public boolean runs(SuiteGraph.Node suite) {
+			for (Plan p = this; p != null; p = p.up) {
+				if (p.node == suite) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Wrap a playback listener, so callbacks from multiple agent threads never overlap.
+	 */
+	private class SynchronizedPlaybackListener implements PlaybackListener {
+		private final PlaybackListener listener;
+
+		public SynchronizedPlaybackListener(PlaybackListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void onScriptStart(Scope scope) {
+			synchronized (listenerLock) {
+				listener.onScriptStart(scope);
+			}
+		}
+
+		@Override
+		public void onScriptComplete(Scope scope, PlaybackResult result) {
+			synchronized (listenerLock) {
+				listener.onScriptComplete(scope, result);
+			}
+		}
+
+		@Override
+		public void onStart(Scope scope) {
+			synchronized (listenerLock) {
+				listener.onStart(scope);
+			}
+		}
+
+		@Override
+		public void onComplete(Scope scope, Response response) {
+			synchronized (listenerLock) {
+				listener.onComplete(scope, response);
+			}
+		}
+
+		@Override
+		public void onPrint(String message) {
+			synchronized (listenerLock) {
+				listener.onPrint(message);
+			}
+		}
+	}
+}
@@ -41,7 +41,13 @@ public interface PlaybackListener {
 	void onScriptComplete(Scope scope, PlaybackResult result);
 
 	/**
-	 * Callback fires on command start.
+	 * Callback fires on command start. Every command's {@code onStart} is followed by its
+	 * {@link #onComplete(Scope, Response)} before the next command starts.
+	 * <p>
+	 * With batch playback on (see {@link BaseProcessor#setBatchPlayback(boolean)}), a run of
+	 * commands goes to the agent in a single round trip before the first of them starts. So for a
+	 * batched command, both callbacks fire after the agent already played it, and the time between
+	 * them doesn't include the playback itself.
 	 * 
 	 * @param scope
 	 *            the current scope
@@ -19,6 +19,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.gorillalogic.monkeytalk.sender.Response;
 import com.gorillalogic.monkeytalk.utils.Base64;
@@ -41,6 +43,10 @@ public class PlaybackResult {
 	private File imageFile;
 	private File beforeImageFile;
 	private File afterImageFile;
+	private Future<File> imageFuture;
+	private Future<File> beforeImageFuture;
+	private Future<File> afterImageFuture;
+	private Response imageResponse;
 	private long startTime;
 	private long stopTime;
 	private List<Step> steps;
@@ -189,8 +195,7 @@ public class PlaybackResult {
 		message = resp.getMessage();
 		this.scope = scope;
 		warning = resp.getWarning();
-		image = resp.getImage();
-		imageFile = resp.getImageFile();
+		imageResponse = imageResponse(resp);
 
 	}
 
@@ -213,8 +218,7 @@ public class PlaybackResult {
 		message = resp.getMessage();
 		this.scope = scope;
 		warning = resp.getWarning();
-		image = resp.getImage();
-		imageFile = resp.getImageFile();
+		imageResponse = imageResponse(resp);
 		beforeImageFile = beforeImg;
 		afterImageFile = afterImg;
 		// set system metrics
@@ -290,6 +294,9 @@ public class PlaybackResult {
 	 * @return the image
 	 */
 	public String getImage() {
+		if (image == null && imageFuture == null && imageResponse != null) {
+			image = imageResponse.getImage();
+		}
 		if (image == null) {
 			if (getImageFile() == null) {
 				return null;
@@ -428,6 +435,13 @@ public class PlaybackResult {
 	 * 
 	 */
 	public File getImageFile() {
+		if (imageFuture != null) {
+			imageFile = resolve(imageFuture);
+			imageFuture = null;
+		} else if (imageResponse != null) {
+			imageFile = imageResponse.getImageFile();
+			imageResponse = null;
+		}
 		return imageFile;
 	}
 
@@ -437,6 +451,40 @@ public class PlaybackResult {
 	 */
 	public void setImageFile(File imageFile) {
 		this.imageFile = imageFile;
+		this.imageFuture = null;
+		this.imageResponse = null;
+	}
+
+	/**
+	 * Get the response the screenshot came from, if the screenshot has not been decoded yet (see
+	 * {@link ScreenshotStore#putAsync(Response)}), otherwise null.
+	 * 
+	 * @return the response with the screenshot
+	 */
+	public Response getImageResponse() {
+		return imageResponse;
+	}
+
+	/**
+	 * Get the handle to the image file that is still being saved in the background, or null if
+	 * the image file is already known.
+	 * 
+	 * @return the image file handle
+	 */
+	public Future<File> getImageFuture() {
+		return imageFuture;
+	}
+
+	/**
+	 * Set the handle to the image file that is still being saved in the background (see
+	 * {@link ScreenshotStore#putAsync(File)}). {@link #getImageFile()} waits for it.
+	 * 
+	 * @param imageFuture
+	 *            the image file handle
+	 */
+	public void setImageFuture(Future<File> imageFuture) {
+		this.imageFuture = imageFuture;
+		this.imageResponse = null;
 	}
 
 	/**
@@ -444,6 +492,10 @@ public class PlaybackResult {
 	 * 
 	 */
 	public File getBeforeImageFile() {
+		if (beforeImageFuture != null) {
+			beforeImageFile = resolve(beforeImageFuture);
+			beforeImageFuture = null;
+		}
 		return beforeImageFile;
 	}
 
@@ -453,6 +505,18 @@ public class PlaybackResult {
 	 */
 	public void setBeforeImageFile(File beforeImageFile) {
 		this.beforeImageFile = beforeImageFile;
+		this.beforeImageFuture = null;
+	}
+
+	/**
+	 * Set the handle to the before image file that is still being saved in the background.
+	 * {@link #getBeforeImageFile()} waits for it.
+	 * 
+	 * @param beforeImageFuture
+	 *            the before image file handle
+	 */
+	public void setBeforeImageFuture(Future<File> beforeImageFuture) {
+		this.beforeImageFuture = beforeImageFuture;
 	}
 
 	/**
@@ -460,6 +524,10 @@ public class PlaybackResult {
 	 * 
 	 */
 	public File getAfterImageFile() {
+		if (afterImageFuture != null) {
+			afterImageFile = resolve(afterImageFuture);
+			afterImageFuture = null;
+		}
 		return afterImageFile;
 	}
 
@@ -469,6 +537,42 @@ public class PlaybackResult {
 	 */
 	public void setAfterImageFile(File afterImageFile) {
 		this.afterImageFile = afterImageFile;
+		this.afterImageFuture = null;
+	}
+
+	/**
+	 * Set the handle to the after image file that is still being saved in the background.
+	 * {@link #getAfterImageFile()} waits for it.
+	 * 
+	 * @param afterImageFuture
+	 *            the after image file handle
+	 */
+	public void setAfterImageFuture(Future<File> afterImageFuture) {
+		this.afterImageFuture = afterImageFuture;
+	}
+
+	/**
+	 * Helper to get the given response if it has a screenshot, without decoding it.
+	 */
+	private static Response imageResponse(Response resp) {
+		return (resp.isBinaryImage() || resp.getImage() != null ? resp : null);
+	}
+
+	/**
+	 * Helper to wait for an image file being saved in the background. If saving failed, there is
+	 * no image file, and the failure becomes a warning (same as saving in the foreground).
+	 */
+	private File resolve(Future<File> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (warning == null) {
+				warning = "failed to save screenshot - " + ex.getCause().getMessage();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
 	}
 
 	/**
@@ -19,14 +19,20 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import com.gorillalogic.monkeytalk.BuildStamp;
 import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.ProjectBundle;
 import com.gorillalogic.monkeytalk.agents.AgentManager;
 import com.gorillalogic.monkeytalk.agents.AndroidEmulatorAgent;
 import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.agents.MTAgent;
 import com.gorillalogic.monkeytalk.processor.report.Report;
 import com.gorillalogic.monkeytalk.processor.report.detail.DetailReportHtml;
 import com.gorillalogic.monkeytalk.processor.report.detail.ScriptReportHelper;
@@ -52,6 +58,18 @@ public class Runner {
 	private boolean screenshotOnError = true;
 	private boolean takeAfterScreenshot = false;
 	private boolean takeAfterMetrics = false;
+	private int screenshotThreshold = -1;
+	private int keyframeInterval = 0;
+	private boolean batchPlayback = false;
+	private boolean scriptCache = true;
+	private boolean keepAlive;
+	private ProjectBundle bundle;
+	private List<IAgent> parallelAgents;
+	private ExecutionContext context = Globals.getDefaultContext();
+	private Shard shard;
+	private File shardReports;
+	private File historyFile;
+	private int failFast;
 	private ScriptProcessor scriptProcessor;
 	private SuiteProcessor suiteProcessor;
 
@@ -176,16 +194,32 @@ public class Runner {
 					+ getAgentNames());
 		}
 
-		getAgent().start();
+		if (keepAlive) {
+			getAgent().setProperty(MTAgent.KEEP_ALIVE_PROP, "true");
+			if (parallelAgents != null) {
+				for (IAgent a : parallelAgents) {
+					a.setProperty(MTAgent.KEEP_ALIVE_PROP, "true");
+				}
+			}
+		}
+		getAgent().getLifecycle().ensureStarted();
 
 		System.out.println(BuildStamp.STAMP);
 
 		PlaybackResult result = null;
+		if (in != null && bundle != null) {
+			// scripts and suites always come from the bundle, the folder is only for reports
+			in = new File(bundle.getFile().getAbsoluteFile().getParentFile(), in.getName());
+		}
+
 		if (in == null) {
 			throw new RuntimeException("Bad input script.");
-		} else if (!in.exists()) {
+		} else if (bundle != null && bundle.find(in.getName()) == null) {
+			throw new RuntimeException("Bad input script. Not found in bundle "
+					+ bundle.getFile().getAbsolutePath() + ": " + in.getName());
+		} else if (bundle == null && !in.exists()) {
 			throw new RuntimeException("Bad input script. File not found: " + in.getAbsolutePath());
-		} else if (!in.isFile()) {
+		} else if (bundle == null && !in.isFile()) {
 			throw new RuntimeException("Bad input script. Not a file: " + in.getAbsolutePath());
 		} else {
 			try {
@@ -194,20 +228,31 @@ public class Runner {
 				throw new RuntimeException(ex.getMessage(), ex);
 			}
 
-			if (in.getName().toLowerCase().endsWith(CommandWorld.SCRIPT_EXT)
-					|| in.getName().toLowerCase().endsWith(CommandWorld.JS_EXT)) {
-				result = runScript(in);
-			} else if (in.getName().toLowerCase().endsWith(CommandWorld.SUITE_EXT)) {
-				result = runSuite(in);
-			} else {
-				throw new RuntimeException(
-						"Unrecognized input script file extension.  Allowed values are: "
-								+ CommandWorld.SCRIPT_EXT + ", " + CommandWorld.SUITE_EXT + ", "
-								+ CommandWorld.JS_EXT);
+			getAgent().getLifecycle().startHealthChecks();
+			try {
+				if (in.getName().toLowerCase().endsWith(CommandWorld.SCRIPT_EXT)
+						|| in.getName().toLowerCase().endsWith(CommandWorld.JS_EXT)) {
+					result = runScript(in);
+				} else if (in.getName().toLowerCase().endsWith(CommandWorld.SUITE_EXT)) {
+					result = runSuite(in);
+				} else {
+					throw new RuntimeException(
+							"Unrecognized input script file extension.  Allowed values are: "
+									+ CommandWorld.SCRIPT_EXT + ", " + CommandWorld.SUITE_EXT
+									+ ", " + CommandWorld.JS_EXT);
+				}
+			} finally {
+				getAgent().getLifecycle().stopHealthChecks();
 			}
 		}
 
 		System.out.println("result: " + result);
+		if (scriptProcessor != null) {
+			scriptProcessor.getScreenshotStore().flush();
+			if (scriptProcessor.getScreenshotStore().getCount() > 0) {
+				System.out.println(scriptProcessor.getScreenshotStore());
+			}
+		}
 
 		File dir = getReportDir();
 		if (dir == null) {
@@ -220,7 +265,8 @@ public class Runner {
 
 	/**
 	 * Helper to init the globals for the current run via a simple three step process. First, we
-	 * init the globals map to empty. Second, we load the globals.properties file if it exists.
+	 * init the globals map to empty. Second, we load the globals.properties file if it exists (in
+	 * the project dir, or in the bundle if running from a bundle).
 	 * Last, we add any passed-in globals (typically from the commandline) which will override any
 	 * globals from the file.
 	 * 
@@ -230,12 +276,19 @@ public class Runner {
 	 *            the passed in globals
 	 */
 	private void initGlobals(File dir, Map<String, String> globals) throws IOException {
-		Globals.clear();
-		if (dir != null && dir.exists() && dir.isDirectory()) {
-			Globals.setGlobals(new File(dir, "globals.properties"));
+		context.clear();
+		if (bundle != null) {
+			String text = bundle.getText("globals.properties");
+			if (text != null) {
+				Properties props = new Properties();
+				props.load(new StringReader(text));
+				context.setGlobals(props, "globals.properties");
+			}
+		} else if (dir != null && dir.exists() && dir.isDirectory()) {
+			context.setGlobals(new File(dir, "globals.properties"));
 		}
 		if (globals != null) {
-			Globals.setGlobals(globals);
+			context.setGlobals(globals);
 		}
 	}
 
@@ -405,6 +458,189 @@ public class Runner {
 		this.takeAfterMetrics = takeAfterMetrics;
 	}
 
+	/**
+	 * Set the after screenshot threshold, in bits of the screen fingerprint. When on, after
+	 * screenshots are only taken when the screen changes (see {@link ScreenshotSampler}). Only
+	 * agents that return a fingerprint (currently Android) skip screenshots, with any other agent
+	 * every after screenshot is still taken.
+	 * 
+	 * @param screenshotThreshold
+	 *            the threshold in bits (0 means any change), or -1 to take every screenshot
+	 */
+	public void setScreenshotThreshold(int screenshotThreshold) {
+		this.screenshotThreshold = screenshotThreshold;
+	}
+
+	/**
+	 * Set the after screenshot keyframe interval, so an after screenshot is taken at least every
+	 * this many commands even when the screen hasn't changed.
+	 * 
+	 * @param keyframeInterval
+	 *            the keyframe interval, or 0 for no keyframes
+	 */
+	public void setKeyframeInterval(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Set batch playback, true to send runs of vanilla commands to the agent in a single round
+	 * trip, false to send every command individually.
+	 * 
+	 * @param batchPlayback
+	 *            true to turn on batch playback
+	 */
+	public void setBatchPlayback(boolean batchPlayback) {
+		this.batchPlayback = batchPlayback;
+	}
+
+	/**
+	 * Set script caching, true to cache parsed scripts and suites for the run, false to re-read
+	 * them every time they are run (use this if you edit scripts in the middle of a run).
+	 * 
+	 * @param scriptCache
+	 *            true to turn on script caching
+	 */
+	public void setScriptCache(boolean scriptCache) {
+		this.scriptCache = scriptCache;
+	}
+
+	/**
+	 * Set keep-alive, true to send commands to the agent (and any parallel agents) over pooled
+	 * keep-alive connections, false to leave the agent's {@link MTAgent#KEEP_ALIVE_PROP} alone
+	 * (which defaults to a new connection per command).
+	 * 
+	 * @param keepAlive
+	 *            true to turn on keep-alive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Get the precompiled project bundle to run from.
+	 * 
+	 * @return the bundle, or null if running from the project folder
+	 */
+	public ProjectBundle getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * Set the precompiled project bundle to run from. When set, all scripts, suites, datafiles,
+	 * Javascript, and globals come from the bundle (and never from the project folder), and the
+	 * input script given to {@link #run(File, Map)} is looked up in the bundle by name.
+	 * 
+	 * @param bundle
+	 *            the bundle, or null to run from the project folder
+	 */
+	public void setBundle(ProjectBundle bundle) {
+		this.bundle = bundle;
+	}
+
+	/**
+	 * Get the shard of each suite to run.
+	 * 
+	 * @return the shard, or null to run the whole suite
+	 */
+	public Shard getShard() {
+		return shard;
+	}
+
+	/**
+	 * Set the shard of each suite to run, so the same suite can be split across several
+	 * executors. Scripts are always run whole.
+	 * 
+	 * @see SuiteProcessor#setShard(Shard)
+	 * 
+	 * @param shard
+	 *            the shard, or null to run the whole suite
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Set the previous XML report (or folder of reports) used to balance the shards by test
+	 * duration.
+	 * 
+	 * @see SuiteProcessor#setShardReports(File)
+	 * 
+	 * @param shardReports
+	 *            the report file or folder
+	 */
+	public void setShardReports(File shardReports) {
+		this.shardReports = shardReports;
+	}
+
+	/**
+	 * Set the test history file, used to run the tests that failed recently (and new or changed
+	 * tests) first. Tests are only reordered within each suite level, where a nested suite moves
+	 * as a whole. The file is created if it doesn't exist, and updated after every suite run.
+	 * 
+	 * @see SuiteProcessor#setTestHistory(TestHistory)
+	 * 
+	 * @param historyFile
+	 *            the history file, or null to run tests in suite order
+	 */
+	public void setHistoryFile(File historyFile) {
+		this.historyFile = historyFile;
+	}
+
+	/**
+	 * Set the number of failed tests after which a suite run is stopped. The remaining tests are
+	 * reported as skipped.
+	 * 
+	 * @see SuiteProcessor#setFailFast(int)
+	 * 
+	 * @param failFast
+	 *            the number of failures, or 0 to never stop
+	 */
+	public void setFailFast(int failFast) {
+		this.failFast = failFast;
+	}
+
+	/**
+	 * Get the execution context that holds the globals for this runner's runs.
+	 * 
+	 * @return the execution context
+	 */
+	public ExecutionContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Set the execution context that holds the globals for this runner's runs. Defaults to the
+	 * default context behind the static {@link Globals} methods. Give each runner its own context
+	 * to run several of them in the same JVM at once.
+	 * 
+	 * @param context
+	 *            the execution context (or {@code null} for the default context)
+	 */
+	public void setContext(ExecutionContext context) {
+		this.context = (context != null ? context : Globals.getDefaultContext());
+	}
+
+	/**
+	 * Get the pool of agents suites are run across in parallel.
+	 * 
+	 * @return the agents, or null if suites are run on the single agent
+	 */
+	public List<IAgent> getParallelAgents() {
+		return parallelAgents;
+	}
+
+	/**
+	 * Set the pool of agents to run suites across in parallel (see
+	 * {@link ParallelSuiteProcessor}). Scripts are still run on the single agent.
+	 * 
+	 * @param parallelAgents
+	 *            the agents, or null to run suites on the single agent
+	 */
+	public void setParallelAgents(List<IAgent> parallelAgents) {
+		this.parallelAgents = (parallelAgents == null || parallelAgents.isEmpty() ? null
+				: new ArrayList<IAgent>(parallelAgents));
+	}
+
 	protected PlaybackListener getScriptListener() {
 		return (scriptListener != null ? scriptListener : defaultScriptListener);
 	}
@@ -423,13 +659,19 @@ public class Runner {
 
 	/** Get a new script processor with the given project dir */
 	private ScriptProcessor getScriptProcessor(File dir) {
-		scriptProcessor = new ScriptProcessor(dir, getAgent());
+		scriptProcessor = (bundle != null ? new ScriptProcessor(CommandWorld.fromBundle(bundle),
+				getAgent()) : new ScriptProcessor(dir, getAgent()));
 		scriptProcessor.setPlaybackListener(getScriptListener());
 		scriptProcessor.setGlobalTimeout(timeout);
 		scriptProcessor.setGlobalThinktime(thinktime);
 		scriptProcessor.setGlobalScreenshotOnError(screenshotOnError);
 		scriptProcessor.setTakeAfterMetrics(takeAfterMetrics);
 		scriptProcessor.setTakeAfterScreenshot(takeAfterScreenshot);
+		scriptProcessor.setScreenshotThreshold(screenshotThreshold);
+		scriptProcessor.setKeyframeInterval(keyframeInterval);
+		scriptProcessor.setBatchPlayback(batchPlayback);
+		scriptProcessor.setContext(context);
+		scriptProcessor.getWorld().setScriptCache(scriptCache);
 		return scriptProcessor;
 	}
 
@@ -443,11 +685,21 @@ public class Runner {
 	/** Run the given suite with a new suite processor (and new script processor) */
 	protected PlaybackResult runSuite(File suite) {
 		File dir = suite.getAbsoluteFile().getParentFile();
-		suiteProcessor = new SuiteProcessor(dir, getAgent(), getScriptProcessor(dir));
+		ScriptProcessor processor = getScriptProcessor(dir);
+		suiteProcessor = (parallelAgents != null ? new ParallelSuiteProcessor(
+				processor.getWorld(), parallelAgents, processor) : new SuiteProcessor(
+				processor.getWorld(), getAgent(), processor));
 		suiteProcessor.setSuiteListener(getSuiteListener());
 		suiteProcessor.setGlobalTimeout(timeout);
 		suiteProcessor.setGlobalThinktime(thinktime);
 		suiteProcessor.setGlobalScreenshotOnError(screenshotOnError);
+		suiteProcessor.setBatchPlayback(batchPlayback);
+		suiteProcessor.setContext(context);
+		suiteProcessor.setShard(shard);
+		suiteProcessor.setShardReports(shardReports);
+		suiteProcessor.setTestHistory(historyFile != null ? TestHistory.load(historyFile) : null);
+		suiteProcessor.setFailFast(failFast);
+		suiteProcessor.getWorld().setScriptCache(scriptCache);
 
 		if (getReportDir() != null) {
 			suiteProcessor.setReportDir(getReportDir());
@@ -481,7 +733,12 @@ public class Runner {
 	 * @return true if the agent is up and running, otherwise false
 	 */
 	public boolean waitUntilReady(long timeout) {
-		return getAgent().waitUntilReady(timeout * 1000);
+		boolean ready = getAgent().waitUntilReady(timeout * 1000);
+		if (ready && verbose && getAgent() instanceof MTAgent
+				&& ((MTAgent) getAgent()).getTimeToReady() >= 0) {
+			System.out.println("agent ready in " + ((MTAgent) getAgent()).getTimeToReady() + "ms");
+		}
+		return ready;
 	}
 
 	/**
@@ -15,11 +15,13 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package com.gorillalogic.monkeytalk.processor;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.gorillalogic.monkeytalk.Command;
 
@@ -38,6 +40,7 @@ public class Scope implements Cloneable {
 	private Map<String, String> variables;
 	private Command currentCommand;
 	private int currentIndex;
+	private ExecutionContext context;
 
 	/**
 	 * Instantiate an empty scope object.
@@ -225,6 +228,42 @@ public class Scope implements Cloneable {
 		}
 	}
 
+	/**
+	 * Get the execution context that holds the globals for this scope. If this scope has no context
+	 * of its own, it uses its parent's, all the way up the scope stack, and finally the default
+	 * context.
+	 * 
+	 * @return the execution context
+	 */
+	public ExecutionContext getContext() {
+		for (Scope s = this; s != null; s = s.parentScope) {
+			if (s.context != null) {
+				return s.context;
+			}
+		}
+		return Globals.getDefaultContext();
+	}
+
+	/**
+	 * Set the execution context for this scope (and any child scopes that don't have their own).
+	 * 
+	 * @param context
+	 *            the execution context
+	 */
+	public void setContext(ExecutionContext context) {
+		this.context = context;
+	}
+
+	/** True if this scope, or any scope above it, has its own execution context. */
+	boolean hasContext() {
+		for (Scope s = this; s != null; s = s.parentScope) {
+			if (s.context != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Get the current MonkeyTalk command.
 	 * 
@@ -293,13 +332,45 @@ public class Scope implements Cloneable {
 		if (command.isComment()) {
 			return command.clone();
 		} else {
+			Map<String, String> globals = getContext().getGlobals();
 			return command.clone().substitute(componentType, monkeyId, action, args,
-					merge(Globals.getGlobals(), variables));
+					(variables == null || variables.isEmpty() ? globals : new VariablesView(
+							globals, variables)));
+		}
+	}
+
+	/**
+	 * Read-only view of the named variables over the globals (with the variables overriding the
+	 * globals), so substituting a command looks variables up without copying the globals. Only
+	 * iterating the view builds the merged map.
+	 */
+	private static class VariablesView extends AbstractMap<String, String> {
+		private final Map<String, String> globals;
+		private final Map<String, String> vars;
+
+		public VariablesView(Map<String, String> globals, Map<String, String> vars) {
+			this.globals = globals;
+			this.vars = vars;
+		}
+
+		@Override
+		public String get(Object key) {
+			return (vars.containsKey(key) ? vars.get(key) : globals.get(key));
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return vars.containsKey(key) || globals.containsKey(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return merge(globals, vars).entrySet();
 		}
 	}
 
 	/** Helper to merge two maps (with m2 overriding m1) */
-	private Map<String, String> merge(Map<String, String> m1, Map<String, String> m2) {
+	private static Map<String, String> merge(Map<String, String> m1, Map<String, String> m2) {
 		Map<String, String> m = new LinkedHashMap<String, String>(m1);
 		if (m2 != null) {
 			for (Map.Entry<String, String> entry : m2.entrySet()) {
@@ -399,8 +470,10 @@ public class Scope implements Cloneable {
 
 		Scope parentClone = (parentScope == null ? null : parentScope.clone());
 
-		return new Scope(filename, parentClone, componentType, monkeyId, action, argsClone,
+		Scope clone = new Scope(filename, parentClone, componentType, monkeyId, action, argsClone,
 				variablesClone);
+		clone.context = context;
+		return clone;
 	}
 
 	@Override
@@ -0,0 +1,157 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+/**
+ * Decides which after screenshots are worth taking. Instead of a full screenshot after every
+ * command, the agent returns a cheap fingerprint of the screen (see
+ * {@link com.gorillalogic.monkeytalk.sender.CommandSender#AFTER_FINGERPRINT}), and a screenshot
+ * is only taken when:
+ * <ul>
+ * <li>the fingerprint differs from the fingerprint of the last screenshot taken by more than the
+ * threshold (in bits)</li>
+ * <li>the command failed or errored</li>
+ * <li>there is no fingerprint, or no screenshot has been taken yet</li>
+ * <li>the keyframe interval is reached, so long runs of near-identical frames still get a fresh
+ * screenshot every so often</li>
+ * </ul>
+ * Otherwise, the previous screenshot is reused.
+ */
+public class ScreenshotSampler {
+	private final int threshold;
+	private final int keyframeInterval;
+	private String last;
+	private int frames;
+	private int captured;
+	private int skipped;
+
+	/**
+	 * Instantiate a sampler with the given threshold and keyframe interval.
+	 *
+	 * @param threshold
+	 *            the number of bits the fingerprint must change by to take a screenshot (0 means
+	 *            any change)
+	 * @param keyframeInterval
+	 *            take a screenshot at least every this many frames (0 means never force one)
+	 */
+	public ScreenshotSampler(int threshold, int keyframeInterval) {
+		this.threshold = threshold;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Get the threshold, in bits.
+	 *
+	 * @return the threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Get the keyframe interval.
+	 *
+	 * @return the keyframe interval (0 if none)
+	 */
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/**
+	 * Forget the last screenshot, so the next frame is always taken.
+	 */
+	public synchronized void reset() {
+		last = null;
+		frames = 0;
+	}
+
+	/**
+	 * True if the screenshot for the frame with the given fingerprint should be taken, otherwise
+	 * false to reuse the previous screenshot.
+	 *
+	 * @param fingerprint
+	 *            the fingerprint of the frame (or null if none)
+	 * @param failed
+	 *            true if the command failed or errored
+	 * @return true to take the screenshot
+	 */
+	public synchronized boolean shouldCapture(String fingerprint, boolean failed) {
+		frames++;
+		if (fingerprint == null || failed || last == null
+				|| (keyframeInterval > 0 && frames >= keyframeInterval)
+				|| distance(last, fingerprint) > threshold) {
+			last = fingerprint;
+			frames = 0;
+			captured++;
+			return true;
+		}
+		skipped++;
+		return false;
+	}
+
+	/**
+	 * Get the number of screenshots taken.
+	 *
+	 * @return the number taken
+	 */
+	public synchronized int getCaptured() {
+		return captured;
+	}
+
+	/**
+	 * Get the number of screenshots skipped, because nothing changed.
+	 *
+	 * @return the number skipped
+	 */
+	public synchronized int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Get the number of bits that differ between the given hex fingerprints. Fingerprints that
+	 * aren't comparable (different lengths, or not hex) are either equal or completely different.
+	 *
+	 * @param a
+	 *            the first fingerprint
+	 * @param b
+	 *            the second fingerprint
+	 * @return the distance in bits, or {@link Integer#MAX_VALUE} if not comparable and not equal
+	 */
+	public static int distance(String a, String b) {
+		if (a.equalsIgnoreCase(b)) {
+			return 0;
+		} else if (a.length() != b.length()) {
+			return Integer.MAX_VALUE;
+		}
+
+		int bits = 0;
+		for (int i = 0; i < a.length(); i++) {
+			int x = Character.digit(a.charAt(i), 16);
+			int y = Character.digit(b.charAt(i), 16);
+			if (x == -1 || y == -1) {
+				return Integer.MAX_VALUE;
+			}
+			bits += Integer.bitCount(x ^ y);
+		}
+		return bits;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ScreenshotSampler: threshold=" + threshold + " keyframes=" + keyframeInterval
+				+ " captured=" + captured + " skipped=" + skipped;
+	}
+}
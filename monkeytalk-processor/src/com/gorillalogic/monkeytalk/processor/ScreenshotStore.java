@@ -0,0 +1,320 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+
+/**
+ * A folder of screenshots, keyed by content. Every screenshot is stored as
+ * {@code screenshot_<sha1>.png}, so identical frames (very common with after screenshots, when
+ * most commands don't change the screen) are only stored once, and anything that references a
+ * screenshot by name references it by content. Screenshots given to the store are moved in (or
+ * deleted, if the store already has them), so the temp files they came from are cleaned up as we
+ * go, rather than piling up until exit.
+ * <p>
+ * Screenshots can also be put in the store in the background, see {@link #putAsync(Response)},
+ * so playback doesn't wait on decoding, hashing and disk. At most {@link #QUEUE_SIZE} screenshots
+ * wait in line; after that, the caller saves the screenshot itself, which slows playback down to
+ * the speed of the disk instead of piling up screenshots in memory. Call {@link #flush()} before
+ * writing anything that needs every screenshot on disk.
+ * <p>
+ * The store keeps count of the screenshots it was given and the screenshots it actually stored,
+ * see {@link #getDedupRatio()}. It is safe to share between threads.
+ */
+public class ScreenshotStore {
+	private static final String PREFIX = "screenshot_";
+	private static final String EXT = ".png";
+	private static final Pattern STORED = Pattern.compile(PREFIX + "[0-9a-f]{40}\\" + EXT);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** The maximum number of screenshots waiting to be saved in the background. */
+	public static final int QUEUE_SIZE = 16;
+
+	private final File dir;
+	private int count;
+	private int stored;
+	private int pending;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Instantiate a screenshot store in the given folder. The folder is created with the first
+	 * screenshot.
+	 *
+	 * @param dir
+	 *            the screenshots folder
+	 */
+	public ScreenshotStore(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the screenshots folder.
+	 *
+	 * @return the folder
+	 */
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Put the given screenshot in the store. The screenshot is moved into the store (or deleted
+	 * if the store already has it).
+	 *
+	 * @param screenshot
+	 *            the screenshot, typically a temp file
+	 * @return the stored screenshot
+	 * @throws IOException
+	 */
+	public File put(File screenshot) throws IOException {
+		return put(screenshot, true);
+	}
+
+	/**
+	 * Put the given screenshot in the store.
+	 *
+	 * @param screenshot
+	 *            the screenshot
+	 * @param move
+	 *            if true, move the screenshot into the store, otherwise copy it
+	 * @return the stored screenshot
+	 * @throws IOException
+	 */
+	public File put(File screenshot, boolean move) throws IOException {
+		if (isStored(screenshot) && dir.equals(screenshot.getParentFile())) {
+			// already in the store
+			synchronized (this) {
+				count++;
+			}
+			return screenshot;
+		}
+
+		File target = new File(dir, PREFIX + hash(screenshot) + EXT);
+		boolean copy = false;
+		synchronized (this) {
+			count++;
+			if (!target.exists()) {
+				FileUtils.makeDir(dir, "failed to create " + dir.getAbsolutePath());
+				if (move && screenshot.renameTo(target)) {
+					stored++;
+					return target;
+				}
+				copy = true;
+			}
+		}
+
+		if (copy) {
+			// copy without holding the lock (the disk is slow), into a temp file next to the
+			// target, so only a quick rename is left to do under the lock
+			File tmp = File.createTempFile(PREFIX, ".tmp", dir);
+			try {
+				org.apache.commons.io.FileUtils.copyFile(screenshot, tmp);
+				synchronized (this) {
+					if (!target.exists()) {
+						if (!tmp.renameTo(target)) {
+							throw new IOException("failed to rename " + tmp.getAbsolutePath()
+									+ " to " + target.getName());
+						}
+						stored++;
+					}
+				}
+			} finally {
+				tmp.delete();
+			}
+		}
+		if (move && screenshot.exists() && !screenshot.equals(target)) {
+			screenshot.delete();
+		}
+		return target;
+	}
+
+	/**
+	 * Put the screenshot in the given response in the store, in the background. The screenshot is
+	 * decoded and saved off the calling thread.
+	 *
+	 * @param resp
+	 *            the response with the screenshot
+	 * @return the handle to the stored screenshot (null if the response has no screenshot)
+	 */
+	public Future<File> putAsync(final Response resp) {
+		return submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				File f = resp.getImageFile();
+				return (f != null ? put(f) : null);
+			}
+		});
+	}
+
+	/**
+	 * Put the given screenshot in the store, in the background. The screenshot is moved into the
+	 * store.
+	 *
+	 * @param screenshot
+	 *            the screenshot, typically a temp file
+	 * @return the handle to the stored screenshot
+	 */
+	public Future<File> putAsync(final File screenshot) {
+		return submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				return put(screenshot);
+			}
+		});
+	}
+
+	/**
+	 * Wait until every screenshot put in the store in the background is saved.
+	 */
+	public void flush() {
+		synchronized (this) {
+			while (pending > 0) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of screenshots put in the store.
+	 *
+	 * @return the count
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the number of screenshots actually stored, not counting duplicates.
+	 *
+	 * @return the number stored
+	 */
+	public synchronized int getStored() {
+		return stored;
+	}
+
+	/**
+	 * Get the dedup ratio: the number of screenshots put in the store for every one actually
+	 * stored.
+	 *
+	 * @return the ratio, or 1 if the store is empty
+	 */
+	public synchronized double getDedupRatio() {
+		return (stored > 0 ? (double) count / stored : 1);
+	}
+
+	/**
+	 * True if the given file is named like a stored screenshot, so any other file of the same
+	 * name has the same content.
+	 *
+	 * @param f
+	 *            the file
+	 * @return true if stored
+	 */
+	public static boolean isStored(File f) {
+		return f != null && STORED.matcher(f.getName()).matches();
+	}
+
+	@Override
+	public String toString() {
+		return "screenshots: " + getCount() + " taken, " + getStored() + " stored (dedup "
+				+ String.format("%.1f", getDedupRatio()) + "x) in " + dir.getAbsolutePath();
+	}
+
+	/**
+	 * Helper to run the given task on the background thread, or on the calling thread if the
+	 * queue is full.
+	 */
+	private Future<File> submit(Callable<File> callable) {
+		FutureTask<File> task = new FutureTask<File>(callable) {
+			@Override
+			protected void done() {
+				synchronized (ScreenshotStore.this) {
+					pending--;
+					ScreenshotStore.this.notifyAll();
+				}
+			}
+		};
+		ThreadPoolExecutor exec;
+		synchronized (this) {
+			pending++;
+			if (executor == null) {
+				executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "MonkeyTalk screenshots "
+										+ dir.getName());
+								t.setDaemon(true);
+								return t;
+							}
+						}, new ThreadPoolExecutor.CallerRunsPolicy());
+				executor.allowCoreThreadTimeOut(true);
+			}
+			exec = executor;
+		}
+		exec.execute(task);
+		return task;
+	}
+
+	/**
+	 * Helper to get the hex SHA-1 hash of the given file's contents.
+	 */
+	private static String hash(File f) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException("no SHA-1 - " + ex.getMessage());
+		}
+
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		return sb.toString();
+	}
+}
@@ -17,19 +17,22 @@ package com.gorillalogic.monkeytalk.processor;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.CommandWorld;
 import com.gorillalogic.monkeytalk.agents.AgentManager;
 import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.parser.CSVData;
 import com.gorillalogic.monkeytalk.processor.command.Debug;
 import com.gorillalogic.monkeytalk.processor.command.Globals;
 import com.gorillalogic.monkeytalk.processor.command.Sys;
@@ -39,7 +42,7 @@ import com.gorillalogic.monkeytalk.processor.report.Report;
 import com.gorillalogic.monkeytalk.sender.CommandSender;
 import com.gorillalogic.monkeytalk.sender.Response;
 import com.gorillalogic.monkeytalk.sender.Response.ResponseStatus;
-import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.server.JsonServer.HttpStatus;
 
 /**
  * Class for running scripts and returning a result. Provides a callback interface via
@@ -49,7 +52,6 @@ public class ScriptProcessor extends BaseProcessor {
 	private static final String SCREENSHOTS_DIR = "screenshots";
 	private static final Command SCREENSHOT_COMMAND = new Command("Device * Screenshot");
 	private static final Command METRICS_COMMAND = new Command("Device * Get dummy allinfo");
-	private static final SimpleDateFormat screenshotFmt = new SimpleDateFormat("yyyy-MM-dd_HHmmss");
 
 	private PlaybackListener listener;
 	private JSProcessor jsprocessor;
@@ -60,9 +62,24 @@ public class ScriptProcessor extends BaseProcessor {
 
 	private boolean firstCommand = false;
 	private ArrayList<String> screenshots;
+	private ScreenshotStore screenshotStore;
+
+	// responses to commands already played as part of a PLAYBATCH, keyed by command identity
+	private Map<Command, Response> batchResponses = new IdentityHashMap<Command, Response>();
+	private boolean batchUnsupported = false;
+
+	// true if the agent doesn't attach after screenshots and metrics to the PLAY response
+	private boolean afterUnsupported = false;
+
+	// decides which after screenshots to take, when the screenshot threshold is on
+	private ScreenshotSampler sampler;
+	private boolean fingerprintUnsupported = false;
 
 	// used to save the very first before screenshot (when only taking after screenshots)
-	private File beforeScreenshot = null;
+	private Future<File> beforeScreenshot = null;
+
+	// screenshots still being saved, not yet in the list of screenshots
+	private List<Future<File>> pendingScreenshots = new ArrayList<Future<File>>();
 
 	/**
 	 * Default playback listener -- all callbacks do nothing.
@@ -100,6 +117,12 @@ public class ScriptProcessor extends BaseProcessor {
 	private static final Set<String> SUITE_COMPONENTS = new HashSet<String>(Arrays.asList("test",
 			"setup", "teardown", "suite"));
 
+	/**
+	 * Components handled by the processor itself -- which are never batched.
+	 */
+	private static final Set<String> PROCESSOR_COMPONENTS = new HashSet<String>(Arrays.asList(
+			"script", "globals", "vars", "debug", "system"));
+
 	/**
 	 * Instantiate a script processor with the given host, port, and project root directory.
 	 * 
@@ -126,6 +149,18 @@ public class ScriptProcessor extends BaseProcessor {
 		super(rootDir, agent);
 	}
 
+	/**
+	 * Instantiate a script processor with the given command world and agent.
+	 * 
+	 * @param world
+	 *            the command world for the project
+	 * @param agent
+	 *            the agent to use for sending commands
+	 */
+	public ScriptProcessor(CommandWorld world, IAgent agent) {
+		super(world, agent);
+	}
+
 	/**
 	 * Get the playback listener callbacks. If not set, return the default playback listener. This
 	 * is never {@code null}.
@@ -186,6 +221,7 @@ public class ScriptProcessor extends BaseProcessor {
 		if (scope == null) {
 			scope = new Scope(filename);
 		}
+		bindContext(scope);
 
 		if (world.hasJavascriptOverride(filename)) {
 			String jsFilename = filename
@@ -249,13 +285,14 @@ public class ScriptProcessor extends BaseProcessor {
 	protected PlaybackResult runScript(List<Command> commands, Scope scope, List<Step> steps) {
 		long startTime = System.currentTimeMillis();
 
-		agent.start();
+		agent.getLifecycle().ensureStarted();
 
 		PlaybackResult result = null;
 
 		if (scope == null) {
 			scope = new Scope();
 		}
+		bindContext(scope);
 
 		if (commands == null) {
 			result = new PlaybackResult(PlaybackStatus.ERROR, "command list is null", scope);
@@ -277,8 +314,19 @@ public class ScriptProcessor extends BaseProcessor {
 		}
 
 		scope.setCurrentIndex(0);
-		for (Command cmd : commands) {
-			Command full = scope.substituteCommand(cmd);
+		LinkedList<Command> batched = new LinkedList<Command>();
+		for (int i = 0; i < commands.size(); i++) {
+			Command cmd = commands.get(i);
+			Command full;
+			if (batched.isEmpty()) {
+				full = scope.substituteCommand(cmd);
+				if (isBatchable(full)) {
+					batched = playBatch(commands, i, full, scope);
+				}
+			} else {
+				// already substituted & played as part of the current batch
+				full = batched.removeFirst();
+			}
 			Step step = new Step(full, scope, scope.getCurrentIndex());
 			steps.add(step);
 			firstCommand = cmd.equals(commands.get(0)) ? true : false;
@@ -295,10 +343,12 @@ public class ScriptProcessor extends BaseProcessor {
 				break;
 			}
 		}
+		batchResponses.clear();
 
 		// Report report = new Report(screenshotFmt.format(new Date()));
 		Report report = new Report("last_script_run");
 		File dir = new File(world.getRootDir(), SCREENSHOTS_DIR);
+		getScreenshotStore().flush();
 
 		try {
 			report.saveScreenshotsToHTML(getScreenshots(), dir);
@@ -347,6 +397,7 @@ public class ScriptProcessor extends BaseProcessor {
 			scope = new Scope();
 			scope.setCurrentIndex(0);
 		}
+		bindContext(scope);
 		scope.setCurrentCommand(cmd);
 
 		// init result
@@ -418,11 +469,11 @@ public class ScriptProcessor extends BaseProcessor {
 						+ "' must have a datafile as its first arg", scope);
 			} else {
 				String datafile = cmd.getArgs().get(0);
-				List<Map<String, String>> data = world.getData(datafile);
+				CSVData data = world.streamData(datafile);
 				if (data == null) {
 					result = new PlaybackResult(PlaybackStatus.ERROR, "datafile '" + datafile
 							+ "' not found", scope);
-				} else if (data.size() == 0) {
+				} else if (data.isEmpty()) {
 					result = new PlaybackResult(PlaybackStatus.ERROR, "datafile '" + datafile
 							+ "' has no data", scope);
 				} else {
@@ -522,9 +573,9 @@ public class ScriptProcessor extends BaseProcessor {
 				if (scope.getVariables().containsKey(key)) {
 					// local variable already in scope, so Get val into the local var
 					scope.addVariable(key, val);
-				} else if (com.gorillalogic.monkeytalk.processor.Globals.hasGlobal(key)) {
+				} else if (scope.getContext().hasGlobal(key)) {
 					// global of same name exists, so Get val into the global
-					com.gorillalogic.monkeytalk.processor.Globals.setGlobal(key, val);
+					scope.getContext().setGlobal(key, val);
 				} else {
 					// no local exists & no global exists, so create a new local var
 					scope.addVariable(key, val);
@@ -589,15 +640,11 @@ public class ScriptProcessor extends BaseProcessor {
 		}
 
 		// save screenshot in the ran command
-		if (saveScreenshots && result != null && result.getImageFile() != null) {
+		if (saveScreenshots && result != null
+				&& (result.getImageResponse() != null || result.getImageFile() != null)) {
 			this.saveResultImage(result);
 		}
 
-		// save before/after screenshots
-		if (isTakeAfterScreenshot() && (result != null) && (result.getAfterImageFile() != null)) {
-			saveAfterScreenshot(result);
-		}
-
 		// set timings
 		if (result != null) {
 			result.setStartTime(startTime);
@@ -611,75 +658,269 @@ public class ScriptProcessor extends BaseProcessor {
 		return result;
 	}
 
-	protected void saveAfterScreenshot(PlaybackResult result) {
-		try {
-			String afterFilename = "after_screenshot_" + screenshotFmt.format(new Date()) + ".png";
-			File afterScreenshotFile = saveScreenshotImage(result.getAfterImageFile(),
-					afterFilename);
-			result.setAfterImageFile(afterScreenshotFile);
-			if (firstCommand) {
-				String beforeFilename = "before_screenshot_" + screenshotFmt.format(new Date())
-						+ ".png";
-				File beforeScreenshotFile = saveScreenshotImage(result.getBeforeImageFile(),
-						beforeFilename);
-				result.setBeforeImageFile(beforeScreenshotFile);
-				beforeScreenshot = result.getAfterImageFile();
-			} else {
-				result.setBeforeImageFile(beforeScreenshot);
-				beforeScreenshot = result.getAfterImageFile();
-			}
-
-		} catch (IOException ex) {
-			result.setWarning("failed to save screenshot - " + ex.getMessage());
-		}
+	/**
+	 * Save the before and after screenshots of the given result in the background. The before
+	 * screenshot is the after screenshot of the previous command, except for the very first
+	 * command.
+	 * 
+	 * @param result
+	 *            the result
+	 * @param before
+	 *            the response with the before screenshot, or null if not the first command
+	 * @param after
+	 *            the response with the after screenshot
+	 */
+	protected void saveAfterScreenshot(PlaybackResult result, Response before, Response after) {
+		Future<File> afterImage = getScreenshotStore().putAsync(after);
+		result.setBeforeImageFuture(firstCommand && before != null ? getScreenshotStore()
+				.putAsync(before) : beforeScreenshot);
+		result.setAfterImageFuture(afterImage);
+		beforeScreenshot = afterImage;
 	}
 
+	/**
+	 * Save the screenshot of the given result in the background. If the screenshot is still in the
+	 * response, it is decoded in the background too.
+	 * 
+	 * @param result
+	 *            the result
+	 */
 	protected void saveResultImage(PlaybackResult result) {
-		try {
-			String filename = "screenshot_" + screenshotFmt.format(new Date()) + ".png";
-			File screenshotFile = saveScreenshotImage(result.getImageFile(), filename);
-			getScreenshots().add(filename);
-			result.setImageFile(screenshotFile);
-		} catch (IOException ex) {
-			result.setWarning("failed to save screenshot - " + ex.getMessage());
-		}
+		Response resp = result.getImageResponse();
+		Future<File> screenshot = (resp != null ? getScreenshotStore().putAsync(resp)
+				: getScreenshotStore().putAsync(result.getImageFile()));
+		pendingScreenshots.add(screenshot);
+		result.setImageFuture(screenshot);
 	}
 
-	protected File saveScreenshotImage(File sourceImage, String targetFilename) throws IOException {
-		File dir = new File(world.getRootDir(), SCREENSHOTS_DIR);
-		FileUtils.makeDir(dir, "failed to create " + dir.getAbsolutePath());
+	/**
+	 * Get the store for all screenshots taken during playback, in the project's
+	 * {@code screenshots} folder.
+	 * 
+	 * @return the screenshot store
+	 */
+	public synchronized ScreenshotStore getScreenshotStore() {
+		if (screenshotStore == null) {
+			screenshotStore = new ScreenshotStore(new File(world.getRootDir(), SCREENSHOTS_DIR));
+		}
+		return screenshotStore;
+	}
 
-		FileUtils.makeDir(dir, "failed to create " + dir.getAbsolutePath());
-		File screenshotFile = new File(dir, targetFilename);
-		org.apache.commons.io.FileUtils.copyFile(sourceImage, screenshotFile);
-		return screenshotFile;
+	/**
+	 * Set the store for all screenshots taken during playback, so several processors can share
+	 * one store.
+	 * 
+	 * @param screenshotStore
+	 *            the screenshot store
+	 */
+	public synchronized void setScreenshotStore(ScreenshotStore screenshotStore) {
+		this.screenshotStore = screenshotStore;
 	}
 
 	protected PlaybackResult playbackVanillaCommand(Command cmd, Scope scope) {
 		getPlaybackListener().onStart(scope);
-		File before = null;
-		File after = null;
+		Response before = null;
+		Response after = null;
 		String metrics = null;
+		boolean reuse = false;
 
 		if (isTakeAfterScreenshot() && firstCommand) {
-			before = runCommand(SCREENSHOT_COMMAND).getImageFile();
+			before = runCommand(SCREENSHOT_COMMAND);
 		}
 
-		Response resp = runCommand(cmd);
+		// ask the agent to attach the after screenshot and metrics, to save two round trips
+		boolean attach = (isTakeAfterScreenshot() || isTakeAfterMetrics()) && !afterUnsupported
+				&& agent.getCommandSender().isSendable(cmd) && !batchResponses.containsKey(cmd);
+		// with the screenshot threshold on, ask for just the fingerprint instead
+		boolean sample = attach && isTakeAfterScreenshot() && getScreenshotThreshold() >= 0
+				&& !fingerprintUnsupported;
+		List<String> wanted = new ArrayList<String>();
+		if (attach && isTakeAfterScreenshot()) {
+			wanted.add(sample ? CommandSender.AFTER_FINGERPRINT : CommandSender.AFTER_IMAGE);
+		}
+		if (attach && isTakeAfterMetrics()) {
+			wanted.add(CommandSender.AFTER_METRICS);
+		}
+		Response resp = runCommand(cmd, wanted.toArray(new String[wanted.size()]));
+
+		if (attach && isTakeAfterMetrics()) {
+			metrics = resp.getMetrics();
+		}
+		if (attach && isTakeAfterScreenshot() && !sample) {
+			if (resp.getAfterImageFile() != null) {
+				// sent as binary, so it is already a temp file and there is nothing to decode
+				after = new Response(HttpStatus.OK.getCode(), null, resp.getAfterImageFile());
+			} else if (resp.getAfterImage() != null) {
+				after = new Response(ResponseStatus.OK, null, null, resp.getAfterImage());
+			}
+		}
+		if (attach && ((isTakeAfterMetrics() && metrics == null) || (isTakeAfterScreenshot()
+				&& !sample && after == null)) && resp.getStatus() == ResponseStatus.OK) {
+			// an older agent, so always get them separately from now on
+			afterUnsupported = true;
+		}
+		if (sample) {
+			if (resp.getFingerprint() == null && resp.getStatus() == ResponseStatus.OK) {
+				// an agent without fingerprints, so take every after screenshot from now on
+				fingerprintUnsupported = true;
+			} else {
+				reuse = !getScreenshotSampler().shouldCapture(resp.getFingerprint(),
+						resp.getStatus() != ResponseStatus.OK)
+						&& beforeScreenshot != null;
+			}
+		}
 
-		if (isTakeAfterMetrics()) {
+		if (isTakeAfterMetrics() && metrics == null) {
 			metrics = runCommand(METRICS_COMMAND).getMessage();
 		}
-		if (isTakeAfterScreenshot()) {
-			after = runCommand(SCREENSHOT_COMMAND).getImageFile();
+		if (isTakeAfterScreenshot() && after == null && !reuse) {
+			after = runCommand(SCREENSHOT_COMMAND);
 		}
 
 		getPlaybackListener().onComplete(scope, resp);
-		PlaybackResult result = new PlaybackResult(resp, scope, (firstCommand ? before
-				: beforeScreenshot), after, metrics);
+		PlaybackResult result = new PlaybackResult(resp, scope, null, null, metrics);
+		if (after != null) {
+			saveAfterScreenshot(result, before, after);
+		} else if (reuse) {
+			// nothing changed, so the after screenshot is the previous one
+			result.setBeforeImageFuture(beforeScreenshot);
+			result.setAfterImageFuture(beforeScreenshot);
+		}
 		return result;
 	}
 
+	/**
+	 * Get the screenshot sampler used when the screenshot threshold is on, created anew whenever
+	 * the threshold or keyframe interval change.
+	 * 
+	 * @return the screenshot sampler
+	 */
+	protected ScreenshotSampler getScreenshotSampler() {
+		if (sampler == null || sampler.getThreshold() != getScreenshotThreshold()
+				|| sampler.getKeyframeInterval() != getKeyframeInterval()) {
+			sampler = new ScreenshotSampler(getScreenshotThreshold(), getKeyframeInterval());
+		}
+		if (firstCommand) {
+			// the first command of a script always has a fresh before screenshot
+			sampler.reset();
+		}
+		return sampler;
+	}
+
+	/**
+	 * Helper to determine if the given fully-substituted command can be played as part of a
+	 * {@link CommandSender#PLAYBATCH}. Only vanilla commands that need no client-side logic (aka
+	 * no Get into a variable, no Script.RunIf, no custom command, no WaitFor, no shouldFail, no
+	 * before/after screenshots or metrics) are batchable.
+	 * 
+	 * @param cmd
+	 *            the fully-substituted command
+	 * @return true if batchable, otherwise false
+	 */
+	private boolean isBatchable(Command cmd) {
+		if (!isBatchPlayback() || batchUnsupported || isTakeAfterScreenshot()
+				|| isTakeAfterMetrics()) {
+			return false;
+		}
+		if (!agent.getCommandSender().isSendable(cmd) || cmd.isIgnored() || cmd.shouldFail()) {
+			return false;
+		}
+
+		String componentType = cmd.getComponentType().toLowerCase();
+		String action = (cmd.getAction() != null ? cmd.getAction().toLowerCase() : "");
+		if (PROCESSOR_COMPONENTS.contains(componentType)
+				|| SUITE_COMPONENTS.contains(componentType) || "verifyimage".equals(action)
+				|| "get".equals(action) || "execandreturn".equals(action)
+				|| action.startsWith("waitfor")) {
+			return false;
+		}
+
+		return !world.fileExists(getCustomCommandFilename(cmd));
+	}
+
+	/**
+	 * Starting with the given (already substituted) command, substitute and collect the run of
+	 * batchable commands that follows it, and play them all in a single
+	 * {@link CommandSender#PLAYBATCH} round trip. Comments and other commands that never go over the
+	 * wire are skipped over, rather than ending the batch. The per-command responses are stashed for
+	 * {@link ScriptProcessor#runCommand(Command)}, so every command still steps through
+	 * {@link ScriptProcessor#runScript(Command, Scope)} and fires its {@link PlaybackListener}
+	 * callbacks as usual, but only after the whole batch was played (see
+	 * {@link PlaybackListener#onStart(Scope)}). Because vanilla commands never change any
+	 * variables, substituting ahead of time yields the same commands as substituting one at a
+	 * time.
+	 * 
+	 * @param commands
+	 *            the list of commands
+	 * @param index
+	 *            the index of the first command of the batch
+	 * @param first
+	 *            the first command of the batch (already substituted)
+	 * @param scope
+	 *            the scope
+	 * @return the remaining (already substituted) commands of the batch, in order, or an empty list
+	 *         if nothing was batched
+	 */
+	private LinkedList<Command> playBatch(List<Command> commands, int index, Command first,
+			Scope scope) {
+		List<Command> run = new ArrayList<Command>();
+		List<Command> batch = new ArrayList<Command>();
+		run.add(first);
+		batch.add(first);
+		for (int i = index + 1; i < commands.size(); i++) {
+			Command full = scope.substituteCommand(commands.get(i));
+			if (isBatchable(full)) {
+				batch.add(full);
+			} else if (!isPassThrough(full)) {
+				break;
+			}
+			run.add(full);
+		}
+
+		LinkedList<Command> remaining = new LinkedList<Command>();
+		if (batch.size() < 2) {
+			return remaining;
+		}
+
+		for (Command cmd : batch) {
+			cmd.setDefaultTimeout(getGlobalTimeout());
+			cmd.setDefaultThinktime(getGlobalThinktime());
+			prepareCommand(cmd);
+		}
+
+		List<Response> responses = agent.getCommandSender().playBatch(batch);
+		if (responses == null) {
+			// agent doesn't speak PLAYBATCH, so just play one command at a time from now on
+			batchUnsupported = true;
+			return remaining;
+		}
+
+		for (int i = 0; i < responses.size() && i < batch.size(); i++) {
+			batchResponses.put(batch.get(i), responses.get(i));
+		}
+		remaining.addAll(run.subList(1, run.size()));
+		return remaining;
+	}
+
+	/**
+	 * Helper to determine if the given fully-substituted command never goes over the wire and
+	 * needs no processing (aka a comment, an ignored command, or a {@code Doc} command), and so
+	 * doesn't break up a batch.
+	 * 
+	 * @param cmd
+	 *            the fully-substituted command
+	 * @return true if the command can sit inside a batch, otherwise false
+	 */
+	private boolean isPassThrough(Command cmd) {
+		if (cmd.isComment() || cmd.isIgnored()) {
+			return true;
+		}
+		String componentType = cmd.getComponentType().toLowerCase();
+		return !agent.getCommandSender().isSendable(cmd)
+				&& !PROCESSOR_COMPONENTS.contains(componentType)
+				&& !SUITE_COMPONENTS.contains(componentType);
+	}
+
 	/**
 	 * Helper to determine if we should abort playback.
 	 * 
@@ -723,25 +964,25 @@ public class ScriptProcessor extends BaseProcessor {
 	 * @return the result (OK, ERROR, or FAILURE)
 	 */
 	public Response runCommand(Command command) {
+		return runCommand(command, new String[0]);
+	}
+
+	/**
+	 * Play a single fully-substituted command, like {@link #runCommand(Command)}, but also ask the
+	 * agent to attach what it captures after playing the command to the response (see
+	 * {@link CommandSender#play(Command, String...)}).
+	 * 
+	 * @param command
+	 *            the MonkeyTalk command
+	 * @param after
+	 *            what to attach (empty for nothing)
+	 * @return the result (OK, ERROR, or FAILURE)
+	 */
+	protected Response runCommand(Command command, String... after) {
 		abortOnError = true;
 		abortOnFailure = true;
 
-		if (!isGlobalScreenshotOnError()
-				&& !command.getModifiers().containsKey(Command.SCREENSHOT_ON_ERROR)) {
-			// If global screenshot is OFF & it hasn't been explicitly set on
-			// command,
-			// then explicitly set it to off on the command (so it'll be sent
-			// over the wire)
-			command.setScreenshotOnError(false);
-		}
-
-		if (command.shouldFail()
-				&& !command.getModifiers().containsKey(Command.SCREENSHOT_ON_ERROR)) {
-			// if shouldFail is on & screenshotonerror hasn't been explicitly
-			// set on command,
-			// then turn off screenshots
-			command.setScreenshotOnError(false);
-		}
+		prepareCommand(command);
 
 		// %abort=error,fail,never on a per-command basis
 		if (command.getModifiers().containsKey(Command.ABORT_MODIFIER)) {
@@ -760,7 +1001,13 @@ public class ScriptProcessor extends BaseProcessor {
 			}
 		}
 
-		Response resp = agent.getCommandSender().play(command);
+		// if the command was already played as part of a batch, use its response
+		Response resp = batchResponses.remove(command);
+		if (resp == null) {
+			resp = (after.length > 0 ? agent.getCommandSender().play(command, after) : agent
+					.getCommandSender().play(command));
+		}
+		Response played = resp;
 		// check if should fail, and rewrite response if necessary
 		if (command.shouldFail()) {
 			if (resp.getStatus() == ResponseStatus.OK) {
@@ -772,11 +1019,38 @@ public class ScriptProcessor extends BaseProcessor {
 				resp = new Response(ResponseStatus.OK, "expected failure : " + resp.getMessage(),
 						resp.getWarning(), resp.getImage());
 			}
+			resp.setAfter(played);
 		}
 
 		return resp;
 	}
 
+	/**
+	 * Helper to set the screenshot on error modifier on the given command, so it goes over the wire
+	 * correctly.
+	 * 
+	 * @param command
+	 *            the MonkeyTalk command
+	 */
+	private void prepareCommand(Command command) {
+		if (!isGlobalScreenshotOnError()
+				&& !command.getModifiers().containsKey(Command.SCREENSHOT_ON_ERROR)) {
+			// If global screenshot is OFF & it hasn't been explicitly set on
+			// command,
+			// then explicitly set it to off on the command (so it'll be sent
+			// over the wire)
+			command.setScreenshotOnError(false);
+		}
+
+		if (command.shouldFail()
+				&& !command.getModifiers().containsKey(Command.SCREENSHOT_ON_ERROR)) {
+			// if shouldFail is on & screenshotonerror hasn't been explicitly
+			// set on command,
+			// then turn off screenshots
+			command.setScreenshotOnError(false);
+		}
+	}
+
 	/**
 	 * From the given command, compute the filename as if it is a custom component. Return the
 	 * computed filename lowercased.
@@ -802,6 +1076,20 @@ public class ScriptProcessor extends BaseProcessor {
 		if (screenshots == null)
 			screenshots = new ArrayList<String>();
 
+		for (Future<File> screenshot : pendingScreenshots) {
+			try {
+				File f = screenshot.get();
+				if (f != null) {
+					screenshots.add(f.getName());
+				}
+			} catch (ExecutionException ex) {
+				// failed to save, so no screenshot
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		pendingScreenshots.clear();
 		return screenshots;
 	}
 
@@ -0,0 +1,170 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * One slice of a suite split across several executors, like {@code 2/4} for the second of four
+ * slices. Every test in the flattened suite (see {@link SuiteFlattener#getTests(String)}) goes to
+ * exactly one shard. The split is deterministic, so each executor works out its own slice with no
+ * coordination, as long as they all see the same suite and the same test durations.
+ * <p>
+ * Without durations, tests are dealt out round-robin. With durations from previous reports, the
+ * longest tests are placed first, each on the least loaded shard, so every shard takes about the
+ * same time. Tests with no recorded duration are assumed to take the average.
+ */
+public class Shard {
+	private final int index;
+	private final int count;
+
+	/**
+	 * Instantiate a shard.
+	 *
+	 * @param index
+	 *            the 1-based shard index
+	 * @param count
+	 *            the total number of shards
+	 * @throws IllegalArgumentException
+	 *             if the index is not between 1 and count
+	 */
+	public Shard(int index, int count) {
+		if (count < 1 || index < 1 || index > count) {
+			throw new IllegalArgumentException("bad shard '" + index + "/" + count
+					+ "' -- shard must be i/n, with i between 1 and n");
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parse the given shard spec, like {@code 2/4}.
+	 *
+	 * @param spec
+	 *            the shard spec
+	 * @return the shard
+	 * @throws IllegalArgumentException
+	 *             if the spec is bad
+	 */
+	public static Shard parse(String spec) {
+		String[] parts = (spec != null ? spec.trim().split("/") : new String[0]);
+		if (parts.length == 2) {
+			try {
+				return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1]
+						.trim()));
+			} catch (NumberFormatException ex) {
+				// fall through
+			}
+		}
+		throw new IllegalArgumentException("bad shard '" + spec
+				+ "' -- shard must be i/n, like 1/4");
+	}
+
+	/**
+	 * Get the 1-based shard index.
+	 *
+	 * @return the index
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the total number of shards.
+	 *
+	 * @return the count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Select the tests in this shard.
+	 *
+	 * @param tests
+	 *            the tests in the flattened suite, in order
+	 * @param durations
+	 *            the test durations (in ms) from previous reports, or null
+	 * @return the positions (in the flattened suite) of the tests in this shard
+	 */
+	public Set<Integer> select(List<String> tests, Map<String, Long> durations) {
+		Set<Integer> selected = new TreeSet<Integer>();
+
+		long known = 0;
+		int numKnown = 0;
+		if (durations != null) {
+			for (String test : tests) {
+				Long duration = durations.get(test);
+				if (duration != null) {
+					known += duration;
+					numKnown++;
+				}
+			}
+		}
+
+		if (numKnown == 0) {
+			for (int i = index - 1; i < tests.size(); i += count) {
+				selected.add(i);
+			}
+			return selected;
+		}
+
+		final long[] weights = new long[tests.size()];
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < tests.size(); i++) {
+			Long duration = durations.get(tests.get(i));
+			weights[i] = Math.max(duration != null ? duration : known / numKnown, 1);
+			order.add(i);
+		}
+
+		// longest first, ties in suite order
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (weights[a] != weights[b]) {
+					return (weights[a] > weights[b] ? -1 : 1);
+				}
+				return a.compareTo(b);
+			}
+		});
+
+		long[] loads = new long[count];
+		for (int i : order) {
+			int least = 0;
+			for (int j = 1; j < count; j++) {
+				if (loads[j] < loads[least]) {
+					least = j;
+				}
+			}
+			loads[least] += weights[i];
+			if (least == index - 1) {
+				selected.add(i);
+			}
+		}
+		return selected;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
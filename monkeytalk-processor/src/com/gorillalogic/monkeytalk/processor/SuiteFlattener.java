@@ -16,14 +16,21 @@
 package com.gorillalogic.monkeytalk.processor;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.parser.CSVData;
+import com.gorillalogic.monkeytalk.processor.report.Report;
+import com.gorillalogic.monkeytalk.processor.report.ReportReader;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
 
 /**
- * Helper class to count the total number of tests in a suite.
+ * Helper class to count the total number of tests in a suite, or to list them.
+ * 
+ * @see SuiteGraph
  */
 public class SuiteFlattener {
 	public static final int BAD_FILENAME = -1;
@@ -66,42 +73,108 @@ public class SuiteFlattener {
 			return BAD_FILENAME;
 		}
 
-		List<Command> commands = world.getSuite(filename);
+		return new SuiteGraph(world, filename).getRoot().getTotal();
+	}
 
-		if (commands == null) {
-			if (filename.toLowerCase().endsWith(CommandWorld.SCRIPT_EXT)) {
-				return BAD_SUITE;
-			}
-			return SUITE_NOT_FOUND;
-		} else if (commands.size() == 0) {
-			return 0;
+	/**
+	 * List every test in the given suite, in order, one entry per test counted by
+	 * {@link #flatten(String)}. Each test is identified by its path in the suite, the same way
+	 * {@link ReportReader} identifies the tests in a report, so a test's position in the list is
+	 * its position in the flattened suite. Returns an empty list upon error.
+	 * 
+	 * @param filename
+	 *            the suite filename
+	 * @return the tests in the suite
+	 */
+	public List<String> getTests(String filename) {
+		if (filename == null) {
+			return new ArrayList<String>();
+		}
+		return getTests(new SuiteGraph(world, filename), Globals.getDefaultContext());
+	}
+
+	/**
+	 * List every test in the given suite graph, in order, with the suite commands substituted
+	 * using the globals in the given context.
+	 * 
+	 * @see SuiteFlattener#getTests(String)
+	 * 
+	 * @param graph
+	 *            the suite graph
+	 * @param context
+	 *            the execution context
+	 * @return the tests in the suite
+	 */
+	public static List<String> getTests(SuiteGraph graph, ExecutionContext context) {
+		List<String> tests = new ArrayList<String>();
+		getTests(graph, context, tests, null);
+		return tests;
+	}
+
+	/**
+	 * List every test in the given suite graph, in order, along with the script each test runs.
+	 * 
+	 * @param graph
+	 *            the suite graph
+	 * @param context
+	 *            the execution context
+	 * @param tests
+	 *            the list to add the tests to
+	 * @param scripts
+	 *            the list to add the scripts to (null if not wanted)
+	 */
+	static void getTests(SuiteGraph graph, ExecutionContext context, List<String> tests,
+			List<String> scripts) {
+		if (graph.getRoot().getTotal() > 0) {
+			Scope scope = new Scope(graph.getRoot().getFilename());
+			scope.setContext(context);
+			getTests(graph, graph.getRoot(), "", scope, tests, scripts);
 		}
+	}
 
-		int i = 0;
-
-		for (Command cmd : commands) {
-			if ("test.run".equalsIgnoreCase(cmd.getCommandName())) {
-				i++;
-			} else if ("test.runwith".equalsIgnoreCase(cmd.getCommandName())) {
-				if (cmd.getArgs().size() == 0) {
-					i++;
-				} else {
-					String datafile = cmd.getArgs().get(0);
-					List<Map<String, String>> data = world.getData(datafile);
-					if (data == null) {
-						i++;
-					} else if (data.size() == 0) {
-						i++;
-					} else {
-						i += data.size();
+	/**
+	 * Helper to list the tests in the given suite, recursing into nested suites.
+	 */
+	private static void getTests(SuiteGraph graph, SuiteGraph.Node suite, String path,
+			Scope scope, List<String> tests, List<String> scripts) {
+		List<Command> commands = suite.getCommands();
+		for (int i = 0; i < commands.size(); i++) {
+			int count = suite.getCount(i);
+			if (count == 0) {
+				continue;
+			}
+
+			Command cmd = commands.get(i);
+			Command full = scope.substituteCommand(cmd);
+			int start = tests.size();
+			if ("suite.run".equalsIgnoreCase(cmd.getCommandName())) {
+				getTests(graph, graph.getSuite(cmd.getMonkeyId()), ReportReader.getPath(path,
+						FileUtils.removeExt(full.getMonkeyId(), CommandWorld.SUITE_EXT)), scope,
+						tests, scripts);
+				continue;
+			} else if ("test.runwith".equalsIgnoreCase(cmd.getCommandName()) && !full.isIgnored()
+					&& full.getArgs().size() > 0) {
+				CSVData data = graph.getWorld().streamData(full.getArgs().get(0));
+				if (data != null) {
+					for (Map<String, String> datum : data) {
+						if (tests.size() - start == count) {
+							break;
+						}
+						tests.add(ReportReader.getPath(path, Report.getTestName(full, datum)));
 					}
 				}
-			} else if ("suite.run".equalsIgnoreCase(cmd.getCommandName())) {
-				i += flatten(cmd.getMonkeyId());
 			}
-		}
 
-		return i;
+			// everything else is a single result in the report, no matter how many it counts for
+			while (tests.size() - start < count) {
+				tests.add(ReportReader.getPath(path, Report.getTestName(full, null)));
+			}
+			if (scripts != null) {
+				for (int j = 0; j < count; j++) {
+					scripts.add(full.getMonkeyId());
+				}
+			}
+		}
 	}
 
 	@Override
@@ -0,0 +1,344 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.finder.Finder;
+import com.gorillalogic.monkeytalk.parser.CSVData;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+
+/**
+ * The dependency graph of a suite: every suite it runs (recursively), each parsed just once, along
+ * with their tests, setup and teardown commands, datafiles, and total test counts. The graph is
+ * built once per run, and used both to report progress and to run the suite. A suite run
+ * multiple times (or by multiple parent suites) is only parsed and counted once.
+ * <p>
+ * The graph can be reused across runs for as long as it is {@link #isCurrent() current}, meaning
+ * none of its suites or datafiles were modified, and no files were added to or removed from the
+ * project.
+ *
+ * @see SuiteFlattener
+ */
+public class SuiteGraph {
+	private final CommandWorld world;
+	private final Node root;
+	private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+	private final Map<String, Integer> dataRows = new HashMap<String, Integer>();
+	private final Map<File, Long> stamps = new HashMap<File, Long>();
+	private final long built;
+	private boolean trusted = true;
+
+	/**
+	 * Build the graph for the given suite.
+	 *
+	 * @param world
+	 *            the command world for the project
+	 * @param filename
+	 *            the suite filename
+	 */
+	public SuiteGraph(CommandWorld world, String filename) {
+		this.world = world;
+		built = System.currentTimeMillis();
+		stamp(world.getRootDir());
+		root = node(filename);
+	}
+
+	/**
+	 * Get the command world.
+	 *
+	 * @return the command world
+	 */
+	public CommandWorld getWorld() {
+		return world;
+	}
+
+	/**
+	 * Get the root suite, aka the suite the graph was built for.
+	 *
+	 * @return the root suite
+	 */
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * Get the given suite from the graph.
+	 *
+	 * @param filename
+	 *            the suite filename
+	 * @return the suite, or null if it isn't part of the graph
+	 */
+	public Node getSuite(String filename) {
+		return (filename == null ? null : nodes.get(filename.toLowerCase()));
+	}
+
+	/**
+	 * Get all the suites in the graph, starting with the root suite.
+	 *
+	 * @return the suites
+	 */
+	public List<Node> getSuites() {
+		return new ArrayList<Node>(nodes.values());
+	}
+
+	/**
+	 * Get the number of data rows in the given datafile, as counted when the graph was built.
+	 *
+	 * @param datafile
+	 *            the datafile filename
+	 * @return the number of data rows, or -1 if the datafile isn't part of the graph or doesn't
+	 *         exist
+	 */
+	public int getDataRows(String datafile) {
+		Integer rows = dataRows.get(datafile);
+		return (rows != null ? rows : -1);
+	}
+
+	/**
+	 * True if none of the suites or datafiles in the graph have changed since the graph was
+	 * built, so it is safe to reuse the graph.
+	 *
+	 * @return true if current
+	 */
+	public boolean isCurrent() {
+		if (!trusted) {
+			return false;
+		}
+		for (Map.Entry<File, Long> stamp : stamps.entrySet()) {
+			if (stamp(stamp.getKey(), stamp.getKey().lastModified()) != stamp.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "SuiteGraph[" + (root != null ? root.getFilename() : null) + ":" + nodes.size()
+				+ " suites]";
+	}
+
+	/**
+	 * Helper to get the node for the given suite, building it (and all its nested suites) if
+	 * needed.
+	 */
+	private Node node(String filename) {
+		if (filename == null) {
+			return new Node(null, SuiteFlattener.BAD_FILENAME);
+		}
+
+		String key = filename.toLowerCase();
+		Node node = nodes.get(key);
+		if (node != null) {
+			return node;
+		}
+
+		List<Command> commands = world.getSuite(filename);
+		if (commands == null) {
+			node = new Node(filename, filename.toLowerCase().endsWith(CommandWorld.SCRIPT_EXT)
+					? SuiteFlattener.BAD_SUITE : SuiteFlattener.SUITE_NOT_FOUND);
+			nodes.put(key, node);
+			return node;
+		}
+
+		stamp(world.getSuiteFile(filename));
+		node = new Node(filename, commands);
+		nodes.put(key, node);
+
+		int total = 0;
+		for (int i = 0; i < commands.size(); i++) {
+			Command cmd = commands.get(i);
+			int count = 0;
+			if ("test.run".equalsIgnoreCase(cmd.getCommandName())) {
+				count = 1;
+			} else if ("test.runwith".equalsIgnoreCase(cmd.getCommandName())) {
+				if (cmd.getArgs().size() == 0) {
+					count = 1;
+				} else {
+					int rows = rows(cmd.getArgs().get(0));
+					count = (rows > 0 ? rows : 1);
+				}
+			} else if ("suite.run".equalsIgnoreCase(cmd.getCommandName())) {
+				Node suite = getSuite(cmd.getMonkeyId());
+				if (suite != null && suite.total == null) {
+					// recursive suite, so don't count it (again)
+					continue;
+				}
+				suite = node(cmd.getMonkeyId());
+				node.suites.add(suite);
+				count = Math.max(suite.getTotal(), 0);
+				total += suite.getTotal();
+				node.counts[i] = count;
+				continue;
+			}
+			node.counts[i] = count;
+			total += count;
+		}
+		node.total = total;
+		return node;
+	}
+
+	/**
+	 * Helper to count the data rows in the given datafile, or -1 if it doesn't exist.
+	 */
+	private int rows(String datafile) {
+		Integer rows = dataRows.get(datafile);
+		if (rows == null) {
+			CSVData data = world.streamData(datafile);
+			if (data != null) {
+				stamp(data.getFile());
+			}
+			rows = (data != null ? data.size() : -1);
+			dataRows.put(datafile, rows);
+		}
+		return rows;
+	}
+
+	/**
+	 * Helper to remember the given file's last modified time and size, so any change is noticed.
+	 */
+	private void stamp(File f) {
+		if (f != null) {
+			long modified = f.lastModified();
+			if (built - modified <= FileUtils.MTIME_RESOLUTION) {
+				trusted = false;
+			}
+			stamps.put(f, stamp(f, modified));
+		}
+	}
+
+	/**
+	 * Helper to combine the given file's last modified time and size into a single stamp. The
+	 * size of a directory isn't meaningful, so it is ignored.
+	 */
+	private static long stamp(File f, long modified) {
+		return (f.isDirectory() ? modified : modified * 31 + f.length());
+	}
+
+	/**
+	 * A suite in the graph.
+	 */
+	public static class Node {
+		private final String filename;
+		private final List<Command> commands;
+		private final List<Command> setup;
+		private final List<Command> teardown;
+		private final List<Node> suites = new ArrayList<Node>();
+		private final int[] counts;
+		private Integer total;
+
+		private Node(String filename, int error) {
+			this.filename = filename;
+			this.commands = null;
+			this.setup = null;
+			this.teardown = null;
+			this.counts = new int[0];
+			this.total = error;
+		}
+
+		private Node(String filename, List<Command> commands) {
+			this.filename = filename;
+			this.commands = Collections.unmodifiableList(commands);
+			this.setup = Finder.findCommandsByComponentType(commands, "setup");
+			this.teardown = Finder.findCommandsByComponentType(commands, "teardown");
+			this.counts = new int[commands.size()];
+		}
+
+		/**
+		 * Get the suite filename.
+		 *
+		 * @return the filename
+		 */
+		public String getFilename() {
+			return filename;
+		}
+
+		/**
+		 * Get the commands parsed from the suite.
+		 *
+		 * @return the commands, or null if the suite doesn't exist
+		 */
+		public List<Command> getCommands() {
+			return commands;
+		}
+
+		/**
+		 * Get the suite's setup commands.
+		 *
+		 * @return the setup commands, or null if the suite doesn't exist
+		 */
+		public List<Command> getSetup() {
+			return setup;
+		}
+
+		/**
+		 * Get the suite's teardown commands.
+		 *
+		 * @return the teardown commands, or null if the suite doesn't exist
+		 */
+		public List<Command> getTeardown() {
+			return teardown;
+		}
+
+		/**
+		 * Get the suites run by this suite.
+		 *
+		 * @return the nested suites
+		 */
+		public List<Node> getSuites() {
+			return Collections.unmodifiableList(suites);
+		}
+
+		/**
+		 * Get the total number of tests in the suite, including the tests in all its nested
+		 * suites, with data-driven tests counted once per data row. Same as
+		 * {@link SuiteFlattener#flatten(String)}, so negative values are errors.
+		 *
+		 * @return the total number of tests
+		 */
+		public int getTotal() {
+			return (total != null ? total : 0);
+		}
+
+		/**
+		 * Get the number of tests run by the command at the given index in the suite: one for a
+		 * test, one per data row for a data-driven test, the nested suite's total for a suite,
+		 * and zero for everything else. The counts always add up to {@link #getTotal()} (unless
+		 * the total is an error), so each test has a fixed position in the flattened suite.
+		 *
+		 * @param index
+		 *            the command index
+		 * @return the number of tests
+		 */
+		public int getCount(int index) {
+			return (index >= 0 && index < counts.length ? counts[index] : 0);
+		}
+
+		@Override
+		public String toString() {
+			return "SuiteGraph.Node[" + filename + ":" + getTotal() + "]";
+		}
+	}
+}
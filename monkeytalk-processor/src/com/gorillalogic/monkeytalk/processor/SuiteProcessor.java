@@ -18,15 +18,21 @@ package com.gorillalogic.monkeytalk.processor;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.CommandWorld;
 import com.gorillalogic.monkeytalk.agents.AgentManager;
 import com.gorillalogic.monkeytalk.agents.IAgent;
-import com.gorillalogic.monkeytalk.finder.Finder;
+import com.gorillalogic.monkeytalk.parser.CSVData;
 import com.gorillalogic.monkeytalk.processor.report.Report;
+import com.gorillalogic.monkeytalk.processor.report.ReportReader;
 
 /**
  * Run a suite and output an JUnit-compatible XML report.
@@ -39,6 +45,16 @@ public class SuiteProcessor extends BaseProcessor {
 	private File reportDir;
 	private File reportFile;
 	private boolean abortByRequest = false;
+	private SuiteGraph graph;
+	private Shard shard;
+	private File shardReports;
+	private Set<Integer> selected;
+	private int position;
+	private TestHistory history;
+	private Map<String, String> stamps;
+	private int[] ranks;
+	private int failFast;
+	private final AtomicInteger failures = new AtomicInteger();
 
 	/**
 	 * Default suite listener -- all callbacks do nothing.
@@ -113,6 +129,24 @@ public class SuiteProcessor extends BaseProcessor {
 	public SuiteProcessor(File rootDir, IAgent agent, ScriptProcessor processor) {
 		super(rootDir, agent);
 		this.processor = (processor == null ? new ScriptProcessor(rootDir, agent) : processor);
+		this.context = this.processor.getContext();
+	}
+
+	/**
+	 * Instantiate a suite processor with the given command world, agent, and ScriptProcessor.
+	 * 
+	 * @param world
+	 *            the command world for the project
+	 * @param agent
+	 *            the agent
+	 * @param processor
+	 *            the {@code ScriptProcessor} to use. If null, a newly created ScriptProcessor
+	 *            (sharing the command world) will be used.
+	 */
+	public SuiteProcessor(CommandWorld world, IAgent agent, ScriptProcessor processor) {
+		super(world, agent);
+		this.processor = (processor == null ? new ScriptProcessor(world, agent) : processor);
+		this.context = this.processor.getContext();
 	}
 
 	/**
@@ -160,6 +194,81 @@ public class SuiteProcessor extends BaseProcessor {
 		this.reportDir = reportDir;
 	}
 
+	/**
+	 * Get the shard of the suite to run.
+	 * 
+	 * @return the shard, or null to run the whole suite
+	 */
+	public Shard getShard() {
+		return shard;
+	}
+
+	/**
+	 * Set the shard of the suite to run, so only the tests in the shard are run and reported.
+	 * 
+	 * @param shard
+	 *            the shard, or null to run the whole suite
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Set the previous XML report (or folder of reports) used to balance the shards by test
+	 * duration. Every shard must be given the same reports, otherwise they won't agree on the
+	 * split. If not set, the tests are split evenly by count.
+	 * 
+	 * @see ReportReader#readDurations(File)
+	 * 
+	 * @param shardReports
+	 *            the report file or folder
+	 */
+	public void setShardReports(File shardReports) {
+		this.shardReports = shardReports;
+	}
+
+	/**
+	 * Get the test history used to order the tests.
+	 * 
+	 * @return the history, or null to run tests in suite order
+	 */
+	public TestHistory getTestHistory() {
+		return history;
+	}
+
+	/**
+	 * Set the test history used to order the tests, so the tests that failed recently, and new or
+	 * changed tests, are run first (see {@link TestHistory}). Within each suite, its tests (and
+	 * nested suites) are run in order of the highest ranked test they contain. The history is
+	 * updated and saved at the end of every run.
+	 * 
+	 * @param history
+	 *            the history, or null to run tests in suite order
+	 */
+	public void setTestHistory(TestHistory history) {
+		this.history = history;
+	}
+
+	/**
+	 * Get the number of failed tests after which the run is stopped.
+	 * 
+	 * @return the number of failures, or 0 to never stop
+	 */
+	public int getFailFast() {
+		return failFast;
+	}
+
+	/**
+	 * Set the number of failed tests (errors or failures) after which the run is stopped. The
+	 * remaining tests are not run, and are reported as skipped.
+	 * 
+	 * @param failFast
+	 *            the number of failures, or 0 to never stop
+	 */
+	public void setFailFast(int failFast) {
+		this.failFast = failFast;
+	}
+
 	/**
 	 * Get the test report file.
 	 * 
@@ -182,18 +291,48 @@ public class SuiteProcessor extends BaseProcessor {
 	 */
 	public PlaybackResult runSuite(String filename) {
 		long startTime = System.currentTimeMillis();
-		int total = new SuiteFlattener(this.getWorld()).flatten(filename);
+		graph = getSuiteGraph(filename);
+		int total = graph.getRoot().getTotal();
+		selected = null;
+		stamps = null;
+		ranks = null;
+		position = 0;
+		failures.set(0);
+		if ((shard != null || history != null) && total > 0) {
+			List<String> tests = new ArrayList<String>();
+			List<String> scripts = new ArrayList<String>();
+			SuiteFlattener.getTests(graph, getContext(), tests, scripts);
+			if (shard != null) {
+				selected = shard.select(tests, ReportReader.readDurations(shardReports));
+				total = selected.size();
+			}
+			if (history != null) {
+				ranks = history.rank(tests, getStamps(tests, scripts));
+			}
+		}
 		getSuiteListener().onRunStart(total);
 		Report report = new Report(filename);
 
 		PlaybackResult result = null;
 		result = runSuite(filename, report, result);
 
+		if (history != null) {
+			history.update(report, stamps);
+			try {
+				history.save();
+			} catch (IOException ex) {
+				// the history only changes the test order, so never fail the run over it
+			}
+		}
+
 		if (result.getStatus() == PlaybackStatus.ERROR) {
 			getSuiteListener().onRunComplete(result, report);
 			return result;
 		}
 
+		// every screenshot on disk before the report points at it
+		processor.getScreenshotStore().flush();
+
 		try {
 			report.saveReport((reportDir != null ? reportDir : world.getRootDir()));
 			reportFile = report.getReportFile();
@@ -210,7 +349,7 @@ public class SuiteProcessor extends BaseProcessor {
 
 	protected PlaybackResult runSuite(String filename, Report report, PlaybackResult result) {
 		long startTime = System.currentTimeMillis();
-		getAgent().start();
+		getAgent().getLifecycle().ensureStarted();
 
 		reportFile = null;
 
@@ -218,9 +357,14 @@ public class SuiteProcessor extends BaseProcessor {
 			return errorResult("suite filename is null", startTime);
 		}
 
-		List<Command> commands = world.getSuite(filename);
+		SuiteGraph.Node suite = (graph != null ? graph.getSuite(filename) : null);
+		if (suite == null) {
+			graph = getSuiteGraph(filename);
+			suite = graph.getRoot();
+		}
+		List<Command> commands = suite.getCommands();
 
-		Scope scope = new Scope(filename);
+		Scope scope = bindContext(new Scope(filename));
 
 		if (commands == null) {
 			if (filename.toLowerCase().endsWith(CommandWorld.SCRIPT_EXT)) {
@@ -235,19 +379,35 @@ public class SuiteProcessor extends BaseProcessor {
 			return result;
 		}
 
-		List<Command> setupArray = Finder.findCommandsByComponentType(commands, "setup");
-		List<Command> teardownArray = Finder.findCommandsByComponentType(commands, "teardown");
+		List<Command> setupArray = suite.getSetup();
+		List<Command> teardownArray = suite.getTeardown();
 
-		int total = new SuiteFlattener(this.getWorld()).flatten(filename);
+		int total = countSelected(position, suite.getTotal());
 		getSuiteListener().onSuiteStart(total);
 
 		List<Step> steps = new ArrayList<Step>();
 
+		int[] bases = getPositions(suite, position);
 		int stepNumber = 1;
+		boolean skip = false;
 		scope.setCurrentIndex(0);
-		for (Command cmd : commands) {
+		for (int i : getOrder(suite, bases)) {
+			Command cmd = commands.get(i);
+			position = bases[i];
+			if (!isSelected(bases[i], suite.getCount(i))) {
+				// not in our shard
+				continue;
+			}
 			Command full = scope.substituteCommand(cmd);
 
+			if (skip) {
+				// failed fast, so just report the rest of the suite as skipped
+				if (suite.getCount(i) > 0) {
+					skipSuiteCommand(full, scope, report, bases[i]);
+				}
+				continue;
+			}
+
 			Step step = new Step(full, scope, scope.getCurrentIndex());
 			steps.add(step);
 			result = runSuiteCommand(full, scope, report, stepNumber++, total, setupArray,
@@ -255,10 +415,14 @@ public class SuiteProcessor extends BaseProcessor {
 			step.setResult(result);
 
 			if (shouldAbort(result)) {
-				break;
+				if (abortByRequest || !isFailedFast()) {
+					break;
+				}
+				skip = true;
 			}
 		}
 
+		position = bases[commands.size()];
 		getSuiteListener().onSuiteComplete(result, report);
 
 		PlaybackResult suiteResult = new PlaybackResult(PlaybackStatus.OK);
@@ -272,7 +436,265 @@ public class SuiteProcessor extends BaseProcessor {
 		return suiteResult;
 	}
 
-	private boolean shouldAbort(PlaybackResult result) {
+	/**
+	 * Get the dependency graph for the given suite, reusing the graph from the last run if it is
+	 * for the same suite and is still current, otherwise building a new graph.
+	 * 
+	 * @param filename
+	 *            the suite filename
+	 * @return the suite graph
+	 */
+	public SuiteGraph getSuiteGraph(String filename) {
+		SuiteGraph g = graph;
+		if (g != null && g.getWorld() == world && g.getRoot().getFilename() != null
+				&& g.getRoot().getFilename().equalsIgnoreCase(filename) && g.isCurrent()) {
+			return g;
+		}
+		return new SuiteGraph(world, filename);
+	}
+
+	/**
+	 * Get the position in the flattened suite of the first test run by each of the given suite's
+	 * commands, plus one extra position at the end just past the suite's last test.
+	 * 
+	 * @param suite
+	 *            the suite
+	 * @param start
+	 *            the position of the suite's first test
+	 * @return the positions
+	 */
+	protected static int[] getPositions(SuiteGraph.Node suite, int start) {
+		int[] positions = new int[suite.getCommands().size() + 1];
+		positions[0] = start;
+		for (int i = 0; i < suite.getCommands().size(); i++) {
+			positions[i + 1] = positions[i] + suite.getCount(i);
+		}
+		return positions;
+	}
+
+	/**
+	 * Get the order in which to run the given suite's commands. Without a test history, that's
+	 * just suite order. With a history, the commands that run tests are sorted by the best ranked
+	 * test each one runs, while all other commands keep their place.
+	 * 
+	 * @param suite
+	 *            the suite
+	 * @param positions
+	 *            the position of each command's first test, see
+	 *            {@link #getPositions(SuiteGraph.Node, int)}
+	 * @return the command indices, in run order
+	 */
+	protected int[] getOrder(SuiteGraph.Node suite, int[] positions) {
+		int size = suite.getCommands().size();
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		if (ranks == null) {
+			return order;
+		}
+
+		List<Integer> units = new ArrayList<Integer>();
+		final int[] keys = new int[size];
+		for (int i = 0; i < size; i++) {
+			if (suite.getCount(i) > 0) {
+				units.add(i);
+				keys[i] = Integer.MAX_VALUE;
+				for (int p = positions[i]; p < positions[i + 1]; p++) {
+					if (isSelected(p, 1)) {
+						keys[i] = Math.min(keys[i], getRank(p));
+					}
+				}
+			}
+		}
+
+		List<Integer> sorted = new ArrayList<Integer>(units);
+		Collections.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (keys[a] != keys[b]) {
+					return (keys[a] < keys[b] ? -1 : 1);
+				}
+				return a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < units.size(); i++) {
+			order[units.get(i)] = sorted.get(i);
+		}
+		return order;
+	}
+
+	/**
+	 * Get the rank of the given test in the flattened suite: where it falls in the run order
+	 * given by the test history, or just its position if there is no history.
+	 * 
+	 * @param position
+	 *            the position of the test in the flattened suite
+	 * @return the rank
+	 */
+	protected int getRank(int position) {
+		return (ranks != null && position >= 0 && position < ranks.length ? ranks[position]
+				: position);
+	}
+
+	/**
+	 * Helper to stamp the contents of each test's script, so the history knows which tests
+	 * changed. Returns the stamps in test order, and keeps them by test for the history update.
+	 */
+	private List<String> getStamps(List<String> tests, List<String> scripts) {
+		Map<String, String> byScript = new HashMap<String, String>();
+		List<String> list = new ArrayList<String>();
+		stamps = new HashMap<String, String>();
+		for (int i = 0; i < tests.size(); i++) {
+			String script = scripts.get(i);
+			if (!byScript.containsKey(script)) {
+				List<Command> commands = (script != null ? world.getScript(script) : null);
+				String stamp = null;
+				if (commands != null) {
+					StringBuilder sb = new StringBuilder();
+					for (Command cmd : commands) {
+						sb.append(cmd).append('\n');
+					}
+					stamp = Integer.toHexString(sb.toString().hashCode());
+				}
+				byScript.put(script, stamp);
+			}
+			list.add(byScript.get(script));
+			stamps.put(tests.get(i), byScript.get(script));
+		}
+		return list;
+	}
+
+	/**
+	 * Tell the suite listener the given test is complete, and count it if it failed (for
+	 * {@link #setFailFast(int)}).
+	 * 
+	 * @param result
+	 *            the test result
+	 * @param report
+	 *            the report
+	 */
+	protected void onTestComplete(PlaybackResult result, Report report) {
+		if (result != null && (result.getStatus() == PlaybackStatus.ERROR
+				|| result.getStatus() == PlaybackStatus.FAILURE)) {
+			failures.incrementAndGet();
+		}
+		getSuiteListener().onTestComplete(result, report);
+	}
+
+	/**
+	 * Get the result for a test that was never run, because the run failed fast. Skipped tests
+	 * are reported just like ignored tests.
+	 * 
+	 * @param scope
+	 *            the scope
+	 * @return the skipped result
+	 */
+	protected PlaybackResult skippedResult(Scope scope) {
+		return new PlaybackResult(PlaybackStatus.OK, "ignored", scope);
+	}
+
+	/**
+	 * Report every test run by the given suite command as skipped, without running anything.
+	 * Used once the run has failed fast, so the report still has every test in the suite. Only
+	 * called for commands that run at least one test (so never for a recursive suite).
+	 * 
+	 * @param full
+	 *            the suite command (with all variables substituted)
+	 * @param scope
+	 *            the suite scope
+	 * @param report
+	 *            the report
+	 * @param base
+	 *            the position of the command's first test in the flattened suite
+	 */
+	protected void skipSuiteCommand(Command full, Scope scope, Report report, int base) {
+		if ("test".equalsIgnoreCase(full.getComponentType())) {
+			CSVData data = null;
+			if ("test.runwith".equalsIgnoreCase(full.getCommandName()) && !full.isIgnored()
+					&& full.getArgs().size() > 0) {
+				data = world.streamData(full.getArgs().get(0));
+			}
+			if (data == null || data.isEmpty()) {
+				report.startTest(full);
+				report.stopTest(full, skippedResult(scope));
+				return;
+			}
+			int dataIndex = 1;
+			for (Map<String, String> datum : data) {
+				if (isSelected(base + dataIndex - 1, 1)) {
+					report.startTest(full, datum);
+					report.stopTest(full, skippedResult(scope));
+				}
+				dataIndex++;
+			}
+		} else if ("suite.run".equalsIgnoreCase(full.getCommandName())
+				&& !full.getModifiers().containsKey(Command.IGNORE_MODIFIER)) {
+			SuiteGraph.Node nested = graph.getSuite(full.getMonkeyId());
+			if (nested == null || nested.getCommands() == null || nested.getTotal() <= 0) {
+				return;
+			}
+			Report nestedReport = new Report(full.getMonkeyId());
+			Scope nestedScope = bindContext(new Scope(full.getMonkeyId()));
+			int[] bases = getPositions(nested, base);
+			for (int i = 0; i < nested.getCommands().size(); i++) {
+				if (nested.getCount(i) > 0 && isSelected(bases[i], nested.getCount(i))) {
+					Command cmd = nestedScope.substituteCommand(nested.getCommands().get(i));
+					skipSuiteCommand(cmd, nestedScope, nestedReport, bases[i]);
+				}
+			}
+			report.getMainSuite().addSuite(nestedReport.getMainSuite());
+		}
+	}
+
+	/**
+	 * True if enough tests have failed to stop the run.
+	 * 
+	 * @see #setFailFast(int)
+	 * 
+	 * @return true if failed fast
+	 */
+	protected boolean isFailedFast() {
+		return (failFast > 0 && failures.get() >= failFast);
+	}
+
+	/**
+	 * True if any of the given range of tests in the flattened suite is to be run (always true
+	 * if the whole suite is being run, or if the range is empty).
+	 * 
+	 * @param position
+	 *            the position of the first test in the flattened suite
+	 * @param count
+	 *            the number of tests
+	 * @return true if selected
+	 */
+	protected boolean isSelected(int position, int count) {
+		return (count <= 0 || countSelected(position, count) > 0);
+	}
+
+	/**
+	 * Count how many of the given range of tests in the flattened suite are to be run.
+	 * 
+	 * @param position
+	 *            the position of the first test in the flattened suite
+	 * @param count
+	 *            the number of tests
+	 * @return the number of selected tests
+	 */
+	protected int countSelected(int position, int count) {
+		if (selected == null || count <= 0) {
+			return count;
+		}
+		int n = 0;
+		for (int i = position; i < position + count; i++) {
+			if (selected.contains(i)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	protected boolean shouldAbort(PlaybackResult result) {
 		if (result == null || result.getStatus() == null) {
 			return false;
 		}
@@ -282,6 +704,10 @@ public class SuiteProcessor extends BaseProcessor {
 			result.setMessage(ABORT_BY_REQUEST);
 			return true;
 		}
+		if (isFailedFast()) {
+			// enough failures, so halt the suite!
+			return true;
+		}
 		if (result.getStatus() == PlaybackStatus.ERROR) {
 			if (result.getMessage() != null) {
 				if (result.getMessage().contains(BAD_SUITE_COMMAND)) {
@@ -312,7 +738,7 @@ public class SuiteProcessor extends BaseProcessor {
 			result = new PlaybackResult(PlaybackStatus.OK, "ignored", scope);
 
 			report.stopTest(full, result);
-			getSuiteListener().onTestComplete(result, report);
+			onTestComplete(result, report);
 		} else if ("test.run".equalsIgnoreCase(full.getCommandName())) {
 			report.startTest(full);
 			getSuiteListener().onTestStart(report.getCurrentTest().getName(), stepNumber, total);
@@ -320,7 +746,7 @@ public class SuiteProcessor extends BaseProcessor {
 			result = runTest(full, stepNumber, setupArray, teardownArray, scope, null);
 
 			report.stopTest(full, result);
-			getSuiteListener().onTestComplete(result, report);
+			onTestComplete(result, report);
 		} else if ("test.runwith".equalsIgnoreCase(full.getCommandName())) {
 			if (full.getArgs().size() == 0) {
 				report.startTest(full);
@@ -331,10 +757,10 @@ public class SuiteProcessor extends BaseProcessor {
 						"datafile arg missing in command '" + full + "'", scope);
 
 				report.stopTest(full, result);
-				getSuiteListener().onTestComplete(result, report);
+				onTestComplete(result, report);
 			} else {
 				String datafile = full.getArgs().get(0);
-				List<Map<String, String>> data = world.getData(datafile);
+				CSVData data = world.streamData(datafile);
 				if (data == null) {
 					report.startTest(full);
 					getSuiteListener().onTestStart(report.getCurrentTest().getName(), stepNumber,
@@ -344,8 +770,8 @@ public class SuiteProcessor extends BaseProcessor {
 							+ "' not found", scope);
 
 					report.stopTest(full, result);
-					getSuiteListener().onTestComplete(result, report);
-				} else if (data.size() == 0) {
+					onTestComplete(result, report);
+				} else if (data.isEmpty()) {
 					report.startTest(full);
 					getSuiteListener().onTestStart(report.getCurrentTest().getName(), stepNumber,
 							total);
@@ -354,14 +780,27 @@ public class SuiteProcessor extends BaseProcessor {
 							+ "' has no data", scope);
 
 					report.stopTest(full, result);
-					getSuiteListener().onTestComplete(result, report);
+					onTestComplete(result, report);
 				} else {
 					result = new PlaybackResult(PlaybackStatus.OK);
 					result.setScope(scope);
 					List<Step> steps = new ArrayList<Step>();
 					result.setSteps(steps);
+					int base = position;
 					int dataIndex = 1;
+					boolean skip = false;
 					for (Map<String, String> datum : data) {
+						if (!isSelected(base + dataIndex - 1, 1)) {
+							// not in our shard
+							dataIndex++;
+							continue;
+						}
+						if (skip) {
+							report.startTest(full, datum);
+							report.stopTest(full, skippedResult(scope));
+							dataIndex++;
+							continue;
+						}
 						report.startTest(full, datum);
 						getSuiteListener().onTestStart(report.getCurrentTest().getName(),
 								dataIndex, total);
@@ -374,11 +813,15 @@ public class SuiteProcessor extends BaseProcessor {
 						step.setResult(r);
 
 						report.stopTest(full, r);
-						getSuiteListener().onTestComplete(r, report);
+						onTestComplete(r, report);
 						dataIndex++;
 
 						if (shouldAbort(r)) {
-							break;
+							if (abortByRequest || !isFailedFast()) {
+								break;
+							}
+							// failed fast, so just report the remaining rows as skipped
+							skip = true;
 						}
 					}
 				}
@@ -454,6 +897,16 @@ public class SuiteProcessor extends BaseProcessor {
 	 */
 	protected PlaybackResult runTest(Command cmd, int stepNumber, List<Command> setupArray,
 			List<Command> teardownArray, Scope scope, Map<String, String> datum) {
+		return runTest(processor, cmd, stepNumber, setupArray, teardownArray, scope, datum);
+	}
+
+	/*
+	 * Run the given test command, along with its {@code Setup} and {@code Teardown}, with the
+	 * given {@link ScriptProcessor}, so they all run on the same agent.
+	 */
+	protected PlaybackResult runTest(ScriptProcessor processor, Command cmd, int stepNumber,
+			List<Command> setupArray, List<Command> teardownArray, Scope scope,
+			Map<String, String> datum) {
 		PlaybackResult setupResult = null;
 		PlaybackResult teardownResult = null;
 		PlaybackResult testResult = null;
@@ -461,7 +914,7 @@ public class SuiteProcessor extends BaseProcessor {
 
 		List<Step> setupSteps = new ArrayList<Step>();
 		if (setupArray != null && !cmd.isIgnored("setup")) {
-			setupResult = runSetupOrTeardown(setupArray, scope, setupSteps);
+			setupResult = runSetupOrTeardown(processor, setupArray, scope, setupSteps);
 		}
 
 		// abort after setup?
@@ -476,7 +929,7 @@ public class SuiteProcessor extends BaseProcessor {
 
 		List<Step> teardownSteps = new ArrayList<Step>();
 		if (teardownArray != null && !cmd.isIgnored("teardown")) {
-			teardownResult = runSetupOrTeardown(teardownArray, scope, teardownSteps);
+			teardownResult = runSetupOrTeardown(processor, teardownArray, scope, teardownSteps);
 		}
 
 		if (testResult != null) {
@@ -514,6 +967,11 @@ public class SuiteProcessor extends BaseProcessor {
 
 	protected PlaybackResult runSetupOrTeardown(List<Command> commands, Scope scope,
 			List<Step> stepsForOverallTestResult) {
+		return runSetupOrTeardown(processor, commands, scope, stepsForOverallTestResult);
+	}
+
+	protected PlaybackResult runSetupOrTeardown(ScriptProcessor processor,
+			List<Command> commands, Scope scope, List<Step> stepsForOverallTestResult) {
 		if (commands == null || commands.size() == 0) {
 			return null;
 		}
@@ -532,12 +990,12 @@ public class SuiteProcessor extends BaseProcessor {
 							fixtureScope, startTime);
 				} else {
 					String datafile = cmd.getArgs().get(0);
-					List<Map<String, String>> data = world.getData(datafile);
+					CSVData data = world.streamData(datafile);
 
 					if (data == null) {
 						result = errorResult("datafile '" + datafile + "' not found", fixtureScope,
 								startTime);
-					} else if (data.size() == 0) {
+					} else if (data.isEmpty()) {
 						result = errorResult("datafile '" + datafile + "' has no data",
 								fixtureScope, startTime);
 					} else {
@@ -601,6 +1059,30 @@ public class SuiteProcessor extends BaseProcessor {
 		super.setTakeAfterScreenshot(takeAfterScreenshot);
 	}
 
+	@Override
+	public void setScreenshotThreshold(int screenshotThreshold) {
+		processor.setScreenshotThreshold(screenshotThreshold);
+		super.setScreenshotThreshold(screenshotThreshold);
+	}
+
+	@Override
+	public void setKeyframeInterval(int keyframeInterval) {
+		processor.setKeyframeInterval(keyframeInterval);
+		super.setKeyframeInterval(keyframeInterval);
+	}
+
+	@Override
+	public void setBatchPlayback(boolean batchPlayback) {
+		processor.setBatchPlayback(batchPlayback);
+		super.setBatchPlayback(batchPlayback);
+	}
+
+	@Override
+	public void setContext(ExecutionContext context) {
+		processor.setContext(context);
+		super.setContext(context);
+	}
+
 	/**
 	 * Stop the running suite as soon as possible by setting the {@code abortByRequest} flag to halt
 	 * suite execution. Also call {@link ScriptProcessor#abort()} to halt the underlying test
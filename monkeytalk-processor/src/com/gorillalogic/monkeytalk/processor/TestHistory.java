@@ -0,0 +1,288 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.gorillalogic.monkeytalk.processor.report.IReport;
+import com.gorillalogic.monkeytalk.processor.report.Report;
+import com.gorillalogic.monkeytalk.processor.report.ReportReader;
+import com.gorillalogic.monkeytalk.processor.report.Suite;
+import com.gorillalogic.monkeytalk.processor.report.Test;
+import com.gorillalogic.monkeytalk.processor.report.TestResult;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+
+/**
+ * The results of past runs, kept in a small local file, used to run the tests most likely to fail
+ * first. For every test (identified by its path in the suite, see {@link ReportReader}) we keep
+ * the number of runs and failures, which of the last few runs failed, the average duration, and a
+ * stamp of the test's script contents. The history is updated from the {@link Report} at the end
+ * of every run.
+ * <p>
+ * Tests are ranked in three groups, each in suite order unless noted:
+ * <ol>
+ * <li>tests that failed recently, followed by new tests and tests whose script has changed</li>
+ * <li>tests that have failed before, the highest failure rate per second of run time first</li>
+ * <li>everything else</li>
+ * </ol>
+ */
+public class TestHistory {
+	/** The number of most recent runs in which a failure counts as a recent failure. */
+	public static final int RECENT_RUNS = 3;
+
+	private static final String HEADER = "# MonkeyTalk test history v1";
+	private static final int RECENT_MASK = (1 << RECENT_RUNS) - 1;
+	private static final int HISTORY_MASK = 0xFF;
+
+	private final File file;
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	private TestHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the history from the given file. A missing or unreadable file is an empty history, and
+	 * bad lines are ignored, so this never fails.
+	 *
+	 * @param file
+	 *            the history file
+	 * @return the history
+	 */
+	public static TestHistory load(File file) {
+		TestHistory history = new TestHistory(file);
+		if (file == null || !file.isFile()) {
+			return history;
+		}
+
+		String contents;
+		try {
+			contents = FileUtils.readFile(file);
+		} catch (IOException ex) {
+			return history;
+		}
+
+		for (String line : contents.split("\n")) {
+			if (line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split(" ", 6);
+			if (parts.length == 6) {
+				try {
+					Entry entry = new Entry();
+					entry.runs = Integer.parseInt(parts[0]);
+					entry.failures = Integer.parseInt(parts[1]);
+					entry.recent = Integer.parseInt(parts[2], 16);
+					entry.millis = Long.parseLong(parts[3]);
+					entry.stamp = ("-".equals(parts[4]) ? null : parts[4]);
+					history.entries.put(parts[5], entry);
+				} catch (NumberFormatException ex) {
+					// ignore bad line
+				}
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Save the history back to the file it was loaded from.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		StringBuilder sb = new StringBuilder(HEADER).append('\n');
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			sb.append(entry.runs).append(' ').append(entry.failures).append(' ')
+					.append(Integer.toHexString(entry.recent)).append(' ').append(entry.millis)
+					.append(' ').append(entry.stamp != null ? entry.stamp : "-").append(' ')
+					.append(e.getKey()).append('\n');
+		}
+		FileUtils.writeFile(file, sb.toString());
+	}
+
+	/**
+	 * Get the history file.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the number of tests in the history.
+	 *
+	 * @return the number of tests
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * True if the given test failed in any of its last {@link #RECENT_RUNS} runs.
+	 *
+	 * @param test
+	 *            the test path
+	 * @return true if failed recently
+	 */
+	public boolean isRecentFailure(String test) {
+		Entry entry = entries.get(test);
+		return (entry != null && (entry.recent & RECENT_MASK) != 0);
+	}
+
+	/**
+	 * Get the fraction of runs in which the given test failed.
+	 *
+	 * @param test
+	 *            the test path
+	 * @return the failure rate, or 0 if the test has never run
+	 */
+	public double getFailureRate(String test) {
+		Entry entry = entries.get(test);
+		return (entry != null && entry.runs > 0 ? (double) entry.failures / entry.runs : 0);
+	}
+
+	/**
+	 * Get the average duration (in ms) of the given test, weighted towards recent runs.
+	 *
+	 * @param test
+	 *            the test path
+	 * @return the duration, or -1 if the test has never run
+	 */
+	public long getDuration(String test) {
+		Entry entry = entries.get(test);
+		return (entry != null ? entry.millis : -1);
+	}
+
+	/**
+	 * Rank the given tests, so the ones most likely to fail are run first.
+	 *
+	 * @param tests
+	 *            the tests in the flattened suite, in order
+	 * @param stamps
+	 *            the current stamp of each test's script (null if unknown)
+	 * @return the rank of each test, from 0 (run first) to the number of tests minus one
+	 */
+	public int[] rank(List<String> tests, List<String> stamps) {
+		final int[] groups = new int[tests.size()];
+		final double[] scores = new double[tests.size()];
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < tests.size(); i++) {
+			String test = tests.get(i);
+			Entry entry = entries.get(test);
+			String stamp = (i < stamps.size() ? stamps.get(i) : null);
+			if (isRecentFailure(test)) {
+				groups[i] = 0;
+			} else if (entry == null || (stamp != null && !stamp.equals(entry.stamp))) {
+				groups[i] = 1;
+			} else if (entry.failures > 0) {
+				groups[i] = 2;
+				scores[i] = getFailureRate(test) / Math.max(entry.millis, 1);
+			} else {
+				groups[i] = 3;
+			}
+			order.add(i);
+		}
+
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (groups[a] != groups[b]) {
+					return (groups[a] < groups[b] ? -1 : 1);
+				} else if (scores[a] != scores[b]) {
+					return (scores[a] > scores[b] ? -1 : 1);
+				}
+				return a.compareTo(b);
+			}
+		});
+
+		int[] ranks = new int[tests.size()];
+		for (int i = 0; i < order.size(); i++) {
+			ranks[order.get(i)] = i;
+		}
+		return ranks;
+	}
+
+	/**
+	 * Update the history from the given report. Skipped tests are not counted.
+	 *
+	 * @param report
+	 *            the report from the run
+	 * @param stamps
+	 *            the current stamp of each test's script, by test path
+	 */
+	public void update(Report report, Map<String, String> stamps) {
+		update(report.getMainSuite(), "", stamps);
+	}
+
+	/**
+	 * Helper to update the history from the tests in the given suite, recursing into nested
+	 * suites.
+	 */
+	private void update(Suite suite, String path, Map<String, String> stamps) {
+		for (IReport ro : suite.getTests()) {
+			if (ro instanceof Suite) {
+				update((Suite) ro, ReportReader.getPath(path, ((Suite) ro).getName()), stamps);
+			} else if (ro instanceof Test) {
+				Test t = (Test) ro;
+				if (t.getResult() == null || t.getResult() == TestResult.SKIPPED) {
+					continue;
+				}
+				String test = ReportReader.getPath(path, t.getName());
+				boolean failed = (t.getResult() != TestResult.OK);
+
+				Entry entry = entries.get(test);
+				if (entry == null) {
+					entry = new Entry();
+					entry.millis = t.getDuration();
+					entries.put(test, entry);
+				} else {
+					entry.millis = (entry.millis * 3 + t.getDuration()) / 4;
+				}
+				entry.runs++;
+				entry.failures += (failed ? 1 : 0);
+				entry.recent = ((entry.recent << 1) | (failed ? 1 : 0)) & HISTORY_MASK;
+				if (stamps != null && stamps.containsKey(test)) {
+					entry.stamp = stamps.get(test);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TestHistory: " + file + " (" + entries.size() + " tests)";
+	}
+
+	/**
+	 * The history of a single test.
+	 */
+	private static class Entry {
+		private int runs;
+		private int failures;
+		private int recent;
+		private long millis;
+		private String stamp;
+	}
+}
@@ -50,7 +50,7 @@ public class Globals extends BaseCommand {
 				}
 
 				// add the global variable to the map
-				com.gorillalogic.monkeytalk.processor.Globals.setGlobal(key, val);
+				scope.getContext().setGlobal(key, val);
 			}
 		}
 		listener.onComplete(scope, new Response());
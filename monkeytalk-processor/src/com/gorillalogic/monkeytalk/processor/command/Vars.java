@@ -4,7 +4,6 @@ import java.lang.reflect.Method;
 
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.CommandWorld;
-import com.gorillalogic.monkeytalk.processor.Globals;
 import com.gorillalogic.monkeytalk.processor.PlaybackListener;
 import com.gorillalogic.monkeytalk.processor.PlaybackResult;
 import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
@@ -94,13 +93,14 @@ public class Vars extends BaseCommand {
 
 			boolean inScope = scope.getVariables().containsKey(var);
 
-			if (!inScope && !Globals.hasGlobal(var)) {
+			if (!inScope && !scope.getContext().hasGlobal(var)) {
 				return new PlaybackResult(PlaybackStatus.ERROR, "command '" + cmd.getCommand()
 						+ "' must have a valid variable as its second arg -- variable '" + var
 						+ "' not found", scope);
 			}
 
-			String val = (inScope ? scope.getVariables().get(var) : Globals.getGlobal(var));
+			String val = (inScope ? scope.getVariables().get(var) : scope.getContext()
+					.getGlobal(var));
 			String action = cmd.getAction().toLowerCase();
 
 			// use reflection to find the correct static verify method
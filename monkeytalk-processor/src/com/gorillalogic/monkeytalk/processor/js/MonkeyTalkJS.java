@@ -19,11 +19,19 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import com.gorillalogic.monkeytalk.ProjectBundle;
 import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
 import com.gorillalogic.monkeytalk.utils.FileUtils;
 
@@ -31,11 +39,28 @@ import com.gorillalogic.monkeytalk.utils.FileUtils;
  * Use the embedded scripting engine capabilities in Java 6 to run Javascript scripts.
  * Unfortunately, the embedded engine doesn't have all the Rhino Shell stuff, so we must add our own
  * custom {@link MonkeyTalkJS#load(String)} impl at the top level of the Javascript execution scope.
+ * <p>
+ * Every loaded file is compiled once (if the engine supports it) and the compiled script is
+ * reused for as long as the file's last modified time and size are unchanged, so a Javascript
+ * custom command called over and over (ex: inside a data-driven loop) isn't re-read and re-parsed
+ * every time. Files in the {@code libs} folder (aka MonkeyTalkAPI.js and the project's generated
+ * wrapper lib) only define things, so they are evaluated just once while unchanged. Like
+ * {@link com.gorillalogic.monkeytalk.ScriptCache}, a file modified within the last couple of
+ * seconds is never cached, and nothing is cached when script caching is off.
  */
 public class MonkeyTalkJS {
+	/**
+	 * Folder of the Javascript libraries, evaluated only once while unchanged.
+	 */
+	public static final String LIBS_DIR = "libs";
+
 	private final ScriptEngine engine;
 	private final ScriptProcessor processor;
 	private final File rootDir;
+	private final Map<String, CachedScript> compiled = new HashMap<String, CachedScript>();
+	private final Set<String> evaluated = new HashSet<String>();
+	private int hits;
+	private int misses;
 
 	/**
 	 * Instantiate a new {@code ScriptEngine} for running Javascript scripts with the given script
@@ -53,6 +78,13 @@ public class MonkeyTalkJS {
 
 		ScriptEngineManager factory = new ScriptEngineManager();
 		engine = factory.getEngineByName("JavaScript");
+		if (engine == null) {
+			throw new ScriptException("no JavaScript engine");
+		}
+		if (Boolean.TRUE.equals(engine.eval("typeof importClass == 'undefined'"))) {
+			// Nashorn only has Rhino's importClass in its compatibility script (via its own load)
+			engine.eval("load('nashorn:mozilla_compat.js');");
+		}
 		engine.put("MonkeyTalkJS", this);
 		engine.put("ProcessorObj", processor);
 		engine.put(ScriptEngine.FILENAME, "MonkeyTalkJS.js");
@@ -69,22 +101,132 @@ public class MonkeyTalkJS {
 	 * @throws ScriptException
 	 */
 	public void load(String filename) throws ScriptException {
-		File f = new File(rootDir, filename);
 		try {
-			String js = FileUtils.readFile(f);
-			engine.put(ScriptEngine.FILENAME, filename);
-			engine.eval(js);
-		} catch (FileNotFoundException ex) {
-			throw new RuntimeException("file not found: " + f.getAbsolutePath() + "\n\t" + ex);
-		} catch (UnsupportedEncodingException ex) {
-			throw new RuntimeException("bad encoding: " + f.getAbsolutePath() + "\n\t" + ex);
-		} catch (IOException ex) {
-			throw new RuntimeException("file load error: " + f.getAbsolutePath() + "\n\t" + ex);
+			run(filename);
 		} catch (ScriptException ex) {
-			throw new RuntimeException("script error: " + f.getAbsolutePath() + "\n\t" + ex);
+			throw new RuntimeException("script error: " + new File(rootDir, filename).getAbsolutePath()
+					+ "\n\t" + ex);
+		}
+	}
+
+	/**
+	 * Load and {@code eval()} the given Javascript file, using the compiled script if the file is
+	 * unchanged since it was last compiled. A library (see {@link #LIBS_DIR}) that was already
+	 * evaluated and is unchanged is skipped.
+	 * 
+	 * @param filename
+	 *            the path of the Javascript file, relative to the project
+	 * @return the value of the script
+	 * @throws ScriptException
+	 *             if the file can't be read, or has errors
+	 */
+	public Object run(String filename) throws ScriptException {
+		File f = new File(rootDir, filename);
+		ProjectBundle bundle = processor.getWorld().getBundle();
+		boolean cache = processor.getWorld().isScriptCache();
+		String stamp = null;
+		if (cache) {
+			stamp = (bundle != null ? bundle.getHash() : getStamp(f));
+		}
+
+		CachedScript entry = null;
+		synchronized (this) {
+			entry = (stamp != null ? compiled.get(filename) : null);
+			if (entry != null && stamp.equals(entry.stamp)) {
+				hits++;
+				if (isLibrary(filename) && evaluated.contains(filename)) {
+					return null;
+				}
+			} else {
+				misses++;
+				entry = null;
+			}
+		}
+
+		if (entry == null) {
+			String js;
+			try {
+				js = (bundle != null ? bundle.getText(filename) : FileUtils.readFile(f));
+				if (js == null) {
+					throw new FileNotFoundException(filename + " (not in bundle "
+							+ bundle.getFile().getName() + ")");
+				}
+			} catch (FileNotFoundException ex) {
+				throw new ScriptException("file not found: " + f.getAbsolutePath() + "\n\t" + ex);
+			} catch (UnsupportedEncodingException ex) {
+				throw new ScriptException("bad encoding: " + f.getAbsolutePath() + "\n\t" + ex);
+			} catch (IOException ex) {
+				throw new ScriptException("file load error: " + f.getAbsolutePath() + "\n\t" + ex);
+			}
+
+			entry = new CachedScript(stamp, js);
+			if (engine instanceof Compilable) {
+				engine.put(ScriptEngine.FILENAME, filename);
+				entry.script = ((Compilable) engine).compile(js);
+			}
+			if (stamp != null) {
+				synchronized (this) {
+					compiled.put(filename, entry);
+					if (isLibrary(filename)) {
+						// a library changed, so every library must be evaluated again
+						evaluated.clear();
+					}
+				}
+			}
+		}
+
+		engine.put(ScriptEngine.FILENAME, filename);
+		Object val = (entry.script != null ? entry.script.eval() : engine.eval(entry.js));
+		if (stamp != null && isLibrary(filename)) {
+			synchronized (this) {
+				evaluated.add(filename);
+			}
+		}
+		return val;
+	}
+
+	/**
+	 * Call the given method of the given Javascript object.
+	 * 
+	 * @param obj
+	 *            the Javascript object
+	 * @param name
+	 *            the method name
+	 * @param args
+	 *            the method arguments
+	 * @return the return value
+	 * @throws ScriptException
+	 *             if the method fails, or doesn't exist
+	 */
+	public Object invokeMethod(Object obj, String name, Object... args) throws ScriptException {
+		if (!(engine instanceof Invocable)) {
+			throw new ScriptException("bad js engine - not invocable");
+		}
+		try {
+			return ((Invocable) engine).invokeMethod(obj, name, args);
+		} catch (NoSuchMethodException ex) {
+			throw new ScriptException("no such method: " + name);
 		}
 	}
 
+	/**
+	 * Get the number of loads that used an already compiled script.
+	 * 
+	 * @return the hit count
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of loads that required reading and compiling the file.
+	 * 
+	 * @return the miss count
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
 	/**
 	 * Our custom {@code print()} impl that is injected into the top-level scope of the Javascript
 	 * engine.
@@ -113,4 +255,38 @@ public class MonkeyTalkJS {
 	public String getFilename() {
 		return engine.get(ScriptEngine.FILENAME).toString();
 	}
+
+	/**
+	 * Helper to determine if the given file is a library, aka it lives in the {@code libs} folder.
+	 */
+	private static boolean isLibrary(String filename) {
+		String path = filename.replace('\\', '/');
+		return path.startsWith(LIBS_DIR + "/") || path.startsWith("./" + LIBS_DIR + "/");
+	}
+
+	/**
+	 * Helper to get the stamp of the given file (its last modified time and size), or null if the
+	 * file is missing or was modified too recently to be cached.
+	 */
+	private static String getStamp(File f) {
+		long modified = f.lastModified();
+		if (modified == 0 || System.currentTimeMillis() - modified <= FileUtils.MTIME_RESOLUTION) {
+			return null;
+		}
+		return modified + ":" + f.length();
+	}
+
+	/**
+	 * A loaded file: its source, and its compiled script (if the engine can compile).
+	 */
+	private static class CachedScript {
+		private final String stamp;
+		private final String js;
+		private CompiledScript script;
+
+		public CachedScript(String stamp, String js) {
+			this.stamp = stamp;
+			this.js = js;
+		}
+	}
 }
\ No newline at end of file
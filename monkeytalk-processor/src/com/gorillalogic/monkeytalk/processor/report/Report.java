@@ -111,6 +111,27 @@ public class Report {
 		mainSuite.addTest(currTest);
 	}
 
+	/**
+	 * Add a new test from the given MonkeyTalk test command (and row of test data, if any), but
+	 * don't make it the current test. Used to lay out the report in suite order when tests are run
+	 * out of order (ex: in parallel), the test is then timed and given its result directly via
+	 * {@link Test#startTimer()}, {@link Test#stopTimer()}, and
+	 * {@link Test#setResult(Command, PlaybackResult)}.
+	 * 
+	 * @param cmd
+	 *            the MonkeyTalk test command
+	 * @param datum
+	 *            the test data, or null if not data-driven
+	 * @return the new test
+	 */
+	public Test addTest(Command cmd, Map<String, String> datum) {
+		Test test = new Test(getTestName(cmd, datum));
+		test.startTimer();
+		test.stopTimer();
+		mainSuite.addTest(test);
+		return test;
+	}
+
 	/**
 	 * Stop the current test (and stop its timer) and set the test result from given the given
 	 * MonkeyTalk test command and its playback result.
@@ -269,6 +290,20 @@ public class Report {
 		return mainSuite.toString();
 	}
 
+	/**
+	 * Get the name the report gives a test, from the MonkeyTalk test command (and row of test
+	 * data, if any). This is the {@code name} of the test's {@code <testcase>} in the XML report.
+	 * 
+	 * @param cmd
+	 *            the MonkeyTalk test command
+	 * @param datum
+	 *            the test data, or null if not data-driven
+	 * @return the name of the test
+	 */
+	public static String getTestName(Command cmd, Map<String, String> datum) {
+		return (datum != null ? getName(cmd, datum) : getName(cmd));
+	}
+
 	/**
 	 * Helper to get the name of a test given the MonkeyTalk test command (and any args).
 	 * 
@@ -276,7 +311,7 @@ public class Report {
 	 *            the MonkeyTalk test command
 	 * @return the name of the test
 	 */
-	private String getName(Command cmd) {
+	private static String getName(Command cmd) {
 		if (cmd == null) {
 			return null;
 		}
@@ -296,7 +331,7 @@ public class Report {
 	 *            the test data
 	 * @return the name of the test
 	 */
-	private String getName(Command cmd, Map<String, String> datum) {
+	private static String getName(Command cmd, Map<String, String> datum) {
 		if (cmd == null) {
 			return null;
 		}
@@ -0,0 +1,166 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.report;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reads the JUnit-compatible XML reports written by {@link Report#saveReport(File)} back in, so
+ * a later run can learn from an earlier one. Every test is identified by its path in the suite:
+ * the names of the nested suites it ran in (not including the top-level suite), followed by the
+ * name of the test itself, joined with {@link #SEPARATOR}. For example,
+ * {@code nested.mts > login.mt[user='bob']}.
+ */
+public class ReportReader {
+	public static final String SEPARATOR = " > ";
+
+	private static final String PREFIX = "TEST-";
+	private static final String EXT = ".xml";
+
+	private ReportReader() {
+	}
+
+	/**
+	 * Read the test durations (in milliseconds) from the given XML report, or from every
+	 * {@code TEST-*.xml} report in the given folder. A test that appears more than once (in the
+	 * same report or in different reports) gets its average duration. Unreadable reports are
+	 * ignored, so this never fails, it just returns less.
+	 *
+	 * @param f
+	 *            the report file or folder
+	 * @return the map of test path to duration, in report order
+	 */
+	public static Map<String, Long> readDurations(File f) {
+		Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+		for (File report : getReports(f)) {
+			try {
+				Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+						.parse(report).getDocumentElement();
+				if ("testsuite".equals(root.getTagName())) {
+					readSuite(root, "", totals);
+				}
+			} catch (Exception ex) {
+				// ignore bad reports
+			}
+		}
+
+		Map<String, Long> durations = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+			durations.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+		}
+		return durations;
+	}
+
+	/**
+	 * Get the path that identifies the given test in a suite, as used by
+	 * {@link #readDurations(File)}.
+	 *
+	 * @param suitePath
+	 *            the names of the nested suites the test runs in (not including the top-level
+	 *            suite), joined with {@link #SEPARATOR}, or an empty string
+	 * @param testName
+	 *            the name of the test, see {@link Report#getTestName}
+	 * @return the test path
+	 */
+	public static String getPath(String suitePath, String testName) {
+		return (suitePath == null || suitePath.length() == 0 ? testName : suitePath + SEPARATOR
+				+ testName);
+	}
+
+	/**
+	 * Helper to get the report files: the file itself, or the sorted {@code TEST-*.xml} reports in
+	 * the folder.
+	 */
+	private static File[] getReports(File f) {
+		if (f == null || !f.exists()) {
+			return new File[0];
+		} else if (f.isFile()) {
+			return new File[] { f };
+		}
+
+		File[] reports = f.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				String name = pathname.getName();
+				return pathname.isFile() && name.startsWith(PREFIX) && name.endsWith(EXT);
+			}
+		});
+		if (reports == null) {
+			return new File[0];
+		}
+		Arrays.sort(reports);
+		return reports;
+	}
+
+	/**
+	 * Helper to read the tests in the given {@code <testsuite>}, recursing into nested suites.
+	 */
+	private static void readSuite(Element suite, String path, Map<String, long[]> totals) {
+		NodeList children = suite.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node node = children.item(i);
+			if (node.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Element child = (Element) node;
+			if ("testsuite".equals(child.getTagName())) {
+				readSuite(child, getPath(path, child.getAttribute("name")), totals);
+			} else if ("testcase".equals(child.getTagName())) {
+				long duration = getDuration(child);
+				if (duration >= 0) {
+					String key = getPath(path, child.getAttribute("name"));
+					long[] total = totals.get(key);
+					if (total == null) {
+						total = new long[2];
+						totals.put(key, total);
+					}
+					total[0] += duration;
+					total[1]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper to get the duration (in milliseconds) of the given {@code <testcase>}, preferring
+	 * the precise start and stop times over the rounded {@code time} attribute. Returns -1 if
+	 * there is no duration.
+	 */
+	private static long getDuration(Element testcase) {
+		try {
+			long start = Long.parseLong(testcase.getAttribute("starttime"));
+			long stop = Long.parseLong(testcase.getAttribute("stoptime"));
+			return Math.max(stop - start, 0);
+		} catch (NumberFormatException ex) {
+			// fall through
+		}
+		try {
+			return Math.round(Double.parseDouble(testcase.getAttribute("time")) * 1000);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+}
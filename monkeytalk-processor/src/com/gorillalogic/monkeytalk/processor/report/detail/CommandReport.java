@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import com.gorillalogic.monkeytalk.Command;
 import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.ScreenshotStore;
 import com.gorillalogic.monkeytalk.processor.report.TestResult;
 import com.gorillalogic.monkeytalk.utils.FileUtils;
 
@@ -211,7 +212,8 @@ public class CommandReport extends ReportTemplate {
 
 	/**
 	 * Helper to save the screenshots under report directory and get the relative path of the
-	 * screenshot
+	 * screenshot. Screenshots from the {@link ScreenshotStore} are named by content, so one that
+	 * is already in the report directory is never copied again.
 	 */
 	private String getScreenshotRelativeDir(File dir, String screenshot) throws IOException {
 		// creates folder under report directory
@@ -220,7 +222,9 @@ public class CommandReport extends ReportTemplate {
 			File screenshotDirectory = new File(dir, "screenshots");
 			FileUtils.makeDir(screenshotDirectory, "screenshotDir");
 			File newFile = new File(screenshotDirectory, currentFile.getName());
-			FileUtils.copyFile(currentFile, newFile);
+			if (!ScreenshotStore.isStored(newFile) || !newFile.exists()) {
+				FileUtils.copyFile(currentFile, newFile);
+			}
 		}
 		return "screenshots/" + currentFile.getName();
 	}
@@ -220,6 +220,61 @@ public class DetailReportScreenshotTest extends TestHelper {
 				+ "<b>storage</b> 56% &mdash; <b>battery</b> 78%</p>\n</div>"));
 	}
 
+	@Test
+	public void testAfterScreenshotAndAfterMetricsAttached() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button FOO Tap\nButton BAR Tap", dir);
+
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+		processor.setTakeAfterScreenshot(true);
+		processor.setTakeAfterMetrics(true);
+
+		CommandServer server = new AttachServer(PORT);
+		processor.setPlaybackListener(LISTENER_WITH_OUTPUT);
+		PlaybackResult result = processor.runScript("foo.mt");
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+
+		// only the very first before screenshot is a separate round trip
+		List<Command> cmds = server.getCommands();
+		assertThat(cmds.size(), is(3));
+		assertThat(cmds.get(0).getCommand(), is("Device * Screenshot"));
+		assertThat(cmds.get(1).getCommand(), is("Button FOO Tap"));
+		assertThat(cmds.get(2).getCommand(), is("Button BAR Tap"));
+		assertThat(server.getRawJSONCommands().get(1),
+				containsString("\"after\":[\"image\",\"metrics\"]"));
+
+		String xml = new ScriptReportHelper().createDetailReport(result).toXMLDocument();
+		assertThat(xml, containsString("beforeScreenshot=\"screenshots/"));
+		assertThat(xml, containsString("afterScreenshot=\"screenshots/"));
+		assertThat(xml, containsString("memory=\"12%\""));
+		assertThat(xml, containsString("battery=\"78%\""));
+	}
+
+	private class AttachServer extends TestHelper.CommandServer {
+		private String img;
+
+		public AttachServer(int port) throws IOException {
+			super(port);
+			img = Base64.encodeFromFile("resources/test/base.png");
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			Response resp = super.serve(uri, method, headers, json);
+			if (json.toString().toLowerCase().contains("screenshot")) {
+				return new Response(HttpStatus.OK, "{result:\"OK\", screenshot:\"" + img + "\"}");
+			} else if (json.has("after")) {
+				return new Response(HttpStatus.OK, "{result:\"OK\", afterImage:\"" + img
+						+ "\", metrics:\"12%,34%,56%,78%\"}");
+			} else {
+				return resp;
+			}
+		}
+	}
+
 	private class ScreenshotServer extends TestHelper.CommandServer {
 		private String img;
 
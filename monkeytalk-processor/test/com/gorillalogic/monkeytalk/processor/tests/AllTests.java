@@ -27,6 +27,9 @@ import org.junit.runners.Suite.SuiteClasses;
 		SuiteProcessorTest.class, GetTest.class, DocsTest.class, ScopeTest.class, RunnerTest.class,
 		JSProcessorTest.class, JavascriptTest.class, PlaybackListenerTest.class,
 		PlaybackResultTest.class, SuiteFlattenerTest.class, RunIfTest.class, AbortTest.class,
-		GlobalsTest.class, GlobalsRunnerTest.class })
+		GlobalsTest.class, GlobalsRunnerTest.class, BatchPlaybackTest.class,
+		SuiteGraphTest.class, BundleTest.class,
+		ParallelSuiteTest.class, ExecutionContextTest.class, ShardTest.class,
+		TestHistoryTest.class, ScreenshotStoreTest.class, ScreenshotSamplerTest.class })
 public class AllTests {
 }
\ No newline at end of file
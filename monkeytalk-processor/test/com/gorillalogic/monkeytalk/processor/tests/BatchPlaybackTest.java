@@ -0,0 +1,244 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.processor.PlaybackListener;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.Scope;
+import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
+import com.gorillalogic.monkeytalk.sender.CommandSender;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class BatchPlaybackTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18018;
+	private static String output;
+
+	private static final PlaybackListener LISTENER_WITH_OUTPUT = new PlaybackListener() {
+
+		@Override
+		public void onStart(Scope scope) {
+			output += scope.getCurrentCommand();
+		}
+
+		@Override
+		public void onScriptStart(Scope scope) {
+		}
+
+		@Override
+		public void onScriptComplete(Scope scope, PlaybackResult r) {
+		}
+
+		@Override
+		public void onComplete(Scope scope, Response resp) {
+			output += " -> " + resp.getStatus() + "\n";
+		}
+
+		@Override
+		public void onPrint(String message) {
+		}
+	};
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Before
+	public void before() {
+		output = "";
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt",
+				"Button A Tap\nButton B Tap\n# comment\nInput C EnterText \"foo bar\"\nButton D Tap",
+				dir);
+
+		BatchServer server = new BatchServer(PORT);
+		PlaybackResult result = runScript(dir, "foo.mt", true);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.requests, is(1));
+		assertThat(server.getCommands().size(), is(4));
+		assertThat(server.getCommands().get(2).getCommand(), is("Input C EnterText \"foo bar\""));
+		assertThat(output, is("Button A Tap -> OK\nButton B Tap -> OK\n"
+				+ "Input C EnterText \"foo bar\" -> OK\nButton D Tap -> OK\n"));
+	}
+
+	@Test
+	public void testBatchOffByDefault() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button A Tap\nButton B Tap\nButton C Tap", dir);
+
+		BatchServer server = new BatchServer(PORT);
+		PlaybackResult result = runScript(dir, "foo.mt", false);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.requests, is(3));
+		assertThat(server.getCommands().size(), is(3));
+	}
+
+	@Test
+	public void testBatchBreaksOnGet() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button A Tap\nButton B Tap\nLabel FRED Get val\n"
+				+ "Button ${val} Tap\nButton E Tap", dir);
+
+		BatchServer server = new BatchServer(PORT);
+		PlaybackResult result = runScript(dir, "foo.mt", true);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.requests, is(3));
+		assertThat(server.getCommands().size(), is(5));
+		assertThat(server.getCommands().get(3).getCommand(), is("Button FRED Tap"));
+		assertThat(output.split("\n").length, is(5));
+	}
+
+	@Test
+	public void testBatchBreaksOnScriptAndVars() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Vars * Define x=X\nButton A Tap\nButton ${x} Tap\n"
+				+ "Script bar.mt Run\nButton C Tap\nButton D Tap", dir);
+		tempScript("bar.mt", "Button B1 Tap\nButton B2 Tap", dir);
+
+		BatchServer server = new BatchServer(PORT);
+		PlaybackResult result = runScript(dir, "foo.mt", true);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.requests, is(3));
+		assertThat(server.getCommands().size(), is(6));
+		assertThat(server.getCommands().get(1).getCommand(), is("Button X Tap"));
+		assertThat(server.getCommands().get(2).getCommand(), is("Button B1 Tap"));
+	}
+
+	@Test
+	public void testBatchStopsOnFailure() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button A Tap\nButton fred Tap\nButton C Tap", dir);
+
+		BatchServer server = new BatchServer(PORT);
+		PlaybackResult result = runScript(dir, "foo.mt", true);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.FAILURE));
+		assertThat(result.getMessage(), is("fail on fred"));
+		assertThat(server.requests, is(1));
+		assertThat(server.getCommands().size(), is(2));
+		assertThat(output, is("Button A Tap -> OK\nButton fred Tap -> FAILURE\n"));
+	}
+
+	@Test
+	public void testBatchWithAbortModifier() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button A Tap\nButton fred Tap %abort=fail\nButton C Tap", dir);
+
+		BatchServer server = new BatchServer(PORT);
+		PlaybackResult result = runScript(dir, "foo.mt", true);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.requests, is(1));
+		assertThat(server.getCommands().size(), is(3));
+		assertThat(output, is("Button A Tap -> OK\nButton fred Tap %abort=fail -> FAILURE\n"
+				+ "Button C Tap -> OK\n"));
+	}
+
+	@Test
+	public void testBatchToOldAgent() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button A Tap\nButton B Tap\nButton C Tap", dir);
+
+		BatchServer server = new BatchServer(PORT);
+		server.batchSupported = false;
+		PlaybackResult result = runScript(dir, "foo.mt", true);
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.OK));
+		// one rejected batch, then one command at a time
+		assertThat(server.requests, is(4));
+		assertThat(server.getCommands().size(), is(3));
+	}
+
+	private PlaybackResult runScript(File dir, String filename, boolean batch) {
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+		processor.setPlaybackListener(LISTENER_WITH_OUTPUT);
+		processor.setBatchPlayback(batch);
+		return processor.runScript(filename);
+	}
+
+	/**
+	 * Extend {@link CommandServer} to count round trips, fail on Fred, and return
+	 * {@code monkeyId} as the value for any Get command.
+	 */
+	private class BatchServer extends CommandServer {
+		private int requests = 0;
+		private boolean batchSupported = true;
+
+		public BatchServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers, String body) {
+			requests++;
+			if (!batchSupported && body.contains(CommandSender.PLAYBATCH)) {
+				return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"unknown mtcommand="
+						+ CommandSender.PLAYBATCH + "\"}");
+			}
+			return super.serve(uri, method, headers, body);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			super.serve(uri, method, headers, json);
+			try {
+				String monkeyId = json.getString("monkeyId");
+				if ("get".equalsIgnoreCase(json.getString("action"))) {
+					return new Response(HttpStatus.OK, "{result:\"OK\",message:\"" + monkeyId
+							+ "\"}");
+				} else if ("fred".equals(monkeyId)) {
+					return new Response(HttpStatus.OK,
+							"{result:\"FAILURE\",message:\"fail on fred\"}");
+				}
+			} catch (JSONException ex) {
+				// not a command
+			}
+			return new Response(HttpStatus.OK, "{result:\"OK\"}");
+		}
+	}
+}
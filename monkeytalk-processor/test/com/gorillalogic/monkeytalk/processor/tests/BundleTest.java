@@ -0,0 +1,243 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.ProjectBundle;
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.parser.CSVData;
+import com.gorillalogic.monkeytalk.processor.Globals;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.Runner;
+import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class BundleTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18039;
+
+	@Before
+	public void before() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		AgentManager.removeAllAgents();
+	}
+
+	@After
+	public void after() {
+		Globals.clear();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testCompile() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button OK Tap\n# comment\nInput name EnterText \"Bo Bo\" %timeout=123", dir);
+		tempScript("suite.mts", "Test foo.mt RunWith data.csv", dir);
+		tempScript("data.csv", "first,last\nJoe,Smith\n\n\"Bo Bo\",\"a, b\"\nCharlie", dir);
+		tempScript("globals.properties", "foo=123", dir);
+		tempScript("readme.txt", "ignored", dir);
+		File libs = new File(dir, "libs");
+		libs.mkdir();
+		tempScript("lib.js", "var x = 1;", libs);
+
+		ProjectBundle bundle = ProjectBundle.compile(dir, new File(tempDir(), "my.mtb"));
+		assertThat(bundle.getFilenames(), is(Arrays.asList("data.csv", "foo.mt",
+				"globals.properties", "libs/lib.js", "suite.mts")));
+		assertThat(bundle.getHash().length(), is(40));
+		assertThat(bundle.getProjectName(), is(dir.getName()));
+
+		List<Command> commands = bundle.getCommands("FOO.mt");
+		List<Command> expected = new CommandWorld(dir).getScript("foo.mt");
+		assertThat(commands.size(), is(expected.size()));
+		for (int i = 0; i < commands.size(); i++) {
+			assertThat(commands.get(i).toString(), is(expected.get(i).toString()));
+			assertThat(commands.get(i).isComment(), is(expected.get(i).isComment()));
+			assertThat(commands.get(i).getTimeout(), is(expected.get(i).getTimeout()));
+		}
+		assertThat(bundle.getCommands("missing.mt"), nullValue());
+		assertThat(bundle.getCommands("data.csv"), nullValue());
+
+		CSVData data = bundle.getData("data.csv");
+		assertThat(data.size(), is(3));
+		int i = 0;
+		for (Map<String, String> row : data) {
+			if (i == 1) {
+				assertThat(row.get("first"), is("Bo Bo"));
+				assertThat(row.get("last"), is("a, b"));
+			} else if (i == 2) {
+				assertThat(row.get("first"), is("Charlie"));
+				assertThat(row.get("last"), nullValue());
+			}
+			i++;
+		}
+		assertThat(i, is(3));
+
+		assertThat(bundle.getText("libs\\lib.js"), is("var x = 1;"));
+		assertThat(bundle.getText("readme.txt"), nullValue());
+
+		// same contents, same hash
+		ProjectBundle reopened = ProjectBundle.open(bundle.getFile());
+		assertThat(reopened.getHash(), is(bundle.getHash()));
+		assertThat(ProjectBundle.compile(dir, new File(tempDir(), "again.mtb")).getHash(),
+				is(bundle.getHash()));
+
+		tempScript("foo.mt", "Button OK Tap", dir);
+		assertThat(ProjectBundle.compile(dir, new File(tempDir(), "changed.mtb")).getHash(),
+				not(bundle.getHash()));
+	}
+
+	@Test
+	public void testBadBundle() throws IOException {
+		File f = tempScript("bad.mtb", "MTBUNDLE is not enough", tempDir());
+		try {
+			ProjectBundle.open(f);
+			fail("should have thrown exception");
+		} catch (IOException ex) {
+			assertThat(ex.getMessage(), containsString("unsupported bundle version"));
+		}
+
+		f = tempScript("bad2.mtb", "junk", tempDir());
+		try {
+			ProjectBundle.open(f);
+			fail("should have thrown exception");
+		} catch (IOException ex) {
+			assertThat(ex.getMessage(), containsString("not a MonkeyTalk bundle"));
+		}
+
+		// truncated, so the last file runs past the end
+		File dir = tempDir();
+		tempScript("foo.mt", "Button OK Tap", dir);
+		f = new File(tempDir(), "truncated.mtb");
+		FileUtils.copyFile(ProjectBundle.compile(dir, new File(tempDir(), "good.mtb")).getFile(),
+				f);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		try {
+			ProjectBundle.open(f);
+			fail("should have thrown exception");
+		} catch (IOException ex) {
+			assertThat(ex.getMessage(), containsString("corrupt bundle, foo.mt is out of bounds"));
+		}
+	}
+
+	@Test
+	public void testWorld() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button OK Tap", dir);
+		tempScript("foo.js", "// js", dir);
+		tempScript("Button.Tap.mt", "Button OK Tap", dir);
+		tempScript("suite.mts", "Test foo.mt Run", dir);
+
+		CommandWorld world = CommandWorld.fromBundle(ProjectBundle.compile(dir,
+				new File(tempDir(), "my.mtb")));
+		assertThat(world.getBundle(), notNullValue());
+		assertThat(world.getScriptFiles().size(), is(2));
+		assertThat(world.getSuiteFiles().size(), is(1));
+		assertThat(world.getCustomCommandFiles().size(), is(1));
+		assertThat(world.getJavascriptFiles().size(), is(1));
+		assertThat(world.hasJavascriptOverride("foo"), is(true));
+		assertThat(world.fileExists("button.tap.mt"), is(true));
+		assertThat(world.fileExists("bar.mt"), is(false));
+		assertThat(world.getSuite("suite").size(), is(1));
+		assertThat(world.getData("data.csv"), nullValue());
+	}
+
+	@Test
+	public void testRunFromBundle() throws IOException {
+		File dir = tempDir();
+		File foo = tempScript("foo.mt", "Vars * Define first\nButton ${first} Tap ${foo}", dir);
+		File suite = tempScript("suite.mts", "Test foo.mt RunWith data.csv", dir);
+		File data = tempScript("data.csv", "first\nJoe\n\"Bo Bo\"", dir);
+		File globals = tempScript("globals.properties", "foo=123", dir);
+
+		File out = new File(tempDir(), "my.mtb");
+		ProjectBundle.compile(dir, out);
+
+		// the sources are never needed again
+		foo.delete();
+		suite.delete();
+		data.delete();
+		globals.delete();
+
+		Runner runner = new Runner("iOS", HOST, PORT);
+		runner.setBundle(ProjectBundle.open(out));
+
+		CommandServer server = new CommandServer(PORT);
+		PlaybackResult result = runner.run(new File("suite.mts"), null);
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.getCommands().size(), is(2));
+		assertThat(server.getCommands().get(0).getCommand(), is("Button Joe Tap 123"));
+		assertThat(server.getCommands().get(1).getCommand(), is("Button \"Bo Bo\" Tap 123"));
+
+		try {
+			runner.run(new File("missing.mts"), null);
+			fail("should have thrown exception");
+		} catch (RuntimeException ex) {
+			assertThat(ex.getMessage(), containsString("Not found in bundle"));
+		}
+	}
+
+	@Test
+	public void testScriptProcessor() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button OK Tap\nScript bar.mt Run", dir);
+		tempScript("bar.mt", "Input name EnterText Bob", dir);
+
+		File out = new File(tempDir(), "my.mtb");
+		ScriptProcessor processor = new ScriptProcessor(CommandWorld.fromBundle(ProjectBundle.compile(
+				dir, out)), AgentManager.getDefaultAgent(HOST, PORT));
+
+		CommandServer server = new CommandServer(PORT);
+		PlaybackResult result = processor.runScript("foo.mt");
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.getCommands().size(), is(2));
+		assertThat(server.getCommands().get(1).getCommand(), is("Input name EnterText Bob"));
+	}
+}
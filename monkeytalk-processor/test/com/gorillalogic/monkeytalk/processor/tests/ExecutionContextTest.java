@@ -0,0 +1,210 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.processor.ExecutionContext;
+import com.gorillalogic.monkeytalk.processor.Globals;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.Scope;
+import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
+import com.gorillalogic.monkeytalk.processor.SuiteProcessor;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class ExecutionContextTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18043;
+	private static final int RUNS = 4;
+
+	@Before
+	public void before() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		AgentManager.removeAllAgents();
+	}
+
+	@After
+	public void after() {
+		Globals.clear();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testDefaultContext() throws IOException {
+		Globals.setGlobal("foo", "123");
+		assertThat(Globals.getDefaultContext().getGlobal("foo"), is("123"));
+
+		ScriptProcessor processor = new ScriptProcessor(tempDir(), AgentManager.getDefaultAgent(
+				HOST, PORT));
+		assertThat(processor.getContext(), is(Globals.getDefaultContext()));
+		assertThat(new Scope().getContext(), is(Globals.getDefaultContext()));
+
+		Globals.getDefaultContext().deleteGlobal("foo");
+		assertThat(Globals.hasGlobal("foo"), is(false));
+	}
+
+	@Test
+	public void testScopeContext() {
+		ExecutionContext context = new ExecutionContext();
+		context.setGlobal("foo", "123");
+
+		Scope parent = new Scope("parent.mt");
+		parent.setContext(context);
+		Scope child = new Scope("child.mt", parent);
+		assertThat(child.getContext(), is(context));
+		assertThat(child.clone().getContext(), is(context));
+
+		Scope clone = parent.clone();
+		assertThat(clone.getContext(), is(context));
+
+		// snapshot, not a live view
+		ExecutionContext copy = new ExecutionContext(context);
+		copy.setGlobal("bar", "456");
+		assertThat(context.hasGlobal("bar"), is(false));
+		assertThat(copy.getGlobal("foo"), is("123"));
+	}
+
+	@Test
+	public void testGlobalsSnapshot() {
+		ExecutionContext context = new ExecutionContext();
+		context.setGlobal("foo", "123");
+		context.setGlobal("bar", "456");
+
+		// a read-only snapshot, shared until the next change
+		Map<String, String> globals = context.getGlobals();
+		assertThat(context.getGlobals(), sameInstance(globals));
+		try {
+			globals.put("baz", "789");
+			fail("should have thrown exception");
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+
+		context.setGlobal("foo", "changed");
+		context.deleteGlobal("bar");
+		assertThat(globals.get("foo"), is("123"));
+		assertThat(globals.get("bar"), is("456"));
+		assertThat(context.getGlobals().keySet().toString(), is("[foo]"));
+
+		// scope variables override the globals
+		Scope scope = new Scope("foo.mt");
+		scope.setContext(context);
+		scope.addVariable("bar", "local");
+		assertThat(scope.substituteCommand(new Command("Button ${foo} Tap ${bar} ${baz}"))
+				.getCommand(), is("Button changed Tap local ${baz}"));
+		scope.addVariable("foo", "local");
+		assertThat(scope.substituteCommand(new Command("Button ${foo} Tap")).getCommand(),
+				is("Button local Tap"));
+	}
+
+	@Test
+	public void testSuiteProcessorContext() throws IOException {
+		ExecutionContext context = new ExecutionContext();
+		SuiteProcessor processor = new SuiteProcessor(tempDir(), AgentManager.getDefaultAgent(HOST,
+				PORT));
+		processor.setContext(context);
+		assertThat(processor.getContext(), is(context));
+		assertThat(processor.getScriptProcessor().getContext(), is(context));
+
+		processor.setContext(null);
+		assertThat(processor.getScriptProcessor().getContext(), is(Globals.getDefaultContext()));
+	}
+
+	@Test
+	public void testParallelContexts() throws Exception {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button ${who} Tap\nGlobals * Define who=${who}_again\n"
+				+ "Script bar.mt Run\nButton LAST Verify ${who}", dir);
+		tempScript("bar.mt", "Input name EnterText ${who}\nVars * Verify ${who} who", dir);
+
+		final List<CommandServer> servers = new ArrayList<CommandServer>();
+		final List<ScriptProcessor> processors = new ArrayList<ScriptProcessor>();
+		final PlaybackResult[] results = new PlaybackResult[RUNS];
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < RUNS; i++) {
+			servers.add(new CommandServer(PORT + i));
+
+			ExecutionContext context = new ExecutionContext();
+			context.setGlobal("who", "run" + i);
+
+			ScriptProcessor processor = new ScriptProcessor(dir, AgentManager.getAgent("iOS",
+					HOST, PORT + i));
+			processor.setContext(context);
+			processors.add(processor);
+
+			final int idx = i;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					results[idx] = processors.get(idx).runScript("foo.mt");
+				}
+			}));
+		}
+
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (CommandServer server : servers) {
+			server.stop();
+		}
+
+		for (int i = 0; i < RUNS; i++) {
+			assertThat("FAIL: " + results[i], results[i].getStatus(), is(PlaybackStatus.OK));
+
+			List<String> commands = new ArrayList<String>();
+			for (int j = 0; j < servers.get(i).getCommands().size(); j++) {
+				commands.add(servers.get(i).getCommands().get(j).getCommand());
+			}
+			assertThat(commands.size(), is(3));
+			assertThat(commands.get(0), is("Button run" + i + " Tap"));
+			assertThat(commands.get(1), is("Input name EnterText run" + i + "_again"));
+			assertThat(commands.get(2), is("Button LAST Verify run" + i + "_again"));
+
+			assertThat(processors.get(i).getContext().getGlobal("who"), is("run" + i + "_again"));
+		}
+
+		// nothing leaked into the default context
+		assertThat(Globals.getGlobal("who"), nullValue());
+	}
+}
@@ -18,6 +18,7 @@ package com.gorillalogic.monkeytalk.processor.tests;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
 import java.io.ByteArrayOutputStream;
@@ -25,6 +26,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
+import javax.script.ScriptEngineManager;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -32,10 +35,12 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.processor.ExecutionContext;
 import com.gorillalogic.monkeytalk.processor.JSProcessor;
 import com.gorillalogic.monkeytalk.processor.PlaybackResult;
 import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
 import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
+import com.gorillalogic.monkeytalk.processor.js.MonkeyTalkJS;
 import com.gorillalogic.monkeytalk.processor.report.detail.ScriptReportHelper;
 import com.gorillalogic.monkeytalk.utils.FileUtils;
 import com.gorillalogic.monkeytalk.utils.TestHelper;
@@ -110,6 +115,46 @@ public class JSProcessorTest extends TestHelper {
 				notNullValue());
 	}
 
+	@Test
+	public void testCompiledScriptCache() throws Exception {
+		assumeThat(new ScriptEngineManager().getEngineByName("JavaScript"), notNullValue());
+
+		File lib = settledScript("libs/lib.js", "var libLoads = (typeof libLoads == 'undefined' ? 0 : libLoads) + 1;\n"
+				+ "var MT = {};\n"
+				+ "MT.Application = function(host, port, dir) { apps = (typeof apps == 'undefined' ? 0 : apps) + 1; };\n"
+				+ "MT.Application.prototype.foo = function() { return new MT.Foo(); };\n"
+				+ "MT.Foo = function() {};");
+		settledScript("foo.js", "load(\"libs/lib.js\");\n"
+				+ "var fooLoads = (typeof fooLoads == 'undefined' ? 0 : fooLoads) + 1;\n"
+				+ "MT.Foo.prototype.run = function(x) { lastArg = x + ' ' + bar; };");
+
+		MonkeyTalkJS mtjs = new MonkeyTalkJS(processor);
+		jsprocessor.setMonkeyTalkJS(mtjs);
+		ExecutionContext context = new ExecutionContext();
+		context.setGlobal("bar", "Bo \"Bo\"");
+		jsprocessor.setContext(context);
+		for (String arg : new String[] { "a", "b", "c" }) {
+			PlaybackResult result = jsprocessor.runJavascript(new Command("Script foo.js Run " + arg));
+			assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		}
+
+		// the library is evaluated once, the script every time, and both are compiled once
+		assertThat(count(mtjs, "libLoads"), is(1));
+		assertThat(count(mtjs, "fooLoads"), is(3));
+		assertThat(count(mtjs, "apps"), is(1));
+		assertThat(mtjs.getEngine().get("lastArg").toString(), is("c Bo \"Bo\""));
+		assertThat(mtjs.getMisses(), is(2));
+		assertThat(mtjs.getHits(), is(4));
+
+		// a changed library is evaluated again, with a new app
+		lib.setLastModified(lib.lastModified() - 10000);
+		PlaybackResult result = jsprocessor.runJavascript(new Command("Script foo.js Run d"));
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(count(mtjs, "libLoads"), is(2));
+		assertThat(count(mtjs, "apps"), is(2));
+		assertThat(mtjs.getMisses(), is(3));
+	}
+
 	@Ignore
 	@Test
 	public void testRunJavascript() throws Exception {
@@ -179,4 +224,19 @@ public class JSProcessorTest extends TestHelper {
 						".*<msg><!\\[CDATA\\[app\\.foo\\(\\)\\.run\\(\"\\*\", \"Bo Bo\", \"12345\"\\);.*"),
 				notNullValue());
 	}
-}
\ No newline at end of file
+
+	private int count(MonkeyTalkJS mtjs, String name) {
+		return ((Number) mtjs.getEngine().get(name)).intValue();
+	}
+
+	/**
+	 * Helper to write a temp script that was last modified a minute ago, so it is cacheable.
+	 */
+	private File settledScript(String filename, String contents) throws IOException {
+		File f = new File(dir, filename);
+		f.getParentFile().mkdirs();
+		FileUtils.writeFile(f, contents);
+		f.setLastModified(System.currentTimeMillis() - 60000);
+		return f;
+	}
+}
@@ -19,6 +19,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
 import java.io.ByteArrayOutputStream;
@@ -29,6 +30,8 @@ import java.io.PrintStream;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import javax.script.ScriptEngineManager;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -39,6 +42,7 @@ import com.gorillalogic.monkeytalk.api.js.tools.JSHelper;
 import com.gorillalogic.monkeytalk.processor.PlaybackResult;
 import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
 import com.gorillalogic.monkeytalk.processor.Runner;
+import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
 import com.gorillalogic.monkeytalk.utils.FileUtils;
 import com.gorillalogic.monkeytalk.utils.TestHelper;
 
@@ -1224,4 +1228,65 @@ public class JavascriptTest extends TestHelper {
 		assertThat(log, containsString("Button 123 tap \"Bo Bo\" -> OK\n"));
 		assertThat(log, containsString("result: OK"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testBenchmarkCustomCommandDataDrive() throws IOException {
+		// nothing to benchmark without a JavaScript engine
+		assumeThat(new ScriptEngineManager().getEngineByName("JavaScript"), notNullValue());
+
+		File dir = tempDir();
+		File libs = new File(dir, "libs");
+		libs.mkdir();
+		JSHelper.copyAPI(new File(libs, "MonkeyTalkAPI.js"));
+		tempScript("mycomp.myact.js", "load(\"libs/MonkeyTalkAPI.js\");\n"
+				+ "MT.MyComp = function(app, monkeyId) {\n"
+				+ "\tMT.MTObject.call(this, app, monkeyId);\n"
+				+ "\tthis.componentType = \"MyComp\";\n};\n"
+				+ "MT.MyComp.prototype = new MT.MTObject;\n"
+				+ "MT.Application.prototype.mycomp = function(monkeyId) {\n"
+				+ "\treturn new MT.MyComp(this, monkeyId);\n};\n"
+				+ "MT.MyComp.prototype.myact = function(name) {\n"
+				+ "\tthis.app.button(name).tap();\n};\n", dir);
+		StringBuilder sb = new StringBuilder("name\n");
+		int rows = 1000;
+		for (int i = 0; i < rows; i++) {
+			sb.append("row").append(i).append('\n');
+		}
+		tempScript("data.csv", sb.toString(), dir);
+		tempScript("data.mt", "Vars * Define name\nMyComp * MyAct ${name}", dir);
+		tempScript("myscript.mt", "Script data.mt RunWith data.csv", dir);
+		for (File f : new File[] { dir, libs }) {
+			for (File child : f.listFiles()) {
+				child.setLastModified(System.currentTimeMillis() - 60000);
+			}
+		}
+
+		// without caching, every call re-reads and re-evaluates the whole library
+		long uncached = runBenchmark(dir, false, rows);
+		long cached = runBenchmark(dir, true, rows);
+
+		System.out.println("JS custom command benchmark: " + rows + " rows (ms) uncached="
+				+ uncached + " cached=" + cached);
+	}
+
+	private long runBenchmark(File dir, boolean cache, int rows) throws IOException {
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+		processor.getWorld().setScriptCache(cache);
+
+		CommandServer server = new CommandServer(PORT);
+		long start = System.currentTimeMillis();
+		PlaybackResult result;
+		try {
+			result = processor.runScript("myscript.mt");
+		} finally {
+			server.stop();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.getCommands().size(), is(rows));
+		assertThat(server.getCommands().get(rows - 1).getCommand(), is("Button row" + (rows - 1)
+				+ " tap"));
+		return elapsed;
+	}
+}
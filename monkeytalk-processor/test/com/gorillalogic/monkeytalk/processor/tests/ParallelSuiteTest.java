@@ -0,0 +1,315 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.processor.ExecutionContext;
+import com.gorillalogic.monkeytalk.processor.ParallelSuiteProcessor;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.SuiteListener;
+import com.gorillalogic.monkeytalk.processor.report.Report;
+import com.gorillalogic.monkeytalk.server.JsonServer.HttpStatus;
+import com.gorillalogic.monkeytalk.server.JsonServer.Response;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class ParallelSuiteTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT1 = 18040;
+	private static final int PORT2 = 18041;
+	private static final int DEAD_PORT = 18042;
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testParallel() throws IOException {
+		File dir = tempDir();
+		tempScript("setup.mt", "Button SETUP Tap", dir);
+		tempScript("foo.mt", "Button FOO Tap", dir);
+		tempScript("bar.mt", "Vars * Define name\nButton ${name} Tap", dir);
+		tempScript("data.csv", "name\nJoe\nBob\nSam", dir);
+		tempScript("nested.mts", "Setup setup.mt Run\nTest foo.mt Run\nTest foo.mt Run", dir);
+		tempScript("suite.mts", "Setup setup.mt Run\nTest foo.mt Run\nTest bar.mt RunWith data.csv\n"
+				+ "Test foo.mt Run %ignore=true\nSuite nested.mts Run\nTest foo.mt Run", dir);
+
+		ParallelSuiteProcessor processor = new ParallelSuiteProcessor(dir, agents(PORT1, PORT2));
+		processor.setReportDir(dir);
+
+		SlowServer server1 = new SlowServer(PORT1);
+		SlowServer server2 = new SlowServer(PORT2);
+		PlaybackResult result = processor.runSuite("suite.mts");
+		server1.stop();
+		server2.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(processor.getBadAgents().size(), is(0));
+
+		// both agents did some of the work, and every test ran right after its setup
+		assertThat(server1.getCommands().size() > 0, is(true));
+		assertThat(server2.getCommands().size() > 0, is(true));
+		List<String> commands = new ArrayList<String>();
+		for (SlowServer server : Arrays.asList(server1, server2)) {
+			for (int i = 0; i < server.getCommands().size(); i++) {
+				String cmd = server.getCommands().get(i).getMonkeyId();
+				if (!cmd.equals("SETUP")) {
+					commands.add(cmd);
+					assertThat(server.getCommands().get(i - 1).getMonkeyId(), is("SETUP"));
+				}
+			}
+		}
+		assertThat(commands.size(), is(7));
+
+		// tests are reported in suite order, not finish order
+		String xml = FileUtils.readFile(processor.getReportFile());
+		assertThat(xml, containsString("tests=\"8\""));
+		assertThat(xml, containsString("errors=\"0\""));
+		int foo = xml.indexOf("name=\"foo.mt\"");
+		int joe = xml.indexOf("Joe");
+		int sam = xml.indexOf("Sam");
+		int nested = xml.indexOf("nested");
+		assertThat(foo >= 0 && foo < joe && joe < sam && sam < nested, is(true));
+	}
+
+	@Test
+	public void testGlobalsAreNotShared() throws IOException {
+		File dir = tempDir();
+		tempScript("set.mt", "Globals * Define leak=LEAK\nButton ${base} Tap", dir);
+		tempScript("get.mt", "Button GET${leak} Tap", dir);
+		tempScript("suite.mts", "Test set.mt Run\nTest get.mt Run\nTest get.mt Run", dir);
+
+		ExecutionContext context = new ExecutionContext();
+		context.setGlobal("base", "BASE");
+		ParallelSuiteProcessor processor = new ParallelSuiteProcessor(dir, agents(PORT1, PORT2));
+		processor.setContext(context);
+
+		SlowServer server1 = new SlowServer(PORT1);
+		SlowServer server2 = new SlowServer(PORT2);
+		PlaybackResult result = processor.runSuite("suite.mts");
+		server1.stop();
+		server2.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		List<String> ids = new ArrayList<String>();
+		for (SlowServer server : Arrays.asList(server1, server2)) {
+			for (int i = 0; i < server.getCommands().size(); i++) {
+				ids.add(server.getCommands().get(i).getMonkeyId());
+			}
+		}
+		assertThat(ids.size(), is(3));
+		assertThat(ids.contains("BASE"), is(true));
+		assertThat(ids.contains("GETLEAK"), is(false));
+		assertThat(context.hasGlobal("leak"), is(false));
+	}
+
+	@Test
+	public void testBadAgent() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button FOO Tap", dir);
+		tempScript("suite.mts", "Test foo.mt Run\nTest foo.mt Run\nTest foo.mt Run", dir);
+
+		ParallelSuiteProcessor processor = new ParallelSuiteProcessor(dir, agents(DEAD_PORT,
+				PORT1));
+		processor.setReportDir(dir);
+
+		CommandServer server = new CommandServer(PORT1);
+		PlaybackResult result = processor.runSuite("suite.mts");
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.getCommands().size(), is(3));
+		assertThat(processor.getBadAgents().size(), is(1));
+		assertThat(processor.getBadAgents().get(0).getPort(), is(DEAD_PORT));
+
+		String xml = FileUtils.readFile(processor.getReportFile());
+		assertThat(xml, containsString("tests=\"3\""));
+		assertThat(xml, containsString("errors=\"0\""));
+	}
+
+	@Test
+	public void testRetriedTestStartsOnce() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button FOO Tap", dir);
+		tempScript("suite.mts", "Test foo.mt Run", dir);
+
+		// the late agent is slow to answer its first ping, so the dying agent gets the test
+		ParallelSuiteProcessor processor = new ParallelSuiteProcessor(dir, agents(PORT2, PORT1));
+		processor.setReportDir(dir);
+		final List<String> started = new ArrayList<String>();
+		processor.setSuiteListener(new SuiteListener() {
+			@Override
+			public void onRunStart(int total) {
+			}
+
+			@Override
+			public void onRunComplete(PlaybackResult result, Report report) {
+			}
+
+			@Override
+			public void onTestStart(String name, int num, int total) {
+				started.add(name);
+			}
+
+			@Override
+			public void onTestComplete(PlaybackResult result, Report report) {
+			}
+
+			@Override
+			public void onSuiteStart(int total) {
+			}
+
+			@Override
+			public void onSuiteComplete(PlaybackResult result, Report report) {
+			}
+		});
+
+		DyingServer dying = new DyingServer(PORT2);
+		LateServer late = new LateServer(PORT1);
+		PlaybackResult result;
+		try {
+			result = processor.runSuite("suite.mts");
+		} finally {
+			dying.stop();
+			late.stop();
+		}
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(dying.getCommands().size(), is(1));
+		assertThat(late.getCommands().size(), is(1));
+		assertThat(processor.getBadAgents().size(), is(1));
+		assertThat(started.toString(), started.size(), is(1));
+
+		String xml = FileUtils.readFile(processor.getReportFile());
+		assertThat(xml, containsString("tests=\"1\""));
+		assertThat(xml, containsString("errors=\"0\""));
+	}
+
+	@Test
+	public void testNoAgents() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button FOO Tap", dir);
+		tempScript("suite.mts", "Test foo.mt Run\nTest foo.mt Run", dir);
+
+		ParallelSuiteProcessor processor = new ParallelSuiteProcessor(dir, agents(DEAD_PORT));
+		processor.setReportDir(dir);
+		PlaybackResult result = processor.runSuite("suite.mts");
+
+		assertThat(result, notNullValue());
+		assertThat(processor.getBadAgents().size(), is(1));
+		String xml = FileUtils.readFile(processor.getReportFile());
+		assertThat(xml, containsString("tests=\"2\""));
+		assertThat(xml, containsString("errors=\"2\""));
+		assertThat(xml, containsString("no agents left to run test"));
+	}
+
+	private List<IAgent> agents(int... ports) {
+		List<IAgent> agents = new ArrayList<IAgent>();
+		for (int port : ports) {
+			agents.add(AgentManager.getDefaultAgent(HOST, port));
+		}
+		return agents;
+	}
+
+	/**
+	 * Slow down every command, so the tests are spread across the agents.
+	 */
+	private class SlowServer extends CommandServer {
+		public SlowServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ex) {
+				// ignore
+			}
+			return super.serve(uri, method, headers, json);
+		}
+	}
+
+	/**
+	 * Errors on the first command, and then goes bad (every ping after that is an error).
+	 */
+	private class DyingServer extends CommandServer {
+		private volatile boolean dead;
+
+		public DyingServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			if (dead) {
+				return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"dead\"}");
+			}
+			Response resp = super.serve(uri, method, headers, json);
+			if (getCommands().size() > 0) {
+				dead = true;
+				return new Response(HttpStatus.OK, "{result:\"ERROR\",message:\"dying\"}");
+			}
+			return resp;
+		}
+	}
+
+	/**
+	 * Slow down the first ping, so the other agent is always ready first.
+	 */
+	private class LateServer extends CommandServer {
+		private volatile boolean pinged;
+
+		public LateServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			if (!pinged) {
+				pinged = true;
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException ex) {
+					// ignore
+				}
+			}
+			return super.serve(uri, method, headers, json);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.ScreenshotSampler;
+import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
+import com.gorillalogic.monkeytalk.processor.Step;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.utils.Base64;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class ScreenshotSamplerTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18050;
+
+	@Before
+	public void before() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		AgentManager.removeAllAgents();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testDistance() {
+		assertThat(ScreenshotSampler.distance("00ff", "00FF"), is(0));
+		assertThat(ScreenshotSampler.distance("0000", "0001"), is(1));
+		assertThat(ScreenshotSampler.distance("0000", "f00f"), is(8));
+		assertThat(ScreenshotSampler.distance("0000", "00000"), is(Integer.MAX_VALUE));
+		assertThat(ScreenshotSampler.distance("zz", "zy"), is(Integer.MAX_VALUE));
+		assertThat(ScreenshotSampler.distance("zz", "zz"), is(0));
+	}
+
+	@Test
+	public void testShouldCapture() {
+		ScreenshotSampler sampler = new ScreenshotSampler(1, 0);
+		assertThat(sampler.shouldCapture("00", false), is(true));
+		assertThat(sampler.shouldCapture("01", false), is(false));
+		assertThat(sampler.shouldCapture("02", false), is(false));
+		// compared to the last screenshot taken, so small changes add up
+		assertThat(sampler.shouldCapture("03", false), is(true));
+		assertThat(sampler.shouldCapture("03", true), is(true));
+		assertThat(sampler.shouldCapture(null, false), is(true));
+		assertThat(sampler.shouldCapture("03", false), is(true));
+		sampler.reset();
+		assertThat(sampler.shouldCapture("03", false), is(true));
+		assertThat(sampler.getCaptured(), is(6));
+		assertThat(sampler.getSkipped(), is(2));
+		assertThat(sampler.toString(), containsString("captured=6 skipped=2"));
+	}
+
+	@Test
+	public void testKeyframes() {
+		ScreenshotSampler sampler = new ScreenshotSampler(0, 3);
+		assertThat(sampler.shouldCapture("00", false), is(true));
+		assertThat(sampler.shouldCapture("00", false), is(false));
+		assertThat(sampler.shouldCapture("00", false), is(false));
+		assertThat(sampler.shouldCapture("00", false), is(true));
+		assertThat(sampler.shouldCapture("00", false), is(false));
+	}
+
+	@Test
+	public void testSampledAfterScreenshots() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button 00 Tap\nButton 01 Tap\nButton 01 Tap\nButton 01 Tap\n"
+				+ "Button 0f Tap\nButton 0f Tap\nButton 0f Tap %shouldfail=true", dir);
+
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+		processor.setTakeAfterScreenshot(true);
+		processor.setScreenshotThreshold(2);
+		processor.setKeyframeInterval(3);
+
+		FingerprintServer server = new FingerprintServer(PORT, true);
+		PlaybackResult result = processor.runScript("foo.mt");
+		server.stop();
+
+		assertThat(result.getStatus(), is(PlaybackStatus.FAILURE));
+		List<Step> steps = result.getSteps();
+		assertThat(steps.size(), is(7));
+
+		// before, then changed (first), keyframe, changed, and failed
+		assertThat(server.screenshots, is(5));
+		assertThat(server.getRawJSONCommands().get(1), containsString("\"after\":[\"fingerprint\"]"));
+		boolean[] captured = { true, false, false, true, true, false, true };
+		for (int i = 0; i < steps.size(); i++) {
+			PlaybackResult r = steps.get(i).getResult();
+			assertThat(r.getBeforeImageFile(), notNullValue());
+			assertThat(r.getAfterImageFile(), notNullValue());
+			assertThat(r.getAfterImageFile().exists(), is(true));
+			if (i > 0) {
+				File previous = steps.get(i - 1).getResult().getAfterImageFile();
+				assertThat(r.getBeforeImageFile(), is(previous));
+				assertThat("step " + i, r.getAfterImageFile().equals(previous), is(!captured[i]));
+			}
+		}
+		assertThat(processor.getScreenshotStore().getStored(), is(5));
+	}
+
+	@Test
+	public void testSampledAfterScreenshotsWithoutFingerprint() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button 00 Tap\nButton 01 Tap\nButton 02 Tap", dir);
+
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+		processor.setTakeAfterScreenshot(true);
+		processor.setScreenshotThreshold(2);
+
+		// an older agent, so every after screenshot is taken
+		FingerprintServer server = new FingerprintServer(PORT, false);
+		PlaybackResult result = processor.runScript("foo.mt");
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(server.screenshots, is(4));
+		assertThat(server.getRawJSONCommands().get(3), containsString("\"after\":[\"image\"]"));
+		assertThat(server.getRawJSONCommands().get(5), not(containsString("\"after\"")));
+		assertThat(result.getSteps().get(2).getResult().getAfterImageFile(), notNullValue());
+	}
+
+	private class FingerprintServer extends CommandServer {
+		private final boolean fingerprints;
+		private int screenshots;
+
+		public FingerprintServer(int port, boolean fingerprints) throws IOException {
+			super(port);
+			this.fingerprints = fingerprints;
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+			Response resp = super.serve(uri, method, headers, json);
+			Command cmd = new Command(json);
+
+			if ("device.screenshot".equals(cmd.getCommandName())) {
+				// every screenshot is a different frame
+				String img = Base64.encodeBytes(("frame" + (screenshots++)).getBytes());
+				return new Response(HttpStatus.OK, "{result:\"OK\", screenshot:\"" + img + "\"}");
+			} else if (fingerprints && json.has("after")) {
+				return new Response(HttpStatus.OK, "{result:\"OK\", fingerprint:\""
+						+ cmd.getMonkeyId() + "\"}");
+			}
+			return resp;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.Command;
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.ScreenshotStore;
+import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
+import com.gorillalogic.monkeytalk.processor.Step;
+import com.gorillalogic.monkeytalk.sender.Response;
+import com.gorillalogic.monkeytalk.utils.Base64;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class ScreenshotStoreTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18049;
+	private static final String PNG = "iVBORw0KGgoAAAANSUhEUgAAAAIAAAACCAIAAAD91JpzAAAAGXRFWHRTb2Z0d2FyZQBBZG9iZSBJbWFnZVJlYWR5ccllPAAAABdJREFUeNpi+s/AwPCfgYkRSDH+BwgwABcpAwRXSDQWAAAAAElFTkSuQmCC";
+
+	@Before
+	public void before() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		AgentManager.removeAllAgents();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testPutAsync() throws Exception {
+		File dir = tempDir();
+		ScreenshotStore store = new ScreenshotStore(new File(dir, "screenshots"));
+
+		// more than fit in the queue, so some are saved by the caller
+		List<File> temps = new ArrayList<File>();
+		List<Future<File>> futures = new ArrayList<Future<File>>();
+		for (int i = 0; i < ScreenshotStore.QUEUE_SIZE * 3; i++) {
+			File temp = tempScript("temp" + i + ".png", "frame" + (i % 2), dir);
+			temps.add(temp);
+			futures.add(store.putAsync(temp));
+		}
+		store.flush();
+
+		assertThat(store.getCount(), is(ScreenshotStore.QUEUE_SIZE * 3));
+		assertThat(store.getStored(), is(2));
+		for (int i = 0; i < futures.size(); i++) {
+			assertThat(futures.get(i).isDone(), is(true));
+			assertThat(futures.get(i).get().exists(), is(true));
+			assertThat(futures.get(i).get(), is(futures.get(i % 2).get()));
+			assertThat(temps.get(i).exists(), is(false));
+		}
+		assertThat(futures.get(0).get(), not(futures.get(1).get()));
+
+		// the temp file decoded from a response is cleaned up too
+		Response resp = new Response.Builder().ok().image(PNG).build();
+		File stored = store.putAsync(resp).get();
+		assertThat(stored.exists(), is(true));
+		assertThat(resp.getImageFile().exists(), is(false));
+	}
+
+	@Test
+	public void testPutCopy() throws Exception {
+		File dir = tempDir();
+		File screenshots = new File(dir, "screenshots");
+		ScreenshotStore store = new ScreenshotStore(screenshots);
+
+		File foo = tempScript("foo.png", "foo", dir);
+		File stored = store.put(foo, false);
+		assertThat(store.put(tempScript("foo2.png", "foo", dir), false), is(stored));
+
+		assertThat(foo.exists(), is(true));
+		assertThat(ScreenshotStore.isStored(stored), is(true));
+		assertThat(FileUtils.readFile(stored), is("foo"));
+		assertThat(store.getCount(), is(2));
+		assertThat(store.getStored(), is(1));
+
+		// only the stored screenshot is left, no temp copies
+		assertThat(screenshots.list().length, is(1));
+	}
+
+	@Test
+	public void testResultImageIsNotDecodedEagerly() throws Exception {
+		File dir = tempDir();
+		ScreenshotStore store = new ScreenshotStore(new File(dir, "screenshots"));
+
+		Response resp = new Response.Builder().ok().image(PNG).build();
+		PlaybackResult result = new PlaybackResult(resp);
+		assertThat(result.getImageResponse(), is(resp));
+		assertThat(result.getImage(), is(PNG));
+
+		// decoded and saved by the store, not by the result
+		result.setImageFuture(store.putAsync(resp));
+		assertThat(result.getImageResponse(), nullValue());
+		assertThat(ScreenshotStore.isStored(result.getImageFile()), is(true));
+		assertThat(result.getImageFile().exists(), is(true));
+	}
+
+	@Test
+	public void testAfterScreenshots() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button FOO Tap\nButton BAR Tap\nButton BAZ Tap", dir);
+
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+		processor.setTakeAfterScreenshot(true);
+
+		ScreenshotServer server = new ScreenshotServer(PORT);
+		PlaybackResult result = processor.runScript("foo.mt");
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		List<Step> steps = result.getSteps();
+		assertThat(steps.size(), is(3));
+		for (int i = 0; i < steps.size(); i++) {
+			PlaybackResult r = steps.get(i).getResult();
+			assertThat(r.getBeforeImageFile(), notNullValue());
+			assertThat(r.getAfterImageFile(), notNullValue());
+			assertThat(r.getAfterImageFile().exists(), is(true));
+			assertThat(ScreenshotStore.isStored(r.getAfterImageFile()), is(true));
+			if (i > 0) {
+				assertThat(r.getBeforeImageFile(), is(steps.get(i - 1).getResult()
+						.getAfterImageFile()));
+			}
+		}
+
+		// one before screenshot and three after, all the same frame
+		assertThat(processor.getScreenshotStore().getCount(), is(4));
+		assertThat(processor.getScreenshotStore().getStored(), is(1));
+	}
+
+	private class ScreenshotServer extends CommandServer {
+
+		public ScreenshotServer(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public Response serve(String uri, String method, Map<String, String> headers,
+				JSONObject json) {
+
+			Response resp = super.serve(uri, method, headers, json);
+
+			if ("device.screenshot".equals(new Command(json).getCommandName())) {
+				try {
+					resp = new Response(resp.getStatus(), resp.getBody(), resp.getHeaders(),
+							Base64.decode(PNG));
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+
+			return resp;
+		}
+	}
+}
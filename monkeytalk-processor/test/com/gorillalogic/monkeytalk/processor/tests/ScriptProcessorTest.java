@@ -24,6 +24,7 @@ import static org.junit.matchers.JUnitMatchers.everyItem;
 import static org.junit.matchers.JUnitMatchers.hasItems;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,6 +41,7 @@ import com.gorillalogic.monkeytalk.processor.PlaybackListener;
 import com.gorillalogic.monkeytalk.processor.PlaybackResult;
 import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
 import com.gorillalogic.monkeytalk.processor.Scope;
+import com.gorillalogic.monkeytalk.processor.ScreenshotStore;
 import com.gorillalogic.monkeytalk.processor.ScriptProcessor;
 import com.gorillalogic.monkeytalk.processor.report.detail.ScriptReportHelper;
 import com.gorillalogic.monkeytalk.sender.Response;
@@ -1578,6 +1580,36 @@ public class ScriptProcessorTest extends TestHelper {
 		assertThat(Arrays.asList(screenshotsDir.list()), everyItem(containsString("screenshot")));
 	}
 
+	@Test
+	public void testRunScriptWithDuplicateScreenshots() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Device * Screenshot\nButton FOO Tap\nDevice * Screenshot", dir);
+
+		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, dir);
+
+		ScreenshotServer server = new ScreenshotServer(PORT);
+		PlaybackResult result = processor.runScript("foo.mt");
+		server.stop();
+
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+
+		File screenshotsDir = new File(dir, "screenshots");
+		assertThat(screenshotsDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(".png");
+			}
+		}).length, is(1));
+		assertThat(processor.getScreenshotStore().getCount(), is(2));
+		assertThat(processor.getScreenshotStore().getStored(), is(1));
+		assertThat(processor.getScreenshotStore().getDedupRatio(), is(2.0));
+
+		File stored = result.getSteps().get(2).getResult().getImageFile();
+		assertThat(stored.getParentFile(), is(screenshotsDir));
+		assertThat(ScreenshotStore.isStored(stored), is(true));
+		assertThat(result.getSteps().get(0).getResult().getImageFile(), is(stored));
+	}
+
 	@Test
 	public void testRunScriptWithEscapes() throws IOException {
 		ScriptProcessor processor = new ScriptProcessor(HOST, PORT, (File) null);
@@ -0,0 +1,246 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.processor.Globals;
+import com.gorillalogic.monkeytalk.processor.ParallelSuiteProcessor;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.Shard;
+import com.gorillalogic.monkeytalk.processor.SuiteFlattener;
+import com.gorillalogic.monkeytalk.processor.SuiteProcessor;
+import com.gorillalogic.monkeytalk.processor.report.ReportReader;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class ShardTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18047;
+
+	@Before
+	public void before() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		AgentManager.removeAllAgents();
+	}
+
+	@After
+	public void after() {
+		Globals.clear();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testParse() {
+		Shard shard = Shard.parse("2/4");
+		assertThat(shard.getIndex(), is(2));
+		assertThat(shard.getCount(), is(4));
+		assertThat(shard.toString(), is("2/4"));
+		assertThat(Shard.parse(" 1 / 1 ").getCount(), is(1));
+
+		for (String bad : Arrays.asList(null, "", "2", "0/4", "5/4", "1/0", "a/b", "1/2/3")) {
+			try {
+				Shard.parse(bad);
+				fail("should have thrown exception");
+			} catch (IllegalArgumentException ex) {
+				assertThat(ex.getMessage(), containsString("bad shard"));
+			}
+		}
+	}
+
+	@Test
+	public void testGetTests() throws IOException {
+		File dir = project();
+		List<String> tests = new SuiteFlattener(dir).getTests("suite.mts");
+		assertThat(tests, is(Arrays.asList("a.mt", "b.mt[name='Joe']", "b.mt[name='Bob']",
+				"nested > c.mt")));
+		assertThat(tests.size(), is(new SuiteFlattener(dir).flatten("suite.mts")));
+		assertThat(new SuiteFlattener(dir).getTests("missing.mts").size(), is(0));
+	}
+
+	@Test
+	public void testSelect() {
+		List<String> tests = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			tests.add("test" + i + ".mt");
+		}
+
+		// round-robin without durations
+		assertThat(new Shard(1, 3).select(tests, null), is(set(0, 3, 6, 9)));
+		assertThat(new Shard(3, 3).select(tests, new HashMap<String, Long>()), is(set(2, 5, 8)));
+
+		// every test in exactly one shard, longest tests spread out
+		Map<String, Long> durations = new HashMap<String, Long>();
+		durations.put("test0.mt", 9000L);
+		durations.put("test1.mt", 8000L);
+		durations.put("test2.mt", 100L);
+		durations.put("test3.mt", 100L);
+		Set<Integer> all = new TreeSet<Integer>();
+		for (int i = 1; i <= 3; i++) {
+			Set<Integer> selected = new Shard(i, 3).select(tests, durations);
+			for (int n : selected) {
+				assertThat(all.add(n), is(true));
+			}
+		}
+		assertThat(all.size(), is(10));
+		assertThat(new Shard(1, 3).select(tests, durations).contains(1), is(false));
+		assertThat(new Shard(1, 3).select(tests, durations), is(new Shard(1, 3).select(tests,
+				durations)));
+	}
+
+	@Test
+	public void testRunShards() throws IOException {
+		File dir = project();
+		List<String> ran = new ArrayList<String>();
+
+		SuiteProcessor processor = new SuiteProcessor(dir, AgentManager.getDefaultAgent(HOST, PORT));
+		processor.setShard(new Shard(1, 2));
+		CommandServer server = new CommandServer(PORT);
+		PlaybackResult result = processor.runSuite("suite.mts");
+		server.stop();
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(monkeyIds(server), is(Arrays.asList("A", "Bob")));
+		assertThat(FileUtils.readFile(processor.getReportFile()), containsString("tests=\"2\""));
+		ran.addAll(monkeyIds(server));
+
+		processor.setShard(new Shard(2, 2));
+		server = new CommandServer(PORT);
+		result = processor.runSuite("suite.mts");
+		server.stop();
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(monkeyIds(server), is(Arrays.asList("Joe", "SETUP", "C")));
+		ran.addAll(monkeyIds(server));
+
+		assertThat(ran.size(), is(5));
+	}
+
+	@Test
+	public void testEmptyShard() throws IOException {
+		File dir = tempDir();
+		tempScript("foo.mt", "Button FOO Tap", dir);
+		tempScript("suite.mts", "Test foo.mt Run", dir);
+
+		// one test, two shards, so the second shard has nothing to run
+		for (boolean parallel : new boolean[] { false, true }) {
+			List<IAgent> agents = new ArrayList<IAgent>();
+			agents.add(AgentManager.getDefaultAgent(HOST, PORT));
+			SuiteProcessor processor = (parallel ? new ParallelSuiteProcessor(dir, agents)
+					: new SuiteProcessor(dir, agents.get(0)));
+			processor.setShard(new Shard(2, 2));
+			CommandServer server = new CommandServer(PORT);
+			PlaybackResult result;
+			try {
+				result = processor.runSuite("suite.mts");
+			} finally {
+				server.stop();
+			}
+			assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+			assertThat(server.getCommands().size(), is(0));
+			assertThat(FileUtils.readFile(processor.getReportFile()), containsString("tests=\"0\""));
+		}
+	}
+
+	@Test
+	public void testRunShardsByDuration() throws IOException {
+		File dir = project();
+		File reports = tempDir();
+		tempScript("TEST-suite.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+				+ "<testsuite name=\"suite\" tests=\"4\">\n"
+				+ "<testcase name=\"a.mt\" starttime=\"1000\" stoptime=\"11000\" time=\"10.000\" />\n"
+				+ "<testcase name=\"b.mt[name='Joe']\" time=\"1.000\" />\n"
+				+ "<testcase name=\"b.mt[name='Bob']\" starttime=\"0\" stoptime=\"1000\" />\n"
+				+ "<testsuite name=\"nested\" tests=\"1\">\n"
+				+ "<testcase name=\"c.mt\" starttime=\"0\" stoptime=\"500\" />\n"
+				+ "<testcase name=\"c.mt\" starttime=\"0\" stoptime=\"1500\" />\n"
+				+ "</testsuite>\n</testsuite>", reports);
+		tempScript("TEST-junk.xml", "not xml", reports);
+
+		Map<String, Long> durations = ReportReader.readDurations(reports);
+		assertThat(durations.size(), is(4));
+		assertThat(durations.get("a.mt"), is(10000L));
+		assertThat(durations.get("b.mt[name='Joe']"), is(1000L));
+		assertThat(durations.get("nested > c.mt"), is(1000L));
+
+		// the long test gets a shard to itself
+		SuiteProcessor processor = new SuiteProcessor(dir, AgentManager.getDefaultAgent(HOST, PORT));
+		processor.setShard(new Shard(1, 2));
+		processor.setShardReports(reports);
+		CommandServer server = new CommandServer(PORT);
+		PlaybackResult result = processor.runSuite("suite.mts");
+		server.stop();
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(monkeyIds(server), is(Arrays.asList("A")));
+
+		processor.setShard(new Shard(2, 2));
+		server = new CommandServer(PORT);
+		result = processor.runSuite("suite.mts");
+		server.stop();
+		assertThat("FAIL: " + result, result.getStatus(), is(PlaybackStatus.OK));
+		assertThat(monkeyIds(server), is(Arrays.asList("Joe", "Bob", "SETUP", "C")));
+	}
+
+	private File project() throws IOException {
+		File dir = tempDir();
+		tempScript("a.mt", "Button A Tap", dir);
+		tempScript("b.mt", "Vars * Define name\nButton ${name} Tap", dir);
+		tempScript("c.mt", "Button C Tap", dir);
+		tempScript("setup.mt", "Button SETUP Tap", dir);
+		tempScript("data.csv", "name\nJoe\nBob", dir);
+		tempScript("nested.mts", "Setup setup.mt Run\nTest c.mt Run", dir);
+		tempScript("suite.mts", "Test a.mt Run\nTest b.mt RunWith data.csv\nSuite nested.mts Run",
+				dir);
+		return dir;
+	}
+
+	private List<String> monkeyIds(CommandServer server) {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < server.getCommands().size(); i++) {
+			ids.add(server.getCommands().get(i).getMonkeyId());
+		}
+		return ids;
+	}
+
+	private Set<Integer> set(Integer... positions) {
+		return new TreeSet<Integer>(Arrays.asList(positions));
+	}
+}
@@ -0,0 +1,129 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.CommandWorld;
+import com.gorillalogic.monkeytalk.processor.SuiteFlattener;
+import com.gorillalogic.monkeytalk.processor.SuiteGraph;
+import com.gorillalogic.monkeytalk.processor.SuiteProcessor;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class SuiteGraphTest extends TestHelper {
+	private static final long LONG_AGO = 1000000000000L;
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testGraph() throws IOException {
+		File dir = tempDir();
+		tempScript("suite.mts", "Setup up.mt Run\nTest foo.mt Run\nSuite s2.mts Run\n"
+				+ "Suite s2.mts Run\nTeardown down.mt Run", dir);
+		tempScript("s2.mts", "Test bar.mt RunWith data.csv\nSuite s3.mts Run", dir);
+		tempScript("s3.mts", "Test baz.mt RunWith data.csv\nSuite missing.mts Run", dir);
+		tempScript("data.csv", "header\nrow1\nrow2", dir);
+
+		SuiteGraph graph = new SuiteGraph(new CommandWorld(dir), "suite.mts");
+		assertThat(graph.getSuites().size(), is(4));
+		assertThat(graph.getRoot().getCommands().size(), is(5));
+		assertThat(graph.getRoot().getSetup().size(), is(1));
+		assertThat(graph.getRoot().getTeardown().size(), is(1));
+		assertThat(graph.getRoot().getSuites().size(), is(2));
+		assertThat(graph.getRoot().getSuites().get(0),
+				sameInstance(graph.getRoot().getSuites().get(1)));
+		assertThat(graph.getDataRows("data.csv"), is(2));
+		assertThat(graph.getDataRows("other.csv"), is(-1));
+
+		assertThat(graph.getSuite("S3.mts").getTotal(), is(2 + SuiteFlattener.SUITE_NOT_FOUND));
+		assertThat(graph.getSuite("missing.mts").getCommands(), nullValue());
+		assertThat(graph.getSuite("s2.mts").getTotal(), is(4 + SuiteFlattener.SUITE_NOT_FOUND));
+		assertThat(graph.getRoot().getTotal(), is(1 + 2 * (4 + SuiteFlattener.SUITE_NOT_FOUND)));
+		assertThat(graph.getRoot().getTotal(), is(new SuiteFlattener(dir).flatten("suite.mts")));
+		assertThat(graph.getSuite("other.mts"), nullValue());
+	}
+
+	@Test
+	public void testRecursiveSuite() throws IOException {
+		File dir = tempDir();
+		tempScript("suite.mts", "Test foo.mt Run\nSuite s2.mts Run", dir);
+		tempScript("s2.mts", "Test bar.mt Run\nSuite suite.mts Run", dir);
+
+		SuiteGraph graph = new SuiteGraph(new CommandWorld(dir), "suite.mts");
+		assertThat(graph.getRoot().getTotal(), is(2));
+		assertThat(graph.getSuite("s2.mts").getTotal(), is(1));
+	}
+
+	@Test
+	public void testCurrent() throws IOException {
+		File dir = tempDir();
+		File suite = tempScript("suite.mts", "Test foo.mt RunWith data.csv", dir);
+		File data = tempScript("data.csv", "header\nrow1\nrow2", dir);
+
+		// just modified, so not trusted
+		SuiteGraph graph = new SuiteGraph(new CommandWorld(dir), "suite.mts");
+		assertThat(graph.isCurrent(), is(false));
+
+		suite.setLastModified(LONG_AGO);
+		data.setLastModified(LONG_AGO);
+		dir.setLastModified(LONG_AGO);
+		graph = new SuiteGraph(new CommandWorld(dir), "suite.mts");
+		assertThat(graph.isCurrent(), is(true));
+		assertThat(graph.getRoot().getTotal(), is(2));
+
+		data.setLastModified(LONG_AGO + 10000);
+		assertThat(graph.isCurrent(), is(false));
+
+		data.setLastModified(LONG_AGO);
+		assertThat(graph.isCurrent(), is(true));
+		tempScript("other.mts", "Test bar.mt Run", dir);
+		assertThat(graph.isCurrent(), is(false));
+	}
+
+	@Test
+	public void testReusedAcrossRuns() throws IOException {
+		File dir = tempDir();
+		File suite = tempScript("suite.mts", "Test foo.mt Run", dir);
+		suite.setLastModified(LONG_AGO);
+		dir.setLastModified(LONG_AGO);
+
+		SuiteProcessor processor = new SuiteProcessor("localhost", 18038, dir);
+		processor.setReportDir(tempDir());
+		SuiteGraph graph = processor.getSuiteGraph("suite.mts");
+		assertThat(graph, notNullValue());
+		processor.runSuite("suite.mts");
+
+		SuiteGraph reused = processor.getSuiteGraph("suite.mts");
+		assertThat(reused, sameInstance(processor.getSuiteGraph("suite.mts")));
+		assertThat(reused.getRoot().getTotal(), is(1));
+
+		suite.setLastModified(LONG_AGO + 10000);
+		assertThat(processor.getSuiteGraph("suite.mts") == reused, is(false));
+	}
+}
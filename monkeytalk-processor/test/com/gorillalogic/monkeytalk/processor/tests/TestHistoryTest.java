@@ -0,0 +1,200 @@
+/*  MonkeyTalk - a cross-platform functional testing tool
+    Copyright (C) 2012 Gorilla Logic, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.gorillalogic.monkeytalk.processor.tests;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gorillalogic.monkeytalk.agents.AgentManager;
+import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.processor.Globals;
+import com.gorillalogic.monkeytalk.processor.ParallelSuiteProcessor;
+import com.gorillalogic.monkeytalk.processor.PlaybackResult;
+import com.gorillalogic.monkeytalk.processor.PlaybackStatus;
+import com.gorillalogic.monkeytalk.processor.SuiteProcessor;
+import com.gorillalogic.monkeytalk.processor.TestHistory;
+import com.gorillalogic.monkeytalk.utils.FileUtils;
+import com.gorillalogic.monkeytalk.utils.TestHelper;
+
+public class TestHistoryTest extends TestHelper {
+	private static final String HOST = "localhost";
+	private static final int PORT = 18048;
+
+	@Before
+	public void before() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		AgentManager.removeAllAgents();
+	}
+
+	@After
+	public void after() {
+		Globals.clear();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		cleanup();
+	}
+
+	@Test
+	public void testRank() throws IOException {
+		File dir = tempDir();
+		File f = tempScript("history.txt", "# MonkeyTalk test history v1\n"
+				+ "10 0 0 100 s1 a.mt\n10 5 0 1000 s1 b.mt\n10 5 0 100 s1 c.mt\n"
+				+ "10 1 1 100 s1 d.mt\n10 0 0 100 s1 e.mt\nbad line\n", dir);
+
+		TestHistory history = TestHistory.load(f);
+		assertThat(history.size(), is(5));
+		assertThat(history.isRecentFailure("d.mt"), is(true));
+		assertThat(history.isRecentFailure("c.mt"), is(false));
+		assertThat(history.getFailureRate("b.mt"), is(0.5));
+		assertThat(history.getDuration("a.mt"), is(100L));
+		assertThat(history.getDuration("missing.mt"), is(-1L));
+
+		// recent failure, then changed and new, then by failure rate per ms, then the rest
+		int[] ranks = history.rank(Arrays.asList("a.mt", "b.mt", "c.mt", "d.mt", "e.mt", "f.mt"),
+				Arrays.asList("s1", "s1", "s1", "s1", "s2", null));
+		assertThat(ranks[3], is(0));
+		assertThat(ranks[4], is(1));
+		assertThat(ranks[5], is(2));
+		assertThat(ranks[2], is(3));
+		assertThat(ranks[1], is(4));
+		assertThat(ranks[0], is(5));
+
+		// missing file is just empty
+		assertThat(TestHistory.load(new File(dir, "missing.txt")).size(), is(0));
+	}
+
+	@Test
+	public void testFailuresFirst() throws IOException {
+		File dir = project();
+		File f = new File(dir, "history.txt");
+
+		SuiteProcessor processor = new SuiteProcessor(dir, AgentManager.getDefaultAgent(HOST, PORT));
+		assertThat(run(processor, f), is(Arrays.asList("A", "B", "C")));
+		assertThat(f.exists(), is(true));
+		assertThat(TestHistory.load(f).size(), is(3));
+		assertThat(TestHistory.load(f).isRecentFailure("c.mt"), is(true));
+
+		// the failure goes first
+		assertThat(run(processor, f), is(Arrays.asList("C", "A", "B")));
+
+		// then the changed test
+		tempScript("b.mt", "Button B Tap\nButton B2 Tap", dir);
+		assertThat(run(processor, f), is(Arrays.asList("C", "B", "B2", "A")));
+		assertThat(FileUtils.readFile(f), containsString("3 3 7 "));
+	}
+
+	@Test
+	public void testFailFast() throws IOException {
+		File dir = project();
+		tempScript("suite.mts", "Test a.mt Run\nTest c.mt Run\nTest b.mt Run", dir);
+
+		SuiteProcessor processor = new SuiteProcessor(dir, AgentManager.getDefaultAgent(HOST, PORT));
+		processor.setFailFast(1);
+		CommandServer server = new CommandServer(PORT);
+		PlaybackResult result = processor.runSuite("suite.mts");
+		server.stop();
+		assertThat(result.getStatus(), is(PlaybackStatus.FAILURE));
+		assertThat(monkeyIds(server), is(Arrays.asList("A", "C")));
+	}
+
+	@Test
+	public void testFailFastReportsSkipped() throws IOException {
+		File dir = project();
+		tempScript("data.csv", "x\n1\n2", dir);
+		tempScript("nested.mts", "Test a.mt Run\nTest b.mt Run", dir);
+		tempScript("suite.mts", "Test a.mt Run\nTest c.mt Run\nTest b.mt RunWith data.csv\n"
+				+ "Suite nested.mts Run", dir);
+
+		SuiteProcessor processor = new SuiteProcessor(dir, AgentManager.getDefaultAgent(HOST, PORT));
+		processor.setFailFast(1);
+		CommandServer server = new CommandServer(PORT);
+		processor.runSuite("suite.mts");
+		server.stop();
+		assertThat(monkeyIds(server), is(Arrays.asList("A", "C")));
+
+		// every test not run is in the report as skipped
+		String xml = FileUtils.readFile(processor.getReportFile());
+		assertThat(xml, containsString("tests=\"6\" suites=\"1\" errors=\"0\" failures=\"1\" "
+				+ "skipped=\"4\""));
+
+		// same for the parallel processor
+		List<IAgent> agents = new ArrayList<IAgent>();
+		agents.add(AgentManager.getDefaultAgent(HOST, PORT));
+		processor = new ParallelSuiteProcessor(dir, agents);
+		processor.setFailFast(1);
+		server = new CommandServer(PORT);
+		processor.runSuite("suite.mts");
+		server.stop();
+		xml = FileUtils.readFile(processor.getReportFile());
+		assertThat(xml, containsString("failures=\"1\" skipped=\"4\""));
+	}
+
+	@Test
+	public void testParallelFailuresFirst() throws IOException {
+		File dir = project();
+		File f = new File(dir, "history.txt");
+		List<IAgent> agents = new ArrayList<IAgent>();
+		agents.add(AgentManager.getDefaultAgent(HOST, PORT));
+
+		SuiteProcessor processor = new ParallelSuiteProcessor(dir, agents);
+		assertThat(run(processor, f), is(Arrays.asList("A", "B", "C")));
+		assertThat(run(processor, f), is(Arrays.asList("C", "A", "B")));
+
+		processor.setFailFast(1);
+		assertThat(run(processor, f), is(Arrays.asList("C")));
+	}
+
+	private List<String> run(SuiteProcessor processor, File f) throws IOException {
+		processor.setTestHistory(TestHistory.load(f));
+		CommandServer server = new CommandServer(PORT);
+		processor.runSuite("suite.mts");
+		server.stop();
+		return monkeyIds(server);
+	}
+
+	private File project() throws IOException {
+		File dir = tempDir();
+		tempScript("a.mt", "Button A Tap", dir);
+		tempScript("b.mt", "Button B Tap", dir);
+		tempScript("c.mt", "Vars * Define v=1\nButton C Tap\nVars * Verify 2 v", dir);
+		tempScript("suite.mts", "Test a.mt Run\nTest b.mt Run\nTest c.mt Run", dir);
+		return dir;
+	}
+
+	private List<String> monkeyIds(CommandServer server) {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < server.getCommands().size(); i++) {
+			ids.add(server.getCommands().get(i).getMonkeyId());
+		}
+		return ids;
+	}
+}
@@ -17,7 +17,10 @@ package com.gorillalogic.monkeytalk.runner;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,7 +30,11 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.converters.FileConverter;
 import com.gorillalogic.monkeytalk.BuildStamp;
+import com.gorillalogic.monkeytalk.ProjectBundle;
+import com.gorillalogic.monkeytalk.agents.AgentManager;
 import com.gorillalogic.monkeytalk.agents.AndroidEmulatorAgent;
+import com.gorillalogic.monkeytalk.agents.IAgent;
+import com.gorillalogic.monkeytalk.processor.Shard;
 import com.gorillalogic.monkeytalk.utils.AndroidUtils;
 
 /**
@@ -43,10 +50,15 @@ public class Runner {
 	 *            the commandline args
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && CompileParser.COMMAND.equals(args[0])) {
+			compile(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		CommandlineParser parser = null;
 
 		try {
-			parser = new CommandlineParser(args);
+			parser = new CommandlineParser(splitShard(args));
 		} catch (Exception ex) {
 			System.out.println(BuildStamp.STAMP);
 			System.out.println("\nERROR: Bad commandline args\n");
@@ -94,6 +106,27 @@ public class Runner {
 				runner.setReportdir(parser.reportdir);
 				runner.setTakeAfterMetrics(parser.screenshots);
 				runner.setTakeAfterScreenshot(parser.screenshots);
+				runner.setScreenshotThreshold(parser.screenshotThreshold);
+				runner.setKeyframeInterval(parser.keyframes);
+				runner.setBatchPlayback(parser.batch);
+				runner.setScriptCache(!parser.nocache);
+				runner.setKeepAlive(parser.keepAlive);
+				if (parser.agents != null) {
+					runner.setParallelAgents(getAgents(parser.agents, parser.adb));
+				}
+				if (parser.shard != null) {
+					runner.setShard(Shard.parse(parser.shard));
+					runner.setShardReports(parser.shardReports);
+				}
+				runner.setHistoryFile(parser.history);
+				runner.setFailFast(parser.failfast);
+				if (parser.bundle != null) {
+					try {
+						runner.setBundle(ProjectBundle.open(parser.bundle));
+					} catch (IOException ex) {
+						throw new RuntimeException("Bad bundle: " + ex.getMessage(), ex);
+					}
+				}
 				if (parser.quiet && !parser.verbose) {
 					System.setOut(new PrintStream(new ByteArrayOutputStream()));
 				}
@@ -125,6 +158,109 @@ public class Runner {
 		}
 	}
 
+	/**
+	 * Helper to split the GNU-style {@code --shard=i/n} arg into {@code --shard i/n}, so it can be
+	 * given either way.
+	 * 
+	 * @param args
+	 *            the commandline args
+	 * @return the args, with the shard arg split
+	 */
+	private static String[] splitShard(String[] args) {
+		List<String> split = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--shard=") || arg.startsWith("-shard=")) {
+				split.add(arg.substring(0, arg.indexOf('=')));
+				split.add(arg.substring(arg.indexOf('=') + 1));
+			} else {
+				split.add(arg);
+			}
+		}
+		return split.toArray(new String[split.size()]);
+	}
+
+	/**
+	 * Helper to get the pool of agents from the given agent specs, each one like
+	 * {@code agent:host:port} or {@code agent:host:port:adbSerial}.
+	 * 
+	 * @param specs
+	 *            the agent specs
+	 * @param adb
+	 *            the path to ADB, or null to find it
+	 * @return the agents
+	 */
+	private static List<IAgent> getAgents(List<String> specs, File adb) {
+		List<IAgent> agents = new ArrayList<IAgent>();
+		for (String spec : specs) {
+			String[] parts = spec.trim().split(":");
+			if (parts.length < 3 || parts.length > 4) {
+				throw new RuntimeException("Bad agent '" + spec
+						+ "', must be agent:host:port or agent:host:port:adbSerial");
+			}
+
+			int port;
+			try {
+				port = Integer.parseInt(parts[2]);
+			} catch (NumberFormatException ex) {
+				throw new RuntimeException("Bad agent '" + spec + "', port must be a number");
+			}
+
+			IAgent agent = AgentManager.getAgent(parts[0], parts[1], port);
+			if (parts[0].equalsIgnoreCase("AndroidEmulator")) {
+				File f = (adb != null ? adb : AndroidUtils.getAdb());
+				agent.setProperty(AndroidEmulatorAgent.ADB_PROP,
+						f == null ? null : f.getAbsolutePath());
+			}
+			if (parts.length == 4) {
+				agent.setProperty(AndroidEmulatorAgent.ADB_SERIAL_PROP, parts[3]);
+			}
+			agents.add(agent);
+		}
+		return agents;
+	}
+
+	/**
+	 * Parse the given {@code compile} subcommand args, and compile the project folder into a
+	 * {@link ProjectBundle}.
+	 * 
+	 * @param args
+	 *            the commandline args (without the {@code compile} subcommand)
+	 */
+	private static void compile(String[] args) {
+		CompileParser parser = null;
+
+		try {
+			parser = new CompileParser(args);
+		} catch (Exception ex) {
+			System.out.println(BuildStamp.STAMP);
+			System.out.println("\nERROR: Bad commandline args\n");
+			return;
+		}
+
+		System.out.println(BuildStamp.STAMP);
+		if (parser.help) {
+			parser.printUsage();
+			return;
+		} else if (parser.projects == null || parser.projects.size() != 1) {
+			System.out.println("\nERROR: You must specify a single project folder to compile\n");
+			parser.printUsage();
+			return;
+		}
+
+		File dir = parser.projects.get(0).getAbsoluteFile();
+		File out = (parser.out != null ? parser.out : new File(dir, dir.getName()
+				+ ProjectBundle.EXT));
+		try {
+			long start = System.currentTimeMillis();
+			ProjectBundle bundle = ProjectBundle.compile(dir, out);
+			System.out.println("compiled " + bundle.getFilenames().size() + " files into "
+					+ out.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + "ms");
+			System.out.println("hash: " + bundle.getHash());
+		} catch (IOException ex) {
+			System.out.println("\nERROR: " + ex.getMessage() + "\n");
+		}
+	}
+
 	/**
 	 * Commandline arg parser based on JCommander.
 	 */
@@ -170,6 +306,39 @@ public class Runner {
 		@Parameter(names = "-screenshots", description = "Take before and after screenshots on every command")
 		private boolean screenshots = false;
 
+		@Parameter(names = "-screenshotThreshold", description = "Only take an after screenshot when the screen fingerprint changes by more than the given number of bits, or the command fails (0 for any change, -1 to take every screenshot). Needs an agent that returns a screen fingerprint (currently Android), otherwise every screenshot is taken")
+		private int screenshotThreshold = -1;
+
+		@Parameter(names = "-keyframes", description = "With -screenshotThreshold, take an after screenshot at least every given number of commands (0 for never)")
+		private int keyframes = 0;
+
+		@Parameter(names = "-batch", description = "Send runs of plain commands to the agent in a single round trip")
+		private boolean batch = false;
+
+		@Parameter(names = "-nocache", description = "Re-read scripts every time they are run, instead of caching them for the run")
+		private boolean nocache = false;
+
+		@Parameter(names = "-keepAlive", description = "Send commands over pooled keep-alive connections, instead of a new connection per command")
+		private boolean keepAlive = false;
+
+		@Parameter(names = "-agents", description = "Run suites in parallel across the given agents, comma-separated, each one like agent:host:port[:adbSerial]")
+		private List<String> agents;
+
+		@Parameter(names = { "-shard", "--shard" }, description = "Run only the given shard of each suite, like 1/4 for the first of four shards")
+		private String shard;
+
+		@Parameter(names = "-shardReports", converter = FileConverter.class, description = "Previous XML report (or folder of reports) used to balance the shards by test duration, must be the same for every shard")
+		private File shardReports;
+
+		@Parameter(names = "-history", converter = FileConverter.class, description = "Test history file, used to run recently failed and changed tests first within each suite level, nested suites move as a whole (created if missing, updated after every run)")
+		private File history;
+
+		@Parameter(names = "-failfast", description = "Stop the run after the given number of failed tests, the rest are reported as skipped (0 to never stop)")
+		private int failfast = 0;
+
+		@Parameter(names = "-bundle", converter = FileConverter.class, description = "Run from the given precompiled project bundle (see: compile)")
+		private File bundle;
+
 		@Parameter(names = "-help", description = "print help and exit", help = true)
 		private boolean help = false;
 
@@ -213,4 +382,33 @@ public class Runner {
 			return m;
 		}
 	}
+
+	/**
+	 * Commandline arg parser for the {@code compile} subcommand, which compiles a project folder
+	 * into a precompiled bundle, like: {@code compile -out myproject.mtb path/to/myproject}
+	 */
+	private static class CompileParser {
+		private static final String COMMAND = "compile";
+
+		private JCommander jcommander;
+
+		@Parameter(names = "-out", converter = FileConverter.class, description = "Output bundle file, defaults to <project>/<project>"
+				+ ProjectBundle.EXT)
+		private File out;
+
+		@Parameter(names = "-help", description = "print help and exit", help = true)
+		private boolean help = false;
+
+		@Parameter(converter = FileConverter.class, description = "project folder")
+		private List<File> projects;
+
+		public CompileParser(String[] args) {
+			jcommander = new JCommander(this, args);
+			jcommander.setProgramName(COMMAND);
+		}
+
+		public void printUsage() {
+			jcommander.usage();
+		}
+	}
 }
\ No newline at end of file